@@ -111,6 +111,8 @@ public abstract class AbstractBlockChain {
         final Block block;
         final List<Sha256Hash> filteredTxHashes;
         final Map<Sha256Hash, Transaction> filteredTxn;
+        // Roughly the memory the block takes up.
+        final int size;
         OrphanBlock(Block block, @Nullable List<Sha256Hash> filteredTxHashes, @Nullable Map<Sha256Hash, Transaction> filteredTxn) {
             final boolean filtered = filteredTxHashes != null && filteredTxn != null;
             Preconditions.checkArgument((block.getTransactions() == null && filtered)
@@ -118,11 +120,29 @@ public abstract class AbstractBlockChain {
             this.block = block;
             this.filteredTxHashes = filteredTxHashes;
             this.filteredTxn = filteredTxn;
+            int size = block.getMessageSize();
+            if (filtered) {
+                size += filteredTxHashes.size() * Sha256Hash.LENGTH;
+                for (Transaction tx : filteredTxn.values())
+                    size += tx.getMessageSize();
+            }
+            this.size = size;
         }
     }
+
+    /** The default maximum number of orphan blocks kept, see {@link #setMaxOrphanBlocks(int, long)}. */
+    public static final int DEFAULT_MAX_ORPHAN_BLOCKS = 5000;
+    /** The default maximum size of the orphan blocks kept, see {@link #setMaxOrphanBlocks(int, long)}. */
+    public static final long DEFAULT_MAX_ORPHAN_BYTES = 64 * 1024 * 1024;
+
     // Holds blocks that we have received but can't plug into the chain yet, eg because they were created whilst we
-    // were downloading the block chain.
+    // were downloading the block chain. They are indexed by the block they build on, so that once a block connects,
+    // the orphans that build on it are found without looking at the others. The oldest are evicted first.
     private final LinkedHashMap<Sha256Hash, OrphanBlock> orphanBlocks = new LinkedHashMap<>();
+    private final HashMap<Sha256Hash, List<OrphanBlock>> orphanBlocksByPrev = new HashMap<>();
+    private long orphanBlocksSize;
+    private int maxOrphanBlocks = DEFAULT_MAX_ORPHAN_BLOCKS;
+    private long maxOrphanBytes = DEFAULT_MAX_ORPHAN_BYTES;
 
     /** False positive estimation uses a double exponential moving average. */
     public static final double FP_ESTIMATOR_ALPHA = 0.0001;
@@ -460,9 +480,7 @@ public abstract class AbstractBlockChain {
                 // have more blocks.
                 checkState(tryConnecting, "bug in tryConnectingOrphans");
                 log.warn("Block does not connect: {} prev {}", block.getHashAsString(), block.getPrevBlockHash());
-                orphanBlocks.put(block.getHash(), new OrphanBlock(block, filteredTxHashList, filteredTxn));
-                if (tryConnecting)
-                    tryConnectingOrphans();
+                addOrphan(new OrphanBlock(block, filteredTxHashList, filteredTxn));
                 return false;
             } else {
                 checkState(lock.isHeldByCurrentThread());
@@ -470,7 +488,7 @@ public abstract class AbstractBlockChain {
                 params.checkDifficultyTransitions(storedPrev, block, blockStore);
                 connectBlock(block, storedPrev, shouldVerifyTransactions(), filteredTxHashList, filteredTxn);
                 if (tryConnecting)
-                    tryConnectingOrphans();
+                    tryConnectingOrphans(block.getHash());
                 return true;
             }
         } finally {
@@ -488,6 +506,8 @@ public abstract class AbstractBlockChain {
         try {
             Set<Sha256Hash> hashes = new HashSet<>(orphanBlocks.keySet());
             orphanBlocks.clear();
+            orphanBlocksByPrev.clear();
+            orphanBlocksSize = 0;
             return hashes;
         } finally {
             lock.unlock();
@@ -878,41 +898,84 @@ public abstract class AbstractBlockChain {
     }
 
     /**
-     * For each block in orphanBlocks, see if we can now fit it on top of the chain and if so, do so.
+     * Connects the orphan blocks that build on the given block, which was just connected, and the ones that build on
+     * those, and so on.
      */
-    private void tryConnectingOrphans() throws VerificationException, BlockStoreException, PrunedException {
+    private void tryConnectingOrphans(Sha256Hash connected) throws VerificationException, BlockStoreException, PrunedException {
         checkState(lock.isHeldByCurrentThread());
-        // For each block in our orphan list, try and fit it onto the head of the chain. If we succeed remove it
-        // from the list and keep going. If we changed the head of the list at the end of the round try again until
-        // we can't fit anything else on the top.
-        //
-        // This algorithm is kind of crappy, we should do a topo-sort then just connect them in order, but for small
-        // numbers of orphan blocks it does OK.
-        int blocksConnectedThisRound;
-        do {
-            blocksConnectedThisRound = 0;
-            Iterator<OrphanBlock> iter = orphanBlocks.values().iterator();
-            while (iter.hasNext()) {
-                OrphanBlock orphanBlock = iter.next();
-                // Look up the blocks previous.
-                StoredBlock prev = getStoredBlockInCurrentScope(orphanBlock.block.getPrevBlockHash());
-                if (prev == null) {
-                    // This is still an unconnected/orphan block.
-                    if (log.isDebugEnabled())
-                        log.debug("Orphan block {} is not connectable right now", orphanBlock.block.getHash());
-                    continue;
-                }
-                // Otherwise we can connect it now.
-                // False here ensures we don't recurse infinitely downwards when connecting huge chains.
+        // Walk the orphans that descend from the block breadth first. Each is only looked at once its parent is
+        // connected, so this takes a lookup per connected block, however many orphans there are.
+        ArrayDeque<Sha256Hash> parents = new ArrayDeque<>();
+        parents.add(connected);
+        int blocksConnected = 0;
+        while (!parents.isEmpty()) {
+            List<OrphanBlock> children = orphanBlocksByPrev.get(parents.remove());
+            if (children == null)
+                continue;
+            for (OrphanBlock orphanBlock : new ArrayList<>(children)) {
+                // Removed first, so that an orphan that fails to verify isn't tried again.
+                removeOrphan(orphanBlock);
                 log.info("Connected orphan {}", orphanBlock.block.getHash());
+                // False here ensures we don't recurse infinitely downwards when connecting huge chains.
                 add(orphanBlock.block, false, orphanBlock.filteredTxHashes, orphanBlock.filteredTxn);
-                iter.remove();
-                blocksConnectedThisRound++;
-            }
-            if (blocksConnectedThisRound > 0) {
-                log.info("Connected {} orphan blocks.", blocksConnectedThisRound);
+                parents.add(orphanBlock.block.getHash());
+                blocksConnected++;
             }
-        } while (blocksConnectedThisRound > 0);
+        }
+        if (blocksConnected > 0) {
+            log.info("Connected {} orphan blocks.", blocksConnected);
+        }
+    }
+
+    private void addOrphan(OrphanBlock orphanBlock) {
+        checkState(lock.isHeldByCurrentThread());
+        Sha256Hash hash = orphanBlock.block.getHash();
+        OrphanBlock replaced = orphanBlocks.get(hash);
+        if (replaced != null)
+            removeOrphan(replaced);
+        orphanBlocks.put(hash, orphanBlock);
+        Sha256Hash prev = orphanBlock.block.getPrevBlockHash();
+        List<OrphanBlock> siblings = orphanBlocksByPrev.get(prev);
+        if (siblings == null) {
+            siblings = new ArrayList<>(1);
+            orphanBlocksByPrev.put(prev, siblings);
+        }
+        siblings.add(orphanBlock);
+        orphanBlocksSize += orphanBlock.size;
+        // Evict the oldest orphans, but keep the new one even if it is larger than the limit on its own.
+        while (orphanBlocks.size() > 1 && (orphanBlocks.size() > maxOrphanBlocks || orphanBlocksSize > maxOrphanBytes)) {
+            OrphanBlock evicted = orphanBlocks.values().iterator().next();
+            log.info("Evicting orphan block {}, {} orphans of {} bytes", evicted.block.getHash(), orphanBlocks.size(),
+                    orphanBlocksSize);
+            removeOrphan(evicted);
+        }
+    }
+
+    private void removeOrphan(OrphanBlock orphanBlock) {
+        orphanBlocks.remove(orphanBlock.block.getHash());
+        Sha256Hash prev = orphanBlock.block.getPrevBlockHash();
+        List<OrphanBlock> siblings = orphanBlocksByPrev.get(prev);
+        if (siblings != null && siblings.remove(orphanBlock) && siblings.isEmpty())
+            orphanBlocksByPrev.remove(prev);
+        orphanBlocksSize -= orphanBlock.size;
+    }
+
+    /**
+     * Limits the orphan blocks that are kept until the blocks they build on arrive. Once there are more, or they take
+     * up more memory, the oldest are dropped, and have to be downloaded again.
+     * @param maxBlocks the maximum number of orphan blocks
+     * @param maxBytes the maximum size of the orphan blocks, roughly the memory they take up
+     */
+    public void setMaxOrphanBlocks(int maxBlocks, long maxBytes) {
+        checkArgument(maxBlocks > 0, "maxBlocks must be positive");
+        checkArgument(maxBytes > 0, "maxBytes must be positive");
+        lock.lock();
+        try {
+            this.maxOrphanBlocks = maxBlocks;
+            this.maxOrphanBytes = maxBytes;
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -0,0 +1,276 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.primitives.UnsignedInts;
+import com.google.common.primitives.UnsignedLongs;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>An unsigned 256 bit integer of fixed width, like {@code arith_uint256} in Qtum Core. It is used for difficulty
+ * targets, which are checked and recalculated for every header. Unlike {@link BigInteger}, all arithmetic happens in
+ * place, so none of it allocates.</p>
+ *
+ * <p>Results are exactly those of the equivalent {@link BigInteger} operations as long as they fit into 256 bits.
+ * Operations that can overflow report it in their return value.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public final class ArithUint256 implements Comparable<ArithUint256> {
+    private static final int WIDTH = 8;
+    private static final long WORD_MASK = 0xFFFFFFFFL;
+
+    // 32 bit words, least significant first.
+    private final int[] words = new int[WIDTH];
+
+    /** Creates a new number with the value zero. */
+    public ArithUint256() {
+    }
+
+    /** Creates a new number with the value of the given one. */
+    public ArithUint256(ArithUint256 other) {
+        set(other);
+    }
+
+    /** Sets this number to the value of the given one. */
+    public ArithUint256 set(ArithUint256 other) {
+        System.arraycopy(other.words, 0, words, 0, WIDTH);
+        return this;
+    }
+
+    /**
+     * Sets this number to the given value.
+     *
+     * @return false if the value is negative or doesn't fit into 256 bits, in which case this number is set to zero
+     */
+    public boolean set(BigInteger value) {
+        setZero();
+        if (value.signum() < 0 || value.bitLength() > WIDTH * 32)
+            return false;
+        for (int i = 0; i < WIDTH; i++)
+            words[i] = value.shiftRight(i * 32).intValue();
+        return true;
+    }
+
+    /** Sets this number to zero. */
+    public ArithUint256 setZero() {
+        Arrays.fill(words, 0);
+        return this;
+    }
+
+    /** Sets this number from 32 big endian bytes, for example as returned by {@link Sha256Hash#getBytes()}. */
+    public ArithUint256 setBytes(byte[] bytes) {
+        checkArgument(bytes.length == WIDTH * 4, "Expected 32 bytes, got %s", bytes.length);
+        for (int i = 0; i < WIDTH; i++)
+            words[i] = (int) Utils.readUint32BE(bytes, (WIDTH - 1 - i) * 4);
+        return this;
+    }
+
+    /**
+     * Sets this number from the "compact" format used for difficulty targets, producing the same value as
+     * {@link Utils#decodeCompactBits(long)}.
+     *
+     * @return false if the encoded value is negative or doesn't fit into 256 bits, in which case this number is set
+     * to zero
+     */
+    public boolean setCompact(long compact) {
+        setZero();
+        int size = (int) (compact >> 24) & 0xFF;
+        long mantissa = compact & 0x007FFFFFL;
+        if (size <= 3) {
+            words[0] = (int) (mantissa >> 8 * (3 - size));
+        } else if (mantissa != 0) {
+            int shift = 8 * (size - 3);
+            if (shift + 64 - Long.numberOfLeadingZeros(mantissa) > WIDTH * 32)
+                return false;
+            long shifted = mantissa << (shift % 32);
+            int index = shift / 32;
+            words[index] = (int) shifted;
+            if (index + 1 < WIDTH)
+                words[index + 1] = (int) (shifted >>> 32);
+        }
+        if (size > 0 && (compact & 0x00800000L) != 0 && !isZero()) {
+            setZero();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns this number in the "compact" format used for difficulty targets, producing the same value as
+     * {@link Utils#encodeCompactBits(BigInteger)}.
+     */
+    public long getCompact() {
+        // Like BigInteger.toByteArray(), leave room for a sign bit.
+        int size = bitLength() / 8 + 1;
+        long result = bitsAt(size <= 3 ? 0 : 8 * (size - 3)) & 0xFFFFFFL;
+        if (size < 3)
+            result <<= 8 * (3 - size);
+        // The 0x00800000 bit denotes the sign.
+        // Thus, if it is already set, divide the mantissa by 256 and increase the exponent.
+        if ((result & 0x00800000L) != 0) {
+            result >>= 8;
+            size++;
+        }
+        result |= size << 24;
+        return result;
+    }
+
+    /** Returns the number of bits needed to represent this number, like {@link BigInteger#bitLength()}. */
+    public int bitLength() {
+        for (int i = WIDTH - 1; i >= 0; i--)
+            if (words[i] != 0)
+                return i * 32 + 32 - Integer.numberOfLeadingZeros(words[i]);
+        return 0;
+    }
+
+    public boolean isZero() {
+        for (int word : words)
+            if (word != 0)
+                return false;
+        return true;
+    }
+
+    /**
+     * Adds the given number to this one.
+     *
+     * @return true if the sum didn't fit into 256 bits and was truncated
+     */
+    public boolean add(ArithUint256 other) {
+        long carry = 0;
+        for (int i = 0; i < WIDTH; i++) {
+            long n = (words[i] & WORD_MASK) + (other.words[i] & WORD_MASK) + carry;
+            words[i] = (int) n;
+            carry = n >>> 32;
+        }
+        return carry != 0;
+    }
+
+    /**
+     * Subtracts the given number from this one.
+     *
+     * @return true if the given number was larger, in which case this number wraps around modulo 2<sup>256</sup>
+     */
+    public boolean subtract(ArithUint256 other) {
+        long borrow = 0;
+        for (int i = 0; i < WIDTH; i++) {
+            long n = (words[i] & WORD_MASK) - (other.words[i] & WORD_MASK) - borrow;
+            words[i] = (int) n;
+            borrow = n < 0 ? 1 : 0;
+        }
+        return borrow != 0;
+    }
+
+    /** Replaces this number by its two's complement, that is 2<sup>256</sup> minus this number. */
+    public ArithUint256 negate() {
+        long carry = 1;
+        for (int i = 0; i < WIDTH; i++) {
+            long n = (~words[i] & WORD_MASK) + carry;
+            words[i] = (int) n;
+            carry = n >>> 32;
+        }
+        return this;
+    }
+
+    /**
+     * Multiplies this number by the given multiplier and then divides it by the given divisor, rounding down. The
+     * intermediate product may exceed 256 bits.
+     *
+     * @param multiplier a value between 0 and 2<sup>32</sup>-1
+     * @param divisor a value between 1 and 2<sup>32</sup>-1
+     * @return false if the result doesn't fit into 256 bits, in which case the value of this number is undefined
+     */
+    public boolean mulDiv(long multiplier, long divisor) {
+        checkArgument(multiplier >= 0 && multiplier <= WORD_MASK, "Multiplier out of range: %s", multiplier);
+        checkArgument(divisor > 0 && divisor <= WORD_MASK, "Divisor out of range: %s", divisor);
+        // Multiply, keeping what spills over the top as a ninth word. Each step stays within an unsigned long.
+        long carry = 0;
+        for (int i = 0; i < WIDTH; i++) {
+            long n = (words[i] & WORD_MASK) * multiplier + carry;
+            words[i] = (int) n;
+            carry = n >>> 32;
+        }
+        if (carry >= divisor)
+            return false;
+        // Long division, most significant word first. As the remainder is below the divisor, so is each quotient word.
+        long remainder = carry;
+        for (int i = WIDTH - 1; i >= 0; i--) {
+            long n = (remainder << 32) | (words[i] & WORD_MASK);
+            words[i] = (int) UnsignedLongs.divide(n, divisor);
+            remainder = UnsignedLongs.remainder(n, divisor);
+        }
+        return true;
+    }
+
+    /** Clears all bits except those from position {@code from} (inclusive) to {@code to} (exclusive). */
+    public ArithUint256 retainBits(int from, int to) {
+        for (int i = 0; i < WIDTH; i++) {
+            int low = Math.max(from - i * 32, 0);
+            int high = Math.min(to - i * 32, 32);
+            if (high <= low)
+                words[i] = 0;
+            else
+                words[i] &= (int) (((1L << (high - low)) - 1) << low);
+        }
+        return this;
+    }
+
+    public BigInteger toBigInteger() {
+        byte[] bytes = new byte[WIDTH * 4];
+        for (int i = 0; i < WIDTH; i++)
+            Utils.uint32ToByteArrayBE(words[i] & WORD_MASK, bytes, (WIDTH - 1 - i) * 4);
+        return new BigInteger(1, bytes);
+    }
+
+    // Returns the 32 bits starting at the given bit position.
+    private long bitsAt(int shift) {
+        int index = shift / 32;
+        long low = index < WIDTH ? words[index] & WORD_MASK : 0;
+        long high = index + 1 < WIDTH ? words[index + 1] & WORD_MASK : 0;
+        return ((high << 32 | low) >>> (shift % 32)) & WORD_MASK;
+    }
+
+    @Override
+    public int compareTo(ArithUint256 other) {
+        for (int i = WIDTH - 1; i >= 0; i--) {
+            int result = UnsignedInts.compare(words[i], other.words[i]);
+            if (result != 0)
+                return result;
+        }
+        return 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return Arrays.equals(words, ((ArithUint256) o).words);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(words);
+    }
+
+    /** Returns the value in hex, without leading zeros. */
+    @Override
+    public String toString() {
+        return toBigInteger().toString(16);
+    }
+}
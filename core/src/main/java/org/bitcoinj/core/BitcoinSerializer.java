@@ -28,6 +28,7 @@ import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static org.bitcoinj.core.Utils.*;
 
 /**
@@ -91,6 +92,27 @@ public class BitcoinSerializer extends MessageSerializer {
      */
     @Override
     public void serialize(String name, byte[] message, OutputStream out) throws IOException {
+        out.write(serializeHeader(name, message));
+        out.write(message);
+    }
+
+    /**
+     * Writes message to to the output stream.
+     */
+    @Override
+    public void serialize(Message message, OutputStream out) throws IOException {
+        serialize(getCommand(message), message.bitcoinSerialize(), out);
+    }
+
+    /**
+     * Returns the header to send ahead of the given payload of the given message.
+     */
+    @Override
+    public byte[] serializeHeader(Message message, byte[] payload) {
+        return serializeHeader(getCommand(message), payload);
+    }
+
+    private byte[] serializeHeader(String name, byte[] message) {
         byte[] header = new byte[4 + COMMAND_LEN + 4 + 4 /* checksum */];
         uint32ToByteArrayBE(params.getPacketMagic(), header, 0);
 
@@ -104,23 +126,18 @@ public class BitcoinSerializer extends MessageSerializer {
 
         byte[] hash = Sha256Hash.hashTwice(message);
         System.arraycopy(hash, 0, header, 4 + COMMAND_LEN + 4, 4);
-        out.write(header);
-        out.write(message);
 
         if (log.isDebugEnabled())
             log.debug("Sending {} message: {}", name, HEX.encode(header) + HEX.encode(message));
+        return header;
     }
 
-    /**
-     * Writes message to to the output stream.
-     */
-    @Override
-    public void serialize(Message message, OutputStream out) throws IOException {
+    private String getCommand(Message message) {
         String name = names.get(message.getClass());
         if (name == null) {
             throw new Error("BitcoinSerializer doesn't currently know how to serialize " + message.getClass());
         }
-        serialize(name, message.bitcoinSerialize(), out);
+        return name;
     }
 
     /**
@@ -165,10 +182,19 @@ public class BitcoinSerializer extends MessageSerializer {
     public Message deserializePayload(BitcoinPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException {
         byte[] payloadBytes = new byte[header.size];
         in.get(payloadBytes, 0, header.size);
+        return deserializePayload(header, payloadBytes, Sha256Hash.hashTwice(payloadBytes));
+    }
+
+    /**
+     * Deserialize payload only, from an array holding exactly the payload and its double SHA-256 hash. The array is
+     * parsed in place and, in parse-retain mode, kept by the message, so it must not be modified afterwards.
+     */
+    @Override
+    public Message deserializePayload(BitcoinPacketHeader header, byte[] payloadBytes, byte[] hash) throws ProtocolException {
+        checkArgument(payloadBytes.length == header.size, "Payload is %s bytes, header says %s", payloadBytes.length,
+                header.size);
 
         // Verify the checksum.
-        byte[] hash;
-        hash = Sha256Hash.hashTwice(payloadBytes);
         if (header.checksum[0] != hash[0] || header.checksum[1] != hash[1] ||
                 header.checksum[2] != hash[2] || header.checksum[3] != hash[3]) {
             throw new ProtocolException("Checksum failed to verify, actual " +
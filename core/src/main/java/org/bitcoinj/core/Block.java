@@ -59,6 +59,9 @@ public class Block extends Message {
     /** How many bytes are required to represent a block header WITHOUT the trailing 00 length byte. */
     public static final int HEADER_SIZE_WITHOUT_SIGNATURE = 180;
 
+    /** Size of a compact signature, which a delegated block signature and its proof of delegation each are. */
+    public static final int COMPACT_SIGNATURE_SIZE = 65;
+
     static final long ALLOWED_TIME_DRIFT = 2 * 60 * 60; // Same value as Bitcoin Core.
 
     /**
@@ -261,6 +264,9 @@ public class Block extends Message {
         transactions = new ArrayList<>(Math.min(numTransactions, Utils.MAX_INITIAL_ARRAY_LENGTH));
         for (int i = 0; i < numTransactions; i++) {
             Transaction tx = new Transaction(params, payload, cursor, this, serializer, UNKNOWN_LENGTH, null);
+            // We still have the transaction's bytes at hand, so hash them for its ids rather than have it reserialize
+            // itself for them later, as the merkle root check will ask every transaction for its id.
+            tx.cacheIds(payload, cursor);
             // Label the transaction as coming from the P2P network, so code that cares where we first saw it knows.
             tx.getConfidence().setSource(TransactionConfidence.Source.NETWORK);
             transactions.add(tx);
@@ -445,6 +451,23 @@ public class Block extends Message {
         }
     }
 
+    /**
+     * Returns the hash of the header without the trailing block signature, which is the message the staker signs for
+     * a proof-of-stake block. Like {@link #getHash()}, the result is in the form seen on the block explorer, so use
+     * {@link Sha256Hash#getReversedBytes()} to get the digest that was actually signed.
+     */
+    public Sha256Hash getHashWithoutSignature() {
+        if (headerBytesValid && payload != null && payload.length >= offset + HEADER_SIZE_WITHOUT_SIGNATURE)
+            return Sha256Hash.wrapReversed(Sha256Hash.hashTwice(payload, offset, HEADER_SIZE_WITHOUT_SIGNATURE));
+        try {
+            ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(getHeaderSize());
+            writeHeader(bos);
+            return Sha256Hash.wrapReversed(Sha256Hash.hashTwice(bos.toByteArray(), 0, HEADER_SIZE_WITHOUT_SIGNATURE));
+        } catch (IOException e) {
+            throw new RuntimeException(e); // Cannot happen.
+        }
+    }
+
     /**
      * Returns the hash of the block (which for a valid, solved block should be below the target) in the form seen on
      * the block explorer. If you call this on block 1 in the mainnet chain
@@ -567,9 +590,15 @@ public class Block extends Message {
      * is thrown.
      */
     public BigInteger getDifficultyTargetAsInteger() throws VerificationException {
-        BigInteger target = Utils.decodeCompactBits(difficultyTarget);
-        if (target.signum() <= 0 || target.compareTo(params.maxTarget) > 0)
-            throw new VerificationException("Difficulty target is bad: " + target.toString());
+        return getDifficultyTargetAsArith().toBigInteger();
+    }
+
+    /** Like {@link #getDifficultyTargetAsInteger()}, but without going through {@link BigInteger}. */
+    private ArithUint256 getDifficultyTargetAsArith() throws VerificationException {
+        ArithUint256 target = new ArithUint256();
+        if (!target.setCompact(difficultyTarget) || target.isZero()
+                || target.compareTo(params.targetAsArith(params.maxTarget)) > 0)
+            throw new VerificationException("Difficulty target is bad: " + Utils.decodeCompactBits(difficultyTarget).toString());
         return target;
     }
 
@@ -583,15 +612,15 @@ public class Block extends Message {
         //
         // To prevent this attack from being possible, elsewhere we check that the difficultyTarget
         // field is of the right value. This requires us to have the preceding blocks.
-        BigInteger target = getDifficultyTargetAsInteger();
+        ArithUint256 target = getDifficultyTargetAsArith();
 
         if (!isPOS()) {
-            BigInteger h = getHash().toBigInteger();
+            ArithUint256 h = new ArithUint256().setBytes(getHash().getBytes());
             if (h.compareTo(target) > 0) {
                 // Proof of work check failed!
                 if (throwException)
                     throw new VerificationException("Hash is higher than target: " + getHashAsString() + " vs "
-                            + target.toString(16));
+                            + target.toString());
                 else
                     return false;
             }
@@ -871,6 +900,29 @@ public class Block extends Message {
         updateHeaderSize();
     }
 
+    /**
+     * Returns true if this block was staked by a delegate on behalf of the owner of the staked coins (offline staking).
+     * The signature then consists of the delegate's compact signature followed by a proof of delegation, which is a
+     * compact signature by the owner authorizing the delegate.
+     */
+    public boolean hasProofOfDelegation() {
+        return signature.length >= 2 * COMPACT_SIGNATURE_SIZE;
+    }
+
+    /** Returns the signature of the staker over the header, without the proof of delegation if there is one. */
+    public byte[] getBlockSignature() {
+        if (!hasProofOfDelegation())
+            return signature;
+        return Arrays.copyOf(signature, signature.length - COMPACT_SIGNATURE_SIZE);
+    }
+
+    /** Returns the proof of delegation of a delegated block, or an empty array if there is none. */
+    public byte[] getProofOfDelegation() {
+        if (!hasProofOfDelegation())
+            return new byte[0];
+        return Arrays.copyOfRange(signature, signature.length - COMPACT_SIGNATURE_SIZE, signature.length);
+    }
+
     /**
      * Returns the witness root in big endian form, calculating it from transactions if necessary.
      */
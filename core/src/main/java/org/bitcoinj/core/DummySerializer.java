@@ -48,6 +48,11 @@ class DummySerializer extends MessageSerializer {
         throw new UnsupportedOperationException(DEFAULT_EXCEPTION_MESSAGE);
     }
 
+    @Override
+    public Message deserializePayload(BitcoinSerializer.BitcoinPacketHeader header, byte[] payload, byte[] hash) throws UnsupportedOperationException {
+        throw new UnsupportedOperationException(DEFAULT_EXCEPTION_MESSAGE);
+    }
+
     @Override
     public boolean isParseRetainMode() {
         return false;
@@ -102,5 +107,10 @@ class DummySerializer extends MessageSerializer {
     public void serialize(Message message, OutputStream out) throws IOException {
         throw new UnsupportedOperationException(DEFAULT_EXCEPTION_MESSAGE);
     }
+
+    @Override
+    public byte[] serializeHeader(Message message, byte[] payload) {
+        throw new UnsupportedOperationException(DEFAULT_EXCEPTION_MESSAGE);
+    }
     
 }
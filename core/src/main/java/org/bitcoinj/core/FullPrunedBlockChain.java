@@ -33,9 +33,9 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static com.google.common.base.Preconditions.checkState;
 
@@ -97,6 +97,8 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
     public FullPrunedBlockChain(Context context, List<Wallet> listeners, FullPrunedBlockStore blockStore) throws BlockStoreException {
         super(context, listeners, blockStore);
         this.blockStore = blockStore;
+        this.scriptVerificationPool = createScriptVerificationPool(context);
+        this.kernelValidator = new PosKernelValidator(params, blockStore);
         // Ignore upgrading for now
         this.chainHead = blockStore.getVerifiedChainHead();
     }
@@ -146,38 +148,203 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         this.runScripts = value;
     }
 
+    /**
+     * Sets the validator that checks the kernels of proof-of-stake blocks. By default it keeps its records in memory,
+     * so after every start it walks the block store back to the genesis block, and rejects blocks if the store doesn't
+     * go back that far. For a store that persists between runs, or one that was loaded from a snapshot, install a
+     * validator that keeps its records in a file instead. Null turns off kernel checks, which is only safe if the
+     * blocks come from a node you trust.
+     */
+    public void setPosKernelValidator(@Nullable PosKernelValidator kernelValidator) {
+        this.kernelValidator = kernelValidator;
+    }
+
+    /**
+     * Returns statistics about the script verification of the last block that was connected with scripts being run,
+     * or null if there wasn't any yet.
+     */
+    @Nullable
+    public ScriptVerificationStats getLastScriptVerificationStats() {
+        return lastScriptVerificationStats;
+    }
+
     // TODO: Remove lots of duplicated code in the two connectTransactions
 
-    // TODO: execute in order of largest transaction (by input count) first
-    ExecutorService scriptVerificationExecutor = Executors.newFixedThreadPool(
-            Runtime.getRuntime().availableProcessors(), new ContextPropagatingThreadFactory("Script verification"));
+    // Inputs are verified in parallel on this pool. Idle threads steal inputs from busy ones, so a block that consists
+    // of a single large transaction is spread over all processors too. Its threads are daemons that go away when idle.
+    private final ForkJoinPool scriptVerificationPool;
+    // The number of inputs below which an input verification task doesn't split off half of its inputs for other
+    // threads to steal. Verifying a signature takes long enough for a small value.
+    private static final int MIN_INPUTS_TO_SPLIT = 4;
+
+    private volatile ScriptVerificationStats lastScriptVerificationStats;
+
+    // Checks the kernels of proof-of-stake blocks, on the calling thread while their scripts are being verified. Null
+    // if turned off.
+    @Nullable private volatile PosKernelValidator kernelValidator;
+
+    private static ForkJoinPool createScriptVerificationPool(final Context context) {
+        return new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+                new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+                    @Override
+                    public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                        ForkJoinWorkerThread thread = new ForkJoinWorkerThread(pool) {
+                            @Override
+                            protected void onStart() {
+                                super.onStart();
+                                Context.propagate(context);
+                            }
+                        };
+                        thread.setName("Script verification");
+                        return thread;
+                    }
+                }, Threading.uncaughtExceptionHandler, false);
+    }
 
     /**
-     * A job submitted to the executor which verifies signatures.
+     * Verifies the scripts of all inputs of a block. Transactions are submitted while the block is connected, and
+     * verification stops early once an input fails.
      */
-    private static class Verifier implements Callable<VerificationException> {
+    private class ScriptVerification {
+        private final Sha256Hash blockHash;
+        private final List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        private final AtomicReference<VerificationException> failure = new AtomicReference<>();
+        private volatile boolean cancelled;
+        private final long startNanos = System.nanoTime();
+        private int inputs;
+
+        ScriptVerification(Sha256Hash blockHash) {
+            this.blockHash = blockHash;
+        }
+
+        /**
+         * Starts verifying the inputs of the given transaction.
+         *
+         * @throws VerificationException if an input that was submitted earlier has failed already
+         */
+        void submit(Transaction tx, List<Script> prevOutScripts, Set<VerifyFlag> verifyFlags) {
+            throwIfFailed();
+            // Serialize here, so that verifiers, which copy the transaction, only ever read the cached bytes.
+            tx.bitcoinSerialize();
+            ForkJoinTask<?> task = new InputVerifier(this, tx, new ArrayList<>(prevOutScripts), verifyFlags, 0,
+                    prevOutScripts.size());
+            scriptVerificationPool.execute(task);
+            tasks.add(task);
+            inputs += prevOutScripts.size();
+        }
+
+        /**
+         * Waits until all submitted inputs are verified.
+         *
+         * @throws VerificationException if an input failed
+         */
+        void await() {
+            long waitStartNanos = System.nanoTime();
+            for (ForkJoinTask<?> task : tasks)
+                task.join();
+            long endNanos = System.nanoTime();
+            lastScriptVerificationStats = new ScriptVerificationStats(blockHash, tasks.size(), inputs,
+                    TimeUnit.NANOSECONDS.toMillis(endNanos - startNanos),
+                    TimeUnit.NANOSECONDS.toMillis(endNanos - waitStartNanos));
+            if (log.isDebugEnabled())
+                log.debug(lastScriptVerificationStats.toString());
+            throwIfFailed();
+        }
+
+        /** Stops verification after the block failed for another reason. */
+        void cancel() {
+            cancelled = true;
+        }
+
+        boolean isStopped() {
+            return cancelled || failure.get() != null;
+        }
+
+        void fail(VerificationException e) {
+            failure.compareAndSet(null, e);
+        }
+
+        private void throwIfFailed() {
+            VerificationException e = failure.get();
+            if (e != null)
+                throw e;
+        }
+    }
+
+    /**
+     * A job submitted to the pool which verifies the signatures of a range of inputs of a transaction, splitting off
+     * half of it for other threads to steal if it is large enough.
+     */
+    private static class InputVerifier extends RecursiveAction {
+        // Never serialized, ForkJoinTask just happens to be Serializable.
+        private static final long serialVersionUID = 1L;
+
+        final ScriptVerification verification;
         final Transaction tx;
         final List<Script> prevOutScripts;
         final Set<VerifyFlag> verifyFlags;
+        final int from, to;
 
-        public Verifier(final Transaction tx, final List<Script> prevOutScripts, final Set<VerifyFlag> verifyFlags) {
+        public InputVerifier(ScriptVerification verification, Transaction tx, List<Script> prevOutScripts,
+                             Set<VerifyFlag> verifyFlags, int from, int to) {
+            this.verification = verification;
             this.tx = tx;
             this.prevOutScripts = prevOutScripts;
             this.verifyFlags = verifyFlags;
+            this.from = from;
+            this.to = to;
         }
 
-        @Nullable
         @Override
-        public VerificationException call() throws Exception {
-            try {
-                ListIterator<Script> prevOutIt = prevOutScripts.listIterator();
-                for (int index = 0; index < tx.getInputs().size(); index++) {
-                    tx.getInputs().get(index).getScriptSig().correctlySpends(tx, index, prevOutIt.next(), verifyFlags);
+        protected void compute() {
+            if (to - from >= MIN_INPUTS_TO_SPLIT) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new InputVerifier(verification, tx, prevOutScripts, verifyFlags, from, middle),
+                        new InputVerifier(verification, tx, prevOutScripts, verifyFlags, middle, to));
+                return;
+            }
+            for (int index = from; index < to && !verification.isStopped(); index++) {
+                try {
+                    // Parse our own copy of the script, as the one cached by the input isn't safe to share.
+                    Script scriptSig = new Script(tx.getInputs().get(index).getScriptBytes());
+                    scriptSig.correctlySpends(tx, index, prevOutScripts.get(index), verifyFlags);
+                } catch (VerificationException e) {
+                    verification.fail(e);
+                } catch (RuntimeException e) {
+                    log.error("Script.correctlySpends threw a non-normal exception: " + e);
+                    verification.fail(new VerificationException(
+                            "Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", e));
                 }
-            } catch (VerificationException e) {
-                return e;
             }
-            return null;
+        }
+    }
+
+    /** Statistics about the script verification of a block. */
+    public static class ScriptVerificationStats {
+        /** The block whose scripts were verified. */
+        public final Sha256Hash blockHash;
+        /** The number of transactions whose inputs were verified. */
+        public final int transactions;
+        /** The number of inputs that were verified. */
+        public final int inputs;
+        /** Time from submitting the first transaction until all inputs were verified. */
+        public final long totalMillis;
+        /** Time the chain waited for verification after it was done with everything else. */
+        public final long waitMillis;
+
+        public ScriptVerificationStats(Sha256Hash blockHash, int transactions, int inputs, long totalMillis,
+                                       long waitMillis) {
+            this.blockHash = blockHash;
+            this.transactions = transactions;
+            this.inputs = inputs;
+            this.totalMillis = totalMillis;
+            this.waitMillis = waitMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "Verified " + inputs + " inputs of " + transactions + " transactions in block " + blockHash
+                    + " in " + totalMillis + " ms, waited " + waitMillis + " ms";
         }
     }
 
@@ -193,12 +360,14 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
     }
 
     /**
-     * Get the address from the {@link Script} if it exists otherwise return empty string "".
+     * Get the address from the {@link Script} if it exists otherwise return empty string "". This is the address
+     * stored with each unspent output, so everything that creates outputs for a store should use it.
      *
+     * @param params The network of the address.
      * @param script The script.
      * @return The address.
      */
-    private String getScriptAddress(@Nullable Script script) {
+    public static String getScriptAddress(NetworkParameters params, @Nullable Script script) {
         String address = "";
         try {
             if (script != null) {
@@ -224,11 +393,11 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         LinkedList<UTXO> txOutsCreated = new LinkedList<>();
         long sigOps = 0;
 
-        if (scriptVerificationExecutor.isShutdown())
-            scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-
-        List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<>(block.getTransactions().size());
+        ScriptVerification scriptVerification = new ScriptVerification(block.getHash());
         try {
+            // Look up the staked output before the coinstake spends it.
+            UTXO stakedOutput = block.isPOS()
+                    ? blockStore.getTransactionOutput(block.getStakePrevTxid(), block.getStakeOutputIndex()) : null;
             if (!params.isCheckpoint(height)) {
                 // BIP30 violator blocks are ones that contain a duplicated transaction. They are all in the
                 // checkpoints list and we therefore only check non-checkpoints for duplicated transactions here. See the
@@ -293,7 +462,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                             out.getValue(),
                             height, isCoinBase,
                             script,
-                            getScriptAddress(script));
+                            getScriptAddress(params, script));
                     blockStore.addUnspentTransactionOutput(newOut);
                     txOutsCreated.add(newOut);
                 }
@@ -309,34 +478,22 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     totalFees = totalFees.add(valueIn.subtract(valueOut));
                 }
 
-                if (!isCoinBase && runScripts) {
-                    // Because correctlySpends modifies transactions, this must come after we are done with tx
-                    FutureTask<VerificationException> future = new FutureTask<>(new Verifier(tx, prevOutScripts, verifyFlags));
-                    scriptVerificationExecutor.execute(future);
-                    listScriptVerificationResults.add(future);
-                }
+                if (!isCoinBase && runScripts)
+                    scriptVerification.submit(tx, prevOutScripts, verifyFlags);
             }
             if (totalFees.compareTo(params.getMaxMoney()) > 0 || block.getBlockInflation(height).add(totalFees).compareTo(coinbaseValue) < 0)
                 throw new VerificationException("Transaction fees out of range");
-            for (Future<VerificationException> future : listScriptVerificationResults) {
-                VerificationException e;
-                try {
-                    e = future.get();
-                } catch (InterruptedException thrownE) {
-                    throw new RuntimeException(thrownE); // Shouldn't happen
-                } catch (ExecutionException thrownE) {
-                    log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                    throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                }
-                if (e != null)
-                    throw e;
-            }
+            PosKernelValidator kernelValidator = this.kernelValidator;
+            if (kernelValidator != null)
+                kernelValidator.verify(blockStore.get(block.getPrevBlockHash()), block, block.getTransactions(),
+                        stakedOutput);
+            scriptVerification.await();
         } catch (VerificationException e) {
-            scriptVerificationExecutor.shutdownNow();
+            scriptVerification.cancel();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         } catch (BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
+            scriptVerification.cancel();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         }
@@ -361,12 +518,16 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
             throw new PrunedException(newBlock.getHeader().getHash());
         }
         TransactionOutputChanges txOutChanges;
+        ScriptVerification scriptVerification = new ScriptVerification(newBlock.getHeader().getHash());
         try {
             List<Transaction> transactions = block.getTransactions();
             if (transactions != null) {
                 LinkedList<UTXO> txOutsSpent = new LinkedList<>();
                 LinkedList<UTXO> txOutsCreated = new LinkedList<>();
                 long sigOps = 0;
+                Block header = newBlock.getHeader();
+                UTXO stakedOutput = header.isPOS()
+                        ? blockStore.getTransactionOutput(header.getStakePrevTxid(), header.getStakeOutputIndex()) : null;
 
                 if (!params.isCheckpoint(newBlock.getHeight())) {
                     for (Transaction tx : transactions) {
@@ -377,10 +538,6 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 }
                 Coin totalFees = Coin.ZERO;
                 Coin coinbaseValue = null;
-
-                if (scriptVerificationExecutor.isShutdown())
-                    scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-                List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<>(transactions.size());
                 for (final Transaction tx : transactions) {
                     final Set<VerifyFlag> verifyFlags =
                         params.getTransactionVerificationFlags(newBlock.getHeader(), tx, getVersionTally(), Integer.SIZE);
@@ -424,7 +581,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                                 newBlock.getHeight(),
                                 isCoinBase,
                                 script,
-                                getScriptAddress(script));
+                                getScriptAddress(params, script));
                         blockStore.addUnspentTransactionOutput(newOut);
                         txOutsCreated.add(newOut);
                     }
@@ -440,30 +597,17 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                         totalFees = totalFees.add(valueIn.subtract(valueOut));
                     }
 
-                    if (!isCoinBase) {
-                        // Because correctlySpends modifies transactions, this must come after we are done with tx
-                        FutureTask<VerificationException> future = new FutureTask<>(new Verifier(tx, prevOutScripts, verifyFlags));
-                        scriptVerificationExecutor.execute(future);
-                        listScriptVerificationResults.add(future);
-                    }
+                    if (!isCoinBase)
+                        scriptVerification.submit(tx, prevOutScripts, verifyFlags);
                 }
                 if (totalFees.compareTo(params.getMaxMoney()) > 0 ||
                         newBlock.getHeader().getBlockInflation(newBlock.getHeight()).add(totalFees).compareTo(coinbaseValue) < 0)
                     throw new VerificationException("Transaction fees out of range");
                 txOutChanges = new TransactionOutputChanges(txOutsCreated, txOutsSpent);
-                for (Future<VerificationException> future : listScriptVerificationResults) {
-                    VerificationException e;
-                    try {
-                        e = future.get();
-                    } catch (InterruptedException thrownE) {
-                        throw new RuntimeException(thrownE); // Shouldn't happen
-                    } catch (ExecutionException thrownE) {
-                        log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                        throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                    }
-                    if (e != null)
-                        throw e;
-                }
+                PosKernelValidator kernelValidator = this.kernelValidator;
+                if (kernelValidator != null)
+                    kernelValidator.verify(newBlock.getPrev(blockStore), header, transactions, stakedOutput);
+                scriptVerification.await();
             } else {
                 txOutChanges = block.getTxOutChanges();
                 if (!params.isCheckpoint(newBlock.getHeight()))
@@ -478,11 +622,11 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     blockStore.removeUnspentTransactionOutput(out);
             }
         } catch (VerificationException e) {
-            scriptVerificationExecutor.shutdownNow();
+            scriptVerification.cancel();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         } catch (BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
+            scriptVerification.cancel();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         }
@@ -46,6 +46,13 @@ public abstract class MessageSerializer {
      */
     public abstract Message deserializePayload(BitcoinSerializer.BitcoinPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException, UnsupportedOperationException;
 
+    /**
+     * Deserialize payload only, from an array holding exactly the payload, given the double SHA-256 hash of it. Saves
+     * the copy and the hashing pass of {@link #deserializePayload(BitcoinSerializer.BitcoinPacketHeader, ByteBuffer)} for callers
+     * which buffered the payload themselves and hashed it on the way in. The array must not be modified afterwards.
+     */
+    public abstract Message deserializePayload(BitcoinSerializer.BitcoinPacketHeader header, byte[] payload, byte[] hash) throws ProtocolException, UnsupportedOperationException;
+
     /**
      * Whether the serializer will produce cached mode Messages
      */
@@ -163,5 +170,14 @@ public abstract class MessageSerializer {
      * it does not support serializing the given message.
      */
     public abstract void serialize(Message message, OutputStream out) throws IOException, UnsupportedOperationException;
+
+    /**
+     * Returns the header which goes ahead of the given payload, {@code message.bitcoinSerialize()}, on the wire. Lets
+     * callers hand header and payload to the network separately instead of joining them.
+     *
+     * @throws UnsupportedOperationException if this serializer/deserializer
+     * does not support serialization.
+     */
+    public abstract byte[] serializeHeader(Message message, byte[] payload) throws UnsupportedOperationException;
     
 }
@@ -33,6 +33,7 @@ import java.io.*;
 import java.math.*;
 import java.util.*;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static org.bitcoinj.core.Coin.*;
 import org.bitcoinj.utils.VersionTally;
 
@@ -108,6 +109,8 @@ public abstract class NetworkParameters {
     protected HttpDiscovery.Details[] httpSeeds = {};
     protected Map<Integer, Sha256Hash> checkpoints = new HashMap<>();
     protected volatile transient MessageSerializer defaultSerializer = null;
+    // Targets already converted by targetAsArith(). Guarded by itself.
+    private final transient Map<BigInteger, ArithUint256> arithTargets = new HashMap<>();
 
     protected NetworkParameters() {
         alertSigningKey = SATOSHI_KEY;
@@ -249,6 +252,13 @@ public abstract class NetworkParameters {
         return checkpointHash != null;
     }
 
+    /**
+     * Returns the recorded checkpoints, as block hashes by height.
+     */
+    public Map<Integer, Sha256Hash> getCheckpoints() {
+        return Collections.unmodifiableMap(checkpoints);
+    }
+
     public int getSubsidyDecreaseBlockCount() {
         return subsidyDecreaseBlockCount;
     }
@@ -350,6 +360,23 @@ public abstract class NetworkParameters {
         return maxTarget;
     }
 
+    /**
+     * Returns the given target, usually one of the maximum targets, as an {@link ArithUint256}. Each value is
+     * converted only once, as these are compared against on every header. The result is shared and must not be
+     * modified.
+     */
+    protected ArithUint256 targetAsArith(BigInteger target) {
+        synchronized (arithTargets) {
+            ArithUint256 result = arithTargets.get(target);
+            if (result == null) {
+                result = new ArithUint256();
+                checkArgument(result.set(target), "Target out of range: %s", target);
+                arithTargets.put(target, result);
+            }
+            return result;
+        }
+    }
+
     /**
      * The key used to sign {@link AlertMessage}s. You can use {@link ECKey#verify(byte[], byte[], byte[])} to verify
      * signatures using it.
@@ -0,0 +1,439 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Fetches the filtered blocks the download peer announces from several peers at once. Instead of asking the
+ * download peer for all the blocks of an inventory, {@link Peer} hands their hashes to this class, which keeps up to
+ * a configured number of blocks in flight, spread in small batches over the peers that have the least outstanding.
+ * Each peer collects the transactions that follow a filtered block as usual, and the complete block is handed back
+ * here. Blocks are passed on to the download peer in the order they were announced in, so the chain sees them in
+ * chain order even if they arrive out of order. They are added to the chain without holding the lock of this class,
+ * one thread at a time.</p>
+ *
+ * <p>A request that a peer didn't answer within {@link #STALL_TIMEOUT_MILLIS}, or answered with notfound, is sent
+ * to another peer. The requests of a disconnected peer are sent again as well. When few blocks are left to request,
+ * the download peer is asked for the next inventory, so that the pipeline doesn't run dry between inventories.</p>
+ *
+ * <p>Set up through {@link PeerGroup#setMaxFilteredBlocksInFlight(int)}.</p>
+ */
+class ParallelFilteredBlockDownload {
+    private static final Logger log = LoggerFactory.getLogger(ParallelFilteredBlockDownload.class);
+
+    /** The most blocks asked for in a single getdata. */
+    public static final int MAX_BLOCKS_PER_REQUEST = 16;
+    /** How long a peer may take to send a block before it is asked from another peer. */
+    public static final long STALL_TIMEOUT_MILLIS = 30 * 1000;
+    // The number of blocks a peer announces in reply to getblocks, if it has that many.
+    private static final int MAX_BLOCKS_PER_INVENTORY = 500;
+
+    private final ReentrantLock lock = Threading.lock("parallelfilteredblockdownload");
+
+    private final NetworkParameters params;
+    private final AbstractBlockChain chain;
+    private final int maxBlocksInFlight;
+
+    @GuardedBy("lock") @Nullable private Peer downloadPeer;
+    // Peers we may ask for blocks, with the number of blocks each of them has outstanding.
+    @GuardedBy("lock") private final Map<Peer, Integer> peers = new HashMap<>();
+    // All blocks that are yet to be passed on to the download peer, in the order they were announced in.
+    @GuardedBy("lock") private final LinkedList<Sha256Hash> queue = new LinkedList<>();
+    @GuardedBy("lock") private final Set<Sha256Hash> queued = new HashSet<>();
+    // Blocks that are yet to be asked for. Blocks that have to be asked for again go to the front.
+    @GuardedBy("lock") private final LinkedList<Sha256Hash> toRequest = new LinkedList<>();
+    @GuardedBy("lock") private final Map<Sha256Hash, Request> inFlight = new HashMap<>();
+    // Blocks that arrived before the blocks in front of them.
+    @GuardedBy("lock") private final Map<Sha256Hash, FilteredBlock> received = new HashMap<>();
+    // The last block announced, and whether the download peer probably has more after it.
+    @GuardedBy("lock") @Nullable private Sha256Hash lastQueued;
+    @GuardedBy("lock") private boolean moreAvailable;
+    @GuardedBy("lock") private boolean nextInventoryRequested;
+    // The last block of the last full inventory. Once the download peer is asked for it, the peer announces its tip.
+    @GuardedBy("lock") @Nullable private Sha256Hash hashContinue;
+    // The inventories we expect from the download peer, in the order we asked for them.
+    @GuardedBy("lock") private final LinkedList<Answer> expectedAnswers = new LinkedList<>();
+    // How many threads want blocks added to the chain. Only the one that made it non-zero adds them, so they are
+    // added in order.
+    private final AtomicInteger deliveries = new AtomicInteger(0);
+
+    private enum Answer {
+        // The blocks following the locator of a getblocks.
+        INVENTORY,
+        // The single block the peer announces as its tip after we asked for the hashContinue block.
+        TIP
+    }
+
+    private static class Request {
+        final Peer peer;
+        final long timeMillis;
+
+        Request(Peer peer, long timeMillis) {
+            this.peer = peer;
+            this.timeMillis = timeMillis;
+        }
+    }
+
+    /**
+     * @param params the network the blocks belong to
+     * @param chain the chain the download peer adds the blocks to
+     * @param maxBlocksInFlight how many blocks may be requested but not received yet
+     */
+    ParallelFilteredBlockDownload(NetworkParameters params, AbstractBlockChain chain, int maxBlocksInFlight) {
+        checkArgument(maxBlocksInFlight > 0);
+        this.params = checkNotNull(params);
+        this.chain = checkNotNull(chain);
+        this.maxBlocksInFlight = maxBlocksInFlight;
+    }
+
+    /**
+     * Sets the peer that announces the blocks to fetch and that adds them to the chain, or null if there is none.
+     * Blocks that arrived while there was no download peer are added to the chain by the next call to
+     * {@link #deliver()}.
+     */
+    void setDownloadPeer(@Nullable Peer peer) {
+        lock.lock();
+        try {
+            if (downloadPeer == peer)
+                return;
+            downloadPeer = peer;
+            expectedAnswers.clear();
+            hashContinue = null;
+            nextInventoryRequested = false;
+            requestLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Starts asking the given peer for blocks. */
+    void addPeer(Peer peer) {
+        lock.lock();
+        try {
+            if (peers.containsKey(peer))
+                return;
+            peers.put(peer, 0);
+            peer.setFilteredBlockDownload(this);
+            requestLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Stops asking the given peer for blocks, and asks other peers for the blocks it didn't send yet. */
+    void removePeer(Peer peer) {
+        lock.lock();
+        try {
+            if (peers.remove(peer) == null)
+                return;
+            peer.setFilteredBlockDownload(null);
+            List<Sha256Hash> orphaned = new ArrayList<>();
+            for (Iterator<Map.Entry<Sha256Hash, Request>> it = inFlight.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<Sha256Hash, Request> entry = it.next();
+                if (entry.getValue().peer == peer) {
+                    orphaned.add(entry.getKey());
+                    it.remove();
+                }
+            }
+            requeueLocked(orphaned);
+            requestLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Stops the download and detaches from all peers. */
+    void stop() {
+        lock.lock();
+        try {
+            for (Peer peer : peers.keySet())
+                peer.setFilteredBlockDownload(null);
+            peers.clear();
+            downloadPeer = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forgets all blocks that weren't passed on to the download peer yet, and returns their hashes in chain order.
+     * Used when the Bloom filter is exhausted, as these blocks may have been filtered with the old filter.
+     */
+    List<Sha256Hash> drain() {
+        lock.lock();
+        try {
+            List<Sha256Hash> drained = new ArrayList<>(queue);
+            queue.clear();
+            queued.clear();
+            toRequest.clear();
+            inFlight.clear();
+            received.clear();
+            for (Map.Entry<Peer, Integer> entry : peers.entrySet())
+                entry.setValue(0);
+            moreAvailable = false;
+            hashContinue = null;
+            expectedAnswers.clear();
+            return drained;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues blocks announced by the download peer for download. Called by {@link Peer#processInv(InventoryMessage)}
+     * instead of asking the announcing peer for them.
+     */
+    void enqueue(Peer peer, List<Sha256Hash> hashes) {
+        lock.lock();
+        try {
+            if (peer != downloadPeer || hashes.isEmpty())
+                return;
+            Answer answer = expectedAnswers.poll();
+            // A peer that has no tip to announce doesn't say so, so skip what it didn't answer.
+            while (answer == Answer.TIP && hashes.size() > 1)
+                answer = expectedAnswers.poll();
+            if (answer == Answer.TIP) {
+                Sha256Hash tip = hashes.get(0);
+                if (queued.contains(tip) || tip.equals(chain.getChainHead().getHeader().getHash())) {
+                    // We know of the tip already, so the peer has no more blocks and won't answer an outstanding
+                    // getblocks. Stop waiting for it, or new blocks would be ignored below.
+                    moreAvailable = false;
+                    expectedAnswers.remove(Answer.INVENTORY);
+                    return;
+                }
+                // Otherwise the tip comes with the next inventory we ask for, if there is one.
+                if (moreAvailable)
+                    return;
+            } else if (answer == null && moreAvailable && hashes.size() == 1) {
+                // A new block, announced while catching up. It comes with the next inventory we ask for.
+                return;
+            }
+            for (Sha256Hash hash : hashes) {
+                if (queued.add(hash)) {
+                    queue.add(hash);
+                    toRequest.add(hash);
+                }
+            }
+            lastQueued = hashes.get(hashes.size() - 1);
+            // A short inventory means the peer has no more blocks to send.
+            moreAvailable = hashes.size() >= MAX_BLOCKS_PER_INVENTORY;
+            hashContinue = moreAvailable ? lastQueued : null;
+            nextInventoryRequested = false;
+            requestLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes a complete filtered block received by the given peer. Returns false if the block wasn't asked for by
+     * this class, in which case the peer processes it as usual.
+     */
+    boolean offer(Peer peer, FilteredBlock block) {
+        Sha256Hash hash = block.getHash();
+        lock.lock();
+        try {
+            Request request = inFlight.remove(hash);
+            if (request != null) {
+                decrementLocked(request.peer);
+            } else if (!queued.contains(hash)) {
+                return false;
+            } else if (received.containsKey(hash)) {
+                // A block that was asked for twice is swallowed the second time.
+                return true;
+            } else {
+                // A late answer to a request that was given up on.
+                toRequest.remove(hash);
+            }
+            received.put(hash, block);
+            requestLocked();
+        } finally {
+            lock.unlock();
+        }
+        deliver();
+        return true;
+    }
+
+    /**
+     * Hands the blocks at the front of the queue that have arrived to the download peer, which adds them to the chain.
+     * Must not be called with any lock held, as adding blocks calls back into the peer and the wallets. If another
+     * thread is already adding blocks, it adds those that arrived in the meantime as well, and this returns right away.
+     */
+    void deliver() {
+        if (deliveries.getAndIncrement() != 0)
+            return;
+        try {
+            do {
+                while (true) {
+                    Peer peer;
+                    FilteredBlock block;
+                    lock.lock();
+                    try {
+                        peer = downloadPeer;
+                        block = peer != null ? takeReadyLocked() : null;
+                    } finally {
+                        lock.unlock();
+                    }
+                    if (block == null)
+                        break;
+                    peer.connectFilteredBlock(block);
+                }
+            } while (deliveries.decrementAndGet() != 0);
+        } catch (RuntimeException e) {
+            deliveries.set(0);
+            throw e;
+        }
+    }
+
+    /** Asks other peers for the blocks the given peer doesn't have. */
+    void notFound(Peer peer, List<InventoryItem> items) {
+        lock.lock();
+        try {
+            List<Sha256Hash> missing = new ArrayList<>();
+            for (InventoryItem item : items) {
+                Request request = inFlight.get(item.hash);
+                if (request != null && request.peer == peer) {
+                    inFlight.remove(item.hash);
+                    decrementLocked(peer);
+                    missing.add(item.hash);
+                }
+            }
+            if (missing.isEmpty())
+                return;
+            log.info("{}: Does not have {} requested blocks, asking other peers", peer, missing.size());
+            requeueLocked(missing);
+            requestLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Asks other peers for blocks that weren't sent in time. Called regularly by {@link PeerGroup}. */
+    void checkStalls() {
+        lock.lock();
+        try {
+            long now = Utils.currentTimeMillis();
+            List<Sha256Hash> stalled = new ArrayList<>();
+            for (Iterator<Map.Entry<Sha256Hash, Request>> it = inFlight.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<Sha256Hash, Request> entry = it.next();
+                Request request = entry.getValue();
+                if (now - request.timeMillis >= STALL_TIMEOUT_MILLIS) {
+                    stalled.add(entry.getKey());
+                    decrementLocked(request.peer);
+                    it.remove();
+                }
+            }
+            if (stalled.isEmpty())
+                return;
+            log.info("{} blocks were not sent in time, asking again", stalled.size());
+            requeueLocked(stalled);
+            requestLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Puts the given blocks in front of the blocks to request, in chain order.
+    @GuardedBy("lock")
+    private void requeueLocked(List<Sha256Hash> hashes) {
+        Set<Sha256Hash> requeued = new HashSet<>(hashes);
+        List<Sha256Hash> inOrder = new ArrayList<>(hashes.size());
+        for (Sha256Hash hash : queue)
+            if (requeued.contains(hash))
+                inOrder.add(hash);
+        toRequest.addAll(0, inOrder);
+    }
+
+    @GuardedBy("lock")
+    private void decrementLocked(Peer peer) {
+        Integer outstanding = peers.get(peer);
+        if (outstanding != null)
+            peers.put(peer, outstanding - 1);
+    }
+
+    // Takes the block at the front of the queue if it has arrived. One at a time, as adding a block to the chain may
+    // drain the queue.
+    @GuardedBy("lock")
+    @Nullable
+    private FilteredBlock takeReadyLocked() {
+        if (queue.isEmpty())
+            return null;
+        FilteredBlock block = received.remove(queue.peek());
+        if (block != null)
+            queued.remove(queue.poll());
+        return block;
+    }
+
+    // Fills up the window of blocks in flight, and asks for the next inventory if the window is about to run dry.
+    @GuardedBy("lock")
+    private void requestLocked() {
+        if (peers.isEmpty())
+            return;
+        int batchSize = Math.max(1, Math.min(MAX_BLOCKS_PER_REQUEST, maxBlocksInFlight / peers.size()));
+        while (!toRequest.isEmpty() && inFlight.size() < maxBlocksInFlight) {
+            Peer peer = null;
+            int least = Integer.MAX_VALUE;
+            for (Map.Entry<Peer, Integer> entry : peers.entrySet()) {
+                if (entry.getValue() < least) {
+                    peer = entry.getKey();
+                    least = entry.getValue();
+                }
+            }
+            GetDataMessage getdata = new GetDataMessage(params);
+            long now = Utils.currentTimeMillis();
+            while (!toRequest.isEmpty() && getdata.getItems().size() < batchSize
+                    && inFlight.size() < maxBlocksInFlight) {
+                Sha256Hash hash = toRequest.poll();
+                getdata.addFilteredBlock(hash);
+                inFlight.put(hash, new Request(peer, now));
+                if (peer == downloadPeer && hash.equals(hashContinue)) {
+                    expectedAnswers.add(Answer.TIP);
+                    hashContinue = null;
+                }
+            }
+            peers.put(peer, least + getdata.getItems().size());
+            peer.sendMessage(getdata);
+            // A ping marks the end of the transactions of the last filtered block.
+            peer.sendMessage(new Ping((long) (Math.random() * Long.MAX_VALUE)));
+        }
+        if (moreAvailable && !nextInventoryRequested && downloadPeer != null && toRequest.size() < maxBlocksInFlight) {
+            BlockLocator locator = new BlockLocator().add(checkNotNull(lastQueued))
+                    .add(chain.getChainHead().getHeader().getHash())
+                    .add(params.getGenesisBlock().getHash());
+            downloadPeer.sendMessage(new GetBlocksMessage(params, locator, Sha256Hash.ZERO_HASH));
+            expectedAnswers.add(Answer.INVENTORY);
+            nextInventoryRequested = true;
+        }
+    }
+}
@@ -0,0 +1,458 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.core.listeners.PreMessageReceivedEventListener;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Downloads the block headers between known checkpoints from several peers at once. The chain from our chain head
+ * up to the last checkpoint is cut into ranges that each end at a checkpoint, and every idle peer is given the lowest
+ * range nobody is working on. A range is only accepted once its headers link up from its start to the checkpoint it
+ * ends at, so a peer on another chain can't get headers into the block chain. Accepted ranges are connected to the
+ * chain in order, without holding the lock of this class. Only ranges ending within {@link #MAX_HEADERS_AHEAD} of the
+ * next range to connect are asked for, which bounds the headers waiting for the ranges in front of them.</p>
+ *
+ * <p>A peer that sends headers that don't fit its range is not asked for that range again, and the range is handed
+ * to another peer. A peer that doesn't answer within {@link #STALL_TIMEOUT_MILLIS} loses its range too. If a range
+ * fails too often, or no peer is left that can serve the remaining ranges, the download gives up. Either way the
+ * chain is left at the last connected header, and {@link PeerGroup} goes on with the regular download from a single
+ * peer, which also fetches the headers after the last checkpoint.</p>
+ *
+ * <p>Like {@link Peer#processHeaders(HeadersMessage)}, this stops at the fast catchup time, as the blocks after it
+ * have to be downloaded with their bodies.</p>
+ */
+class ParallelHeaderDownload implements PreMessageReceivedEventListener {
+    private static final Logger log = LoggerFactory.getLogger(ParallelHeaderDownload.class);
+
+    /** How long a peer may take to answer a getheaders before its range is given to another peer. */
+    public static final long STALL_TIMEOUT_MILLIS = 20 * 1000;
+    /** How often a range may be rejected or stall before the parallel download gives up. */
+    public static final int MAX_RANGE_FAILURES = 3;
+    /** How far past the start of the next range to connect the ranges given to peers may end. */
+    public static final int MAX_HEADERS_AHEAD = 50000;
+
+    private final ReentrantLock lock = Threading.lock("parallelheaderdownload");
+
+    private final NetworkParameters params;
+    private final AbstractBlockChain chain;
+    private final long fastCatchupTimeSecs;
+    private final Executor executor;
+    private final Runnable onFinished;
+
+    // The ranges in chain order; the ones before nextToConnect are connected to the chain already.
+    @GuardedBy("lock") private final List<Range> ranges = new ArrayList<>();
+    @GuardedBy("lock") private int nextToConnect;
+    // Whether a thread is connecting the range at nextToConnect. Only one does, so that ranges go in in order.
+    @GuardedBy("lock") private boolean connecting;
+    // Peers we may ask, and the outstanding request of each of them that is busy.
+    @GuardedBy("lock") private final List<Peer> peers = new ArrayList<>();
+    @GuardedBy("lock") private final Map<Peer, Request> requests = new HashMap<>();
+    @GuardedBy("lock") private boolean finished;
+
+    private static class Range {
+        final int startHeight;
+        final Sha256Hash startHash;
+        final int endHeight;
+        final Sha256Hash endHash;
+        // Headers received so far, linking up from the start hash.
+        final List<Block> headers = new ArrayList<>();
+        // Peers that sent us headers not fitting this range.
+        final Set<Peer> rejectedPeers = new HashSet<>();
+        @Nullable Peer peer;
+        int failures;
+
+        Range(int startHeight, Sha256Hash startHash, int endHeight, Sha256Hash endHash) {
+            this.startHeight = startHeight;
+            this.startHash = startHash;
+            this.endHeight = endHeight;
+            this.endHash = endHash;
+        }
+
+        Sha256Hash tipHash() {
+            return headers.isEmpty() ? startHash : headers.get(headers.size() - 1).getHash();
+        }
+
+        boolean isComplete() {
+            return startHeight + headers.size() == endHeight;
+        }
+
+        @Override
+        public String toString() {
+            return "headers " + (startHeight + 1) + " to " + endHeight;
+        }
+    }
+
+    private static class Request {
+        // Null if the range was given to another peer because this one stalled.
+        @Nullable Range range;
+        final long timeMillis;
+
+        Request(Range range, long timeMillis) {
+            this.range = range;
+            this.timeMillis = timeMillis;
+        }
+    }
+
+    /**
+     * Plans the download of the headers between the chain head and the last of the given anchors. Nothing is
+     * requested until peers are added.
+     *
+     * @param params the network the headers belong to
+     * @param chain the chain to connect the headers to
+     * @param anchors hashes of known blocks by height, usually {@link NetworkParameters#getCheckpoints()}
+     * @param fastCatchupTimeSecs headers from this time on are left to the regular download
+     * @param executor runs {@code onFinished}
+     * @param onFinished run once when the download has completed or given up
+     */
+    ParallelHeaderDownload(NetworkParameters params, AbstractBlockChain chain, Map<Integer, Sha256Hash> anchors,
+                           long fastCatchupTimeSecs, Executor executor, Runnable onFinished) {
+        this.params = checkNotNull(params);
+        this.chain = checkNotNull(chain);
+        this.fastCatchupTimeSecs = fastCatchupTimeSecs;
+        this.executor = checkNotNull(executor);
+        this.onFinished = checkNotNull(onFinished);
+        StoredBlock head = chain.getChainHead();
+        int startHeight = head.getHeight();
+        Sha256Hash startHash = head.getHeader().getHash();
+        SortedMap<Integer, Sha256Hash> sortedAnchors = new TreeMap<>(anchors).tailMap(startHeight + 1);
+        for (Map.Entry<Integer, Sha256Hash> anchor : sortedAnchors.entrySet()) {
+            ranges.add(new Range(startHeight, startHash, anchor.getKey(), anchor.getValue()));
+            startHeight = anchor.getKey();
+            startHash = anchor.getValue();
+        }
+    }
+
+    /** Returns true if there are any headers to download, i.e. if any anchor is above the chain head. */
+    boolean hasWork() {
+        lock.lock();
+        try {
+            return !ranges.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of peers headers are downloaded from. */
+    int numPeers() {
+        lock.lock();
+        try {
+            return peers.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Starts asking the given peer for headers, if it has the chain up to one of the missing ranges. */
+    void addPeer(Peer peer) {
+        lock.lock();
+        try {
+            if (finished || peers.contains(peer))
+                return;
+            peers.add(peer);
+            peer.addPreMessageReceivedEventListener(Threading.SAME_THREAD, this);
+            assignLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Stops using the given peer, usually because it disconnected. Its range is handed to another peer. */
+    void removePeer(Peer peer) {
+        lock.lock();
+        try {
+            peers.remove(peer);
+            peer.removePreMessageReceivedEventListener(this);
+            Request request = requests.remove(peer);
+            if (finished)
+                return;
+            if (request != null && request.range != null)
+                request.range.peer = null;
+            assignLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Hands the ranges of peers that didn't answer in time to other peers. Called regularly by {@link PeerGroup}. */
+    void checkStalls() {
+        lock.lock();
+        try {
+            if (finished)
+                return;
+            long now = Utils.currentTimeMillis();
+            for (Map.Entry<Peer, Request> entry : requests.entrySet()) {
+                Request request = entry.getValue();
+                if (request.range == null || now - request.timeMillis < STALL_TIMEOUT_MILLIS)
+                    continue;
+                log.info("{}: Stalled downloading {}, asking another peer", entry.getKey(), request.range);
+                // The peer stays busy until its late answer arrives, which is then dropped.
+                request.range.peer = null;
+                if (failLocked(request.range))
+                    return;
+                request.range = null;
+            }
+            assignLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Stops the download, e.g. because the peer group is shutting down. {@code onFinished} is not run. */
+    void cancel() {
+        lock.lock();
+        try {
+            finished = true;
+            detachIdlePeersLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Message onPreMessageReceived(Peer peer, Message m) {
+        // Runs in the network loop thread of the peer.
+        if (!(m instanceof HeadersMessage))
+            return m;
+        List<Block> headers = ((HeadersMessage) m).getBlockHeaders();
+        lock.lock();
+        try {
+            Request request = requests.remove(peer);
+            if (request == null)
+                return m;
+            if (finished) {
+                peer.removePreMessageReceivedEventListener(this);
+                return null;
+            }
+            Range range = request.range;
+            if (range != null) {
+                range.peer = null;
+                if (!receiveLocked(peer, range, headers))
+                    return null;
+            }
+        } finally {
+            lock.unlock();
+        }
+        connect();
+        return null;
+    }
+
+    // Adds the headers to the range, returns false if they don't fit and the download gave up.
+    @GuardedBy("lock")
+    private boolean receiveLocked(Peer peer, Range range, List<Block> headers) {
+        String error = null;
+        Sha256Hash prevHash = range.tipHash();
+        int height = range.startHeight + range.headers.size();
+        if (headers.isEmpty())
+            error = "no headers";
+        else if (height + headers.size() > range.endHeight)
+            error = "too many headers";
+        for (int i = 0; error == null && i < headers.size(); i++) {
+            Block header = headers.get(i);
+            height++;
+            if (!header.getPrevBlockHash().equals(prevHash))
+                error = "unconnected header " + header.getHashAsString();
+            else if (height == range.endHeight && !header.getHash().equals(range.endHash))
+                error = "wrong header " + header.getHashAsString() + " at anchor height " + height;
+            prevHash = header.getHash();
+        }
+        if (error == null && headers.size() < HeadersMessage.MAX_HEADERS && height < range.endHeight)
+            error = "headers end at height " + height;
+        PosHeaderValidator posHeaderValidator = peer.getPosHeaderValidator();
+        if (error == null && posHeaderValidator != null) {
+            try {
+                posHeaderValidator.verifyAll(headers);
+            } catch (VerificationException e) {
+                error = e.getMessage();
+            }
+        }
+        if (error != null) {
+            log.warn("{}: Rejected {}: {}", peer, range, error);
+            range.rejectedPeers.add(peer);
+            // The headers we got from others may be on the chain of this peer, start the range over.
+            range.headers.clear();
+            return !failLocked(range);
+        }
+        range.headers.addAll(headers);
+        return true;
+    }
+
+    // Connects the complete ranges that follow the connected ones, then hands out more ranges. Adding headers to the
+    // chain happens outside of the lock, one range at a time.
+    private void connect() {
+        while (true) {
+            Range range;
+            lock.lock();
+            try {
+                if (finished || connecting)
+                    return;
+                if (!readyLocked()) {
+                    assignLocked();
+                    return;
+                }
+                range = ranges.get(nextToConnect);
+                connecting = true;
+            } finally {
+                lock.unlock();
+            }
+            // Nothing else touches the headers of a complete range until it is connected or given up on.
+            boolean connected = false;
+            VerificationException failure = null;
+            try {
+                connected = connectRange(range);
+            } catch (VerificationException e) {
+                failure = e;
+            } finally {
+                lock.lock();
+                try {
+                    connecting = false;
+                } finally {
+                    lock.unlock();
+                }
+            }
+            lock.lock();
+            try {
+                if (finished)
+                    return;
+                if (failure != null) {
+                    log.warn("Headers of " + range + " failed verification", failure);
+                    range.headers.clear();
+                    // Anything that got connected will be skipped over by the chain on the next attempt.
+                    if (!failLocked(range))
+                        assignLocked();
+                    return;
+                }
+                if (!connected) {
+                    finishLocked();
+                    return;
+                }
+                range.headers.clear();
+                nextToConnect++;
+                log.info("Connected {} ({} of {} ranges)", range, nextToConnect, ranges.size());
+                if (nextToConnect == ranges.size()) {
+                    finishLocked();
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Adds the headers of the range to the chain, returns false if the download should stop there.
+    private boolean connectRange(Range range) throws VerificationException {
+        try {
+            for (Block header : range.headers) {
+                if (header.getTimeSeconds() >= fastCatchupTimeSecs) {
+                    log.info("Passed the fast catchup time ({}) at height {}, leaving the rest to the download peer",
+                            Utils.dateTimeFormat(fastCatchupTimeSecs * 1000), chain.getBestChainHeight() + 1);
+                    return false;
+                }
+                if (!chain.add(header)) {
+                    log.warn("Could not connect {}, chain head moved to {}", range, chain.getBestChainHeight());
+                    return false;
+                }
+            }
+            return true;
+        } catch (PrunedException e) {
+            // Unreachable when in SPV mode.
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Returns true if the next range to connect is complete.
+    @GuardedBy("lock")
+    private boolean readyLocked() {
+        return nextToConnect < ranges.size() && ranges.get(nextToConnect).isComplete();
+    }
+
+    // Counts a failure of the range, returns true if the download gave up.
+    @GuardedBy("lock")
+    private boolean failLocked(Range range) {
+        if (++range.failures < MAX_RANGE_FAILURES)
+            return false;
+        log.warn("Giving up parallel header download after {} failures of {}", range.failures, range);
+        finishLocked();
+        return true;
+    }
+
+    // Gives every idle peer the lowest range it can serve within the window. Gives up if nothing is in flight or
+    // waiting to be connected afterwards.
+    @GuardedBy("lock")
+    private void assignLocked() {
+        for (Peer peer : peers) {
+            if (requests.containsKey(peer))
+                continue;
+            for (int i = nextToConnect; i < ranges.size(); i++) {
+                Range range = ranges.get(i);
+                if (i > nextToConnect && range.endHeight - ranges.get(nextToConnect).startHeight > MAX_HEADERS_AHEAD)
+                    break;
+                if (range.peer != null || range.isComplete() || range.rejectedPeers.contains(peer)
+                        || peer.getBestHeight() < range.endHeight)
+                    continue;
+                range.peer = peer;
+                requests.put(peer, new Request(range, Utils.currentTimeMillis()));
+                BlockLocator locator = new BlockLocator().add(range.tipHash());
+                peer.sendMessage(new GetHeadersMessage(params, locator, range.endHash));
+                break;
+            }
+        }
+        if (requests.isEmpty() && !peers.isEmpty() && !connecting && !readyLocked()) {
+            log.info("No peer can serve the remaining headers, leaving them to the download peer");
+            finishLocked();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void finishLocked() {
+        if (finished)
+            return;
+        finished = true;
+        detachIdlePeersLocked();
+        try {
+            executor.execute(onFinished);
+        } catch (RejectedExecutionException e) {
+            // The peer group is shutting down.
+            log.info("Parallel header download finished during shutdown");
+        }
+    }
+
+    // Busy peers stay attached until their answer arrives, so that it doesn't reach Peer.processHeaders.
+    @GuardedBy("lock")
+    private void detachIdlePeersLocked() {
+        for (Peer peer : peers)
+            if (!requests.containsKey(peer))
+                peer.removePreMessageReceivedEventListener(this);
+        peers.clear();
+    }
+}
@@ -94,6 +94,10 @@ public class Peer extends PeerSocketHandler {
     private final VersionMessage versionMessage;
     // Maximum depth up to which pending transaction dependencies are downloaded, or 0 for disabled.
     private volatile int vDownloadTxDependencyDepth;
+    // Verifies the signatures of proof-of-stake headers before they are added to the chain, or null for no checks.
+    @Nullable private volatile PosHeaderValidator vPosHeaderValidator;
+    // Fetches the filtered blocks we announce from several peers, or null if we fetch them ourselves.
+    @Nullable private volatile ParallelFilteredBlockDownload vFilteredBlockDownload;
     // How many block messages the peer has announced to us. Peers only announce blocks that attach to their best chain
     // so we can use this to calculate the height of the peers chain, by adding it to the initial height in the version
     // message. This method can go wrong if the peer re-orgs onto a shorter (but harder) chain, however, this is rare.
@@ -643,6 +647,9 @@ public class Peer extends PeerSocketHandler {
                 }
             }
         }
+        ParallelFilteredBlockDownload filteredBlockDownload = vFilteredBlockDownload;
+        if (filteredBlockDownload != null)
+            filteredBlockDownload.notFound(this, m.getItems());
     }
 
     protected void processAlert(AlertMessage m) {
@@ -686,6 +693,9 @@ public class Peer extends PeerSocketHandler {
 
         try {
             checkState(!downloadBlockBodies, toString());
+            PosHeaderValidator posHeaderValidator = vPosHeaderValidator;
+            if (posHeaderValidator != null)
+                posHeaderValidator.verifyAll(m.getBlockHeaders());
             for (int i = 0; i < m.getBlockHeaders().size(); i++) {
                 Block header = m.getBlockHeaders().get(i);
                 // Process headers until we pass the fast catchup time, or are about to catch up with the head
@@ -993,6 +1003,9 @@ public class Peer extends PeerSocketHandler {
         }
         pendingBlockDownloads.remove(m.getHash());
         try {
+            PosHeaderValidator posHeaderValidator = vPosHeaderValidator;
+            if (posHeaderValidator != null)
+                posHeaderValidator.verify(m);
             // Otherwise it's a block sent to us because the peer thought we needed it, so add it to the block chain.
             if (blockChain.add(m)) {
                 // The block was successfully linked into the chain. Notify the user of our progress.
@@ -1041,6 +1054,9 @@ public class Peer extends PeerSocketHandler {
     protected void endFilteredBlock(FilteredBlock m) {
         if (log.isDebugEnabled())
             log.debug("{}: Received broadcast filtered block {}", getAddress(), m.getHash().toString());
+        ParallelFilteredBlockDownload filteredBlockDownload = vFilteredBlockDownload;
+        if (filteredBlockDownload != null && filteredBlockDownload.offer(this, m))
+            return;
         if (!vDownloadData) {
             if (log.isDebugEnabled())
                 log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHash().toString());
@@ -1055,6 +1071,14 @@ public class Peer extends PeerSocketHandler {
         // actually match our filter or which simply do not send us all the transactions we need: it can be fixed
         // by cross-checking peers against each other.
         pendingBlockDownloads.remove(m.getBlockHeader().getHash());
+        connectFilteredBlock(m);
+    }
+
+    /**
+     * Adds a complete filtered block to the chain, unless it exhausts the Bloom filter. Called on the download peer
+     * by {@link ParallelFilteredBlockDownload} for the blocks it fetched from other peers, in chain order.
+     */
+    void connectFilteredBlock(FilteredBlock m) {
         try {
             // It's a block sent to us because the peer thought we needed it, so maybe add it to the block chain.
             // The FilteredBlock m here contains a list of hashes, and may contain Transaction objects for a subset
@@ -1094,12 +1118,18 @@ public class Peer extends PeerSocketHandler {
                     awaitingFreshFilter = new LinkedList<>();
                     awaitingFreshFilter.add(m.getHash());
                     awaitingFreshFilter.addAll(blockChain.drainOrphanBlocks());
+                    ParallelFilteredBlockDownload filteredBlockDownload = vFilteredBlockDownload;
+                    if (filteredBlockDownload != null)
+                        awaitingFreshFilter.addAll(filteredBlockDownload.drain());
                     return;   // Chain download process is restarted via a call to setBloomFilter.
                 }
             } finally {
                 lock.unlock();
             }
 
+            PosHeaderValidator posHeaderValidator = vPosHeaderValidator;
+            if (posHeaderValidator != null)
+                posHeaderValidator.verify(m.getBlockHeader());
             if (blockChain.add(m)) {
                 // The block was successfully linked into the chain. Notify the user of our progress.
                 invokeOnBlocksDownloaded(m.getBlockHeader(), m);
@@ -1248,6 +1278,9 @@ public class Peer extends PeerSocketHandler {
         // If we are requesting filteredblocks we have to send a ping after the getdata so that we have a clear
         // end to the final FilteredBlock's transactions (in the form of a pong) sent to us
         boolean pingAfterGetData = false;
+        // Filtered blocks that are fetched from several peers instead.
+        ParallelFilteredBlockDownload filteredBlockDownload = vFilteredBlockDownload;
+        List<Sha256Hash> parallelBlocks = new ArrayList<>();
 
         lock.lock();
         try {
@@ -1274,8 +1307,12 @@ public class Peer extends PeerSocketHandler {
                         // part of chain download with newly announced blocks, so it should always be taken care of by
                         // the duplicate check in blockChainDownloadLocked(). But Bitcoin Core may change in future so
                         // it's better to be safe here.
-                        if (!pendingBlockDownloads.contains(item.hash)) {
-                            if (vPeerVersionMessage.isBloomFilteringSupported() && useFilteredBlocks) {
+                        boolean filtered = vPeerVersionMessage.isBloomFilteringSupported() && useFilteredBlocks;
+                        if (filtered && filteredBlockDownload != null) {
+                            // The download keeps track of what it requested itself.
+                            parallelBlocks.add(item.hash);
+                        } else if (!pendingBlockDownloads.contains(item.hash)) {
+                            if (filtered) {
                                 getdata.addFilteredBlock(item.hash);
                                 pingAfterGetData = true;
                             } else {
@@ -1302,6 +1339,10 @@ public class Peer extends PeerSocketHandler {
 
         if (pingAfterGetData)
             sendMessage(new Ping((long) (Math.random() * Long.MAX_VALUE)));
+
+        // Outside of the lock, as the download calls back into this peer to add the blocks to the chain.
+        if (!parallelBlocks.isEmpty())
+            filteredBlockDownload.enqueue(this, parallelBlocks);
     }
 
     /**
@@ -1676,6 +1717,32 @@ public class Peer extends PeerSocketHandler {
         this.vDownloadData = downloadData;
     }
 
+    /**
+     * Returns the validator that checks the signatures of proof-of-stake headers received from this peer, or null if
+     * they are not checked.
+     */
+    @Nullable
+    public PosHeaderValidator getPosHeaderValidator() {
+        return vPosHeaderValidator;
+    }
+
+    /**
+     * Sets the validator that checks the signatures of proof-of-stake headers and blocks received from this peer
+     * before they are added to the chain. Headers that fail the check are discarded like any other headers that fail
+     * verification. Defaults to null, which means that no signatures are checked.
+     */
+    public void setPosHeaderValidator(@Nullable PosHeaderValidator posHeaderValidator) {
+        this.vPosHeaderValidator = posHeaderValidator;
+    }
+
+    /**
+     * Sets the download that fetches the filtered blocks this peer announces from several peers, and that this peer
+     * hands the filtered blocks it receives to. Null means the blocks are fetched from and processed by this peer.
+     */
+    void setFilteredBlockDownload(@Nullable ParallelFilteredBlockDownload filteredBlockDownload) {
+        this.vFilteredBlockDownload = filteredBlockDownload;
+    }
+
     /** Returns version data announced by the remote peer. */
     public VersionMessage getPeerVersionMessage() {
         return vPeerVersionMessage;
@@ -137,6 +137,8 @@ public class PeerGroup implements TransactionBroadcaster {
     @GuardedBy("lock") private VersionMessage versionMessage;
     // Maximum depth up to which pending transaction dependencies are downloaded, or 0 for disabled.
     @GuardedBy("lock") private int downloadTxDependencyDepth;
+    // Verifies the signatures of proof-of-stake headers, or null for no checks.
+    @GuardedBy("lock") @Nullable private PosHeaderValidator posHeaderValidator;
     // How many connections we want to have open at the current time. If we lose connections, we'll try opening more
     // until we reach this count.
     @GuardedBy("lock") private int maxConnections;
@@ -151,6 +153,18 @@ public class PeerGroup implements TransactionBroadcaster {
     @GuardedBy("lock") private boolean ipv6Unreachable = false;
 
     @GuardedBy("lock") private long fastCatchupTimeSecs;
+
+    // How many peers the headers between checkpoints are downloaded from at once, below 2 for none.
+    @GuardedBy("lock") private int headerDownloadPeers;
+    // Known blocks the parallel header download is anchored at, or null for the checkpoints of the network.
+    @GuardedBy("lock") @Nullable private Map<Integer, Sha256Hash> headerDownloadAnchors;
+    // The running parallel header download, if any. It runs at most once, before the download peer takes over.
+    @GuardedBy("lock") @Nullable private ParallelHeaderDownload headerDownload;
+    @GuardedBy("lock") @Nullable private ScheduledFuture<?> headerDownloadStallCheck;
+    @GuardedBy("lock") private boolean headerDownloadDone;
+    // Fetches the filtered blocks the download peer announces from several peers, or null if it fetches them itself.
+    @GuardedBy("lock") @Nullable private ParallelFilteredBlockDownload filteredBlockDownload;
+    @GuardedBy("lock") @Nullable private ScheduledFuture<?> filteredBlockDownloadStallCheck;
     private final CopyOnWriteArrayList<Wallet> wallets;
     private final CopyOnWriteArrayList<PeerFilterProvider> peerFilterProviders;
 
@@ -421,6 +435,19 @@ public class PeerGroup implements TransactionBroadcaster {
         }
     }
 
+    /**
+     * Configure verification of proof-of-stake header signatures, or pass null to switch it off. A change only takes
+     * effect for newly connected peers. The validator is not shut down by the peer group.
+     */
+    public void setPosHeaderValidator(@Nullable PosHeaderValidator posHeaderValidator) {
+        lock.lock();
+        try {
+            this.posHeaderValidator = posHeaderValidator;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     private Runnable triggerConnectionsJob = new Runnable() {
         private boolean firstRun = true;
         private final static long MIN_PEER_DISCOVERY_INTERVAL = 1000L;
@@ -1054,6 +1081,8 @@ public class PeerGroup implements TransactionBroadcaster {
                     Stopwatch watch = Stopwatch.createStarted();
                     // The log output this creates can be useful.
                     setDownloadPeer(null);
+                    stopHeaderDownload();
+                    setMaxFilteredBlocksInFlight(0);
                     // Blocking close of all sockets.
                     channels.stopAsync();
                     channels.awaitTerminated();
@@ -1382,7 +1411,9 @@ public class PeerGroup implements TransactionBroadcaster {
     /** You can override this to customise the creation of {@link Peer} objects. */
     @GuardedBy("lock")
     protected Peer createPeer(PeerAddress address, VersionMessage ver) {
-        return new Peer(params, ver, address, chain, downloadTxDependencyDepth);
+        Peer peer = new Peer(params, ver, address, chain, downloadTxDependencyDepth);
+        peer.setPosHeaderValidator(posHeaderValidator);
+        return peer;
     }
 
     /**
@@ -1515,6 +1546,10 @@ public class PeerGroup implements TransactionBroadcaster {
                 peer.addOnTransactionBroadcastListener(registration.executor, registration.listener);
             for (ListenerRegistration<PreMessageReceivedEventListener> registration : peersPreMessageReceivedEventListeners)
                 peer.addPreMessageReceivedEventListener(registration.executor, registration.listener);
+            if (headerDownload != null && headerDownload.numPeers() < headerDownloadPeers)
+                headerDownload.addPeer(peer);
+            if (filteredBlockDownload != null && peer.getPeerVersionMessage().isBloomFilteringSupported())
+                filteredBlockDownload.addPeer(peer);
         } finally {
             lock.unlock();
         }
@@ -1574,6 +1609,17 @@ public class PeerGroup implements TransactionBroadcaster {
                 downloadPeer.setDownloadData(false);
             }
             downloadPeer = peer;
+            if (filteredBlockDownload != null) {
+                final ParallelFilteredBlockDownload download = filteredBlockDownload;
+                download.setDownloadPeer(peer);
+                // Blocks that arrived while there was no download peer are added to the chain without our lock held.
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        download.deliver();
+                    }
+                });
+            }
             if (downloadPeer != null) {
                 log.info("Setting download peer: {}", downloadPeer);
                 if (downloadListener != null) {
@@ -1641,6 +1687,10 @@ public class PeerGroup implements TransactionBroadcaster {
             PeerAddress address = peer.getAddress();
 
             log.info("{}: Peer died      ({} connected, {} pending, {} max)", address, peers.size(), pendingPeers.size(), maxConnections);
+            if (headerDownload != null)
+                headerDownload.removePeer(peer);
+            if (filteredBlockDownload != null)
+                filteredBlockDownload.removePeer(peer);
             if (peer == downloadPeer) {
                 log.info("Download peer died. Picking a new one.");
                 setDownloadPeer(null);
@@ -1863,6 +1913,11 @@ public class PeerGroup implements TransactionBroadcaster {
         lock.lock();
         try {
             setDownloadPeer(peer);
+            if (headerDownload != null || startHeaderDownload()) {
+                // The download peer continues from where the parallel header download ends.
+                peer.setDownloadData(false);
+                return;
+            }
 
             if (chainDownloadSpeedCalculator == null) {
                 // Every second, run the calculator which will log how fast we are downloading the chain.
@@ -1878,6 +1933,134 @@ public class PeerGroup implements TransactionBroadcaster {
         }
     }
 
+    // Starts downloading the headers up to the last anchor from several peers, returns false if there is nothing to do.
+    @GuardedBy("lock")
+    private boolean startHeaderDownload() {
+        if (headerDownloadDone || headerDownloadPeers < 2 || chain == null || chain.shouldVerifyTransactions()
+                || chain.getChainHead().getHeader().getTimeSeconds() >= fastCatchupTimeSecs)
+            return false;
+        Map<Integer, Sha256Hash> anchors = headerDownloadAnchors != null ? headerDownloadAnchors : params.getCheckpoints();
+        ParallelHeaderDownload download = new ParallelHeaderDownload(params, chain, anchors, fastCatchupTimeSecs,
+                executor, new Runnable() {
+            @Override
+            public void run() {
+                lock.lock();
+                try {
+                    stopHeaderDownload();
+                    if (downloadPeer != null && isRunning())
+                        startBlockChainDownloadFromPeer(downloadPeer);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        });
+        headerDownloadDone = true;
+        if (!download.hasWork())
+            return false;
+        log.info("Downloading headers up to the last checkpoint from up to {} peers", headerDownloadPeers);
+        headerDownload = download;
+        headerDownloadStallCheck = executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                lock.lock();
+                try {
+                    if (headerDownload != null)
+                        headerDownload.checkStalls();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+        for (Peer peer : peers) {
+            if (download.numPeers() >= headerDownloadPeers)
+                break;
+            download.addPeer(peer);
+        }
+        return true;
+    }
+
+    private void stopHeaderDownload() {
+        lock.lock();
+        try {
+            if (headerDownload == null)
+                return;
+            headerDownload.cancel();
+            headerDownload = null;
+            headerDownloadStallCheck.cancel(false);
+            headerDownloadStallCheck = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets how many peers the headers between checkpoints are downloaded from at once during chain download, in SPV
+     * mode and before the fast catchup time. Each peer is asked for the headers up to a different checkpoint, so a
+     * slow peer doesn't hold up the others. Values below 2, like the default of zero, turn this off, leaving all of the
+     * download to the download peer. Call this before starting block chain download.
+     */
+    public void setHeaderDownloadPeers(int headerDownloadPeers) {
+        lock.lock();
+        try {
+            this.headerDownloadPeers = headerDownloadPeers;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * <p>Sets how many filtered blocks may be requested from peers at once during chain download in SPV mode. If
+     * above zero, the blocks the download peer announces are requested in small batches from all connected peers that
+     * support Bloom filtering, and added to the chain in order as they arrive. Blocks that a peer doesn't send in time
+     * are requested from another peer. This makes catching up after a long time offline faster than fetching every
+     * block from the download peer. Zero, the default, fetches all blocks from the download peer.</p>
+     *
+     * <p>Call this before starting block chain download.</p>
+     */
+    public void setMaxFilteredBlocksInFlight(int maxFilteredBlocksInFlight) {
+        checkArgument(maxFilteredBlocksInFlight >= 0);
+        lock.lock();
+        try {
+            if (filteredBlockDownload != null) {
+                filteredBlockDownload.stop();
+                filteredBlockDownload = null;
+                filteredBlockDownloadStallCheck.cancel(false);
+                filteredBlockDownloadStallCheck = null;
+            }
+            if (maxFilteredBlocksInFlight == 0 || chain == null)
+                return;
+            final ParallelFilteredBlockDownload download = new ParallelFilteredBlockDownload(params, chain,
+                    maxFilteredBlocksInFlight);
+            download.setDownloadPeer(downloadPeer);
+            for (Peer peer : peers)
+                if (peer.getPeerVersionMessage().isBloomFilteringSupported())
+                    download.addPeer(peer);
+            filteredBlockDownload = download;
+            filteredBlockDownloadStallCheck = executor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    download.checkStalls();
+                }
+            }, 1, 1, TimeUnit.SECONDS);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the known blocks, as block hashes by height, that the parallel header download is anchored at. Defaults to
+     * {@link NetworkParameters#getCheckpoints()}. Call this before starting block chain download.
+     */
+    @VisibleForTesting
+    void setHeaderDownloadAnchors(Map<Integer, Sha256Hash> anchors) {
+        lock.lock();
+        try {
+            this.headerDownloadAnchors = new HashMap<>(anchors);
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Returns a future that is triggered when the number of connected peers is equal to the given number of
      * peers. By using this with {@link PeerGroup#getMaxConnections()} you can wait until the
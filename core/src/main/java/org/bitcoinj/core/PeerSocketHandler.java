@@ -26,13 +26,13 @@ import com.google.common.annotations.VisibleForTesting;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.NotYetConnectedException;
+import java.security.MessageDigest;
 import java.util.concurrent.locks.Lock;
 
 import static com.google.common.base.Preconditions.*;
@@ -54,9 +54,11 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
 
     // The ByteBuffers passed to us from the writeTarget are static in size, and usually smaller than some messages we
     // will receive. For SPV clients, this should be rare (ie we're mostly dealing with small transactions), but for
-    // messages which are larger than the read buffer, we have to keep a temporary buffer with its bytes.
+    // messages which are larger than the read buffer, we have to keep a temporary buffer with its bytes. The buffer is
+    // handed to the serializer as the payload, and hashed as it fills so the checksum is ready once it is full.
     private byte[] largeReadBuffer;
     private int largeReadBufferPos;
+    private MessageDigest largeReadDigest;
     private BitcoinSerializer.BitcoinPacketHeader header;
 
     public PeerSocketHandler(NetworkParameters params, InetSocketAddress remoteIp) {
@@ -84,11 +86,11 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         } finally {
             lock.unlock();
         }
-        // TODO: Some round-tripping could be avoided here
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // Header and payload go to the write target separately, saving a copy into one array. The payload may be the
+        // message's own bytes, which is fine as nobody writes to them.
         try {
-            serializer.serialize(message, out);
-            writeTarget.writeBytes(out.toByteArray());
+            byte[] payload = message.unsafeBitcoinSerialize();
+            writeTarget.writeBytes(serializer.serializeHeader(message, payload), payload);
         } catch (IOException e) {
             exceptionCaught(e);
         }
@@ -136,12 +138,16 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                     // Read new bytes into the largeReadBuffer
                     int bytesToGet = Math.min(buff.remaining(), largeReadBuffer.length - largeReadBufferPos);
                     buff.get(largeReadBuffer, largeReadBufferPos, bytesToGet);
+                    largeReadDigest.update(largeReadBuffer, largeReadBufferPos, bytesToGet);
                     largeReadBufferPos += bytesToGet;
                     // Check the largeReadBuffer's status
                     if (largeReadBufferPos == largeReadBuffer.length) {
                         // ...processing a message if one is available
-                        processMessage(serializer.deserializePayload(header, ByteBuffer.wrap(largeReadBuffer)));
+                        byte[] hash = Sha256Hash.hash(largeReadDigest.digest());
+                        byte[] payload = largeReadBuffer;
                         largeReadBuffer = null;
+                        largeReadDigest = null;
+                        processMessage(serializer.deserializePayload(header, payload, hash));
                         header = null;
                         firstMessage = false;
                     } else // ...or just returning if we don't have enough bytes yet
@@ -165,6 +171,8 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                             largeReadBuffer = new byte[header.size];
                             largeReadBufferPos = buff.remaining();
                             buff.get(largeReadBuffer, 0, largeReadBufferPos);
+                            largeReadDigest = Sha256Hash.newDigest();
+                            largeReadDigest.update(largeReadBuffer, 0, largeReadBufferPos);
                         } catch (BufferUnderflowException e1) {
                             // If we went through a whole buffer's worth of bytes without getting a header, give up
                             // In cases where the buff is just really small, we could create a second largeReadBuffer
@@ -0,0 +1,262 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptPattern;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.FullPrunedBlockStore;
+import org.bitcoinj.utils.DaemonThreadFactory;
+import org.bouncycastle.util.encoders.Base64;
+
+import javax.annotation.Nullable;
+import java.math.BigInteger;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Verifies the block signature of proof-of-stake headers. {@link Block#verifyHeader()} only checks proof of work,
+ * which a proof-of-stake block doesn't have, so without this class any proof-of-stake header with the right difficulty
+ * bits is accepted.</p>
+ *
+ * <p>A proof-of-stake block is signed by the staker over {@link Block#getHashWithoutSignature()}. The key is taken
+ * from the second output of the coinstake transaction if the block carries its transactions, and otherwise from the
+ * output being staked, as looked up by the optional {@link StakedOutputProvider}, such as a {@link StoreOutputProvider}
+ * for the unspent outputs of a full pruned block store. If the key is a public key, the
+ * signature must be a DER encoded signature by that key. If it is a public key hash, the signature must be a compact
+ * signature that the key can be recovered from. If the key is unknown, the signature is only checked for being
+ * well-formed, which is much weaker.</p>
+ *
+ * <p>A delegated (offline staked) block is signed by a delegate instead, with a compact signature followed by a proof
+ * of delegation: a signed message by the staker's key whose text is the hex encoded key hash of the delegate. The
+ * delegate key is recovered from the block signature, the staker key from the proof of delegation, and the latter
+ * must match the staker script. Any proof of delegation yields some staker key, so a delegated block whose staker
+ * script is unknown can't be verified at all, and is rejected.</p>
+ *
+ * <p>{@link #verifyAll(List)} checks a batch of headers, like the contents of a {@link HeadersMessage}, in parallel
+ * on a worker pool. Install a validator using {@link PeerGroup#setPosHeaderValidator(PosHeaderValidator)}.</p>
+ */
+public class PosHeaderValidator {
+    /** Looks up the output a proof-of-stake block stakes, to find out which key must have signed the block. */
+    public interface StakedOutputProvider {
+        /** Returns the script of the given output, or null if it is unknown. */
+        @Nullable
+        Script getStakedOutputScript(Sha256Hash txId, long index);
+    }
+
+    /**
+     * Looks up staked outputs in the unspent outputs of a full pruned block store. Only finds those of blocks that
+     * aren't connected yet, as the coinstake of a block spends the output it stakes.
+     */
+    public static class StoreOutputProvider implements StakedOutputProvider {
+        private final FullPrunedBlockStore store;
+
+        public StoreOutputProvider(FullPrunedBlockStore store) {
+            this.store = checkNotNull(store);
+        }
+
+        @Nullable
+        @Override
+        public Script getStakedOutputScript(Sha256Hash txId, long index) {
+            try {
+                UTXO output = store.getTransactionOutput(txId, index);
+                return output != null ? output.getScript() : null;
+            } catch (BlockStoreException e) {
+                return null;
+            }
+        }
+    }
+
+    @Nullable private final StakedOutputProvider stakedOutputProvider;
+    private final ExecutorService executor;
+
+    /**
+     * Creates a validator that verifies batches on a pool with one thread per processor.
+     *
+     * @param stakedOutputProvider looks up keys for headers that don't carry their transactions, or null
+     */
+    public PosHeaderValidator(@Nullable StakedOutputProvider stakedOutputProvider) {
+        this(stakedOutputProvider, Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                new DaemonThreadFactory("PoS header verification")));
+    }
+
+    /**
+     * Creates a validator that verifies batches using the given executor.
+     *
+     * @param stakedOutputProvider looks up keys for headers that don't carry their transactions, or null
+     */
+    public PosHeaderValidator(@Nullable StakedOutputProvider stakedOutputProvider, ExecutorService executor) {
+        this.stakedOutputProvider = stakedOutputProvider;
+        this.executor = checkNotNull(executor);
+    }
+
+    /**
+     * Verifies the signature of the given block, if it is a proof-of-stake block.
+     *
+     * @throws VerificationException if the block is not correctly signed
+     */
+    public void verify(Block block) throws VerificationException {
+        if (!block.isPOS())
+            return;
+        byte[] signature = block.getSignature();
+        if (signature == null || signature.length == 0)
+            throw new VerificationException("Proof-of-stake block is not signed: " + block.getHashAsString());
+        Sha256Hash hash = Sha256Hash.wrap(block.getHashWithoutSignature().getReversedBytes());
+        Script stakerScript = getStakerScript(block);
+        boolean valid;
+        if (block.hasProofOfDelegation()) {
+            if (stakerScript == null)
+                throw new VerificationException("Unknown staker of delegated proof-of-stake block "
+                        + block.getHashAsString());
+            valid = verifyDelegated(block, hash, stakerScript);
+        } else if (stakerScript == null) {
+            valid = isWellFormed(hash, signature);
+        } else if (ScriptPattern.isP2PK(stakerScript)) {
+            try {
+                valid = ECKey.verify(hash.getBytes(), signature, ScriptPattern.extractKeyFromP2PK(stakerScript));
+            } catch (SignatureDecodeException e) {
+                valid = false;
+            }
+        } else if (ScriptPattern.isP2PKH(stakerScript)) {
+            ECKey key = recoverFromCompactSignature(hash, signature);
+            valid = key != null && Arrays.equals(key.getPubKeyHash(), ScriptPattern.extractHashFromP2PKH(stakerScript));
+        } else {
+            throw new VerificationException("Unsupported staker script in block " + block.getHashAsString() + ": "
+                    + stakerScript);
+        }
+        if (!valid)
+            throw new VerificationException("Bad block signature in proof-of-stake block " + block.getHashAsString());
+    }
+
+    /**
+     * Verifies the signatures of all given blocks in parallel.
+     *
+     * @throws VerificationException for the first block, in list order, that is not correctly signed
+     */
+    public void verifyAll(List<Block> blocks) throws VerificationException {
+        if (blocks.size() <= 1) {
+            for (Block block : blocks)
+                verify(block);
+            return;
+        }
+        List<Future<Void>> futures = new ArrayList<>(blocks.size());
+        for (final Block block : blocks) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws VerificationException {
+                    verify(block);
+                    return null;
+                }
+            }));
+        }
+        try {
+            for (Future<Void> future : futures)
+                future.get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e); // Shouldn't happen
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof VerificationException)
+                throw (VerificationException) e.getCause();
+            throw new VerificationException("Block signature verification failed", e.getCause());
+        } finally {
+            // No need to finish the rest of the batch if one header already failed.
+            for (Future<Void> future : futures)
+                future.cancel(false);
+        }
+    }
+
+    /** Stops the worker threads. The validator can't be used afterwards. */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Nullable
+    private Script getStakerScript(Block block) {
+        List<Transaction> transactions = block.getTransactions();
+        if (transactions != null && transactions.size() > 1) {
+            Transaction coinStake = transactions.get(1);
+            if (!coinStake.isCoinStake())
+                throw new VerificationException("Second transaction of proof-of-stake block is not a coinstake: "
+                        + block.getHashAsString());
+            return coinStake.getOutput(1).getScriptPubKey();
+        }
+        if (stakedOutputProvider == null)
+            return null;
+        return stakedOutputProvider.getStakedOutputScript(block.getStakePrevTxid(), block.getStakeOutputIndex());
+    }
+
+    private static boolean verifyDelegated(Block block, Sha256Hash hash, Script stakerScript) {
+        ECKey delegate = recoverFromCompactSignature(hash, block.getBlockSignature());
+        if (delegate == null)
+            return false;
+        ECKey staker;
+        try {
+            staker = ECKey.signedMessageToKey(Utils.HEX.encode(delegate.getPubKeyHash()),
+                    Base64.toBase64String(block.getProofOfDelegation()));
+        } catch (SignatureException e) {
+            return false;
+        }
+        if (ScriptPattern.isP2PKH(stakerScript))
+            return Arrays.equals(staker.getPubKeyHash(), ScriptPattern.extractHashFromP2PKH(stakerScript));
+        if (ScriptPattern.isP2PK(stakerScript))
+            return Arrays.equals(staker.getPubKeyHash(),
+                    Utils.sha256hash160(ScriptPattern.extractKeyFromP2PK(stakerScript)));
+        throw new VerificationException("Unsupported staker script in block " + block.getHashAsString() + ": "
+                + stakerScript);
+    }
+
+    private static boolean isWellFormed(Sha256Hash hash, byte[] signature) {
+        if (recoverFromCompactSignature(hash, signature) != null)
+            return true;
+        try {
+            ECKey.ECDSASignature.decodeFromDER(signature);
+            return true;
+        } catch (SignatureDecodeException e) {
+            return false;
+        }
+    }
+
+    /** Recovers the signing key from a 65 byte compact signature, or returns null if that is not possible. */
+    @Nullable
+    static ECKey recoverFromCompactSignature(Sha256Hash hash, byte[] signature) {
+        if (signature.length != Block.COMPACT_SIGNATURE_SIZE)
+            return null;
+        // Same header byte as for signed messages, see ECKey.signedMessageToKey().
+        int header = signature[0] & 0xFF;
+        if (header < 27 || header > 34)
+            return null;
+        boolean compressed = false;
+        if (header >= 31) {
+            compressed = true;
+            header -= 4;
+        }
+        BigInteger r = new BigInteger(1, Arrays.copyOfRange(signature, 1, 33));
+        BigInteger s = new BigInteger(1, Arrays.copyOfRange(signature, 33, 65));
+        try {
+            return ECKey.recoverFromSignature(header - 27, new ECKey.ECDSASignature(r, s), hash, compressed);
+        } catch (IllegalArgumentException | ArithmeticException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.annotations.VisibleForTesting;
+import org.bitcoinj.params.AbstractQtumNetParams;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Checks the proof of a proof-of-stake block: that the output it stakes exists, is mature, and that its kernel hash
+ * meets the difficulty target weighted by the value of that output, like {@code CheckProofOfStake} of Qtum Core.
+ * {@link PosHeaderValidator} only checks that the block is signed by the owner of the staked output, which anyone
+ * owning some coins can do for any block.</p>
+ *
+ * <p>The kernel hash commits to the stake modifier of the previous block, which chains the kernels of all blocks
+ * before it back to the genesis block, and to the time of the block that created the staked output. Neither is
+ * stored with the blocks, so this class keeps a record of both for every height of the chain it was last used with,
+ * and fills in the records of new blocks, or of the blocks of the new chain during a reorg, from the block store.</p>
+ *
+ * <p>The records are kept in memory, or in a file if one is given, in which case they survive restarts. Without the
+ * file, the first block checked after a start makes the validator walk the block store back to the genesis block.
+ * If the block store doesn't go back that far, as for a store that started at a checkpoint, the history has to be
+ * imported with {@link #importHistory(byte[])}, or the block is rejected with a {@link BlockStoreException}. A
+ * {@link org.bitcoinj.store.UTXOSnapshot} carries the history along with the outputs.</p>
+ *
+ * <p>Used by {@link FullPrunedBlockChain}, which has the unspent outputs to look up staked outputs in. Not thread
+ * safe.</p>
+ */
+public class PosKernelValidator implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(PosKernelValidator.class);
+
+    // Kernel targets are 256 bit numbers, and overflow like they do in Qtum Core.
+    private static final BigInteger MAX_UINT256 = BigInteger.ONE.shiftLeft(256).subtract(BigInteger.ONE);
+
+    // File format: magic, version, indexed height and four reserved bytes, followed by one record per height.
+    private static final int MAGIC = 0x514B524E; // "QKRN"
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 16;
+    private static final int INDEXED_HEIGHT_OFFSET = 8;
+
+    // A record: the last 8 bytes of the block hash, to tell when a block on another chain takes the place of the one
+    // at its height, the block time, and the stake modifier. The key is zero for records imported without a hash,
+    // which can't be built on. While a record is being filled in, the modifier slot holds the kernel of the block.
+    private static final int RECORD_SIZE = 8 + 4 + Sha256Hash.LENGTH;
+    private static final int TIME_OFFSET = 8;
+    private static final int MODIFIER_OFFSET = 12;
+
+    private final NetworkParameters params;
+    private final BlockStore blockStore;
+
+    // The records, in the file if there is one, otherwise in memory.
+    @Nullable private final RandomAccessFile file;
+    @Nullable private final FileChannel channel;
+    private ByteBuffer memory = ByteBuffer.allocate(0);
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+    // Records above this height may belong to an abandoned chain or be half written. -1 if nothing is indexed yet.
+    private int indexedHeight = -1;
+
+    /** Creates a validator that keeps its records in memory. */
+    public PosKernelValidator(NetworkParameters params, BlockStore blockStore) {
+        this.params = checkNotNull(params);
+        this.blockStore = checkNotNull(blockStore);
+        this.file = null;
+        this.channel = null;
+    }
+
+    /**
+     * Creates a validator that keeps its records in the given file, creating it if it doesn't exist. The file must
+     * only be used with one block store. Close the validator when done.
+     */
+    public PosKernelValidator(NetworkParameters params, BlockStore blockStore, File file) throws BlockStoreException {
+        this.params = checkNotNull(params);
+        this.blockStore = checkNotNull(blockStore);
+        try {
+            boolean exists = file.exists();
+            this.file = new RandomAccessFile(file, "rw");
+            this.channel = this.file.getChannel();
+            if (exists) {
+                ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+                channel.read(header, 0);
+                if (header.position() != FILE_HEADER_SIZE || header.getInt(0) != MAGIC || header.getInt(4) != VERSION)
+                    throw new BlockStoreException("Not a stake kernel file: " + file);
+                indexedHeight = header.getInt(INDEXED_HEIGHT_OFFSET);
+            } else {
+                ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+                header.putInt(MAGIC).putInt(VERSION).putInt(-1).putInt(0).flip();
+                channel.write(header, 0);
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    /**
+     * Checks the proof of stake of the given block, if it is a proof-of-stake block. The staked output has to be
+     * looked up before the transactions of the block are connected, as the coinstake transaction spends it.
+     *
+     * @param storedPrev the block the given block builds on
+     * @param block the header of the block
+     * @param transactions the transactions of the block
+     * @param stakedOutput the output the block stakes, or null if it doesn't exist or is spent
+     * @throws VerificationException if the block doesn't have a valid proof of stake
+     * @throws BlockStoreException if the stake modifier can't be worked out, because the block store doesn't go back
+     * to the genesis block or to a block of the imported history
+     */
+    public void verify(StoredBlock storedPrev, Block block, List<Transaction> transactions,
+                       @Nullable UTXO stakedOutput) throws VerificationException, BlockStoreException {
+        if (!block.isPOS())
+            return;
+        int height = storedPrev.getHeight() + 1;
+        if (transactions.size() < 2 || !transactions.get(1).isCoinStake())
+            throw new VerificationException("Second transaction of proof-of-stake block is not a coinstake: "
+                    + block.getHashAsString());
+        TransactionOutPoint kernel = transactions.get(1).getInput(0).getOutpoint();
+        if (!kernel.getHash().equals(block.getStakePrevTxid()) || kernel.getIndex() != block.getStakeOutputIndex())
+            throw new VerificationException("Coinstake doesn't spend the staked output of block "
+                    + block.getHashAsString());
+        if (stakedOutput == null)
+            throw new VerificationException("Block " + block.getHashAsString()
+                    + " stakes a non-existent or already spent output");
+        if (height - stakedOutput.getHeight() < params.getSpendableCoinbaseDepth(height))
+            throw new VerificationException("Block " + block.getHashAsString() + " stakes an output at depth "
+                    + (height - stakedOutput.getHeight()));
+        if (params instanceof AbstractQtumNetParams) {
+            int mask = ((AbstractQtumNetParams) params).getStakeTimestampMask(height);
+            if ((block.getTimeSeconds() & mask) != 0)
+                throw new VerificationException("Proof-of-stake block " + block.getHashAsString()
+                        + " has a timestamp that is not a multiple of " + (mask + 1));
+        }
+
+        indexChain(storedPrev);
+        readRecord(stakedOutput.getHeight());
+        long blockFromTime = record.getInt(TIME_OFFSET) & 0xFFFFFFFFL;
+        if (block.getTimeSeconds() < blockFromTime)
+            throw new VerificationException("Proof-of-stake block " + block.getHashAsString()
+                    + " is older than the output it stakes");
+        readRecord(storedPrev.getHeight());
+        Sha256Hash kernelHash = computeKernelHash(getModifier(record), blockFromTime, kernel, block.getTimeSeconds());
+        BigInteger target = block.getDifficultyTargetAsInteger()
+                .multiply(BigInteger.valueOf(stakedOutput.getValue().value)).and(MAX_UINT256);
+        if (kernelHash.toBigInteger().compareTo(target) > 0)
+            throw new VerificationException("Kernel hash of proof-of-stake block " + block.getHashAsString()
+                    + " doesn't meet the target: " + kernelHash);
+    }
+
+    /**
+     * Returns what is needed to check the kernels of blocks on top of the given one: the times of it and all blocks
+     * below it, and the stake modifiers of the given number of blocks up to it, so that blocks can be checked after
+     * reorgs that deep. Pass it to {@link #importHistory(byte[])} of a validator for a store that only holds those
+     * blocks.
+     */
+    public byte[] exportHistory(StoredBlock tip, int blocks) throws BlockStoreException {
+        checkArgument(blocks > 0 && blocks <= tip.getHeight() + 1, "blocks out of range");
+        indexChain(tip);
+        int height = tip.getHeight();
+        ByteBuffer history = ByteBuffer.allocate(8 + 4 * (height + 1) + (8 + Sha256Hash.LENGTH) * blocks);
+        history.putInt(height);
+        history.putInt(blocks);
+        for (int h = 0; h <= height; h++) {
+            readRecord(h);
+            history.putInt(record.getInt(TIME_OFFSET));
+        }
+        for (int h = height - blocks + 1; h <= height; h++) {
+            readRecord(h);
+            history.putLong(record.getLong(0));
+            history.put(getModifier(record).getBytes());
+        }
+        return history.array();
+    }
+
+    /**
+     * Replaces all records with the given history, as returned by {@link #exportHistory(StoredBlock, int)}. Blocks
+     * can then be checked on top of any of the blocks the history has the stake modifier of.
+     */
+    public void importHistory(byte[] history) throws BlockStoreException {
+        ByteBuffer buffer = ByteBuffer.wrap(history);
+        try {
+            int height = buffer.getInt();
+            int blocks = buffer.getInt();
+            if (height < 0 || blocks <= 0 || blocks > height + 1
+                    || history.length != 8 + 4 * (height + 1L) + (8L + Sha256Hash.LENGTH) * blocks)
+                throw new BlockStoreException("Corrupt stake kernel history");
+            setIndexedHeight(-1);
+            ensureCapacity(height + 1);
+            // The times are read by index, the keys and modifiers that follow them in order.
+            buffer.position(8 + 4 * (height + 1));
+            for (int h = 0; h <= height; h++) {
+                int time = buffer.getInt(8 + 4 * h);
+                if (h <= height - blocks) {
+                    writeRecord(h, 0, time, Sha256Hash.ZERO_HASH);
+                } else {
+                    long key = buffer.getLong();
+                    byte[] modifier = new byte[Sha256Hash.LENGTH];
+                    buffer.get(modifier);
+                    writeRecord(h, key, time, Sha256Hash.wrap(modifier));
+                }
+            }
+            setIndexedHeight(height);
+        } catch (BufferUnderflowException e) {
+            throw new BlockStoreException("Corrupt stake kernel history");
+        }
+    }
+
+    /** Closes the file the records are kept in, if any. */
+    @Override
+    public void close() throws IOException {
+        if (file != null)
+            file.close();
+    }
+
+    /**
+     * Makes sure the times and the stake modifier of the chain ending in the given block are known. Walks back to the
+     * first block whose record is up to date, recording the time and kernel of the blocks above it, and then
+     * calculates their stake modifiers forwards.
+     */
+    private void indexChain(StoredBlock tip) throws BlockStoreException {
+        ensureCapacity(tip.getHeight() + 1);
+        StoredBlock cursor = tip;
+        while (!isIndexed(cursor)) {
+            int height = cursor.getHeight();
+            Block header = cursor.getHeader();
+            // The records from here on will be rewritten, so they can't be trusted until we are done.
+            if (indexedHeight >= height)
+                setIndexedHeight(height - 1);
+            if (height == 0) {
+                writeRecord(0, hashKey(header.getHash()), (int) header.getTimeSeconds(), Sha256Hash.ZERO_HASH);
+                break;
+            }
+            writeRecord(height, hashKey(header.getHash()), (int) header.getTimeSeconds(), getKernel(header));
+            StoredBlock prev = cursor.getPrev(blockStore);
+            if (prev == null)
+                throw new BlockStoreException("Can't work out the stake modifier of " + tip.getHeader().getHash()
+                        + ": the block store ends at height " + height + " and there is no stake kernel history"
+                        + " for it");
+            cursor = prev;
+        }
+        int from = cursor.getHeight();
+        if (from < tip.getHeight() - 1000)
+            log.info("Calculating stake modifiers from height {} to {}", from, tip.getHeight());
+        readRecord(from);
+        Sha256Hash modifier = getModifier(record);
+        for (int height = from + 1; height <= tip.getHeight(); height++) {
+            readRecord(height);
+            modifier = computeStakeModifier(modifier, getModifier(record));
+            writeRecord(height, record.getLong(0), record.getInt(TIME_OFFSET), modifier);
+        }
+        setIndexedHeight(tip.getHeight());
+    }
+
+    private boolean isIndexed(StoredBlock block) throws BlockStoreException {
+        int height = block.getHeight();
+        if (height > indexedHeight)
+            return false;
+        readRecord(height);
+        return record.getLong(0) == hashKey(block.getHeader().getHash());
+    }
+
+    /** Reads the record of the given height into {@link #record}. */
+    private void readRecord(int height) throws BlockStoreException {
+        record.clear();
+        if (channel == null) {
+            record.put(memory.array(), height * RECORD_SIZE, RECORD_SIZE);
+            return;
+        }
+        try {
+            long position = FILE_HEADER_SIZE + (long) height * RECORD_SIZE;
+            while (record.hasRemaining())
+                if (channel.read(record, position + record.position()) < 0)
+                    throw new BlockStoreException("Stake kernel file ends before height " + height);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void writeRecord(int height, long key, int time, Sha256Hash modifier) throws BlockStoreException {
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE);
+        buffer.putLong(key).putInt(time).put(modifier.getBytes()).flip();
+        if (channel == null) {
+            memory.position(height * RECORD_SIZE);
+            memory.put(buffer);
+            return;
+        }
+        try {
+            long position = FILE_HEADER_SIZE + (long) height * RECORD_SIZE;
+            while (buffer.hasRemaining())
+                channel.write(buffer, position + buffer.position());
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void setIndexedHeight(int height) throws BlockStoreException {
+        if (height == indexedHeight)
+            return;
+        indexedHeight = height;
+        if (channel == null)
+            return;
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(4);
+            buffer.putInt(height).flip();
+            channel.write(buffer, INDEXED_HEIGHT_OFFSET);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void ensureCapacity(int heights) {
+        if (channel != null || memory.capacity() >= heights * RECORD_SIZE)
+            return;
+        ByteBuffer newMemory = ByteBuffer.allocate(Math.max(heights, memory.capacity() / RECORD_SIZE * 2) * RECORD_SIZE);
+        newMemory.put(memory.array());
+        memory = newMemory;
+    }
+
+    private static Sha256Hash getModifier(ByteBuffer record) {
+        return Sha256Hash.wrap(Arrays.copyOfRange(record.array(), MODIFIER_OFFSET, RECORD_SIZE));
+    }
+
+    // The last bytes of the hash, which unlike the first ones aren't zero for blocks with a lot of proof of work.
+    private static long hashKey(Sha256Hash hash) {
+        return Utils.readInt64(hash.getBytes(), Sha256Hash.LENGTH - 8);
+    }
+
+    /** The kernel of a block goes into the stake modifier: the staked output for proof of stake, or its own hash. */
+    private static Sha256Hash getKernel(Block header) {
+        return header.isPOS() ? header.getStakePrevTxid() : header.getHash();
+    }
+
+    /** Calculates the stake modifier of a block from its kernel and the stake modifier of the previous block. */
+    @VisibleForTesting
+    static Sha256Hash computeStakeModifier(Sha256Hash prevModifier, Sha256Hash kernel) {
+        return Sha256Hash.wrapReversed(Sha256Hash.hashTwice(kernel.getReversedBytes(), prevModifier.getReversedBytes()));
+    }
+
+    /** Calculates the kernel hash that has to meet the weighted target, see {@code CheckStakeKernelHash}. */
+    @VisibleForTesting
+    static Sha256Hash computeKernelHash(Sha256Hash prevModifier, long blockFromTime, TransactionOutPoint kernel,
+                                        long blockTime) {
+        byte[] bytes = new byte[Sha256Hash.LENGTH + 4 + Sha256Hash.LENGTH + 4 + 4];
+        System.arraycopy(prevModifier.getReversedBytes(), 0, bytes, 0, Sha256Hash.LENGTH);
+        Utils.uint32ToByteArrayLE(blockFromTime, bytes, Sha256Hash.LENGTH);
+        System.arraycopy(kernel.getHash().getReversedBytes(), 0, bytes, Sha256Hash.LENGTH + 4, Sha256Hash.LENGTH);
+        Utils.uint32ToByteArrayLE(kernel.getIndex(), bytes, 2 * Sha256Hash.LENGTH + 4);
+        Utils.uint32ToByteArrayLE(blockTime, bytes, 2 * Sha256Hash.LENGTH + 8);
+        return Sha256Hash.wrapReversed(Sha256Hash.hashTwice(bytes));
+    }
+}
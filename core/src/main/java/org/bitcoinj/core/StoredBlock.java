@@ -126,6 +126,14 @@ public class StoredBlock {
         serializeCompact(buffer, false);
     }
 
+    /**
+     * Returns the number of bytes written by {@link #serializeCompact(ByteBuffer, boolean)} without padding, which
+     * depends on the length of the block signature.
+     */
+    public int getCompactSerializedSize() {
+        return CHAIN_WORK_BYTES + 8 + getHeader().getHeaderSize();
+    }
+
     /** Serializes the stored block to a custom packed format. Used by {@link CheckpointManager}. */
     public void serializeCompact(ByteBuffer buffer, boolean padToFixedLength) {
         byte[] chainWorkBytes = getChainWork().toByteArray();
@@ -35,12 +35,16 @@ import org.bitcoinj.wallet.WalletTransaction.Pool;
 import com.google.common.base.MoreObjects;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.bouncycastle.crypto.params.KeyParameter;
 
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 import java.io.*;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.util.*;
 
 import static org.bitcoinj.core.Utils.*;
@@ -97,6 +101,7 @@ public class Transaction extends ChildMessage {
         }
     };
     private static final Logger log = LoggerFactory.getLogger(Transaction.class);
+    private static final byte[] EMPTY_ARRAY = new byte[0];
 
     /** Threshold for lockTime: below this value it is interpreted as block number, otherwise as timestamp. **/
     public static final int LOCKTIME_THRESHOLD = 500000000; // Tue Nov  5 00:53:20 1985 UTC
@@ -138,6 +143,13 @@ public class Transaction extends ChildMessage {
     private Sha256Hash cachedTxId;
     private Sha256Hash cachedWTxId;
 
+    // BIP143 hashes of the outpoints, sequence numbers and outputs, which are the same for every input signed with
+    // SIGHASH_ALL. Kept until one of them changes, so that signing or verifying all inputs doesn't take quadratic time.
+    @GuardedBy("this") private transient byte[] cachedHashPrevouts;
+    @GuardedBy("this") private transient byte[] cachedHashSequence;
+    @GuardedBy("this") private transient byte[] cachedHashOutputs;
+    @GuardedBy("this") private transient byte[] cachedHashOutputsWithoutSenderSigs;
+
     // Data about how confirmed this tx is. Serialized, may be null.
     @Nullable private TransactionConfidence confidence;
 
@@ -307,6 +319,16 @@ public class Transaction extends ChildMessage {
         return cachedWTxId;
     }
 
+    /**
+     * Caches the ids of a transaction without witnesses which was just parsed from the given bytes, by hashing those
+     * bytes in place. Transactions with witnesses compute their ids lazily as usual.
+     */
+    void cacheIds(byte[] bytes, int offset) {
+        if (hasWitnesses())
+            return;
+        cachedTxId = cachedWTxId = Sha256Hash.wrapReversed(Sha256Hash.hashTwice(bytes, offset, length));
+    }
+
     /** Gets the transaction weight as defined in BIP141. */
     public int getWeight() {
         if (!hasWitnesses())
@@ -919,6 +941,7 @@ public class Transaction extends ChildMessage {
      */
     public void clearInputs() {
         unCache();
+        invalidateSigHashMidstate();
         for (TransactionInput input : inputs) {
             input.setParent(null);
         }
@@ -944,6 +967,7 @@ public class Transaction extends ChildMessage {
      */
     public TransactionInput addInput(TransactionInput input) {
         unCache();
+        invalidateSigHashMidstate();
         input.setParent(this);
         inputs.add(input);
         adjustLength(inputs.size(), input.length);
@@ -1026,6 +1050,7 @@ public class Transaction extends ChildMessage {
      */
     public void clearOutputs() {
         unCache();
+        invalidateSigHashMidstate();
         for (TransactionOutput output : outputs) {
             output.setParent(null);
         }
@@ -1034,11 +1059,29 @@ public class Transaction extends ChildMessage {
         this.length = this.unsafeBitcoinSerialize().length;
     }
 
+    /**
+     * Replaces the output at the given index with the given one, keeping the order of all outputs. The output must be
+     * completely initialized. Returns the given output.
+     */
+    public TransactionOutput replaceOutput(int index, TransactionOutput to) {
+        unCache();
+        invalidateSigHashMidstate();
+        TransactionOutput from = outputs.set(index, to);
+        from.setParent(null);
+        to.setParent(this);
+        if (from.length == UNKNOWN_LENGTH || to.length == UNKNOWN_LENGTH)
+            adjustLength(UNKNOWN_LENGTH);
+        else
+            adjustLength(to.length - from.length);
+        return to;
+    }
+
     /**
      * Adds the given output to this transaction. The output must be completely initialized. Returns the given output.
      */
     public TransactionOutput addOutput(TransactionOutput to) {
         unCache();
+        invalidateSigHashMidstate();
         to.setParent(this);
         outputs.add(to);
         adjustLength(outputs.size(), to.length);
@@ -1311,86 +1354,96 @@ public class Transaction extends ChildMessage {
         //
         //   https://en.bitcoin.it/wiki/Contracts
 
-        try {
-            // Create a copy of this transaction to operate upon because we need make changes to the inputs and outputs.
-            // It would not be thread-safe to change the attributes of the transaction object itself.
-            Transaction tx = this.params.getDefaultSerializer().makeTransaction(this.bitcoinSerialize());
-
-            // Clear input scripts in preparation for signing. If we're signing a fresh
-            // transaction that step isn't very helpful, but it doesn't add much cost relative to the actual
-            // EC math so we'll do it anyway.
-            for (int i = 0; i < tx.inputs.size(); i++) {
-                TransactionInput input = tx.inputs.get(i);
-                input.clearScriptBytes();
-                input.setWitness(null);
-            }
+        // This step has no purpose beyond being synchronized with Bitcoin Core's bugs. OP_CODESEPARATOR
+        // is a legacy holdover from a previous, broken design of executing scripts that shipped in Bitcoin 0.1.
+        // It was seriously flawed and would have let anyone take anyone elses money. Later versions switched to
+        // the design we use today where scripts are executed independently but share a stack. This left the
+        // OP_CODESEPARATOR instruction having no purpose as it was only meant to be used internally, not actually
+        // ever put into scripts. Deleting OP_CODESEPARATOR is a step that should never be required but if we don't
+        // do it, we could split off the best chain.
+        connectedScript = Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR);
+
+        // The transaction is not copied and modified, instead the modified form is written straight into the digest.
+        // All input scripts are cleared, except that the input being signed is set to the script of its output.
+        // Bitcoin Core does this but the step has no obvious purpose as the signature covers the hash of the prevout
+        // transaction which obviously includes the output script already. Perhaps it felt safer to him in some way,
+        // or is another leftover from how the code was written.
+        TransactionInput signedInput = inputs.get(inputIndex);
+        int basicSigHashType = sigHashType & 0x1f;
+        // SIGHASH_NONE means no outputs are signed at all - the signature is effectively for a "blank cheque".
+        boolean signNone = basicSigHashType == SigHash.NONE.value;
+        // SIGHASH_SINGLE means only sign the output at the same index as the input (ie, my output).
+        boolean signSingle = basicSigHashType == SigHash.SINGLE.value;
+        // SIGHASH_ANYONECANPAY means the signature in the input is not broken by changes/additions/removals
+        // of other inputs. For example, this is useful for building assurance contracts.
+        boolean anyoneCanPay = (sigHashType & SigHash.ANYONECANPAY.value) == SigHash.ANYONECANPAY.value;
+
+        if (signSingle && inputIndex >= outputs.size()) {
+            // The input index is beyond the number of outputs, it's a buggy signature made by a broken
+            // Bitcoin implementation. Bitcoin Core also contains a bug in handling this case:
+            // any transaction output that is signed in this case will result in both the signed output
+            // and any future outputs to this public key being steal-able by anyone who has
+            // the resulting signature and the public key (both of which are part of the signed tx input).
+
+            // Bitcoin Core's bug is that SignatureHash was supposed to return a hash and on this codepath it
+            // actually returns the constant "1" to indicate an error, which is never checked for. Oops.
+            return Sha256Hash.wrap("0100000000000000000000000000000000000000000000000000000000000000");
+        }
 
-            // This step has no purpose beyond being synchronized with Bitcoin Core's bugs. OP_CODESEPARATOR
-            // is a legacy holdover from a previous, broken design of executing scripts that shipped in Bitcoin 0.1.
-            // It was seriously flawed and would have let anyone take anyone elses money. Later versions switched to
-            // the design we use today where scripts are executed independently but share a stack. This left the
-            // OP_CODESEPARATOR instruction having no purpose as it was only meant to be used internally, not actually
-            // ever put into scripts. Deleting OP_CODESEPARATOR is a step that should never be required but if we don't
-            // do it, we could split off the best chain.
-            connectedScript = Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR);
-
-            // Set the input to the script of its output. Bitcoin Core does this but the step has no obvious purpose as
-            // the signature covers the hash of the prevout transaction which obviously includes the output script
-            // already. Perhaps it felt safer to him in some way, or is another leftover from how the code was written.
-            TransactionInput input = tx.inputs.get(inputIndex);
-            input.setScriptBytes(connectedScript);
-
-            if ((sigHashType & 0x1f) == SigHash.NONE.value) {
-                // SIGHASH_NONE means no outputs are signed at all - the signature is effectively for a "blank cheque".
-                tx.outputs = new ArrayList<>(0);
-                // The signature isn't broken by new versions of the transaction issued by other parties.
-                for (int i = 0; i < tx.inputs.size(); i++)
-                    if (i != inputIndex)
-                        tx.inputs.get(i).setSequenceNumber(0);
-            } else if ((sigHashType & 0x1f) == SigHash.SINGLE.value) {
-                // SIGHASH_SINGLE means only sign the output at the same index as the input (ie, my output).
-                if (inputIndex >= tx.outputs.size()) {
-                    // The input index is beyond the number of outputs, it's a buggy signature made by a broken
-                    // Bitcoin implementation. Bitcoin Core also contains a bug in handling this case:
-                    // any transaction output that is signed in this case will result in both the signed output
-                    // and any future outputs to this public key being steal-able by anyone who has
-                    // the resulting signature and the public key (both of which are part of the signed tx input).
-
-                    // Bitcoin Core's bug is that SignatureHash was supposed to return a hash and on this codepath it
-                    // actually returns the constant "1" to indicate an error, which is never checked for. Oops.
-                    return Sha256Hash.wrap("0100000000000000000000000000000000000000000000000000000000000000");
+        MessageDigest digest = Sha256Hash.newDigest();
+        try {
+            OutputStream stream = new DigestOutputStream(ByteStreams.nullOutputStream(), digest);
+            uint32ToByteStreamLE(version, stream);
+            if (anyoneCanPay) {
+                stream.write(new VarInt(1).encode());
+                writeInputForSignature(stream, signedInput, connectedScript, signedInput.getSequenceNumber());
+            } else {
+                stream.write(new VarInt(inputs.size()).encode());
+                for (int i = 0; i < inputs.size(); i++) {
+                    TransactionInput input = inputs.get(i);
+                    if (i == inputIndex)
+                        writeInputForSignature(stream, input, connectedScript, input.getSequenceNumber());
+                    else if (signNone || signSingle)
+                        // The signature isn't broken by new versions of the transaction issued by other parties.
+                        writeInputForSignature(stream, input, EMPTY_ARRAY, 0);
+                    else
+                        writeInputForSignature(stream, input, EMPTY_ARRAY, input.getSequenceNumber());
                 }
+            }
+            if (signNone) {
+                stream.write(new VarInt(0).encode());
+            } else if (signSingle) {
                 // In SIGHASH_SINGLE the outputs after the matching input index are deleted, and the outputs before
                 // that position are "nulled out". Unintuitively, the value in a "null" transaction is set to -1.
-                tx.outputs = new ArrayList<>(tx.outputs.subList(0, inputIndex + 1));
-                for (int i = 0; i < inputIndex; i++)
-                    tx.outputs.set(i, new TransactionOutput(tx.params, tx, Coin.NEGATIVE_SATOSHI, new byte[] {}));
-                // The signature isn't broken by new versions of the transaction issued by other parties.
-                for (int i = 0; i < tx.inputs.size(); i++)
-                    if (i != inputIndex)
-                        tx.inputs.get(i).setSequenceNumber(0);
-            }
-
-            if ((sigHashType & SigHash.ANYONECANPAY.value) == SigHash.ANYONECANPAY.value) {
-                // SIGHASH_ANYONECANPAY means the signature in the input is not broken by changes/additions/removals
-                // of other inputs. For example, this is useful for building assurance contracts.
-                tx.inputs = new ArrayList<>();
-                tx.inputs.add(input);
+                stream.write(new VarInt(inputIndex + 1).encode());
+                for (int i = 0; i < inputIndex; i++) {
+                    Utils.int64ToByteStreamLE(Coin.NEGATIVE_SATOSHI.value, stream);
+                    stream.write(new VarInt(0).encode());
+                }
+                outputs.get(inputIndex).bitcoinSerializeToStream(stream);
+            } else {
+                stream.write(new VarInt(outputs.size()).encode());
+                for (TransactionOutput output : outputs)
+                    output.bitcoinSerializeToStream(stream);
             }
-
-            ByteArrayOutputStream bos = new ByteArrayOutputStream(tx.length);
-            tx.bitcoinSerializeToStream(bos, false);
+            uint32ToByteStreamLE(lockTime, stream);
             // We also have to write a hash type (sigHashType is actually an unsigned char)
-            uint32ToByteStreamLE(0x000000ff & sigHashType, bos);
-            // Note that this is NOT reversed to ensure it will be signed correctly. If it were to be printed out
-            // however then we would expect that it is IS reversed.
-            Sha256Hash hash = Sha256Hash.twiceOf(bos.toByteArray());
-            bos.close();
-
-            return hash;
+            uint32ToByteStreamLE(0x000000ff & sigHashType, stream);
         } catch (IOException e) {
             throw new RuntimeException(e);  // Cannot happen.
         }
+        // Note that this is NOT reversed to ensure it will be signed correctly. If it were to be printed out
+        // however then we would expect that it is IS reversed.
+        return Sha256Hash.wrap(Sha256Hash.hash(digest.digest()));
+    }
+
+    /** Writes an input as it appears in a legacy signature hash, with the given script and sequence number. */
+    private static void writeInputForSignature(OutputStream stream, TransactionInput input, byte[] scriptBytes,
+                                               long sequence) throws IOException {
+        input.getOutpoint().bitcoinSerializeToStream(stream);
+        stream.write(new VarInt(scriptBytes.length).encode());
+        stream.write(scriptBytes);
+        uint32ToByteStreamLE(sequence, stream);
     }
 
     public TransactionSignature calculateWitnessSignature(
@@ -1485,34 +1538,14 @@ public class Transaction extends ChildMessage {
             boolean anyoneCanPay = (sigHashType & SigHash.ANYONECANPAY.value) == SigHash.ANYONECANPAY.value;
             boolean signAll = (basicSigHashType != SigHash.SINGLE.value) && (basicSigHashType != SigHash.NONE.value);
 
-            if (!anyoneCanPay) {
-                ByteArrayOutputStream bosHashPrevouts = new UnsafeByteArrayOutputStream(256);
-                for (int i = 0; i < this.inputs.size(); ++i) {
-                    bosHashPrevouts.write(this.inputs.get(i).getOutpoint().getHash().getReversedBytes());
-                    uint32ToByteStreamLE(this.inputs.get(i).getOutpoint().getIndex(), bosHashPrevouts);
-                }
-                hashPrevouts = Sha256Hash.hashTwice(bosHashPrevouts.toByteArray());
-            }
+            if (!anyoneCanPay)
+                hashPrevouts = getHashPrevouts();
 
-            if (!anyoneCanPay && signAll) {
-                ByteArrayOutputStream bosSequence = new UnsafeByteArrayOutputStream(256);
-                for (int i = 0; i < this.inputs.size(); ++i) {
-                    uint32ToByteStreamLE(this.inputs.get(i).getSequenceNumber(), bosSequence);
-                }
-                hashSequence = Sha256Hash.hashTwice(bosSequence.toByteArray());
-            }
+            if (!anyoneCanPay && signAll)
+                hashSequence = getHashSequence();
 
             if (signAll) {
-                ByteArrayOutputStream bosHashOutputs = new UnsafeByteArrayOutputStream(256);
-                for (int i = 0; i < this.outputs.size(); ++i) {
-                    uint64ToByteStreamLE(
-                            BigInteger.valueOf(this.outputs.get(i).getValue().getValue()),
-                            bosHashOutputs
-                    );
-                    bosHashOutputs.write(new VarInt(this.outputs.get(i).getScriptBytes().length).encode());
-                    bosHashOutputs.write(this.outputs.get(i).getScriptBytes());
-                }
-                hashOutputs = Sha256Hash.hashTwice(bosHashOutputs.toByteArray());
+                hashOutputs = getHashOutputs(false);
             } else if (basicSigHashType == SigHash.SINGLE.value && inputIndex < outputs.size()) {
                 ByteArrayOutputStream bosHashOutputs = new UnsafeByteArrayOutputStream(256);
                 uint64ToByteStreamLE(
@@ -1584,12 +1617,7 @@ public class Transaction extends ChildMessage {
             boolean signAll = (basicSigHashType != SigHash.SINGLE.value) && (basicSigHashType != SigHash.NONE.value);
 
             if (!anyoneCanPay) {
-                ByteArrayOutputStream bosHashPrevouts = new UnsafeByteArrayOutputStream(256);
-                for (int i = 0; i < this.inputs.size(); ++i) {
-                    bosHashPrevouts.write(this.inputs.get(i).getOutpoint().getHash().getReversedBytes());
-                    uint32ToByteStreamLE(this.inputs.get(i).getOutpoint().getIndex(), bosHashPrevouts);
-                }
-                hashPrevouts = Sha256Hash.hashTwice(bosHashPrevouts.toByteArray());
+                hashPrevouts = getHashPrevouts();
             } else {
                 // ANYONECANPAY is changed to only hash the first input
                 ByteArrayOutputStream bosHashPrevouts = new UnsafeByteArrayOutputStream(256);
@@ -1606,26 +1634,11 @@ public class Transaction extends ChildMessage {
                 hashSequence = Sha256Hash.hashTwice(bosSequence.toByteArray());
             }
 
-            if (!anyoneCanPay && signAll) {
-                ByteArrayOutputStream bosSequence = new UnsafeByteArrayOutputStream(256);
-                for (int i = 0; i < this.inputs.size(); ++i) {
-                    uint32ToByteStreamLE(this.inputs.get(i).getSequenceNumber(), bosSequence);
-                }
-                hashSequence = Sha256Hash.hashTwice(bosSequence.toByteArray());
-            }
+            if (!anyoneCanPay && signAll)
+                hashSequence = getHashSequence();
 
             if (signAll) {
-                ByteArrayOutputStream bosHashOutputs = new UnsafeByteArrayOutputStream(256);
-                for (int i = 0; i < this.outputs.size(); ++i) {
-                    TransactionOutput output = getOutputWithoutSenderSig(this.outputs.get(i));
-                    uint64ToByteStreamLE(
-                            BigInteger.valueOf(output.getValue().getValue()),
-                            bosHashOutputs
-                    );
-                    bosHashOutputs.write(new VarInt(output.getScriptBytes().length).encode());
-                    bosHashOutputs.write(output.getScriptBytes());
-                }
-                hashOutputs = Sha256Hash.hashTwice(bosHashOutputs.toByteArray());
+                hashOutputs = getHashOutputs(true);
             } else if (basicSigHashType == SigHash.SINGLE.value && outputIndex < outputs.size()) {
                 ByteArrayOutputStream bosHashOutputs = new UnsafeByteArrayOutputStream(256);
                 TransactionOutput output = getOutputWithoutSenderSig(this.outputs.get(outputIndex));
@@ -1657,6 +1670,71 @@ public class Transaction extends ChildMessage {
         return Sha256Hash.twiceOf(bos.toByteArray());
     }
 
+    /** Returns the BIP143 hash of the outpoints of all inputs. */
+    private synchronized byte[] getHashPrevouts() throws IOException {
+        if (cachedHashPrevouts == null) {
+            ByteArrayOutputStream bosHashPrevouts = new UnsafeByteArrayOutputStream(inputs.size() * 36);
+            for (int i = 0; i < this.inputs.size(); ++i) {
+                bosHashPrevouts.write(this.inputs.get(i).getOutpoint().getHash().getReversedBytes());
+                uint32ToByteStreamLE(this.inputs.get(i).getOutpoint().getIndex(), bosHashPrevouts);
+            }
+            cachedHashPrevouts = Sha256Hash.hashTwice(bosHashPrevouts.toByteArray());
+        }
+        return cachedHashPrevouts;
+    }
+
+    /** Returns the BIP143 hash of the sequence numbers of all inputs. */
+    private synchronized byte[] getHashSequence() throws IOException {
+        if (cachedHashSequence == null) {
+            ByteArrayOutputStream bosSequence = new UnsafeByteArrayOutputStream(inputs.size() * 4);
+            for (int i = 0; i < this.inputs.size(); ++i) {
+                uint32ToByteStreamLE(this.inputs.get(i).getSequenceNumber(), bosSequence);
+            }
+            cachedHashSequence = Sha256Hash.hashTwice(bosSequence.toByteArray());
+        }
+        return cachedHashSequence;
+    }
+
+    /**
+     * Returns the BIP143 hash of all outputs. For OP_SENDER signatures, the sender signatures are left out of the
+     * outputs, as they can't sign themselves.
+     */
+    private synchronized byte[] getHashOutputs(boolean withoutSenderSigs) throws IOException {
+        byte[] hashOutputs = withoutSenderSigs ? cachedHashOutputsWithoutSenderSigs : cachedHashOutputs;
+        if (hashOutputs == null) {
+            ByteArrayOutputStream bosHashOutputs = new UnsafeByteArrayOutputStream(256);
+            for (int i = 0; i < this.outputs.size(); ++i) {
+                TransactionOutput output = this.outputs.get(i);
+                if (withoutSenderSigs)
+                    output = getOutputWithoutSenderSig(output);
+                uint64ToByteStreamLE(
+                        BigInteger.valueOf(output.getValue().getValue()),
+                        bosHashOutputs
+                );
+                bosHashOutputs.write(new VarInt(output.getScriptBytes().length).encode());
+                bosHashOutputs.write(output.getScriptBytes());
+            }
+            hashOutputs = Sha256Hash.hashTwice(bosHashOutputs.toByteArray());
+            if (withoutSenderSigs)
+                cachedHashOutputsWithoutSenderSigs = hashOutputs;
+            else
+                cachedHashOutputs = hashOutputs;
+        }
+        return hashOutputs;
+    }
+
+    /**
+     * Forgets the hashes kept for signing with {@link #hashForWitnessSignature(int, byte[], Coin, byte)} and
+     * {@link #hashForOpSenderSignature(int, byte[], Coin, byte)}. Must be called whenever an outpoint, sequence
+     * number or output changes. Changes to input scripts and witnesses don't matter.
+     */
+    synchronized void invalidateSigHashMidstate() {
+        cachedHashPrevouts = null;
+        cachedHashSequence = null;
+        cachedHashOutputs = null;
+        cachedHashOutputsWithoutSenderSigs = null;
+    }
+
     private TransactionOutput getOutputWithoutSenderSig(TransactionOutput output) {
         Script outputScript = new Script(output.getScriptBytes());
         int opSenderIndex = -1;
@@ -1795,6 +1873,8 @@ public class Transaction extends ChildMessage {
 
     /** Randomly re-orders the transaction outputs: good for privacy */
     public void shuffleOutputs() {
+        unCache();
+        invalidateSigHashMidstate();
         Collections.shuffle(outputs);
     }
 
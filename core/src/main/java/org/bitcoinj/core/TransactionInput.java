@@ -100,6 +100,8 @@ public class TransactionInput extends ChildMessage {
         super(params);
         this.scriptBytes = scriptBytes;
         this.outpoint = outpoint;
+        // Like a parsed outpoint, so that changing it reaches the transaction.
+        outpoint.setParent(this);
         this.sequence = NO_SEQUENCE;
         this.value = value;
         setParent(parentTransaction);
@@ -117,6 +119,7 @@ public class TransactionInput extends ChildMessage {
         } else {
             outpoint = new TransactionOutPoint(params, output);
         }
+        outpoint.setParent(this);
         scriptBytes = EMPTY_ARRAY;
         sequence = NO_SEQUENCE;
         setParent(parentTransaction);
@@ -224,6 +227,8 @@ public class TransactionInput extends ChildMessage {
      */
     public void setSequenceNumber(long sequence) {
         unCache();
+        if (getParentTransaction() != null)
+            getParentTransaction().invalidateSigHashMidstate();
         this.sequence = sequence;
     }
 
@@ -198,6 +198,8 @@ public class TransactionOutPoint extends ChildMessage {
     }
 
     void setHash(Sha256Hash hash) {
+        unCache();
+        invalidateSigHashMidstate();
         this.hash = hash;
     }
 
@@ -206,9 +208,20 @@ public class TransactionOutPoint extends ChildMessage {
     }
     
     public void setIndex(long index) {
+        unCache();
+        invalidateSigHashMidstate();
         this.index = index;
     }
 
+    // The outpoints of a transaction are part of the BIP143 midstate it keeps between inputs.
+    private void invalidateSigHashMidstate() {
+        if (parent instanceof TransactionInput) {
+            Transaction tx = ((TransactionInput) parent).getParentTransaction();
+            if (tx != null)
+                tx.invalidateSigHashMidstate();
+        }
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -165,6 +165,8 @@ public class TransactionOutput extends ChildMessage {
     public void setValue(Coin value) {
         checkNotNull(value);
         unCache();
+        if (getParentTransaction() != null)
+            getParentTransaction().invalidateSigHashMidstate();
         this.value = value.value;
     }
 
@@ -16,9 +16,16 @@
 
 package org.bitcoinj.core;
 
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptException;
+import org.bitcoinj.script.ScriptPattern;
+import com.google.common.primitives.Bytes;
+
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -27,8 +34,31 @@ import java.util.List;
  * {@link AbstractBlockChain#connectTransactions(int, Block)}. It contains the full list of transaction outputs created
  * and spent in a block. It DOES contain outputs created that were spent later in the block, as those are needed for
  * BIP30 (no duplicate txid creation if the previous one was not fully spent prior to this block) verification.</p>
+ *
+ * <p>Block stores persist the changes with {@link #serializeCompactToStream(OutputStream)}, which takes about half
+ * the space of {@link #serializeToStream(OutputStream)}, and read both formats with
+ * {@link #parse(NetworkParameters, byte[])}.</p>
  */
 public class TransactionOutputChanges {
+    // Starts the compact format. The plain format starts with the number of outputs created, which is never this.
+    private static final byte[] COMPACT_MARKER = { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF };
+
+    // The flags in the low bits of the first varint of a compact output, above them is the height.
+    private static final int FLAG_COINBASE = 1;
+    // The output is of the same transaction as the one before it in the list, so its hash is left out.
+    private static final int FLAG_SAME_HASH = 2;
+    private static final int FLAG_BITS = 2;
+
+    // The templates of compact scripts, which are written as the type and the hash or key they pay to. Other
+    // scripts are written as their length plus SCRIPT_TYPES, and the script.
+    private static final int SCRIPT_P2PKH = 0;
+    private static final int SCRIPT_P2SH = 1;
+    private static final int SCRIPT_P2WPKH = 2;
+    // Pay to a compressed key, the type is 3 plus the parity of the key, which is all the key has besides its x.
+    private static final int SCRIPT_P2PK_EVEN = 3;
+    private static final int SCRIPT_P2PK_ODD = 4;
+    private static final int SCRIPT_TYPES = 5;
+
     public final List<UTXO> txOutsCreated;
     public final List<UTXO> txOutsSpent;
     
@@ -37,8 +67,12 @@ public class TransactionOutputChanges {
         this.txOutsSpent = txOutsSpent;
     }
     
+    /** Reads changes written by {@link #serializeToStream(OutputStream)}. */
     public TransactionOutputChanges(InputStream in) throws IOException {
-        int numOutsCreated = (int) Utils.readUint32FromStream(in);
+        this((int) Utils.readUint32FromStream(in), in);
+    }
+
+    private TransactionOutputChanges(int numOutsCreated, InputStream in) throws IOException {
         txOutsCreated = new LinkedList<>();
         for (int i = 0; i < numOutsCreated; i++)
             txOutsCreated.add(new UTXO(in));
@@ -62,4 +96,200 @@ public class TransactionOutputChanges {
             output.serializeToStream(bos);
         }
     }
+
+    /**
+     * <p>Writes the changes in a compact format: each output as a varint of its height and flags, its transaction hash
+     * unless it is the same as that of the output before it, and varints of its index and {@link #compressAmount(long)
+     * compressed value}, then its script. P2PKH, P2SH, P2WPKH and compressed P2PK scripts are written as a type and
+     * the hash or key they pay to.</p>
+     *
+     * <p>The address of the outputs isn't written, {@link #parse(NetworkParameters, byte[])} derives it from their
+     * script like {@link FullPrunedBlockChain} does.</p>
+     */
+    public void serializeCompactToStream(OutputStream bos) throws IOException {
+        bos.write(COMPACT_MARKER);
+        serializeCompact(txOutsCreated, bos);
+        serializeCompact(txOutsSpent, bos);
+    }
+
+    private static void serializeCompact(List<UTXO> outputs, OutputStream bos) throws IOException {
+        bos.write(new VarInt(outputs.size()).encode());
+        Sha256Hash previousHash = null;
+        for (UTXO output : outputs) {
+            boolean sameHash = output.getHash().equals(previousHash);
+            long code = ((long) output.getHeight() << FLAG_BITS) | (output.isCoinbase() ? FLAG_COINBASE : 0)
+                    | (sameHash ? FLAG_SAME_HASH : 0);
+            bos.write(new VarInt(code).encode());
+            if (!sameHash)
+                bos.write(output.getHash().getBytes());
+            bos.write(new VarInt(output.getIndex()).encode());
+            bos.write(new VarInt(compressAmount(output.getValue().value)).encode());
+            writeCompactScript(output.getScript().getProgram(), bos);
+            previousHash = output.getHash();
+        }
+    }
+
+    /**
+     * Reads changes written by either {@link #serializeCompactToStream(OutputStream)} or
+     * {@link #serializeToStream(OutputStream)}.
+     * @param params the network to derive the addresses of the outputs for, as neither format has them
+     */
+    public static TransactionOutputChanges parse(NetworkParameters params, byte[] bytes) throws IOException {
+        if (bytes.length < COMPACT_MARKER.length
+                || !Arrays.equals(COMPACT_MARKER, Arrays.copyOf(bytes, COMPACT_MARKER.length))) {
+            TransactionOutputChanges plain = new TransactionOutputChanges(new ByteArrayInputStream(bytes));
+            return new TransactionOutputChanges(withAddresses(params, plain.txOutsCreated),
+                    withAddresses(params, plain.txOutsSpent));
+        }
+        try {
+            int[] cursor = { COMPACT_MARKER.length };
+            List<UTXO> created = parseCompact(params, bytes, cursor);
+            List<UTXO> spent = parseCompact(params, bytes, cursor);
+            return new TransactionOutputChanges(created, spent);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Truncated transaction output changes", e);
+        } catch (ScriptException e) {
+            throw new IOException("Invalid script in transaction output changes", e);
+        }
+    }
+
+    private static List<UTXO> parseCompact(NetworkParameters params, byte[] bytes, int[] cursor) throws IOException {
+        long count = readVarInt(bytes, cursor);
+        if (count > bytes.length)
+            throw new IOException("Invalid number of outputs: " + count);
+        List<UTXO> outputs = new LinkedList<>();
+        Sha256Hash hash = null;
+        for (long i = 0; i < count; i++) {
+            long code = readVarInt(bytes, cursor);
+            if ((code & FLAG_SAME_HASH) == 0) {
+                hash = Sha256Hash.wrap(Arrays.copyOfRange(bytes, cursor[0], cursor[0] + Sha256Hash.LENGTH));
+                cursor[0] += Sha256Hash.LENGTH;
+            } else if (hash == null) {
+                throw new IOException("First output refers to the hash of the one before it");
+            }
+            long index = readVarInt(bytes, cursor);
+            Coin value = Coin.valueOf(decompressAmount(readVarInt(bytes, cursor)));
+            Script script = new Script(readCompactScript(bytes, cursor));
+            outputs.add(new UTXO(hash, index, value, (int) (code >>> FLAG_BITS), (code & FLAG_COINBASE) != 0,
+                    script, FullPrunedBlockChain.getScriptAddress(params, script)));
+        }
+        // Hashes past the end are padded with zeros rather than failing, so check that we didn't read past it.
+        if (cursor[0] > bytes.length)
+            throw new IOException("Truncated transaction output changes");
+        return outputs;
+    }
+
+    private static List<UTXO> withAddresses(NetworkParameters params, List<UTXO> outputs) {
+        List<UTXO> withAddresses = new LinkedList<>();
+        for (UTXO output : outputs)
+            withAddresses.add(new UTXO(output.getHash(), output.getIndex(), output.getValue(), output.getHeight(),
+                    output.isCoinbase(), output.getScript(),
+                    FullPrunedBlockChain.getScriptAddress(params, output.getScript())));
+        return withAddresses;
+    }
+
+    private static void writeCompactScript(byte[] script, OutputStream bos) throws IOException {
+        ScriptPattern.Template template = ScriptPattern.Template.match(script, 0, script.length);
+        int type = template != null ? compactType(template) : -1;
+        if (type == SCRIPT_P2PKH || type == SCRIPT_P2SH || type == SCRIPT_P2WPKH) {
+            bos.write(type);
+            bos.write(script, template.getDataOffset(), template.getDataLength());
+        } else if (type == SCRIPT_P2PK_EVEN && (script[1] == 0x02 || script[1] == 0x03)) {
+            bos.write(script[1] == 0x02 ? SCRIPT_P2PK_EVEN : SCRIPT_P2PK_ODD);
+            bos.write(script, 2, 32);
+        } else {
+            bos.write(new VarInt(script.length + SCRIPT_TYPES).encode());
+            bos.write(script);
+        }
+    }
+
+    /** Returns the type compact scripts of the given template are written as, or -1 if they are written in full. */
+    private static int compactType(ScriptPattern.Template template) {
+        switch (template) {
+            case P2PKH:
+                return SCRIPT_P2PKH;
+            case P2SH:
+                return SCRIPT_P2SH;
+            case P2WPKH:
+                return SCRIPT_P2WPKH;
+            case P2PK_COMPRESSED:
+                // Or SCRIPT_P2PK_ODD, depending on the key.
+                return SCRIPT_P2PK_EVEN;
+            default:
+                return -1;
+        }
+    }
+
+    private static byte[] readCompactScript(byte[] bytes, int[] cursor) throws IOException {
+        long type = readVarInt(bytes, cursor);
+        int offset = cursor[0];
+        byte[] script;
+        if (type == SCRIPT_P2PKH || type == SCRIPT_P2SH || type == SCRIPT_P2WPKH) {
+            ScriptPattern.Template template = type == SCRIPT_P2PKH ? ScriptPattern.Template.P2PKH
+                    : type == SCRIPT_P2SH ? ScriptPattern.Template.P2SH : ScriptPattern.Template.P2WPKH;
+            script = template.build(Arrays.copyOfRange(bytes, offset, offset + 20), 0);
+            cursor[0] += 20;
+        } else if (type == SCRIPT_P2PK_EVEN || type == SCRIPT_P2PK_ODD) {
+            byte[] key = Bytes.concat(new byte[] { (byte) (type == SCRIPT_P2PK_EVEN ? 0x02 : 0x03) },
+                    Arrays.copyOfRange(bytes, offset, offset + 32));
+            script = ScriptPattern.Template.P2PK_COMPRESSED.build(key, 0);
+            cursor[0] += 32;
+        } else {
+            long length = type - SCRIPT_TYPES;
+            if (length > bytes.length - offset)
+                throw new IOException("Invalid script length: " + length);
+            script = Arrays.copyOfRange(bytes, offset, offset + (int) length);
+            cursor[0] += (int) length;
+        }
+        return script;
+    }
+
+    private static long readVarInt(byte[] bytes, int[] cursor) {
+        VarInt varInt = new VarInt(bytes, cursor[0]);
+        cursor[0] += varInt.getOriginalSizeInBytes();
+        return varInt.value;
+    }
+
+    /**
+     * Compresses an amount of satoshis like Bitcoin Core does, by moving its trailing zeros into the low digit, so
+     * that round amounts take a byte or two as a varint.
+     */
+    static long compressAmount(long n) {
+        if (n == 0)
+            return 0;
+        int e = 0;
+        while (n % 10 == 0 && e < 9) {
+            n /= 10;
+            e++;
+        }
+        if (e < 9) {
+            int d = (int) (n % 10);
+            n /= 10;
+            return 1 + (n * 9 + d - 1) * 10 + e;
+        } else {
+            return 1 + (n - 1) * 10 + 9;
+        }
+    }
+
+    /** The inverse of {@link #compressAmount(long)}. */
+    static long decompressAmount(long x) {
+        if (x == 0)
+            return 0;
+        x--;
+        int e = (int) (x % 10);
+        x /= 10;
+        long n;
+        if (e < 9) {
+            int d = (int) (x % 9) + 1;
+            x /= 9;
+            n = x * 10 + d;
+        } else {
+            n = x + 1;
+        }
+        while (e > 0) {
+            n *= 10;
+            e--;
+        }
+        return n;
+    }
 }
@@ -16,6 +16,7 @@
 
 package org.bitcoinj.net;
 
+import com.google.common.primitives.Bytes;
 import com.google.common.util.concurrent.*;
 import org.bitcoinj.core.*;
 import org.slf4j.*;
@@ -155,6 +156,12 @@ public class BlockingClient implements MessageWriteTarget {
         }
     }
 
+    @Override
+    public void writeBytes(byte[] header, byte[] payload) throws IOException {
+        // A plain socket can't do gathering writes, so join the two to keep it one write
+        writeBytes(Bytes.concat(header, payload));
+    }
+
     /** Returns a future that completes once connection has occurred at the socket level or with an exception if failed to connect. */
     public ListenableFuture<SocketAddress> getConnectFuture() {
         return connectFuture;
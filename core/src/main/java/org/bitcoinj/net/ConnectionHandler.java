@@ -17,161 +17,226 @@
 package org.bitcoinj.net;
 
 import org.bitcoinj.core.Message;
-import org.bitcoinj.utils.Threading;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Throwables;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
-import javax.annotation.concurrent.GuardedBy;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.Arrays;
+import java.util.ArrayDeque;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
-// TODO: The locking in all this class is horrible and not really necessary. We should just run all network stuff on one thread.
-
 /**
  * A simple NIO MessageWriteTarget which handles all the business logic of a connection (reading+writing bytes).
- * Used only by the NioClient and NioServer classes
+ * Used only by the NioClient and NioServer classes.
+ *
+ * <p>All socket work happens on the {@link SelectorLoop} thread the connection's key belongs to. Other threads only
+ * append to the outbound queue and ask the loop to flush it, so no locking is needed.</p>
+ *
+ * <p>Read and write buffers come from a {@link DirectBufferPool} shared by all connections, and are only held while
+ * there is a partial message to read or bytes left to write, so an idle connection holds none. Outbound messages are
+ * written with gathering writes: small messages are copied back to back into a pooled buffer, larger payloads are
+ * written straight from their arrays, and a whole batch goes to the socket in one call.</p>
  */
 class ConnectionHandler implements MessageWriteTarget {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(ConnectionHandler.class);
-    // We lock when touching local flags and when writing data, but NEVER when calling any methods which leave this
-    // class into non-Java classes.
-    private final ReentrantLock lock = Threading.lock(ConnectionHandler.class);
 
-    private static final int BUFFER_SIZE_LOWER_BOUND = 4096;
-    private static final int BUFFER_SIZE_UPPER_BOUND = 65536;
+    private static final int BUFFER_SIZE = 65536;
+    // Buffers are allocated sixteen at a time, in one megabyte slabs.
+    private static final int BUFFERS_PER_SLAB = 16;
+    // Messages (or message headers) up to this size are coalesced, larger ones are written from their own array.
+    private static final int COALESCE_LIMIT = 4096;
+    // The most buffers handed to a single gathering write.
+    private static final int MAX_GATHERED_BUFFERS = 64;
 
     private static final int OUTBOUND_BUFFER_BYTE_COUNT = Message.MAX_SIZE + 24; // 24 byte message header
 
-    @GuardedBy("lock") private final ByteBuffer readBuff;
-    @GuardedBy("lock") private final SocketChannel channel;
-    @GuardedBy("lock") private final SelectionKey key;
-    @GuardedBy("lock") StreamConnection connection;
-    @GuardedBy("lock") private boolean closeCalled = false;
+    @VisibleForTesting static final DirectBufferPool bufferPool = new DirectBufferPool(BUFFER_SIZE, BUFFERS_PER_SLAB);
+
+    // Only touched by the loop thread.
+    @Nullable private ByteBuffer readBuff;
+    private final ArrayDeque<ByteBuffer> bytesWriting = new ArrayDeque<>(); // Direct ones are from the pool
+    private boolean buffersReleased = false;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final SelectorLoop loop;
+    final StreamConnection connection;
+
+    private final AtomicBoolean closeCalled = new AtomicBoolean(false);
 
-    @GuardedBy("lock") private long bytesToWriteRemaining = 0;
-    @GuardedBy("lock") private final LinkedList<ByteBuffer> bytesToWrite = new LinkedList<>();
+    // Appended to by any thread, drained by the loop thread only. Each entry holds the parts of one message.
+    private final Queue<byte[][]> bytesToWrite = new ConcurrentLinkedQueue<>();
+    private final AtomicLong bytesToWriteRemaining = new AtomicLong(0);
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
 
-    private Set<ConnectionHandler> connectedHandlers;
+    private volatile Set<ConnectionHandler> connectedHandlers;
+
+    private final Runnable flush = new Runnable() {
+        @Override
+        public void run() {
+            // Clear the flag first, so that a write queued while we flush schedules another flush
+            flushScheduled.set(false);
+            try {
+                tryWriteBytes();
+            } catch (IOException | CancelledKeyException e) {
+                log.warn("Error writing message to connection, closing connection", e);
+                closeConnection();
+            }
+        }
+    };
+
+    // Hands our buffers back to the pool once the connection is closed. Always scheduled rather than run directly, so
+    // that it never pulls the read buffer from under a receiveBytes call that closed the connection.
+    private final Runnable releaseBuffers = new Runnable() {
+        @Override
+        public void run() {
+            buffersReleased = true;
+            if (readBuff != null) {
+                bufferPool.give(readBuff);
+                readBuff = null;
+            }
+            for (ByteBuffer buff : bytesWriting)
+                if (buff.isDirect())
+                    bufferPool.give(buff);
+            bytesWriting.clear();
+            bytesToWrite.clear();
+        }
+    };
 
-    public ConnectionHandler(StreamConnectionFactory connectionFactory, SelectionKey key) throws IOException {
-        this(connectionFactory.getNewConnection(((SocketChannel) key.channel()).socket().getInetAddress(), ((SocketChannel) key.channel()).socket().getPort()), key);
+    public ConnectionHandler(StreamConnectionFactory connectionFactory, SelectionKey key, SelectorLoop loop) throws IOException {
+        this(connectionFactory.getNewConnection(((SocketChannel) key.channel()).socket().getInetAddress(), ((SocketChannel) key.channel()).socket().getPort()), key, loop);
         if (connection == null)
             throw new IOException("Parser factory.getNewConnection returned null");
     }
 
-    private ConnectionHandler(@Nullable StreamConnection connection, SelectionKey key) {
+    private ConnectionHandler(@Nullable StreamConnection connection, SelectionKey key, SelectorLoop loop) {
         this.key = key;
+        this.loop = checkNotNull(loop);
         this.channel = checkNotNull(((SocketChannel)key.channel()));
-        if (connection == null) {
-            readBuff = null;
-            return;
-        }
         this.connection = connection;
-        readBuff = ByteBuffer.allocateDirect(Math.min(Math.max(connection.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND));
-        connection.setWriteTarget(this); // May callback into us (eg closeConnection() now)
-        connectedHandlers = null;
+        if (connection != null)
+            connection.setWriteTarget(this); // May callback into us (eg closeConnection() now)
     }
 
-    public ConnectionHandler(StreamConnection connection, SelectionKey key, Set<ConnectionHandler> connectedHandlers) {
-        this(checkNotNull(connection), key);
+    public ConnectionHandler(StreamConnection connection, SelectionKey key, Set<ConnectionHandler> connectedHandlers,
+                             SelectorLoop loop) {
+        this(checkNotNull(connection), key, loop);
 
         // closeConnection() may have already happened because we invoked the other c'tor above, which called
-        // connection.setWriteTarget which might have re-entered already. In this case we shouldn't add ourselves
-        // to the connectedHandlers set.
-        lock.lock();
-        try {
-            this.connectedHandlers = connectedHandlers;
-            if (!closeCalled)
-                checkState(this.connectedHandlers.add(this));
-        } finally {
-            lock.unlock();
-        }
+        // connection.setWriteTarget which might have re-entered already, or it may race with us from another thread.
+        // Publishing the set before checking closeCalled (and connectionClosed() doing the reverse) means one of us
+        // always takes the handler out of the set again.
+        checkState(connectedHandlers.add(this));
+        this.connectedHandlers = connectedHandlers;
+        if (closeCalled.get())
+            connectedHandlers.remove(this);
     }
 
-    @GuardedBy("lock")
-    private void setWriteOps() {
-        // Make sure we are registered to get updated when writing is available again
-        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
-        // Refresh the selector to make sure it gets the new interestOps
-        key.selector().wakeup();
+    // Tries to write any outstanding write bytes, runs on the loop thread only
+    private void tryWriteBytes() throws IOException {
+        if (buffersReleased)
+            return;
+        if (channel.isConnectionPending()) {
+            // Ask to be told when we can write, which will be once the connection is up
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            return;
+        }
+        // Only take the messages queued so far, anything queued from now on schedules another flush
+        coalesceQueuedBytes();
+        // Push as much as possible into the OS' network buffer, a batch of buffers per call.
+        while (!bytesWriting.isEmpty()) {
+            ByteBuffer[] batch = new ByteBuffer[Math.min(bytesWriting.size(), MAX_GATHERED_BUFFERS)];
+            Iterator<ByteBuffer> bytesIterator = bytesWriting.iterator();
+            for (int i = 0; i < batch.length; i++)
+                batch[i] = bytesIterator.next();
+            bytesToWriteRemaining.addAndGet(-channel.write(batch));
+            while (!bytesWriting.isEmpty() && !bytesWriting.peekFirst().hasRemaining()) {
+                ByteBuffer buff = bytesWriting.pollFirst();
+                if (buff.isDirect())
+                    bufferPool.give(buff);
+            }
+            if (batch[batch.length - 1].hasRemaining()) {
+                // Make sure we are registered to get updated when writing is available again
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+        // If we are done writing, clear the OP_WRITE interestOps. As we are on the loop thread there is no need to
+        // wake up the selector for it.
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
     }
 
-    // Tries to write any outstanding write bytes, runs in any thread (possibly unlocked)
-    private void tryWriteBytes() throws IOException {
-        lock.lock();
-        try {
-            // Iterate through the outbound ByteBuff queue, pushing as much as possible into the OS' network buffer.
-            Iterator<ByteBuffer> bytesIterator = bytesToWrite.iterator();
-            while (bytesIterator.hasNext()) {
-                ByteBuffer buff = bytesIterator.next();
-                bytesToWriteRemaining -= channel.write(buff);
-                if (!buff.hasRemaining())
-                    bytesIterator.remove();
-                else {
-                    setWriteOps();
-                    break;
+    // Moves the queued messages over to bytesWriting. Small ones (inv, ping, getdata, message headers...) are copied
+    // back to back into pooled buffers so that a burst of them goes out as a few buffers, larger ones are wrapped.
+    private void coalesceQueuedBytes() {
+        ByteBuffer filling = null; // Last buffer of bytesWriting while we are still putting bytes into it
+        byte[][] message;
+        while ((message = bytesToWrite.poll()) != null) {
+            for (byte[] part : message) {
+                if (part.length <= COALESCE_LIMIT) {
+                    if (filling == null || filling.remaining() < part.length) {
+                        if (filling != null)
+                            filling.flip();
+                        filling = bufferPool.take();
+                        bytesWriting.addLast(filling);
+                    }
+                    filling.put(part);
+                } else {
+                    if (filling != null) {
+                        filling.flip();
+                        filling = null;
+                    }
+                    bytesWriting.addLast(ByteBuffer.wrap(part));
                 }
             }
-            // If we are done writing, clear the OP_WRITE interestOps
-            if (bytesToWrite.isEmpty())
-                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
-            // Don't bother waking up the selector here, since we're just removing an op, not adding
-        } finally {
-            lock.unlock();
         }
+        if (filling != null)
+            filling.flip();
     }
 
     @Override
     public void writeBytes(byte[] message) throws IOException {
-        boolean andUnlock = true;
-        lock.lock();
-        try {
-            // Network buffers are not unlimited (and are often smaller than some messages we may wish to send), and
-            // thus we have to buffer outbound messages sometimes. To do this, we use a queue of ByteBuffers and just
-            // append to it when we want to send a message. We then let tryWriteBytes() either send the message or
-            // register our SelectionKey to wakeup when we have free outbound buffer space available.
-
-            if (bytesToWriteRemaining + message.length > OUTBOUND_BUFFER_BYTE_COUNT)
-                throw new IOException("Outbound buffer overflowed");
-            // Just dump the message onto the write buffer and call tryWriteBytes
-            // TODO: Kill the needless message duplication when the write completes right away
-            bytesToWrite.offer(ByteBuffer.wrap(Arrays.copyOf(message, message.length)));
-            bytesToWriteRemaining += message.length;
-            setWriteOps();
-        } catch (IOException e) {
-            lock.unlock();
-            andUnlock = false;
+        queueBytes(new byte[][] { message }, message.length);
+    }
+
+    @Override
+    public void writeBytes(byte[] header, byte[] payload) throws IOException {
+        queueBytes(new byte[][] { header, payload }, header.length + payload.length);
+    }
+
+    private void queueBytes(byte[][] message, int length) throws IOException {
+        // Network buffers are not unlimited (and are often smaller than some messages we may wish to send), and
+        // thus we have to buffer outbound messages sometimes. To do this, we use a queue of messages and just
+        // append to it when we want to send a message. The loop thread then either sends the message or registers
+        // our SelectionKey to wakeup when we have free outbound buffer space available.
+        if (!channel.isOpen())
+            throw new IOException("Connection is closed");
+        if (bytesToWriteRemaining.addAndGet(length) > OUTBOUND_BUFFER_BYTE_COUNT) {
+            bytesToWriteRemaining.addAndGet(-length);
+            IOException e = new IOException("Outbound buffer overflowed");
             log.warn("Error writing message to connection, closing connection", e);
             closeConnection();
             throw e;
-        } catch (CancelledKeyException e) {
-            lock.unlock();
-            andUnlock = false;
-            log.warn("Error writing message to connection, closing connection", e);
-            closeConnection();
-            throw new IOException(e);
-        } finally {
-            if (andUnlock)
-                lock.unlock();
         }
+        bytesToWrite.offer(message);
+        if (flushScheduled.compareAndSet(false, true))
+            loop.execute(flush);
     }
 
-    // May NOT be called with lock held
     @Override
     public void closeConnection() {
-        checkState(!lock.isHeldByCurrentThread());
         try {
             channel.close();
         } catch (IOException e) {
@@ -181,23 +246,16 @@ class ConnectionHandler implements MessageWriteTarget {
     }
 
     private void connectionClosed() {
-        boolean callClosed = false;
-        lock.lock();
-        try {
-            callClosed = !closeCalled;
-            closeCalled = true;
-        } finally {
-            lock.unlock();
-        }
-        if (callClosed) {
-            checkState(connectedHandlers == null || connectedHandlers.remove(this));
-            connection.connectionClosed();
-        }
+        if (!closeCalled.compareAndSet(false, true))
+            return;
+        loop.schedule(releaseBuffers);
+        Set<ConnectionHandler> handlers = connectedHandlers;
+        if (handlers != null)
+            handlers.remove(this);
+        connection.connectionClosed();
     }
 
-    // Handle a SelectionKey which was selected
-    // Runs unlocked as the caller is single-threaded (or if not, should enforce that handleKey is only called
-    // atomically for a given ConnectionHandler)
+    // Handle a SelectionKey which was selected, runs on the loop thread the key belongs to
     public static void handleKey(SelectionKey key) {
         ConnectionHandler handler = ((ConnectionHandler)key.attachment());
         try {
@@ -209,22 +267,31 @@ class ConnectionHandler implements MessageWriteTarget {
             }
             if (key.isReadable()) {
                 // Do a socket read and invoke the connection's receiveBytes message
-                int read = handler.channel.read(handler.readBuff);
-                if (read == 0)
-                    return; // Was probably waiting on a write
-                else if (read == -1) { // Socket was closed
+                if (handler.readBuff == null)
+                    handler.readBuff = bufferPool.take();
+                ByteBuffer readBuff = handler.readBuff;
+                int read = handler.channel.read(readBuff);
+                if (read == -1) { // Socket was closed
                     key.cancel();
                     handler.closeConnection();
                     return;
                 }
-                // "flip" the buffer - setting the limit to the current position and setting position to 0
-                handler.readBuff.flip();
-                // Use connection.receiveBytes's return value as a check that it stopped reading at the right location
-                int bytesConsumed = checkNotNull(handler.connection).receiveBytes(handler.readBuff);
-                checkState(handler.readBuff.position() == bytesConsumed);
-                // Now drop the bytes which were read by compacting readBuff (resetting limit and keeping relative
-                // position)
-                handler.readBuff.compact();
+                if (read > 0) {
+                    // "flip" the buffer - setting the limit to the current position and setting position to 0
+                    readBuff.flip();
+                    // Use connection.receiveBytes's return value as a check that it stopped reading at the right
+                    // location
+                    int bytesConsumed = checkNotNull(handler.connection).receiveBytes(readBuff);
+                    checkState(readBuff.position() == bytesConsumed);
+                    // Now drop the bytes which were read by compacting readBuff (resetting limit and keeping relative
+                    // position)
+                    readBuff.compact();
+                }
+                // Hand the buffer back unless it holds the start of a message
+                if (readBuff.position() == 0) {
+                    bufferPool.give(readBuff);
+                    handler.readBuff = null;
+                }
             }
             if (key.isWritable())
                 handler.tryWriteBytes();
@@ -0,0 +1,85 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A pool of equally sized direct buffers, shared by all connections. Buffers are carved out of larger direct slabs,
+ * so there is one native allocation per slab rather than per buffer, and are handed back once a connection no longer
+ * needs them. An idle connection thus holds no buffer at all.</p>
+ *
+ * <p>Slabs are never freed: the pool grows to the largest number of buffers in use at once and stays there.</p>
+ */
+class DirectBufferPool {
+    private final int bufferSize;
+    private final int buffersPerSlab;
+    private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger allocated = new AtomicInteger(0);
+
+    DirectBufferPool(int bufferSize, int buffersPerSlab) {
+        checkArgument(bufferSize > 0 && buffersPerSlab > 0);
+        this.bufferSize = bufferSize;
+        this.buffersPerSlab = buffersPerSlab;
+    }
+
+    /** Returns a cleared buffer of {@link #getBufferSize()} bytes. Safe to call from any thread. */
+    ByteBuffer take() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null)
+            buffer = allocateSlab();
+        return buffer;
+    }
+
+    /** Hands the given buffer, which must have come from {@link #take()}, back to the pool. */
+    void give(ByteBuffer buffer) {
+        buffer.clear();
+        free.offer(buffer);
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    /** Returns the number of buffers carved out of slabs so far, whether in use or not. */
+    int getAllocatedCount() {
+        return allocated.get();
+    }
+
+    // Allocates a new slab, keeping one of its buffers for the caller and putting the others up for grabs.
+    private synchronized ByteBuffer allocateSlab() {
+        // Another thread may have filled the pool while we waited for the lock.
+        ByteBuffer buffer = free.poll();
+        if (buffer != null)
+            return buffer;
+        ByteBuffer slab = ByteBuffer.allocateDirect(bufferSize * buffersPerSlab);
+        for (int i = 1; i < buffersPerSlab; i++)
+            free.offer(slice(slab, i));
+        allocated.addAndGet(buffersPerSlab);
+        return slice(slab, 0);
+    }
+
+    private ByteBuffer slice(ByteBuffer slab, int index) {
+        ByteBuffer duplicate = slab.duplicate();
+        duplicate.position(index * bufferSize);
+        duplicate.limit((index + 1) * bufferSize);
+        return duplicate.slice();
+    }
+}
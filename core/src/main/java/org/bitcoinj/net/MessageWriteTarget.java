@@ -23,9 +23,15 @@ import java.io.IOException;
  */
 public interface MessageWriteTarget {
     /**
-     * Writes the given bytes to the remote server.
+     * Writes the given bytes to the remote server. The array must not be modified afterwards, as it may be written
+     * out later, from another thread.
      */
     void writeBytes(byte[] message) throws IOException;
+    /**
+     * Writes the given header followed by the given payload to the remote server, as if they were one array but
+     * without joining them first. The arrays must not be modified afterwards.
+     */
+    void writeBytes(byte[] header, byte[] payload) throws IOException;
     /**
      * Closes the connection to the server, triggering the {@link StreamConnection#connectionClosed()}
      * event on the network-handling thread where all callbacks occur.
@@ -25,18 +25,20 @@ import java.io.IOException;
 import java.net.ConnectException;
 import java.net.SocketAddress;
 import java.nio.channels.*;
-import java.nio.channels.spi.SelectorProvider;
 import java.util.*;
 import java.util.concurrent.*;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 /**
- * A class which manages a set of client connections. Uses Java NIO to select network events and processes them in a
- * single network processing thread.
+ * A class which manages a set of client connections. Uses Java NIO to select network events and processes them on one
+ * or more network processing threads, each with its own selector. Connections are assigned to a thread by a hash of
+ * their remote address, and stay on that thread for their whole lifetime.
  */
 public class NioClientManager extends AbstractExecutionThreadService implements ClientConnectionManager {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(NioClientManager.class);
 
-    private final Selector selector;
+    private final SelectorLoop[] loops;
 
     class PendingConnect {
         SocketChannel sc;
@@ -46,20 +48,30 @@ public class NioClientManager extends AbstractExecutionThreadService implements
 
         PendingConnect(SocketChannel sc, StreamConnection connection, SocketAddress address) { this.sc = sc; this.connection = connection; this.address = address; }
     }
-    final Queue<PendingConnect> newConnectionChannels = new LinkedBlockingQueue<>();
+
+    private class ClientLoop extends SelectorLoop {
+        ClientLoop() throws IOException {
+            super();
+        }
+
+        @Override
+        protected void handleKey(SelectionKey key) throws IOException {
+            NioClientManager.this.handleKey(this, key);
+        }
+    }
 
     // Added to/removed from by the individual ConnectionHandler's, thus must by synchronized on its own.
     private final Set<ConnectionHandler> connectedHandlers = Collections.synchronizedSet(new HashSet<ConnectionHandler>());
 
     // Handle a SelectionKey which was selected
-    private void handleKey(SelectionKey key) throws IOException {
+    private void handleKey(SelectorLoop loop, SelectionKey key) throws IOException {
         // We could have a !isValid() key here if the connection is already closed at this point
         if (key.isValid() && key.isConnectable()) { // ie a client connection which has finished the initial connect process
             // Create a ConnectionHandler and hook everything together
             PendingConnect data = (PendingConnect) key.attachment();
             StreamConnection connection = data.connection;
             SocketChannel sc = (SocketChannel) key.channel();
-            ConnectionHandler handler = new ConnectionHandler(connection, key, connectedHandlers);
+            ConnectionHandler handler = new ConnectionHandler(connection, key, connectedHandlers, loop);
             try {
                 if (sc.finishConnect()) {
                     log.info("Connected to {}", sc.socket().getRemoteSocketAddress());
@@ -91,8 +103,19 @@ public class NioClientManager extends AbstractExecutionThreadService implements
      * calls.
      */
     public NioClientManager() {
+        this(1);
+    }
+
+    /**
+     * Creates a new client manager which uses Java NIO for socket management, spreading the connections over the given
+     * number of selector threads. Worth raising above one when handling many connections at once.
+     */
+    public NioClientManager(int selectorThreads) {
+        checkArgument(selectorThreads > 0, "selectorThreads must be positive");
+        loops = new SelectorLoop[selectorThreads];
         try {
-            selector = SelectorProvider.provider().openSelector();
+            for (int i = 0; i < selectorThreads; i++)
+                loops[i] = new ClientLoop();
         } catch (IOException e) {
             throw new RuntimeException(e); // Shouldn't ever happen
         }
@@ -100,48 +123,27 @@ public class NioClientManager extends AbstractExecutionThreadService implements
 
     @Override
     public void run() {
-        try {
-            Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
-            while (isRunning()) {
-                PendingConnect conn;
-                while ((conn = newConnectionChannels.poll()) != null) {
-                    try {
-                        SelectionKey key = conn.sc.register(selector, SelectionKey.OP_CONNECT);
-                        key.attach(conn);
-                    } catch (ClosedChannelException e) {
-                        log.warn("SocketChannel was closed before it could be registered");
-                    }
-                }
-
-                selector.select();
-
-                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
-                while (keyIterator.hasNext()) {
-                    SelectionKey key = keyIterator.next();
-                    keyIterator.remove();
-                    handleKey(key);
+        Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+        // The first loop runs on the service thread, the others get a thread of their own. If any of them stops, for
+        // whatever reason, they all do, so the service doesn't silently lose some of its connections.
+        ThreadFactory threadFactory = new ContextPropagatingThreadFactory("NioClientManager", Thread.MIN_PRIORITY);
+        List<Thread> threads = new ArrayList<>(loops.length - 1);
+        for (int i = 1; i < loops.length; i++) {
+            final SelectorLoop loop = loops[i];
+            Thread thread = threadFactory.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    loop.run();
+                    triggerShutdown();
                 }
-            }
-        } catch (Exception e) {
-            log.warn("Error trying to open/read from connection: ", e);
-        } finally {
-            // Go through and close everything, without letting IOExceptions get in our way
-            for (SelectionKey key : selector.keys()) {
-                try {
-                    key.channel().close();
-                } catch (IOException e) {
-                    log.warn("Error closing channel", e);
-                }
-                key.cancel();
-                if (key.attachment() instanceof ConnectionHandler)
-                    ConnectionHandler.handleKey(key); // Close connection if relevant
-            }
-            try {
-                selector.close();
-            } catch (IOException e) {
-                log.warn("Error closing client manager selector", e);
-            }
+            });
+            thread.start();
+            threads.add(thread);
         }
+        loops[0].run();
+        triggerShutdown();
+        for (Thread thread : threads)
+            Uninterruptibles.joinUninterruptibly(thread);
     }
 
     @Override
@@ -153,9 +155,19 @@ public class NioClientManager extends AbstractExecutionThreadService implements
             SocketChannel sc = SocketChannel.open();
             sc.configureBlocking(false);
             sc.connect(serverAddress);
-            PendingConnect data = new PendingConnect(sc, connection, serverAddress);
-            newConnectionChannels.offer(data);
-            selector.wakeup();
+            final PendingConnect data = new PendingConnect(sc, connection, serverAddress);
+            final SelectorLoop loop = SelectorLoop.forAddress(loops, serverAddress);
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        SelectionKey key = data.sc.register(loop.selector, SelectionKey.OP_CONNECT);
+                        key.attach(data);
+                    } catch (ClosedChannelException e) {
+                        log.warn("SocketChannel was closed before it could be registered");
+                    }
+                }
+            });
             return data.future;
         } catch (Throwable e) {
             return Futures.immediateFailedFuture(e);
@@ -164,7 +176,26 @@ public class NioClientManager extends AbstractExecutionThreadService implements
 
     @Override
     public void triggerShutdown() {
-        selector.wakeup();
+        for (SelectorLoop loop : loops)
+            loop.stop();
+    }
+
+    /** Returns the number of threads the connections are spread over. */
+    public int getSelectorThreadCount() {
+        return loops.length;
+    }
+
+    /**
+     * Returns the average time, in nanoseconds, a selector thread spent handling one round of network events. When
+     * this creeps up, connections are waiting on each other and more selector threads may help.
+     */
+    public long getAverageLoopLatencyNanos() {
+        return SelectorLoop.averageLatencyNanos(loops);
+    }
+
+    /** Returns the longest time, in nanoseconds, a selector thread spent handling one round of network events. */
+    public long getMaxLoopLatencyNanos() {
+        return SelectorLoop.maxLatencyNanos(loops);
     }
 
     @Override
@@ -19,17 +19,22 @@ package org.bitcoinj.net;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.*;
-import java.nio.channels.spi.SelectorProvider;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Throwables;
 import com.google.common.util.concurrent.AbstractExecutionThreadService;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.bitcoinj.utils.DaemonThreadFactory;
 import org.slf4j.LoggerFactory;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 /**
  * Creates a simple server listener which listens for incoming client connections and uses a {@link StreamConnection} to
- * process data.
+ * process data. Accepted connections are spread over one or more selector threads by a hash of their remote address.
  */
 public class NioServer extends AbstractExecutionThreadService {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(NioServer.class);
@@ -38,25 +43,61 @@ public class NioServer extends AbstractExecutionThreadService {
 
     private final ServerSocketChannel sc;
     @VisibleForTesting final Selector selector;
+    // The first loop is the one accepting connections, it takes its share of them like the others.
+    private final SelectorLoop[] loops;
+
+    private class ServerLoop extends SelectorLoop {
+        ServerLoop() throws IOException {
+            super();
+        }
+
+        @Override
+        protected void handleKey(SelectionKey key) throws IOException {
+            NioServer.this.handleKey(key);
+        }
+    }
 
     // Handle a SelectionKey which was selected
-    private void handleKey(Selector selector, SelectionKey key) throws IOException {
+    private void handleKey(SelectionKey key) throws IOException {
         if (key.isValid() && key.isAcceptable()) {
-            // Accept a new connection, give it a stream connection as an attachment
-            SocketChannel newChannel = sc.accept();
+            // Accept a new connection and hand it to its loop, which gives it a stream connection as an attachment
+            final SocketChannel newChannel = sc.accept();
+            if (newChannel == null)
+                return; // Someone else got to it first
             newChannel.configureBlocking(false);
-            SelectionKey newKey = newChannel.register(selector, SelectionKey.OP_READ);
+            final SelectorLoop loop = SelectorLoop.forAddress(loops, newChannel.socket().getRemoteSocketAddress());
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    register(loop, newChannel);
+                }
+            });
+        } else { // Got a closing channel or a channel to a client connection
+            ConnectionHandler.handleKey(key);
+        }
+    }
+
+    // Runs on the given loop's thread
+    private void register(SelectorLoop loop, SocketChannel newChannel) {
+        SelectionKey newKey;
+        try {
+            newKey = newChannel.register(loop.selector, SelectionKey.OP_READ);
+        } catch (ClosedChannelException e) {
+            log.warn("SocketChannel was closed before it could be registered");
+            return;
+        }
+        try {
+            ConnectionHandler handler = new ConnectionHandler(connectionFactory, newKey, loop);
+            newKey.attach(handler);
+            handler.connection.connectionOpened();
+        } catch (IOException e) {
+            // This can happen if ConnectionHandler's call to get a new handler returned null
+            log.error("Error handling new connection", Throwables.getRootCause(e).getMessage());
             try {
-                ConnectionHandler handler = new ConnectionHandler(connectionFactory, newKey);
-                newKey.attach(handler);
-                handler.connection.connectionOpened();
-            } catch (IOException e) {
-                // This can happen if ConnectionHandler's call to get a new handler returned null
-                log.error("Error handling new connection", Throwables.getRootCause(e).getMessage());
                 newKey.channel().close();
+            } catch (IOException x) {
+                log.error("Error closing channel", x);
             }
-        } else { // Got a closing channel or a channel to a client connection
-            ConnectionHandler.handleKey(key);
         }
     }
 
@@ -67,51 +108,54 @@ public class NioServer extends AbstractExecutionThreadService {
      * @throws IOException If there is an issue opening the server socket or binding fails for some reason
      */
     public NioServer(final StreamConnectionFactory connectionFactory, InetSocketAddress bindAddress) throws IOException {
+        this(connectionFactory, bindAddress, 1);
+    }
+
+    /**
+     * Creates a new server like {@link #NioServer(StreamConnectionFactory, InetSocketAddress)}, spreading the accepted
+     * connections over the given number of selector threads.
+     *
+     * @throws IOException If there is an issue opening the server socket or binding fails for some reason
+     */
+    public NioServer(final StreamConnectionFactory connectionFactory, InetSocketAddress bindAddress,
+                     int selectorThreads) throws IOException {
+        checkArgument(selectorThreads > 0, "selectorThreads must be positive");
         this.connectionFactory = connectionFactory;
 
+        loops = new SelectorLoop[selectorThreads];
+        for (int i = 0; i < selectorThreads; i++)
+            loops[i] = new ServerLoop();
+        selector = loops[0].selector;
+
         sc = ServerSocketChannel.open();
         sc.configureBlocking(false);
         sc.socket().bind(bindAddress);
-        selector = SelectorProvider.provider().openSelector();
         sc.register(selector, SelectionKey.OP_ACCEPT);
     }
 
     @Override
     protected void run() throws Exception {
-        try {
-            while (isRunning()) {
-                selector.select();
-
-                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
-                while (keyIterator.hasNext()) {
-                    SelectionKey key = keyIterator.next();
-                    keyIterator.remove();
-
-                    handleKey(selector, key);
+        // Like the service thread, the other loops don't need a Context.
+        ThreadFactory threadFactory = new DaemonThreadFactory("NioServer");
+        List<Thread> threads = new ArrayList<>(loops.length - 1);
+        for (int i = 1; i < loops.length; i++) {
+            final SelectorLoop loop = loops[i];
+            Thread thread = threadFactory.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    loop.run();
+                    triggerShutdown();
                 }
-            }
-        } catch (Exception e) {
-            log.error("Error trying to open/read from connection: {}", e);
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        try {
+            loops[0].run();
         } finally {
-            // Go through and close everything, without letting IOExceptions get in our way
-            for (SelectionKey key : selector.keys()) {
-                try {
-                    key.channel().close();
-                } catch (IOException e) {
-                    log.error("Error closing channel", e);
-                }
-                try {
-                    key.cancel();
-                    handleKey(selector, key);
-                } catch (IOException e) {
-                    log.error("Error closing selection key", e);
-                }
-            }
-            try {
-                selector.close();
-            } catch (IOException e) {
-                log.error("Error closing server selector", e);
-            }
+            triggerShutdown();
+            for (Thread thread : threads)
+                Uninterruptibles.joinUninterruptibly(thread);
             try {
                 sc.close();
             } catch (IOException e) {
@@ -127,7 +171,18 @@ public class NioServer extends AbstractExecutionThreadService {
      */
     @Override
     public void triggerShutdown() {
-        // Wake up the selector and let the selection thread break its loop as the ExecutionService !isRunning()
-        selector.wakeup();
+        // Wake up the selectors and let the selection threads break their loops
+        for (SelectorLoop loop : loops)
+            loop.stop();
+    }
+
+    /** Returns the average time, in nanoseconds, a selector thread spent handling one round of network events. */
+    public long getAverageLoopLatencyNanos() {
+        return SelectorLoop.averageLatencyNanos(loops);
+    }
+
+    /** Returns the longest time, in nanoseconds, a selector thread spent handling one round of network events. */
+    public long getMaxLoopLatencyNanos() {
+        return SelectorLoop.maxLatencyNanos(loops);
     }
 }
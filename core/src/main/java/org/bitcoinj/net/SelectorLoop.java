@@ -0,0 +1,160 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>One network event loop: a {@link Selector} and the single thread which services it. Everything that touches the
+ * channels registered with the selector (registering them, changing interest ops, writing to them) is handed to the
+ * loop via {@link #execute(Runnable)}, so none of it needs locking.</p>
+ *
+ * <p>The loop keeps track of how long each round of event handling takes, which is the delay a connection on this
+ * loop sees before its events are looked at once the loop gets busy.</p>
+ */
+abstract class SelectorLoop implements Runnable, Executor {
+    private static final org.slf4j.Logger log = LoggerFactory.getLogger(SelectorLoop.class);
+
+    final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // Counts tasks once they are in the queue, so a round only runs those queued before it and can't be kept busy
+    // forever by threads queueing more.
+    private final AtomicInteger queuedTasks = new AtomicInteger(0);
+    private volatile boolean running = true;
+    private volatile Thread thread;
+
+    // Only written by the loop thread.
+    private volatile long iterations;
+    private volatile long totalLatencyNanos;
+    private volatile long maxLatencyNanos;
+
+    SelectorLoop() throws IOException {
+        selector = SelectorProvider.provider().openSelector();
+    }
+
+    /** Handles a key which was selected, or a cancelled key on shutdown. Called on the loop thread. */
+    protected abstract void handleKey(SelectionKey key) throws IOException;
+
+    /** Returns true if the calling thread is the one running this loop. */
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /** Runs the given task on the loop thread: right away if called from it, otherwise on its next round. */
+    @Override
+    public void execute(Runnable task) {
+        if (inLoop())
+            task.run();
+        else
+            schedule(task);
+    }
+
+    /** Runs the given task on the loop thread on its next round, even if called from the loop thread itself. */
+    void schedule(Runnable task) {
+        tasks.offer(task);
+        if (queuedTasks.incrementAndGet() == 1)
+            selector.wakeup();
+    }
+
+    /** Makes the loop close all its channels and return from {@link #run()}. */
+    void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        try {
+            while (running) {
+                selector.select();
+
+                long start = System.nanoTime();
+                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+                while (keyIterator.hasNext()) {
+                    SelectionKey key = keyIterator.next();
+                    keyIterator.remove();
+                    handleKey(key);
+                }
+                for (int i = queuedTasks.getAndSet(0); i > 0; i--)
+                    tasks.poll().run();
+                recordLatency(System.nanoTime() - start);
+            }
+        } catch (Exception e) {
+            log.warn("Error trying to open/read from connection: ", e);
+        } finally {
+            // Go through and close everything, without letting IOExceptions get in our way
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException e) {
+                    log.warn("Error closing channel", e);
+                }
+                key.cancel();
+                if (key.attachment() instanceof ConnectionHandler)
+                    ConnectionHandler.handleKey(key); // Close connection if relevant
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                log.warn("Error closing selector", e);
+            }
+        }
+    }
+
+    private void recordLatency(long nanos) {
+        iterations++;
+        totalLatencyNanos += nanos;
+        if (nanos > maxLatencyNanos)
+            maxLatencyNanos = nanos;
+    }
+
+    /** Returns the loop to use for a connection to or from the given address, spreading connections by hash. */
+    static SelectorLoop forAddress(SelectorLoop[] loops, @Nullable SocketAddress address) {
+        if (address == null)
+            return loops[0];
+        return loops[(address.hashCode() & Integer.MAX_VALUE) % loops.length];
+    }
+
+    /** Returns the average time, in nanoseconds, the given loops took per round of event handling. */
+    static long averageLatencyNanos(SelectorLoop[] loops) {
+        long iterations = 0, total = 0;
+        for (SelectorLoop loop : loops) {
+            iterations += loop.iterations;
+            total += loop.totalLatencyNanos;
+        }
+        return iterations == 0 ? 0 : total / iterations;
+    }
+
+    /** Returns the longest time, in nanoseconds, any of the given loops took for one round of event handling. */
+    static long maxLatencyNanos(SelectorLoop[] loops) {
+        long max = 0;
+        for (SelectorLoop loop : loops)
+            max = Math.max(max, loop.maxLatencyNanos);
+        return max;
+    }
+}
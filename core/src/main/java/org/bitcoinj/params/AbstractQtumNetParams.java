@@ -1,15 +1,22 @@
 package org.bitcoinj.params;
 
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
+import com.google.common.annotations.VisibleForTesting;
+
+import org.bitcoinj.core.ArithUint256;
 import org.bitcoinj.core.BitcoinSerializer;
 import org.bitcoinj.core.Block;
 import org.bitcoinj.core.Coin;
 import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.StoredBlock;
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.TransactionOutput;
-import org.bitcoinj.core.Utils;
 import org.bitcoinj.core.VerificationException;
 import org.bitcoinj.store.BlockStore;
 import org.bitcoinj.store.BlockStoreException;
@@ -43,6 +50,20 @@ public abstract class AbstractQtumNetParams extends NetworkParameters {
 
     private static final Logger log = LoggerFactory.getLogger(AbstractQtumNetParams.class);
 
+    // How many blocks we remember the nearest opposite-type ancestor for. Retargeting only ever asks about the
+    // tip and its immediate ancestors, so this just needs to comfortably cover reorgs.
+    private static final int OPPOSITE_TYPE_CACHE_SIZE = 5000;
+
+    // Maps the hash of a block to its nearest ancestor of the other kind (PoS for a PoW block and vice versa). This
+    // only depends on the ancestry of the block, which is fixed by its hash, so entries are valid for any chain and
+    // block store on this network. Guarded by itself.
+    private final Map<Sha256Hash, StoredBlock> oppositeTypeAncestors = new LinkedHashMap<Sha256Hash, StoredBlock>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> eldest) {
+            return size() > OPPOSITE_TYPE_CACHE_SIZE;
+        }
+    };
+
     public AbstractQtumNetParams() {
         super();
     }
@@ -59,15 +80,14 @@ public abstract class AbstractQtumNetParams extends NetworkParameters {
     @Override
     public void checkDifficultyTransitions(StoredBlock storedPrev, Block nextBlock, BlockStore blockStore)
             throws VerificationException, BlockStoreException {
-        BigInteger newTarget = getNextWorkRequired(storedPrev, nextBlock, blockStore);
+        ArithUint256 newTarget = getNextWorkRequired(storedPrev, nextBlock, blockStore);
 
         int accuracyBytes = (int) (nextBlock.getDifficultyTarget() >>> 24) - 3;
         long receivedTargetCompact = nextBlock.getDifficultyTarget();
 
         // The calculated difficulty is to a higher precision than received, so reduce here.
-        BigInteger mask = BigInteger.valueOf(0xFFFFFFL).shiftLeft(accuracyBytes * 8);
-        newTarget = newTarget.and(mask);
-        long newTargetCompact = Utils.encodeCompactBits(newTarget);
+        newTarget.retainBits(accuracyBytes * 8, accuracyBytes * 8 + 24);
+        long newTargetCompact = newTarget.getCompact();
 
         if (newTargetCompact != receivedTargetCompact)
             throw new VerificationException("Network provided difficulty bits do not match what was calculated: " +
@@ -171,21 +191,26 @@ public abstract class AbstractQtumNetParams extends NetworkParameters {
         }
     }
 
-    private BigInteger getNextWorkRequired(StoredBlock last, Block nextBlock, BlockStore blockStore) throws BlockStoreException {
+    // Returns a new object, so the caller is free to modify the result.
+    private ArithUint256 getNextWorkRequired(StoredBlock last, Block nextBlock, BlockStore blockStore) throws BlockStoreException {
         final boolean isPOS = nextBlock.isPOS();
-        BigInteger maxTarget = getLimit(last.getHeight() + 1, isPOS);
+        ArithUint256 maxTarget = targetAsArith(getLimit(last.getHeight() + 1, isPOS));
 
         StoredBlock prev = getLastSameTypeBlock(last, blockStore, isPOS);
         if (prev.getHeight() == 0) { // last block was first block
-            return maxTarget;
+            return new ArithUint256(maxTarget);
         }
 
         StoredBlock prevPrev = getLastSameTypeBlock(prev.getPrev(blockStore), blockStore, isPOS);
         if (prevPrev.getHeight() == 0) { // last block was second block
-            return maxTarget;
+            return new ArithUint256(maxTarget);
         }
 
-        BigInteger newTarget = Utils.decodeCompactBits(prev.getHeader().getDifficultyTarget());
+        ArithUint256 newTarget = new ArithUint256();
+        // The previous block passed the same check when it was connected, so this can't normally happen.
+        if (!newTarget.setCompact(prev.getHeader().getDifficultyTarget()))
+            throw new VerificationException("Previous block has a bad difficulty target: "
+                    + Long.toHexString(prev.getHeader().getDifficultyTarget()));
         if (isPOS && posNoRetargeting) {
             return newTarget;
         }
@@ -197,6 +222,7 @@ public abstract class AbstractQtumNetParams extends NetworkParameters {
 
         int targetSpacing = getTargetSpacing(last.getHeight() + 1);
         int interval = getInterval(last.getHeight() + 1);
+        boolean fits;
         if (last.getHeight() + 1 < qip9Height) {
             if (actualSpacing < 0) {
                 actualSpacing = targetSpacing;
@@ -204,8 +230,7 @@ public abstract class AbstractQtumNetParams extends NetworkParameters {
             if (actualSpacing > (long)targetSpacing * 10) {
                 actualSpacing = (long)targetSpacing * 10;
             }
-            newTarget = newTarget.multiply(BigInteger.valueOf((interval - 1) * (long)targetSpacing + (actualSpacing << 1)));
-            newTarget = newTarget.divide(BigInteger.valueOf((interval + 1) * (long)targetSpacing));
+            fits = newTarget.mulDiv((interval - 1) * (long)targetSpacing + (actualSpacing << 1), (interval + 1) * (long)targetSpacing);
         } else {
             if (actualSpacing < 0) {
                 actualSpacing = targetSpacing;
@@ -214,39 +239,94 @@ public abstract class AbstractQtumNetParams extends NetworkParameters {
                 actualSpacing = (long)targetSpacing * 20;
             }
             int stakeTimestampMask = getStakeTimestampMask(last.getHeight() + 1);
-            newTarget = mulExp(newTarget, 2 * (actualSpacing - targetSpacing) / (stakeTimestampMask + 1), (interval + 1) * (long)targetSpacing / (stakeTimestampMask + 1));
+            fits = mulExp(newTarget, 2 * (actualSpacing - targetSpacing) / (stakeTimestampMask + 1), (interval + 1) * (long)targetSpacing / (stakeTimestampMask + 1));
         }
 
-        if (newTarget.compareTo(BigInteger.ZERO) <= 0 || newTarget.compareTo(maxTarget) > 0) {
-            log.info("Difficulty hit limit: {}", newTarget.toString(16));
-            newTarget = maxTarget;
+        if (!fits || newTarget.isZero() || newTarget.compareTo(maxTarget) > 0) {
+            log.info("Difficulty hit limit: {}", fits ? newTarget.toString() : "out of range");
+            newTarget.set(maxTarget);
         }
         return newTarget;
 
     }
 
-    private StoredBlock getLastSameTypeBlock(StoredBlock last, BlockStore blockStore, boolean isProofOfStake) throws BlockStoreException {
-        StoredBlock prev = last;
-        do {
+    /**
+     * Returns the most recent block at or below {@code last} that is of the requested kind, or the earliest block
+     * available in the store if there is none. Results are memoized per block hash, so that on a long run of blocks
+     * of one kind looking up the last block of the other kind does not walk the block store every time.
+     */
+    @VisibleForTesting
+    StoredBlock getLastSameTypeBlock(StoredBlock last, BlockStore blockStore, boolean isProofOfStake) throws BlockStoreException {
+        if (last.getHeader().isPOS() == isProofOfStake) {
+            return last;
+        }
+        StoredBlock result = getCachedOppositeTypeAncestor(last);
+        if (result != null) {
+            return result;
+        }
+        // Every block we step over here is of the other kind, so they all share the same answer.
+        List<StoredBlock> walked = new ArrayList<>();
+        StoredBlock cursor = last;
+        while (true) {
+            walked.add(cursor);
+            StoredBlock prev = cursor.getPrev(blockStore);
+            if (prev == null) {
+                // Ran off the start of the store. The answer depends on what the store holds, so don't memoize it.
+                return cursor;
+            }
             if (prev.getHeader().isPOS() == isProofOfStake) {
-                return prev;
+                result = prev;
+                break;
+            }
+            result = getCachedOppositeTypeAncestor(prev);
+            if (result != null) {
+                break;
             }
-            last = prev;
-            prev = last.getPrev(blockStore);
-        } while (prev != null);
-        return last;
+            cursor = prev;
+        }
+        synchronized (oppositeTypeAncestors) {
+            // Insert oldest first so the most recent blocks are the last to be evicted.
+            for (int i = walked.size() - 1; i >= 0; i--) {
+                oppositeTypeAncestors.put(walked.get(i).getHeader().getHash(), result);
+            }
+        }
+        return result;
     }
 
-    // calculates a * exp(p/q) where |p/q| is small
-    private BigInteger mulExp(BigInteger a, long p, long q) {
-        BigInteger result = a;
+    private StoredBlock getCachedOppositeTypeAncestor(StoredBlock block) {
+        synchronized (oppositeTypeAncestors) {
+            return oppositeTypeAncestors.get(block.getHeader().getHash());
+        }
+    }
+
+    /**
+     * Calculates a * exp(p/q) where |p/q| is small, in place, with the same rounding as Qtum Core. Returns false if
+     * the result is negative or it, or one of the terms of the series, doesn't fit into 256 bits. In that case the
+     * value of {@code a} is undefined.
+     */
+    @VisibleForTesting
+    static boolean mulExp(ArithUint256 a, long p, long q) {
+        // Each term of the series is the previous one times p/(q*n), rounded towards zero. For negative p the terms
+        // alternate in sign, so keep track of sign and magnitude separately.
+        ArithUint256 term = new ArithUint256(a);
+        boolean termNegative = false;
+        boolean resultNegative = false;
         long n = 0;
-        while (a.compareTo(BigInteger.ZERO) != 0) {
+        while (!term.isZero()) {
             n++;
-            a = a.multiply(BigInteger.valueOf(p)).divide(BigInteger.valueOf(q * n));
-            result = result.add(a);
+            if (!term.mulDiv(Math.abs(p), q * n))
+                return false;
+            termNegative ^= p < 0;
+            if (termNegative == resultNegative) {
+                if (a.add(term))
+                    return false;
+            } else if (a.subtract(term)) {
+                // The term was larger, so the result flips its sign.
+                a.negate();
+                resultNegative = termNegative;
+            }
         }
-        return result;
+        return !resultNegative;
     }
 
 }
@@ -22,6 +22,7 @@ import org.bitcoinj.core.SegwitAddress;
 import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.Utils;
 
+import javax.annotation.Nullable;
 import java.math.BigInteger;
 import java.util.Arrays;
 import java.util.List;
@@ -196,6 +197,83 @@ public class ScriptPattern {
         return script.chunks.get(1).data;
     }
 
+    /**
+     * The standard output scripts that are fixed bytes around the hash or key they pay to, so that they can be matched
+     * and rebuilt without parsing them. Stores do so for every output they keep.
+     */
+    public enum Template {
+        /** {@code DUP HASH160 <20 byte pubkey hash> EQUALVERIFY CHECKSIG} */
+        P2PKH(new byte[] { (byte) OP_DUP, (byte) OP_HASH160, 20 }, 20,
+                new byte[] { (byte) OP_EQUALVERIFY, (byte) OP_CHECKSIG }),
+        /** {@code HASH160 <20 byte script hash> EQUAL} */
+        P2SH(new byte[] { (byte) OP_HASH160, 20 }, 20, new byte[] { (byte) OP_EQUAL }),
+        /** {@code OP_0 <20 byte pubkey hash>} */
+        P2WPKH(new byte[] { (byte) OP_0, 20 }, 20, new byte[0]),
+        /** {@code <33 byte pubkey> CHECKSIG} */
+        P2PK_COMPRESSED(new byte[] { 33 }, 33, new byte[] { (byte) OP_CHECKSIG }),
+        /** {@code <65 byte pubkey> CHECKSIG} */
+        P2PK_UNCOMPRESSED(new byte[] { 65 }, 65, new byte[] { (byte) OP_CHECKSIG });
+
+        private final byte[] prefix;
+        private final int dataLength;
+        private final byte[] suffix;
+
+        Template(byte[] prefix, int dataLength, byte[] suffix) {
+            this.prefix = prefix;
+            this.dataLength = dataLength;
+            this.suffix = suffix;
+        }
+
+        /** Returns the offset of the hash or key in scripts of this template. */
+        public int getDataOffset() {
+            return prefix.length;
+        }
+
+        /** Returns the length of the hash or key in scripts of this template. */
+        public int getDataLength() {
+            return dataLength;
+        }
+
+        /** Returns the length of scripts of this template. */
+        public int getLength() {
+            return prefix.length + dataLength + suffix.length;
+        }
+
+        /** Returns the script of this template that pays to the {@link #getDataLength()} bytes at the given offset. */
+        public byte[] build(byte[] data, int offset) {
+            byte[] script = new byte[getLength()];
+            System.arraycopy(prefix, 0, script, 0, prefix.length);
+            System.arraycopy(data, offset, script, prefix.length, dataLength);
+            System.arraycopy(suffix, 0, script, prefix.length + dataLength, suffix.length);
+            return script;
+        }
+
+        private boolean matches(byte[] bytes, int offset, int length) {
+            if (length != getLength())
+                return false;
+            for (int i = 0; i < prefix.length; i++)
+                if (bytes[offset + i] != prefix[i])
+                    return false;
+            int suffixOffset = offset + prefix.length + dataLength;
+            for (int i = 0; i < suffix.length; i++)
+                if (bytes[suffixOffset + i] != suffix[i])
+                    return false;
+            return true;
+        }
+
+        /**
+         * Returns the template of the script of the given length at the given offset, or null if it is of none.
+         * Only the bytes around the hash or key are looked at, keys aren't checked to be valid.
+         */
+        @Nullable
+        public static Template match(byte[] bytes, int offset, int length) {
+            for (Template template : values())
+                if (template.matches(bytes, offset, length))
+                    return template;
+            return null;
+        }
+    }
+
     /**
      * Returns whether this script matches the format used for m-of-n multisig outputs:
      * {@code [m] [keys...] [n] CHECKMULTISIG}
@@ -0,0 +1,125 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.script;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Remembers signatures that were verified successfully, so that the elliptic curve work is done only once when the
+ * same input is verified again, for example when a transaction is connected in a block after it was seen on its own.
+ * This is the same as the signature cache of Bitcoin Core.</p>
+ *
+ * <p>Entries are keyed by the signature hash, the public key and the signature, hashed together with a random salt
+ * so that others can't predict the keys. Only valid signatures are remembered: invalid ones are cheap to make, so they
+ * would just push the useful entries out. The cache is bounded, and can be used from multiple threads.</p>
+ *
+ * <p>{@link Script} consults the cache returned by {@link #get()} for OP_CHECKSIG and OP_CHECKMULTISIG.</p>
+ */
+public class SignatureCache {
+    /** The default number of signatures to remember. */
+    public static final int DEFAULT_MAX_ENTRIES = 100000;
+
+    private static volatile SignatureCache instance = new SignatureCache(DEFAULT_MAX_ENTRIES);
+
+    private final Cache<Sha256Hash, Boolean> validSignatures;
+    private final byte[] salt = new byte[32];
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+
+    /** Creates a cache that remembers up to the given number of signatures, or none at all for zero. */
+    public SignatureCache(int maxEntries) {
+        checkArgument(maxEntries >= 0, "maxEntries must not be negative");
+        validSignatures = CacheBuilder.newBuilder().maximumSize(maxEntries).build();
+        new SecureRandom().nextBytes(salt);
+    }
+
+    /** Returns the cache used by {@link Script}. */
+    public static SignatureCache get() {
+        return instance;
+    }
+
+    /** Replaces the cache used by {@link Script}, for example by one of a different size. */
+    public static void set(SignatureCache cache) {
+        instance = checkNotNull(cache);
+    }
+
+    /**
+     * Verifies the given signature like {@link ECKey#verify(byte[], ECKey.ECDSASignature, byte[])}, unless it was
+     * verified successfully before.
+     */
+    public boolean verify(Sha256Hash sigHash, ECKey.ECDSASignature signature, byte[] pubKey) {
+        if (ECKey.FAKE_SIGNATURES)
+            return true;
+        Sha256Hash entry = entryFor(sigHash, signature, pubKey);
+        if (validSignatures.getIfPresent(entry) != null) {
+            hits.incrementAndGet();
+            return true;
+        }
+        misses.incrementAndGet();
+        if (!ECKey.verify(sigHash.getBytes(), signature, pubKey))
+            return false;
+        validSignatures.put(entry, Boolean.TRUE);
+        return true;
+    }
+
+    private Sha256Hash entryFor(Sha256Hash sigHash, ECKey.ECDSASignature signature, byte[] pubKey) {
+        MessageDigest digest = Sha256Hash.newDigest();
+        digest.update(salt);
+        digest.update(sigHash.getBytes());
+        // Prefix the key with its length, as keys from scripts can have any length.
+        digest.update((byte) pubKey.length);
+        digest.update((byte) (pubKey.length >> 8));
+        digest.update(pubKey);
+        // The DER encoding without sighash flags, which are covered by the signature hash already.
+        digest.update(signature.encodeToDER());
+        return Sha256Hash.wrap(digest.digest());
+    }
+
+    /** Returns the number of signatures that didn't have to be verified again. */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** Returns the number of signatures that had to be verified. */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** Returns the number of signatures currently remembered. */
+    public long size() {
+        return validSignatures.size();
+    }
+
+    /** Forgets all signatures and resets the counters. */
+    public void clear() {
+        validSignatures.invalidateAll();
+        hits.set(0);
+        misses.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "Signature cache: " + size() + " entries, " + hits.get() + " hits, " + misses.get() + " misses";
+    }
+}
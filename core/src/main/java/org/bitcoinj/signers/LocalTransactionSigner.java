@@ -19,9 +19,10 @@ package org.bitcoinj.signers;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.EnumSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.bitcoinj.core.*;
 import org.bitcoinj.crypto.DeterministicKey;
@@ -66,65 +67,30 @@ public class LocalTransactionSigner implements TransactionSigner {
     public boolean signInputs(ProposedTransaction propTx, KeyBag keyBag) {
         Transaction tx = propTx.partialTx;
 
-        int numOutputs = tx.getOutputs().size();
-        for (int i = 0; i < numOutputs; i++) {
-            TransactionOutput txOut = tx.getOutputs().get(i);
+        // OP_SENDER signatures don't cover the OP_SENDER signatures of any output, so all of them are calculated
+        // against the unchanged transaction first, sharing its signature hash midstate, and filled in afterwards.
+        List<TransactionOutput> outputs = tx.getOutputs();
+        Map<Integer, TransactionOutput> signedOpSenderOutputs = new LinkedHashMap<>();
+        for (int i = 0; i < outputs.size(); i++) {
+            TransactionOutput txOut = outputs.get(i);
             // iterate over txOut script and find OP_SENDER
             Script txOutScript = txOut.getScriptPubKey();
-            if (ScriptPattern.isOpSender(txOutScript)) {
-                if (!ScriptPattern.isOpSenderSigned(txOutScript)) {
-                    List<ScriptChunk> chunks = txOutScript.getChunks();
-                    ScriptChunk opSenderPubKeyHash = chunks.get(1);
-                    ECKey opSenderKey = keyBag.findKeyFromPubKeyHash(opSenderPubKeyHash.data, Script.ScriptType.P2SH);
-                    if (opSenderKey == null) {
-                        log.warn("No private key in keypair for output {} - {}", i, opSenderPubKeyHash.data.toString());
-                        continue;
-                    }
-                    Script inputScriptCode = ScriptBuilder.createP2PKHOutputScript(opSenderKey.getPubKeyHash());
-                    TransactionSignature signature = tx.calculateOpSenderSignature(i, opSenderKey, inputScriptCode, Transaction.SigHash.ALL,
-                            false);
-                    ScriptBuilder signedOpSenderScript = new ScriptBuilder();
-                    for (int j = 0; j < chunks.size(); j++) {
-                        if (j == 2) {
-                            // signature gets added to chunk index 2
-                            ScriptBuilder opSenderSignatureScriptBuilder = new ScriptBuilder();
-                            ByteArrayOutputStream derEncodedSignatureAndSighash = new ByteArrayOutputStream();
-                            try {
-                                derEncodedSignatureAndSighash.write(signature.encodeToDER());
-                                derEncodedSignatureAndSighash.write(Transaction.SigHash.ALL.byteValue());
-                            } catch (IOException e) {
-                                throw new RuntimeException(e); // Cannot happen
-                            }
-
-                            opSenderSignatureScriptBuilder.data(derEncodedSignatureAndSighash.toByteArray());
-                            opSenderSignatureScriptBuilder.data(opSenderKey.getPubKey());
-                            ByteArrayOutputStream serializedOpSenderSignature = new ByteArrayOutputStream();
-                            byte[] program = opSenderSignatureScriptBuilder.build().getProgram();
-                            try {
-                                serializedOpSenderSignature.write(new VarInt(program.length).encode());
-                                serializedOpSenderSignature.write(program);
-                            } catch (IOException e) {
-                                throw new RuntimeException(e); // Cannot happen
-                            }
-
-                            signedOpSenderScript.data(serializedOpSenderSignature.toByteArray());
-                        } else {
-                            signedOpSenderScript.addChunk(chunks.get(j));
-                        }
-                    }
-                    TransactionOutput signedOpSenderTxOut = new TransactionOutput(txOut.getParams(), txOut.getParentTransaction(), txOut.getValue(), signedOpSenderScript.build().getProgram());
-                    List<TransactionOutput> outputs = new ArrayList<>(tx.getOutputs());
-                    tx.clearOutputs();
-                    for (int j = 0; j < outputs.size(); j++) {
-                        if (j == i) {
-                            tx.addOutput(signedOpSenderTxOut);
-                        } else {
-                            tx.addOutput(outputs.get(j));
-                        }
-                    }
+            if (ScriptPattern.isOpSender(txOutScript) && !ScriptPattern.isOpSenderSigned(txOutScript)) {
+                ScriptChunk opSenderPubKeyHash = txOutScript.getChunks().get(1);
+                ECKey opSenderKey = keyBag.findKeyFromPubKeyHash(opSenderPubKeyHash.data, Script.ScriptType.P2SH);
+                if (opSenderKey == null) {
+                    log.warn("No private key in keypair for output {} - {}", i, opSenderPubKeyHash.data.toString());
+                    continue;
                 }
+                Script inputScriptCode = ScriptBuilder.createP2PKHOutputScript(opSenderKey.getPubKeyHash());
+                TransactionSignature signature = tx.calculateOpSenderSignature(i, opSenderKey, inputScriptCode, Transaction.SigHash.ALL,
+                        false);
+                signedOpSenderOutputs.put(i, new TransactionOutput(txOut.getParams(), tx, txOut.getValue(),
+                        createSignedOpSenderScript(txOutScript, signature, opSenderKey).getProgram()));
             }
         }
+        for (Map.Entry<Integer, TransactionOutput> entry : signedOpSenderOutputs.entrySet())
+            tx.replaceOutput(entry.getKey(), entry.getValue());
 
         int numInputs = tx.getInputs().size();
         for (int i = 0; i < numInputs; i++) {
@@ -210,4 +176,36 @@ public class LocalTransactionSigner implements TransactionSigner {
         return true;
     }
 
+    /** Returns the given OP_SENDER output script with the signature filled in, which goes to chunk index 2. */
+    private static Script createSignedOpSenderScript(Script unsignedScript, TransactionSignature signature,
+                                                     ECKey opSenderKey) {
+        ScriptBuilder opSenderSignatureScriptBuilder = new ScriptBuilder();
+        ByteArrayOutputStream derEncodedSignatureAndSighash = new ByteArrayOutputStream();
+        try {
+            derEncodedSignatureAndSighash.write(signature.encodeToDER());
+            derEncodedSignatureAndSighash.write(Transaction.SigHash.ALL.byteValue());
+        } catch (IOException e) {
+            throw new RuntimeException(e); // Cannot happen
+        }
+        opSenderSignatureScriptBuilder.data(derEncodedSignatureAndSighash.toByteArray());
+        opSenderSignatureScriptBuilder.data(opSenderKey.getPubKey());
+        ByteArrayOutputStream serializedOpSenderSignature = new ByteArrayOutputStream();
+        byte[] program = opSenderSignatureScriptBuilder.build().getProgram();
+        try {
+            serializedOpSenderSignature.write(new VarInt(program.length).encode());
+            serializedOpSenderSignature.write(program);
+        } catch (IOException e) {
+            throw new RuntimeException(e); // Cannot happen
+        }
+
+        List<ScriptChunk> chunks = unsignedScript.getChunks();
+        ScriptBuilder signedOpSenderScript = new ScriptBuilder();
+        for (int j = 0; j < chunks.size(); j++) {
+            if (j == 2)
+                signedOpSenderScript.data(serializedOpSenderSignature.toByteArray());
+            else
+                signedOpSenderScript.addChunk(chunks.get(j));
+        }
+        return signedOpSenderScript.build();
+    }
 }
@@ -0,0 +1,478 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.script.Script;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Keeps changes to another {@link FullPrunedBlockStore} in memory and writes them back in one batch, like the
+ * database cache of Bitcoin Core. An output that is created and spent again before the changes are written, which is
+ * the fate of most outputs during initial sync, never goes to the database at all.</p>
+ *
+ * <p>Changes are written back once their estimated size exceeds a memory budget, or when they are older than the
+ * flush interval, but only after a batch was committed, so that the underlying store only ever sees complete blocks.
+ * Blocks, undo blocks and chain heads are held back together with the outputs, and written in the same batch of the
+ * underlying store. After a crash, its verified chain head therefore matches its outputs, and the blocks after it are
+ * simply downloaded and connected again. Call {@link #close()}, or {@link #flush()}, to not lose them on shutdown.</p>
+ *
+ * <p>Reads of outputs that aren't cached go to the underlying store, which should have a read cache of its own.</p>
+ */
+public class CachingFullPrunedBlockStore implements FullPrunedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(CachingFullPrunedBlockStore.class);
+
+    /** The default memory budget of the cache in bytes. */
+    public static final long DEFAULT_MAX_CACHE_BYTES = 64 * 1024 * 1024;
+    /** The default maximum time changes are kept in memory. */
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 10 * 60 * 1000;
+
+    // Rough sizes of our objects on the heap, without the scripts and transactions they hold.
+    private static final int OUTPUT_OVERHEAD_BYTES = 300;
+    private static final int BLOCK_OVERHEAD_BYTES = 1000;
+
+    /** An output that was created or spent since the last flush. */
+    private static class CachedOutput {
+        final UTXO utxo;
+        final boolean spent;
+        // Whether the underlying store doesn't have the output, so that spending it just needs to forget it.
+        final boolean fresh;
+
+        CachedOutput(UTXO utxo, boolean spent, boolean fresh) {
+            this.utxo = utxo;
+            this.spent = spent;
+            this.fresh = fresh;
+        }
+    }
+
+    /** A block that was put since the last flush, and its undo block unless it was only put as a header. */
+    private static class CachedBlock {
+        final StoredBlock block;
+        @Nullable final StoredUndoableBlock undoBlock;
+
+        CachedBlock(StoredBlock block, @Nullable StoredUndoableBlock undoBlock) {
+            this.block = block;
+            this.undoBlock = undoBlock;
+        }
+    }
+
+    private final FullPrunedBlockStore store;
+    private final long maxCacheBytes;
+    private final long flushIntervalMillis;
+
+    private final Map<StoredTransactionOutPoint, CachedOutput> outputs = new HashMap<>();
+    private final LinkedHashMap<Sha256Hash, CachedBlock> blocks = new LinkedHashMap<>();
+    // Chain heads that were set since the last flush, in order, with true for verified chain heads. They are replayed
+    // on the underlying store, so that it prunes undo blocks the same way as without the cache.
+    private final List<Map.Entry<StoredBlock, Boolean>> chainHeadUpdates = new ArrayList<>();
+    private StoredBlock chainHead, verifiedChainHead;
+    private long cachedBytes;
+    private long lastFlushTime;
+
+    // While a batch is open, the state before the batch of everything it changed, to restore on abort. A null value
+    // means the output or block wasn't cached.
+    private boolean inBatch;
+    private final Map<StoredTransactionOutPoint, CachedOutput> outputsBeforeBatch = new HashMap<>();
+    private final Map<Sha256Hash, CachedBlock> blocksBeforeBatch = new HashMap<>();
+    private StoredBlock chainHeadBeforeBatch, verifiedChainHeadBeforeBatch;
+    private int chainHeadUpdatesBeforeBatch;
+
+    private long outputsWritten, outputsAbsorbed, flushes;
+
+    /**
+     * Creates a cache in front of the given store with the default memory budget and flush interval.
+     */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore store) throws BlockStoreException {
+        this(store, DEFAULT_MAX_CACHE_BYTES, DEFAULT_FLUSH_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Creates a cache in front of the given store.
+     *
+     * @param store the store changes are written back to, which must not be used directly from now on
+     * @param maxCacheBytes how much memory changes may take up before they are written back
+     * @param flushIntervalMillis how long changes may be kept in memory
+     */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore store, long maxCacheBytes, long flushIntervalMillis)
+            throws BlockStoreException {
+        checkArgument(maxCacheBytes >= 0, "maxCacheBytes must not be negative");
+        checkArgument(flushIntervalMillis >= 0, "flushIntervalMillis must not be negative");
+        this.store = checkNotNull(store);
+        this.maxCacheBytes = maxCacheBytes;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.chainHead = store.getChainHead();
+        this.verifiedChainHead = store.getVerifiedChainHead();
+        this.lastFlushTime = Utils.currentTimeMillis();
+    }
+
+    @Override
+    public synchronized void put(StoredBlock block) throws BlockStoreException {
+        putBlock(new CachedBlock(block, null));
+    }
+
+    @Override
+    public synchronized void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        putBlock(new CachedBlock(storedBlock, undoableBlock));
+    }
+
+    private void putBlock(CachedBlock block) throws BlockStoreException {
+        Sha256Hash hash = block.block.getHeader().getHash();
+        if (inBatch && !blocksBeforeBatch.containsKey(hash))
+            blocksBeforeBatch.put(hash, blocks.get(hash));
+        setBlock(hash, block);
+        maybeFlush();
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        CachedBlock cached = blocks.get(hash);
+        return cached != null ? cached.block : store.get(hash);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        CachedBlock cached = blocks.get(hash);
+        if (cached != null && cached.undoBlock != null)
+            return cached.block;
+        return store.getOnceUndoableStoredBlock(hash);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        CachedBlock cached = blocks.get(hash);
+        if (cached != null && cached.undoBlock != null)
+            return cached.undoBlock;
+        return store.getUndoBlock(hash);
+    }
+
+    @Override
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        return chainHead;
+    }
+
+    @Override
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        this.chainHead = chainHead;
+        chainHeadUpdates.add(new AbstractMap.SimpleImmutableEntry<>(chainHead, false));
+        maybeFlush();
+    }
+
+    @Override
+    public synchronized StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        return verifiedChainHead;
+    }
+
+    @Override
+    public synchronized void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        this.verifiedChainHead = chainHead;
+        if (this.chainHead.getHeight() < chainHead.getHeight())
+            this.chainHead = chainHead;
+        chainHeadUpdates.add(new AbstractMap.SimpleImmutableEntry<>(chainHead, true));
+        maybeFlush();
+    }
+
+    @Override
+    @Nullable
+    public synchronized UTXO getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        CachedOutput cached = outputs.get(new StoredTransactionOutPoint(hash, index));
+        if (cached != null)
+            return cached.spent ? null : cached.utxo;
+        return store.getTransactionOutput(hash, index);
+    }
+
+    @Override
+    public synchronized void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(out);
+        CachedOutput cached = outputs.get(outPoint);
+        if (cached != null && cached.spent && sameOutput(cached.utxo, out)) {
+            // Undoes spending an output of the underlying store, which is then left as it is.
+            setOutput(outPoint, null);
+            outputsAbsorbed++;
+        } else {
+            // New outputs aren't in the underlying store yet. An output that is spent in the cache still is, though,
+            // and is replaced on flush.
+            setOutput(outPoint, new CachedOutput(out, false, cached == null || cached.fresh));
+        }
+        maybeFlush();
+    }
+
+    @Override
+    public synchronized void removeUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(out);
+        CachedOutput cached = outputs.get(outPoint);
+        if (cached != null && cached.spent)
+            throw new BlockStoreException("Tried to remove a UTXO from CachingFullPrunedBlockStore that it didn't have!");
+        if (cached != null && cached.fresh) {
+            setOutput(outPoint, null);
+            outputsAbsorbed++;
+        } else {
+            setOutput(outPoint, new CachedOutput(cached != null ? cached.utxo : out, true, false));
+        }
+        maybeFlush();
+    }
+
+    // UTXO.equals only compares the outpoint.
+    private static boolean sameOutput(UTXO a, UTXO b) {
+        return a.getValue().equals(b.getValue()) && a.getHeight() == b.getHeight() && a.isCoinbase() == b.isCoinbase()
+                && Arrays.equals(a.getScript().getProgram(), b.getScript().getProgram());
+    }
+
+    @Override
+    public synchronized boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        boolean spentInCache = false;
+        for (int i = 0; i < numOutputs; i++) {
+            CachedOutput cached = outputs.get(new StoredTransactionOutPoint(hash, i));
+            if (cached != null) {
+                if (!cached.spent)
+                    return true;
+                spentInCache = true;
+            }
+        }
+        if (!spentInCache)
+            return store.hasUnspentOutputs(hash, numOutputs);
+        // The underlying store would count outputs that are spent in the cache, so ask about the others one by one.
+        for (int i = 0; i < numOutputs; i++)
+            if (!outputs.containsKey(new StoredTransactionOutPoint(hash, i)) && store.getTransactionOutput(hash, i) != null)
+                return true;
+        return false;
+    }
+
+    @Override
+    public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
+        if (inBatch)
+            return;
+        inBatch = true;
+        chainHeadBeforeBatch = chainHead;
+        verifiedChainHeadBeforeBatch = verifiedChainHead;
+        chainHeadUpdatesBeforeBatch = chainHeadUpdates.size();
+    }
+
+    @Override
+    public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+        endBatch();
+        maybeFlush();
+    }
+
+    @Override
+    public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
+        if (!inBatch)
+            return;
+        inBatch = false;
+        for (Map.Entry<StoredTransactionOutPoint, CachedOutput> entry : outputsBeforeBatch.entrySet())
+            setOutput(entry.getKey(), entry.getValue());
+        for (Map.Entry<Sha256Hash, CachedBlock> entry : blocksBeforeBatch.entrySet())
+            setBlock(entry.getKey(), entry.getValue());
+        chainHead = chainHeadBeforeBatch;
+        verifiedChainHead = verifiedChainHeadBeforeBatch;
+        chainHeadUpdates.subList(chainHeadUpdatesBeforeBatch, chainHeadUpdates.size()).clear();
+        endBatch();
+    }
+
+    private void endBatch() {
+        inBatch = false;
+        outputsBeforeBatch.clear();
+        blocksBeforeBatch.clear();
+        chainHeadBeforeBatch = verifiedChainHeadBeforeBatch = null;
+    }
+
+    private void setOutput(StoredTransactionOutPoint outPoint, @Nullable CachedOutput output) {
+        if (inBatch && !outputsBeforeBatch.containsKey(outPoint))
+            outputsBeforeBatch.put(outPoint, outputs.get(outPoint));
+        CachedOutput previous = output != null ? outputs.put(outPoint, output) : outputs.remove(outPoint);
+        cachedBytes += estimateSize(output) - estimateSize(previous);
+    }
+
+    private void setBlock(Sha256Hash hash, @Nullable CachedBlock block) {
+        CachedBlock previous = block != null ? blocks.put(hash, block) : blocks.remove(hash);
+        cachedBytes += estimateSize(block) - estimateSize(previous);
+    }
+
+    private static long estimateSize(@Nullable CachedOutput output) {
+        if (output == null)
+            return 0;
+        return OUTPUT_OVERHEAD_BYTES + output.utxo.getScript().getProgram().length + 2 * output.utxo.getAddress().length();
+    }
+
+    private static long estimateSize(@Nullable CachedBlock block) {
+        if (block == null)
+            return 0;
+        long size = BLOCK_OVERHEAD_BYTES + block.block.getHeader().getMessageSize();
+        if (block.undoBlock != null) {
+            List<Transaction> transactions = block.undoBlock.getTransactions();
+            if (transactions != null) {
+                for (Transaction tx : transactions)
+                    size += 2 * tx.getMessageSize();
+            } else {
+                TransactionOutputChanges changes = block.undoBlock.getTxOutChanges();
+                size += OUTPUT_OVERHEAD_BYTES * (changes.txOutsCreated.size() + changes.txOutsSpent.size());
+            }
+        }
+        return size;
+    }
+
+    private void maybeFlush() throws BlockStoreException {
+        if (inBatch)
+            return;
+        if (cachedBytes > maxCacheBytes || Utils.currentTimeMillis() - lastFlushTime >= flushIntervalMillis)
+            flush();
+    }
+
+    /**
+     * Writes all changes back to the underlying store in one batch.
+     *
+     * @throws IllegalStateException if a batch is open
+     */
+    public synchronized void flush() throws BlockStoreException {
+        checkState(!inBatch, "Can't flush while a batch is open");
+        lastFlushTime = Utils.currentTimeMillis();
+        if (outputs.isEmpty() && blocks.isEmpty() && chainHeadUpdates.isEmpty())
+            return;
+        long startTime = System.currentTimeMillis();
+        int written = 0;
+        store.beginDatabaseBatchWrite();
+        try {
+            for (CachedBlock block : blocks.values()) {
+                if (block.undoBlock != null)
+                    store.put(block.block, block.undoBlock);
+                else
+                    store.put(block.block);
+            }
+            for (CachedOutput output : outputs.values()) {
+                if (output.spent) {
+                    store.removeUnspentTransactionOutput(output.utxo);
+                    written++;
+                }
+            }
+            for (CachedOutput output : outputs.values()) {
+                if (!output.spent) {
+                    // The stores ignore inserting an output they already have, so the old one has to go first.
+                    if (!output.fresh)
+                        store.removeUnspentTransactionOutput(output.utxo);
+                    store.addUnspentTransactionOutput(output.utxo);
+                    written++;
+                }
+            }
+            for (Map.Entry<StoredBlock, Boolean> update : chainHeadUpdates) {
+                if (update.getValue())
+                    store.setVerifiedChainHead(update.getKey());
+                else
+                    store.setChainHead(update.getKey());
+            }
+            store.commitDatabaseBatchWrite();
+        } catch (BlockStoreException | RuntimeException e) {
+            store.abortDatabaseBatchWrite();
+            throw e;
+        }
+        log.info("Wrote {} blocks and {} outputs back in {} ms, {} outputs never had to be written",
+                blocks.size(), written, System.currentTimeMillis() - startTime, outputsAbsorbed);
+        outputsWritten += written;
+        flushes++;
+        outputs.clear();
+        blocks.clear();
+        chainHeadUpdates.clear();
+        cachedBytes = 0;
+    }
+
+    /** Returns the estimated memory taken up by changes that weren't written back yet. */
+    public synchronized long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    /** Returns the number of outputs that were written back, or deleted from the underlying store. */
+    public synchronized long getOutputsWritten() {
+        return outputsWritten;
+    }
+
+    /** Returns the number of outputs that were created and spent again without being written back. */
+    public synchronized long getOutputsAbsorbed() {
+        return outputsAbsorbed;
+    }
+
+    /** Returns how often changes were written back. */
+    public synchronized long getFlushes() {
+        return flushes;
+    }
+
+    /** Discards any open batch, writes back all changes and closes the underlying store. */
+    @Override
+    public synchronized void close() throws BlockStoreException {
+        abortDatabaseBatchWrite();
+        flush();
+        store.close();
+    }
+
+    @Override
+    public NetworkParameters getParams() {
+        return store.getParams();
+    }
+
+    @Override
+    public int getChainHeadHeight() throws UTXOProviderException {
+        try {
+            return getVerifiedChainHead().getHeight();
+        } catch (BlockStoreException e) {
+            throw new UTXOProviderException(e);
+        }
+    }
+
+    @Override
+    public List<UTXO> getOpenTransactionOutputs(List<ECKey> keys) throws UTXOProviderException {
+        return getOpenTransactionOutputsForScripts(ScriptIndex.scriptsOfKeys(keys));
+    }
+
+    @Override
+    public synchronized List<UTXO> getOpenTransactionOutputsForScripts(Set<Script> scripts)
+            throws UTXOProviderException {
+        List<UTXO> foundOutputs = new ArrayList<>();
+        for (UTXO output : store.getOpenTransactionOutputsForScripts(scripts))
+            if (!outputs.containsKey(new StoredTransactionOutPoint(output)))
+                foundOutputs.add(output);
+        for (CachedOutput output : outputs.values()) {
+            Script script = output.utxo.getScript();
+            // Like the underlying store, only find outputs with scripts that are indexed.
+            if (!output.spent && scripts.contains(script) && ScriptIndex.indexHash(script.getProgram()) != null)
+                foundOutputs.add(output.utxo);
+        }
+        return foundOutputs;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The cached changes are written back first, so that the outputs can be read from the underlying store.</p>
+     */
+    @Override
+    public synchronized void visitUnspentOutputs(UTXOVisitor visitor) throws BlockStoreException {
+        flush();
+        store.visitUnspentOutputs(visitor);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Caching " + store + ": " + outputs.size() + " outputs and " + blocks.size() + " blocks cached, "
+                + cachedBytes + " bytes, " + flushes + " flushes";
+    }
+}
@@ -25,7 +25,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
@@ -108,6 +107,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     private static final String SELECT_OPENOUTPUTS_COUNT_SQL                    = "SELECT COUNT(*) FROM openoutputs WHERE hash = ?";
     private static final String INSERT_OPENOUTPUTS_SQL                          = "INSERT INTO openoutputs (hash, index, height, value, scriptbytes, toaddress, addresstargetable, coinbase) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
     private static final String DELETE_OPENOUTPUTS_SQL                          = "DELETE FROM openoutputs WHERE hash = ? AND index = ?";
+    private static final String SELECT_ALL_OPENOUTPUTS_SQL                      = "SELECT hash, value, scriptbytes, height, index, coinbase, toaddress FROM openoutputs";
 
     // Dump table SQL (this is just for data sizing statistics).
     private static final String SELECT_DUMP_SETTINGS_SQL                        = "SELECT name, value FROM settings";
@@ -116,6 +116,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     private static final String SELECT_DUMP_OPENOUTPUTS_SQL                     = "SELECT value, scriptbytes FROM openoutputs";
 
     private static final String SELECT_TRANSACTION_OUTPUTS_SQL                  = "SELECT hash, value, scriptbytes, height, index, coinbase, toaddress, addresstargetable FROM openoutputs where toaddress = ?";
+    private static final String SELECT_TRANSACTION_OUTPUTS_IN_SQL               = "SELECT hash, value, scriptbytes, height, index, coinbase, toaddress, addresstargetable FROM openoutputs where toaddress IN ";
 
     // Select the balance of an address SQL.
     private static final String SELECT_BALANCE_SQL                              = "select sum(value) from openoutputs where toaddress = ?";
@@ -126,6 +127,46 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     // Compatibility SQL.
     private static final String SELECT_COMPATIBILITY_COINBASE_SQL               = "SELECT coinbase FROM openoutputs WHERE 1 = 2";
 
+    // The number of rows fetched at a time when visiting all outputs.
+    private static final int VISIT_OPENOUTPUTS_FETCH_SIZE = 1000;
+
+    // The number of addresses looked up with one statement.
+    private static final int SELECT_TRANSACTION_OUTPUTS_ADDRESSES = 100;
+
+    // The placeholders of one row of openoutputs, for inserting several rows in one statement.
+    protected static final String OPENOUTPUTS_ROW_PLACEHOLDERS                  = "(?, ?, ?, ?, ?, ?, ?, ?)";
+
+    /** An undoable block that was put during a batch write, serialized for the undoableblocks table. */
+    private static class PendingUndoableBlock {
+        final StoredBlock storedBlock;
+        final StoredUndoableBlock undoableBlock;
+        final byte[] hashBytes;
+        @Nullable final byte[] txOutChanges;
+        @Nullable final byte[] transactions;
+
+        PendingUndoableBlock(StoredBlock storedBlock, StoredUndoableBlock undoableBlock, byte[] hashBytes,
+                             @Nullable byte[] txOutChanges, @Nullable byte[] transactions) {
+            this.storedBlock = storedBlock;
+            this.undoableBlock = undoableBlock;
+            this.hashBytes = hashBytes;
+            this.txOutChanges = txOutChanges;
+            this.transactions = transactions;
+        }
+    }
+
+    /**
+     * The writes of a batch that haven't been sent to the database yet. They are sent in bulk when the batch is
+     * committed, and reads during the batch look here before they go to the database.
+     */
+    private static class PendingWrites {
+        // Outputs to insert, in the order they were added.
+        final LinkedHashMap<StoredTransactionOutPoint, UTXO> addedOutputs = new LinkedHashMap<>();
+        // Outputs to delete from the database. An output can also be in addedOutputs if it was spent and then
+        // created again, as the deletes are sent first.
+        final LinkedHashSet<StoredTransactionOutPoint> removedOutputs = new LinkedHashSet<>();
+        final LinkedHashMap<Sha256Hash, PendingUndoableBlock> undoableBlocks = new LinkedHashMap<>();
+    }
+
     protected Sha256Hash chainHeadHash;
     protected StoredBlock chainHeadBlock;
     protected Sha256Hash verifiedChainHeadHash;
@@ -138,6 +179,8 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     protected String username;
     protected String password;
     protected String schemaName;
+    // Like the connections, batch writes are per thread.
+    private final ThreadLocal<PendingWrites> pendingWrites = new ThreadLocal<>();
 
     /**
      * <p>Create a new DatabaseFullPrunedBlockStore, using the full connection URL instead of a hostname and password,
@@ -250,6 +293,14 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         return SELECT_TRANSACTION_OUTPUTS_SQL;
     }
 
+    /**
+     * Get the SQL to select the transaction outputs for several addresses, up to the list of placeholders.
+     * @return The SQL prepared statement without the list of addresses.
+     */
+    protected String getTransactionOutputsInSelectSQL() {
+        return SELECT_TRANSACTION_OUTPUTS_IN_SQL;
+    }
+
     /**
      * Get the SQL to drop all the tables (DDL).
      * @return The SQL drop statements.
@@ -375,6 +426,14 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         return DELETE_OPENOUTPUTS_SQL;
     }
 
+    /**
+     * Get the SQL to select all openoutputs records.
+     * @return The SQL select statement.
+     */
+    protected String getSelectAllOpenoutputsSQL() {
+        return SELECT_ALL_OPENOUTPUTS_SQL;
+    }
+
     /**
      * Get the SQL to select the setting dump fields for sizing/statistics.
      * @return The SQL select statement.
@@ -456,6 +515,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
             }
         }
         allConnections.clear();
+        pendingWrites.remove();
     }
 
     /**
@@ -601,18 +661,22 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         }
     }
 
+    private void setHeaderInsertParameters(PreparedStatement s, StoredBlock storedBlock, boolean wasUndoable) throws SQLException {
+        // We skip the first 4 bytes because (on mainnet) the minimum target has 4 0-bytes
+        byte[] hashBytes = new byte[28];
+        System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 4, hashBytes, 0, 28);
+        s.setBytes(1, hashBytes);
+        s.setBytes(2, storedBlock.getChainWork().toByteArray());
+        s.setInt(3, storedBlock.getHeight());
+        s.setBytes(4, storedBlock.getHeader().cloneAsHeader().unsafeBitcoinSerialize());
+        s.setBoolean(5, wasUndoable);
+    }
+
     protected void putUpdateStoredBlock(StoredBlock storedBlock, boolean wasUndoable) throws SQLException {
         try {
             PreparedStatement s =
                     conn.get().prepareStatement(getInsertHeadersSQL());
-            // We skip the first 4 bytes because (on mainnet) the minimum target has 4 0-bytes
-            byte[] hashBytes = new byte[28];
-            System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 4, hashBytes, 0, 28);
-            s.setBytes(1, hashBytes);
-            s.setBytes(2, storedBlock.getChainWork().toByteArray());
-            s.setInt(3, storedBlock.getHeight());
-            s.setBytes(4, storedBlock.getHeader().cloneAsHeader().unsafeBitcoinSerialize());
-            s.setBoolean(5, wasUndoable);
+            setHeaderInsertParameters(s, storedBlock, wasUndoable);
             s.executeUpdate();
             s.close();
         } catch (SQLException e) {
@@ -649,13 +713,12 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         // We skip the first 4 bytes because (on mainnet) the minimum target has 4 0-bytes
         byte[] hashBytes = new byte[28];
         System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 4, hashBytes, 0, 28);
-        int height = storedBlock.getHeight();
         byte[] transactions = null;
         byte[] txOutChanges = null;
         try {
             ByteArrayOutputStream bos = new ByteArrayOutputStream();
             if (undoableBlock.getTxOutChanges() != null) {
-                undoableBlock.getTxOutChanges().serializeToStream(bos);
+                undoableBlock.getTxOutChanges().serializeCompactToStream(bos);
                 txOutChanges = bos.toByteArray();
             } else {
                 int numTxn = undoableBlock.getTransactions().size();
@@ -669,55 +732,90 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
             throw new BlockStoreException(e);
         }
 
+        PendingWrites pending = pendingWrites.get();
+        if (pending != null) {
+            pending.undoableBlocks.put(storedBlock.getHeader().getHash(),
+                    new PendingUndoableBlock(storedBlock, undoableBlock, hashBytes, txOutChanges, transactions));
+            return;
+        }
         try {
-            try {
-                PreparedStatement s =
-                        conn.get().prepareStatement(getInsertUndoableBlocksSQL());
-                s.setBytes(1, hashBytes);
-                s.setInt(2, height);
-                if (transactions == null) {
-                    s.setBytes(3, txOutChanges);
-                    s.setNull(4, Types.BINARY);
-                } else {
-                    s.setNull(3, Types.BINARY);
-                    s.setBytes(4, transactions);
-                }
-                s.executeUpdate();
-                s.close();
-                try {
-                    putUpdateStoredBlock(storedBlock, true);
-                } catch (SQLException e) {
-                    throw new BlockStoreException(e);
-                }
-            } catch (SQLException e) {
-                if (!e.getSQLState().equals(getDuplicateKeyErrorCode()))
-                    throw new BlockStoreException(e);
-
-                // There is probably an update-or-insert statement, but it wasn't obvious from the docs
-                PreparedStatement s =
-                        conn.get().prepareStatement(getUpdateUndoableBlocksSQL());
-                s.setBytes(3, hashBytes);
-                if (transactions == null) {
-                    s.setBytes(1, txOutChanges);
-                    s.setNull(2, Types.BINARY);
-                } else {
-                    s.setNull(1, Types.BINARY);
-                    s.setBytes(2, transactions);
-                }
-                s.executeUpdate();
-                s.close();
-            }
+            putUndoableBlock(storedBlock, hashBytes, txOutChanges, transactions);
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
     }
 
+    /**
+     * Inserts a serialized undoable block and marks its header as undoable, or replaces the undoable block if it is
+     * already there.
+     * @param storedBlock The block header.
+     * @param hashBytes The key of the block in the undoableblocks table.
+     * @param txOutChanges The serialized output changes, or null if the transactions are given.
+     * @param transactions The serialized transactions, or null if the output changes are given.
+     * @throws SQLException If there is a database error.
+     * @throws BlockStoreException If there is a block store error.
+     */
+    protected void putUndoableBlock(StoredBlock storedBlock, byte[] hashBytes, @Nullable byte[] txOutChanges,
+                                    @Nullable byte[] transactions) throws SQLException, BlockStoreException {
+        try {
+            PreparedStatement s =
+                    conn.get().prepareStatement(getInsertUndoableBlocksSQL());
+            setUndoableBlockInsertParameters(s, hashBytes, storedBlock.getHeight(), txOutChanges, transactions);
+            s.executeUpdate();
+            s.close();
+            putUpdateStoredBlock(storedBlock, true);
+        } catch (SQLException e) {
+            if (!e.getSQLState().equals(getDuplicateKeyErrorCode()))
+                throw e;
+
+            // There is probably an update-or-insert statement, but it wasn't obvious from the docs
+            PreparedStatement s =
+                    conn.get().prepareStatement(getUpdateUndoableBlocksSQL());
+            setUndoableBlockUpdateParameters(s, hashBytes, txOutChanges, transactions);
+            s.executeUpdate();
+            s.close();
+        }
+    }
+
+    /** Sets the parameters of the statement returned by {@link #getInsertUndoableBlocksSQL()}. */
+    protected void setUndoableBlockInsertParameters(PreparedStatement s, byte[] hashBytes, int height,
+                                                    @Nullable byte[] txOutChanges, @Nullable byte[] transactions) throws SQLException {
+        s.setBytes(1, hashBytes);
+        s.setInt(2, height);
+        if (transactions == null) {
+            s.setBytes(3, txOutChanges);
+            s.setNull(4, Types.BINARY);
+        } else {
+            s.setNull(3, Types.BINARY);
+            s.setBytes(4, transactions);
+        }
+    }
+
+    /** Sets the parameters of the statement returned by {@link #getUpdateUndoableBlocksSQL()}. */
+    protected void setUndoableBlockUpdateParameters(PreparedStatement s, byte[] hashBytes,
+                                                    @Nullable byte[] txOutChanges, @Nullable byte[] transactions) throws SQLException {
+        s.setBytes(3, hashBytes);
+        if (transactions == null) {
+            s.setBytes(1, txOutChanges);
+            s.setNull(2, Types.BINARY);
+        } else {
+            s.setNull(1, Types.BINARY);
+            s.setBytes(2, transactions);
+        }
+    }
+
     public StoredBlock get(Sha256Hash hash, boolean wasUndoableOnly) throws BlockStoreException {
         // Optimize for chain head
         if (chainHeadHash != null && chainHeadHash.equals(hash))
             return chainHeadBlock;
         if (verifiedChainHeadHash != null && verifiedChainHeadHash.equals(hash))
             return verifiedChainHeadBlock;
+        PendingWrites pending = pendingWrites.get();
+        if (pending != null) {
+            PendingUndoableBlock pendingBlock = pending.undoableBlocks.get(hash);
+            if (pendingBlock != null)
+                return pendingBlock.storedBlock;
+        }
         maybeConnect();
         PreparedStatement s = null;
         try {
@@ -774,6 +872,12 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
 
     @Override
     public StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        PendingWrites pending = pendingWrites.get();
+        if (pending != null) {
+            PendingUndoableBlock pendingBlock = pending.undoableBlocks.get(hash);
+            if (pendingBlock != null)
+                return pendingBlock.undoableBlock;
+        }
         maybeConnect();
         PreparedStatement s = null;
         try {
@@ -803,8 +907,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
                 }
                 block = new StoredUndoableBlock(hash, transactionList);
             } else {
-                TransactionOutputChanges outChangesObject =
-                        new TransactionOutputChanges(new ByteArrayInputStream(txOutChanges));
+                TransactionOutputChanges outChangesObject = TransactionOutputChanges.parse(params, txOutChanges);
                 block = new StoredUndoableBlock(hash, outChangesObject);
             }
             return block;
@@ -883,6 +986,14 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     }
 
     private void removeUndoableBlocksWhereHeightIsLessThan(int height) throws BlockStoreException {
+        PendingWrites pending = pendingWrites.get();
+        if (pending != null) {
+            Iterator<PendingUndoableBlock> it = pending.undoableBlocks.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().storedBlock.getHeight() <= height)
+                    it.remove();
+            }
+        }
         try {
             PreparedStatement s = conn.get()
                     .prepareStatement(getDeleteUndoableBlocksSQL());
@@ -898,6 +1009,15 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
 
     @Override
     public UTXO getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        PendingWrites pending = pendingWrites.get();
+        if (pending != null) {
+            StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(hash, index);
+            UTXO added = pending.addedOutputs.get(outPoint);
+            if (added != null)
+                return added;
+            if (pending.removedOutputs.contains(outPoint))
+                return null;
+        }
         maybeConnect();
         PreparedStatement s = null;
         try {
@@ -939,20 +1059,16 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
 
     @Override
     public void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        PendingWrites pending = pendingWrites.get();
+        if (pending != null) {
+            pending.addedOutputs.put(new StoredTransactionOutPoint(out), out);
+            return;
+        }
         maybeConnect();
         PreparedStatement s = null;
         try {
             s = conn.get().prepareStatement(getInsertOpenoutputsSQL());
-            s.setBytes(1, out.getHash().getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int) out.getIndex());
-            s.setInt(3, out.getHeight());
-            s.setLong(4, out.getValue().value);
-            s.setBytes(5, out.getScript().getProgram());
-            s.setString(6, out.getAddress());
-            ScriptType scriptType = out.getScript().getScriptType();
-            s.setInt(7, scriptType != null ? scriptType.id : 0);
-            s.setBoolean(8, out.isCoinbase());
+            setOpenOutputParameters(s, 0, out);
             s.executeUpdate();
             s.close();
         } catch (SQLException e) {
@@ -971,6 +1087,16 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
 
     @Override
     public void removeUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        PendingWrites pending = pendingWrites.get();
+        if (pending != null) {
+            StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(out);
+            if (pending.addedOutputs.remove(outPoint) == null) {
+                // Whether the database has the output is checked when the delete is sent, see deleteOpenOutputs.
+                if (!pending.removedOutputs.add(outPoint))
+                    throw new BlockStoreException("Tried to remove a UTXO from DatabaseFullPrunedBlockStore that it didn't have!");
+            }
+            return;
+        }
         maybeConnect();
         // TODO: This should only need one query (maybe a stored procedure)
         if (getTransactionOutput(out.getHash(), out.getIndex()) == null)
@@ -988,6 +1114,218 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         }
     }
 
+    /**
+     * Sets the parameters of one row of the statement returned by {@link #getInsertOpenoutputsSQL()}, or of a
+     * statement that inserts several rows with the same columns.
+     * @param s The statement.
+     * @param offset The number of parameters before the row.
+     * @param out The output to insert.
+     * @throws SQLException If there is a database error.
+     */
+    protected void setOpenOutputParameters(PreparedStatement s, int offset, UTXO out) throws SQLException {
+        s.setBytes(offset + 1, out.getHash().getBytes());
+        // index is actually an unsigned int
+        s.setInt(offset + 2, (int) out.getIndex());
+        s.setInt(offset + 3, out.getHeight());
+        s.setLong(offset + 4, out.getValue().value);
+        s.setBytes(offset + 5, out.getScript().getProgram());
+        s.setString(offset + 6, out.getAddress());
+        ScriptType scriptType = out.getScript().getScriptType();
+        s.setInt(offset + 7, scriptType != null ? scriptType.id : 0);
+        s.setBoolean(offset + 8, out.isCoinbase());
+    }
+
+    /**
+     * <p>Inserts the outputs that were added during a batch write. This implementation sends them as a single JDBC
+     * batch, subclasses may override it with a faster way to insert many rows into their database.</p>
+     *
+     * <p>It is called within a savepoint. If one of the outputs is already in the database, it should fail with the
+     * {@link #getDuplicateKeyErrorCode()}, and the outputs are then inserted one by one, skipping the duplicates.</p>
+     *
+     * @param outputs The outputs to insert, not empty.
+     * @throws SQLException If there is a database error.
+     */
+    protected void insertOpenOutputs(List<UTXO> outputs) throws SQLException {
+        PreparedStatement s = conn.get().prepareStatement(getInsertOpenoutputsSQL());
+        try {
+            for (UTXO out : outputs) {
+                setOpenOutputParameters(s, 0, out);
+                s.addBatch();
+            }
+            s.executeBatch();
+        } finally {
+            s.close();
+        }
+    }
+
+    /**
+     * Inserts outputs with multi-row INSERT statements of up to the given number of rows, for databases that execute
+     * them faster than a JDBC batch of single-row statements. The statement is built from
+     * {@link #getInsertOpenoutputsSQL()}, which must end with the placeholders of a single row.
+     * @param outputs The outputs to insert.
+     * @param rowsPerStatement The maximum number of rows of one statement.
+     * @throws SQLException If there is a database error.
+     */
+    protected void insertOpenOutputsMultiRow(List<UTXO> outputs, int rowsPerStatement) throws SQLException {
+        PreparedStatement s = null;
+        int statementRows = 0;
+        try {
+            for (int start = 0; start < outputs.size(); start += rowsPerStatement) {
+                int rows = Math.min(rowsPerStatement, outputs.size() - start);
+                // Only the last statement can be shorter than the others.
+                if (rows != statementRows) {
+                    if (s != null)
+                        s.close();
+                    StringBuilder sql = new StringBuilder(getInsertOpenoutputsSQL());
+                    for (int i = 1; i < rows; i++)
+                        sql.append(", ").append(OPENOUTPUTS_ROW_PLACEHOLDERS);
+                    s = conn.get().prepareStatement(sql.toString());
+                    statementRows = rows;
+                }
+                for (int i = 0; i < rows; i++)
+                    setOpenOutputParameters(s, i * 8, outputs.get(start + i));
+                s.executeUpdate();
+            }
+        } finally {
+            if (s != null)
+                s.close();
+        }
+    }
+
+    /**
+     * Deletes the outputs that were spent during a batch write as a single JDBC batch.
+     * @param outPoints The outputs to delete, not empty.
+     * @throws SQLException If there is a database error.
+     * @throws BlockStoreException If one of the outputs isn't in the database.
+     */
+    private void deleteOpenOutputs(Collection<StoredTransactionOutPoint> outPoints) throws SQLException, BlockStoreException {
+        PreparedStatement s = conn.get().prepareStatement(getDeleteOpenoutputsSQL());
+        try {
+            for (StoredTransactionOutPoint outPoint : outPoints) {
+                s.setBytes(1, outPoint.getHash().getBytes());
+                // index is actually an unsigned int
+                s.setInt(2, (int) outPoint.getIndex());
+                s.addBatch();
+            }
+            // Instead of looking up every output before it's deleted, check that each delete found its row. Drivers
+            // that rewrite the batch may not report the counts, which is SUCCESS_NO_INFO.
+            for (int count : s.executeBatch()) {
+                if (count == 0)
+                    throw new BlockStoreException("Tried to remove a UTXO from DatabaseFullPrunedBlockStore that it didn't have!");
+            }
+        } finally {
+            s.close();
+        }
+    }
+
+    /**
+     * Sends the pending writes of the current batch to the database, within the batch's transaction.
+     */
+    private void flushPendingWrites() throws BlockStoreException {
+        PendingWrites pending = pendingWrites.get();
+        if (pending == null)
+            return;
+        try {
+            if (!pending.removedOutputs.isEmpty())
+                deleteOpenOutputs(pending.removedOutputs);
+            if (!pending.addedOutputs.isEmpty())
+                insertPendingOutputs(new ArrayList<>(pending.addedOutputs.values()));
+            if (!pending.undoableBlocks.isEmpty())
+                insertPendingUndoableBlocks(new ArrayList<>(pending.undoableBlocks.values()));
+            if (log.isDebugEnabled())
+                log.debug("Wrote {} new and {} spent outputs and {} undoable blocks", pending.addedOutputs.size(),
+                        pending.removedOutputs.size(), pending.undoableBlocks.size());
+        } catch (SQLException e) {
+            throw new BlockStoreException(e);
+        }
+        pending.removedOutputs.clear();
+        pending.addedOutputs.clear();
+        pending.undoableBlocks.clear();
+    }
+
+    private void insertPendingOutputs(List<UTXO> outputs) throws SQLException {
+        Connection connection = conn.get();
+        Savepoint savepoint = connection.setSavepoint();
+        try {
+            insertOpenOutputs(outputs);
+            connection.releaseSavepoint(savepoint);
+            return;
+        } catch (SQLException e) {
+            if (!isDuplicateKeyError(e))
+                throw e;
+            connection.rollback(savepoint);
+        }
+        // Rare, e.g. for the duplicate coinbase transactions of BIP30, so a savepoint per row is fine. Some databases
+        // can't continue a transaction after a failed statement without rolling back to one.
+        log.info("Duplicate output in batch, inserting {} outputs one by one", outputs.size());
+        PreparedStatement s = connection.prepareStatement(getInsertOpenoutputsSQL());
+        try {
+            for (UTXO out : outputs) {
+                savepoint = connection.setSavepoint();
+                setOpenOutputParameters(s, 0, out);
+                try {
+                    s.executeUpdate();
+                    connection.releaseSavepoint(savepoint);
+                } catch (SQLException e) {
+                    if (!isDuplicateKeyError(e))
+                        throw e;
+                    connection.rollback(savepoint);
+                }
+            }
+        } finally {
+            s.close();
+        }
+    }
+
+    private void insertPendingUndoableBlocks(List<PendingUndoableBlock> blocks) throws SQLException, BlockStoreException {
+        Connection connection = conn.get();
+        Savepoint savepoint = connection.setSavepoint();
+        try {
+            PreparedStatement s = connection.prepareStatement(getInsertUndoableBlocksSQL());
+            try {
+                for (PendingUndoableBlock block : blocks) {
+                    setUndoableBlockInsertParameters(s, block.hashBytes, block.storedBlock.getHeight(),
+                            block.txOutChanges, block.transactions);
+                    s.addBatch();
+                }
+                s.executeBatch();
+            } finally {
+                s.close();
+            }
+            s = connection.prepareStatement(getInsertHeadersSQL());
+            try {
+                for (PendingUndoableBlock block : blocks) {
+                    setHeaderInsertParameters(s, block.storedBlock, true);
+                    s.addBatch();
+                }
+                s.executeBatch();
+            } finally {
+                s.close();
+            }
+            connection.releaseSavepoint(savepoint);
+        } catch (SQLException e) {
+            if (!isDuplicateKeyError(e))
+                throw e;
+            // Some of the blocks or headers are already there, which putUndoableBlock knows how to deal with.
+            connection.rollback(savepoint);
+            for (PendingUndoableBlock block : blocks)
+                putUndoableBlock(block.storedBlock, block.hashBytes, block.txOutChanges, block.transactions);
+        }
+    }
+
+    private boolean isDuplicateKeyError(SQLException e) {
+        // A failed JDBC batch may only carry the error of the failed statement as the next exception.
+        for (SQLException ex = e; ex != null; ex = ex.getNextException()) {
+            if (getDuplicateKeyErrorCode().equals(ex.getSQLState()))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Starts a batch write. The outputs and undoable blocks that are written during the batch are kept in memory,
+     * and sent to the database in bulk when the batch is committed.
+     */
     @Override
     public void beginDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
@@ -998,6 +1336,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
+        pendingWrites.set(new PendingWrites());
     }
 
     @Override
@@ -1005,12 +1344,15 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         maybeConnect();
         if (log.isDebugEnabled())
             log.debug("Committing database batch write with connection: " + conn.get().toString());
+        // If this fails, the batch stays open for abortDatabaseBatchWrite.
+        flushPendingWrites();
         try {
             conn.get().commit();
             conn.get().setAutoCommit(true);
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
+        pendingWrites.remove();
     }
 
     @Override
@@ -1018,6 +1360,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         maybeConnect();
         if (log.isDebugEnabled())
             log.debug("Rollback database batch write with connection: " + conn.get().toString());
+        pendingWrites.remove();
         try {
             if (!conn.get().getAutoCommit()) {
                 conn.get().rollback();
@@ -1032,6 +1375,17 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
 
     @Override
     public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        PendingWrites pending = pendingWrites.get();
+        int removed = 0;
+        if (pending != null) {
+            for (int i = 0; i < numOutputs; i++) {
+                StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(hash, i);
+                if (pending.addedOutputs.containsKey(outPoint))
+                    return true;
+                if (pending.removedOutputs.contains(outPoint))
+                    removed++;
+            }
+        }
         maybeConnect();
         PreparedStatement s = null;
         try {
@@ -1042,7 +1396,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
                 throw new BlockStoreException("Got no results from a COUNT(*) query");
             }
             int count = results.getInt(1);
-            return count != 0;
+            return count > removed;
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         } finally {
@@ -1118,6 +1472,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
      */
     public BigInteger calculateBalanceForAddress(Address address) throws BlockStoreException {
         maybeConnect();
+        flushPendingWrites();
         PreparedStatement s = null;
         try {
             s = conn.get().prepareStatement(getBalanceSelectSQL());
@@ -1143,32 +1498,73 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
 
     @Override
     public List<UTXO> getOpenTransactionOutputs(List<ECKey> keys) throws UTXOProviderException {
-        PreparedStatement s = null;
+        return getOpenTransactionOutputsForScripts(ScriptIndex.scriptsOfKeys(keys));
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The toaddress column is derived from the hash an output pays to, and already has an index, so outputs are
+     * looked up by address here, many addresses at a time.</p>
+     */
+    @Override
+    public List<UTXO> getOpenTransactionOutputsForScripts(Set<Script> scripts) throws UTXOProviderException {
+        Map<String, Set<Script>> scriptsByAddress = new HashMap<>();
+        for (Script script : scripts) {
+            if (ScriptIndex.indexHash(script.getProgram()) == null)
+                continue;
+            // The same as the address FullPrunedBlockChain stores with the output.
+            String address = script.getToAddress(params, true).toString();
+            Set<Script> addressScripts = scriptsByAddress.get(address);
+            if (addressScripts == null) {
+                addressScripts = new HashSet<>();
+                scriptsByAddress.put(address, addressScripts);
+            }
+            addressScripts.add(script);
+        }
+        List<String> addresses = new ArrayList<>(scriptsByAddress.keySet());
         List<UTXO> outputs = new ArrayList<>();
+        PreparedStatement s = null;
+        int statementAddresses = 0;
         try {
             maybeConnect();
-            s = conn.get().prepareStatement(getTransactionOutputSelectSQL());
-            for (ECKey key : keys) {
-                // TODO switch to pubKeyHash in order to support native segwit addresses
-                s.setString(1, LegacyAddress.fromKey(params, key).toString());
+            flushPendingWrites();
+            for (int start = 0; start < addresses.size(); start += SELECT_TRANSACTION_OUTPUTS_ADDRESSES) {
+                int count = Math.min(SELECT_TRANSACTION_OUTPUTS_ADDRESSES, addresses.size() - start);
+                // Only the last statement can be shorter than the others.
+                if (count != statementAddresses) {
+                    if (s != null)
+                        s.close();
+                    StringBuilder sql = new StringBuilder(getTransactionOutputsInSelectSQL()).append("(?");
+                    for (int i = 1; i < count; i++)
+                        sql.append(", ?");
+                    s = conn.get().prepareStatement(sql.append(')').toString());
+                    statementAddresses = count;
+                }
+                for (int i = 0; i < count; i++)
+                    s.setString(i + 1, addresses.get(start + i));
                 ResultSet rs = s.executeQuery();
                 while (rs.next()) {
                     Sha256Hash hash = Sha256Hash.wrap(rs.getBytes(1));
                     Coin amount = Coin.valueOf(rs.getLong(2));
-                    byte[] scriptBytes = rs.getBytes(3);
+                    Script script = new Script(rs.getBytes(3));
                     int height = rs.getInt(4);
                     int index = rs.getInt(5);
                     boolean coinbase = rs.getBoolean(6);
                     String toAddress = rs.getString(7);
-                    UTXO output = new UTXO(hash,
+                    // Outputs with different scripts can have the same address, like P2PKH and P2PK.
+                    Set<Script> addressScripts = scriptsByAddress.get(toAddress);
+                    if (addressScripts == null || !addressScripts.contains(script))
+                        continue;
+                    outputs.add(new UTXO(hash,
                             index,
                             amount,
                             height,
                             coinbase,
-                            new Script(scriptBytes),
-                            toAddress);
-                    outputs.add(output);
+                            script,
+                            toAddress));
                 }
+                rs.close();
             }
             return outputs;
         } catch (SQLException ex) {
@@ -1185,6 +1581,38 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         }
     }
 
+    @Override
+    public void visitUnspentOutputs(UTXOVisitor visitor) throws BlockStoreException {
+        maybeConnect();
+        flushPendingWrites();
+        Statement s = null;
+        try {
+            s = conn.get().createStatement();
+            // Let the driver stream the rows, rather than load them all at once.
+            s.setFetchSize(VISIT_OPENOUTPUTS_FETCH_SIZE);
+            ResultSet rs = s.executeQuery(getSelectAllOpenoutputsSQL());
+            while (rs.next()) {
+                visitor.visit(new UTXO(Sha256Hash.wrap(rs.getBytes(1)),
+                        rs.getInt(5),
+                        Coin.valueOf(rs.getLong(2)),
+                        rs.getInt(4),
+                        rs.getBoolean(6),
+                        new Script(rs.getBytes(3)),
+                        rs.getString(7)));
+            }
+            rs.close();
+        } catch (SQLException ex) {
+            throw new BlockStoreException(ex);
+        } finally {
+            if (s != null)
+                try {
+                    s.close();
+                } catch (SQLException e) {
+                    throw new BlockStoreException("Could not close statement");
+                }
+        }
+    }
+
     /**
      * Dumps information about the size of actual data in the database to standard output
      * The only truly useless data counted is printed in the form "N in id indexes"
@@ -1192,6 +1620,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
      */
     public void dumpSizes() throws SQLException, BlockStoreException {
         maybeConnect();
+        flushPendingWrites();
         Statement s = conn.get().createStatement();
         long size = 0;
         long totalSize = 0;
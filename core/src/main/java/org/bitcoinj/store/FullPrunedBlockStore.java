@@ -17,6 +17,10 @@
 package org.bitcoinj.store;
 
 import org.bitcoinj.core.*;
+import org.bitcoinj.script.Script;
+
+import java.util.List;
+import java.util.Set;
 
 
 /**
@@ -47,6 +51,11 @@ import org.bitcoinj.core.*;
  * <p>FullPrunedBlockStores are thread safe.</p>
  */
 public interface FullPrunedBlockStore extends BlockStore, UTXOProvider {
+    /** Receives the outputs of {@link FullPrunedBlockStore#visitUnspentOutputs(UTXOVisitor)}. */
+    interface UTXOVisitor {
+        void visit(UTXO out) throws BlockStoreException;
+    }
+
     /**
      * <p>Saves the given {@link StoredUndoableBlock} and {@link StoredBlock}. Calculates keys from the {@link StoredBlock}</p>
      * 
@@ -93,6 +102,26 @@ public interface FullPrunedBlockStore extends BlockStore, UTXOProvider {
      * @param numOutputs the number of outputs the given transaction has
      */
     boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException;
+
+    /**
+     * <p>Returns the unspent outputs whose script is one of the given scripts. Outputs are indexed by the hash160
+     * they pay to, so this takes a lookup per distinct hash instead of a scan of all outputs, and a few queries for
+     * many thousands of scripts. It also backs {@link #getOpenTransactionOutputs(List)}.</p>
+     *
+     * <p>P2PKH, P2WPKH, P2SH and P2PK scripts are indexed, outputs with other scripts are never returned.</p>
+     *
+     * @throws UTXOProviderException if there is an underlying storage issue
+     */
+    List<UTXO> getOpenTransactionOutputsForScripts(Set<Script> scripts) throws UTXOProviderException;
+
+    /**
+     * <p>Passes every unspent output to the given visitor, in no particular order. The outputs are those of the
+     * {@link #getVerifiedChainHead() verified chain head}: writes of batches that aren't committed yet aren't seen.
+     * The store must not be changed until this returns. Used to export the UTXO set, see {@link UTXOSnapshot}.</p>
+     *
+     * @throws BlockStoreException if there is an underlying storage issue, or the visitor threw it
+     */
+    void visitUnspentOutputs(UTXOVisitor visitor) throws BlockStoreException;
     
     /**
      * Returns the {@link StoredBlock} that represents the top of the chain of greatest total work that has
@@ -36,6 +36,8 @@ import java.util.List;
  */
 public class H2FullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
     private static final String H2_DUPLICATE_KEY_ERROR_CODE = "23505";
+    // The number of outputs inserted with one statement during a batch write.
+    private static final int INSERT_OPENOUTPUTS_ROWS = 100;
     private static final String DATABASE_DRIVER_CLASS = "org.h2.Driver";
     private static final String DATABASE_CONNECTION_URL_PREFIX = "jdbc:h2:";
 
@@ -132,6 +134,11 @@ public class H2FullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
         return H2_DUPLICATE_KEY_ERROR_CODE;
     }
 
+    @Override
+    protected void insertOpenOutputs(List<UTXO> outputs) throws SQLException {
+        insertOpenOutputsMultiRow(outputs, INSERT_OPENOUTPUTS_ROWS);
+    }
+
     @Override
     protected List<String> getCreateTablesSQL() {
         List<String> sqlStatements = new ArrayList<>();
@@ -27,11 +27,11 @@ import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
-import org.bitcoinj.core.Address;
-import org.bitcoinj.core.AddressFormatException;
 import org.bitcoinj.core.ECKey;
-import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.FullPrunedBlockChain;
 import org.bitcoinj.core.NetworkParameters;
 import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.StoredBlock;
@@ -43,7 +43,6 @@ import org.bitcoinj.core.UTXOProviderException;
 import org.bitcoinj.core.Utils;
 import org.bitcoinj.core.VerificationException;
 import org.bitcoinj.script.Script;
-import org.bitcoinj.script.ScriptException;
 import org.iq80.leveldb.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -52,6 +51,8 @@ import static org.fusesource.leveldbjni.JniDBFactory.*;
 
 import com.google.common.base.Stopwatch;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 /**
  * <p>
  * An implementation of a Fully Pruned Block Store using a leveldb implementation as the backing data store.
@@ -117,11 +118,31 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
     protected int openOutCache;
     // Bloomfilter for caching calls to hasUnspentOutputs
     protected BloomFilter bloom;
+    // How many blocks apart the bloomfilter is written to disk, 0 for only
+    // on close.
+    protected int bloomSnapshotInterval = BLOOM_SNAPSHOT_INTERVAL_DEFAULT;
+    protected int bloomSnapshotHeight;
+    // The false positive rate at which the bloomfilter is rebuilt from the
+    // unspent outputs, 0 to never rebuild it.
+    protected double bloomRebuildThreshold = BLOOM_REBUILD_THRESHOLD_DEFAULT;
 
     // Defaults for cache sizes
     static final long LEVELDB_READ_CACHE_DEFAULT = 100 * 1048576; // 100 meg
     static final int LEVELDB_WRITE_CACHE_DEFAULT = 10 * 1048576; // 10 meg
     static final int OPENOUT_CACHE_DEFAULT = 100000;
+    static final int BLOOM_SNAPSHOT_INTERVAL_DEFAULT = 10000;
+    static final double BLOOM_REBUILD_THRESHOLD_DEFAULT = 0.05;
+    // How many positives the false positive rate is measured over before it
+    // is trusted.
+    static final int BLOOM_REBUILD_MIN_POSITIVES = 10000;
+
+    // The bloomfilter snapshot lives next to the leveldb files. It starts with
+    // a magic number, the verified chain head it was written at, the number
+    // of hashes added and removed and the number of bits set, followed by the
+    // bits.
+    static final String BLOOM_SNAPSHOT_FILENAME = "bloomfilter.dat";
+    static final int BLOOM_SNAPSHOT_MAGIC = 0x626c6f32;
+    static final int BLOOM_SNAPSHOT_HEADER_LENGTH = 4 + 32 + 8 + 8 + 8;
 
     // LRUCache
     public class LRUCache extends LinkedHashMap<ByteBuffer, UTXO> {
@@ -147,7 +168,13 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         private byte[] cache;
         public long returnedTrue;
         public long returnedFalse;
+        public long falsePositives;
         public long added;
+        // Hashes of spent outputs, which stay in the filter until it is
+        // rebuilt.
+        public long removed;
+        public long bitsSet;
+        public boolean fromSnapshot;
 
         public BloomFilter() {
             // 2^27 so since 8 bits in a byte this is
@@ -157,9 +184,8 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             // with 150m entries.
         }
 
-        // Called to prime cache.
-        // Might be idea to call periodically to flush out removed keys.
-        // Would need to benchmark 1st though.
+        // Called to prime cache, and to flush out removed keys once they make
+        // the filter too inaccurate, see needsRebuild.
         public void reloadCache(DB db) {
             // LevelDB is great at scanning consecutive keys.
             // This take seconds even with 20m keys to add.
@@ -171,8 +197,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
                 byte firstByte = bbKey.get(); // remove the KeyType.OPENOUT_ALL
                                               // byte.
                 if (key[0] != firstByte) {
-                    printStat();
-                    return;
+                    break;
                 }
 
                 byte[] hash = new byte[32];
@@ -184,11 +209,52 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             } catch (IOException e) {
                 log.error("Error closing iterator", e);
             }
-            printStat();
+            log.info("Bloom Filter loaded from database: " + getBloomFilterStats());
         }
 
-        public void printStat() {
-            log.info("Bloom Added: " + added + " T: " + returnedTrue + " F: " + returnedFalse);
+        // Writes the filter to the given file, tagged with the verified chain
+        // head it is valid for. Goes through a temporary file so that a crash
+        // never leaves half a snapshot behind.
+        public void writeSnapshot(File file, Sha256Hash verifiedChainHead) throws IOException {
+            File temp = new File(file.getPath() + ".tmp");
+            try (FileOutputStream fileStream = new FileOutputStream(temp)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileStream));
+                out.writeInt(BLOOM_SNAPSHOT_MAGIC);
+                out.write(verifiedChainHead.getBytes());
+                out.writeLong(added);
+                out.writeLong(removed);
+                out.writeLong(bitsSet);
+                out.write(cache);
+                out.flush();
+                fileStream.getFD().sync();
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        // Loads the filter from the given file if it was written at the given
+        // verified chain head. Otherwise outputs might have been added to the
+        // database since, which the filter would wrongly rule out.
+        public boolean readSnapshot(File file, Sha256Hash verifiedChainHead) throws IOException {
+            if (file.length() != BLOOM_SNAPSHOT_HEADER_LENGTH + cache.length)
+                return false;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                if (in.readInt() != BLOOM_SNAPSHOT_MAGIC)
+                    return false;
+                byte[] hash = new byte[32];
+                in.readFully(hash);
+                if (!Arrays.equals(hash, verifiedChainHead.getBytes()))
+                    return false;
+                long snapshotAdded = in.readLong();
+                long snapshotRemoved = in.readLong();
+                long snapshotBitsSet = in.readLong();
+                in.readFully(cache);
+                added = snapshotAdded;
+                removed = snapshotRemoved;
+                bitsSet = snapshotBitsSet;
+                fromSnapshot = true;
+                return true;
+            }
         }
 
         // Add a txhash to the filter.
@@ -224,11 +290,32 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             return true;
         }
 
+        // Share of the bits that are set.
+        public double getFill() {
+            return (double) bitsSet / (cache.length * 8L);
+        }
+
+        // Spent outputs stay in the filter, so it only gets fuller and lets
+        // more lookups through to the database. Once it does so too often,
+        // going by the lookups since it was built or by how full it is, and a
+        // good part of what it holds is spent, it is worth starting over.
+        public boolean needsRebuild(double maxFalsePositiveRate) {
+            if (removed * 2 < added)
+                return false;
+            if (returnedTrue >= BLOOM_REBUILD_MIN_POSITIVES
+                    && (double) falsePositives / returnedTrue > maxFalsePositiveRate)
+                return true;
+            // With 3 functions, a lookup is let through if all 3 bits are set.
+            return Math.pow(getFill(), 3) > maxFalsePositiveRate;
+        }
+
         private void setBit(byte[] entry) {
             int arrayIndex = (entry[0] & 0x3F) << 21 | (entry[1] & 0xFF) << 13 | (entry[2] & 0xFF) << 5
                     | (entry[3] & 0xFF) >> 3;
             int bit = (entry[3] & 0x07);
             int orBit = (0x1 << bit);
+            if ((cache[arrayIndex] & orBit) == 0)
+                bitsSet++;
             byte newEntry = (byte) ((int) cache[arrayIndex] | orBit);
             cache[arrayIndex] = newEntry;
         }
@@ -269,10 +356,9 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         this.leveldbReadCache = leveldbReadCache;
         this.leveldbWriteCache = leveldbWriteCache;
         this.openOutCache = openOutCache;
-        bloom = new BloomFilter();
         totalStopwatch = Stopwatch.createStarted();
         openDB();
-        bloom.reloadCache(db);
+        loadBloomFilter();
 
         // Reset after bloom filter loaded
         totalStopwatch = Stopwatch.createStarted();
@@ -304,6 +390,161 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         }
     }
 
+    // Loads the bloomfilter from the snapshot written at the verified chain
+    // head, which takes a fraction of the time of scanning all unspent outputs.
+    private void loadBloomFilter() {
+        bloom = new BloomFilter();
+        bloomSnapshotHeight = verifiedChainHeadBlock.getHeight();
+        File snapshot = new File(filename, BLOOM_SNAPSHOT_FILENAME);
+        if (snapshot.exists()) {
+            try {
+                if (bloom.readSnapshot(snapshot, verifiedChainHeadHash)) {
+                    log.info("Bloom Filter loaded from snapshot: " + getBloomFilterStats());
+                    return;
+                }
+                log.info("Bloom Filter snapshot is not for chain head {}, rebuilding", verifiedChainHeadHash);
+            } catch (IOException e) {
+                log.warn("Could not read Bloom Filter snapshot, rebuilding", e);
+            }
+            bloom = new BloomFilter();
+        }
+        bloom.reloadCache(db);
+    }
+
+    // Writes the bloomfilter to disk, so that the next open does not have to
+    // rebuild it. Only called when there is no open batch, so that the
+    // verified chain head is the one in the database.
+    private void writeBloomFilterSnapshot() {
+        Stopwatch watch = Stopwatch.createStarted();
+        try {
+            bloom.writeSnapshot(new File(filename, BLOOM_SNAPSHOT_FILENAME), verifiedChainHeadHash);
+            bloomSnapshotHeight = verifiedChainHeadBlock.getHeight();
+            log.info("Bloom Filter snapshot written at height {} in {}", bloomSnapshotHeight, watch);
+        } catch (IOException e) {
+            // Not fatal, the next open just has to rebuild the filter.
+            log.warn("Could not write Bloom Filter snapshot", e);
+        }
+    }
+
+    /**
+     * Sets how many blocks apart the filter of transactions with unspent outputs is written to disk, on top of when
+     * the store is closed. It is written after a batch is committed, and only used on the next open if the store was
+     * not changed since, so a smaller interval makes startup after a crash faster at the cost of more writes.
+     *
+     * @param blocks the number of blocks between snapshots, or 0 to only write one on close
+     */
+    public void setBloomFilterSnapshotInterval(int blocks) {
+        checkArgument(blocks >= 0, "blocks must not be negative");
+        this.bloomSnapshotInterval = blocks;
+    }
+
+    /**
+     * Sets the false positive rate at which the filter of transactions with unspent outputs is rebuilt. Transactions
+     * stay in the filter after their outputs are spent, so it gets less accurate over time. It is rebuilt after a
+     * batch is committed once its measured or estimated false positive rate passes this, as long as a good part of
+     * the transactions in it were spent, which takes about as long as opening the store without a snapshot.
+     *
+     * @param falsePositiveRate the rate between 0 and 1, or 0 to never rebuild the filter
+     */
+    public void setBloomFilterRebuildThreshold(double falsePositiveRate) {
+        checkArgument(falsePositiveRate >= 0 && falsePositiveRate < 1, "falsePositiveRate must be in [0, 1)");
+        this.bloomRebuildThreshold = falsePositiveRate;
+    }
+
+    // Replaces the bloomfilter with one of just the unspent outputs.
+    private void rebuildBloomFilter() {
+        Stopwatch watch = Stopwatch.createStarted();
+        BloomFilterStats stale = getBloomFilterStats();
+        bloom = new BloomFilter();
+        bloom.reloadCache(db);
+        log.info("Bloom Filter rebuilt in {}, was {}", watch, stale);
+    }
+
+    /** Returns statistics of the filter of transactions with unspent outputs that answers most of hasUnspentOutputs. */
+    public BloomFilterStats getBloomFilterStats() {
+        return new BloomFilterStats(bloom.added, bloom.removed, bloom.getFill(), bloom.returnedTrue,
+                bloom.returnedFalse, bloom.falsePositives, bloom.fromSnapshot);
+    }
+
+    /**
+     * Statistics of the filter that rules out transactions without unspent outputs, so that
+     * {@link #hasUnspentOutputs(Sha256Hash, int)} does not have to go to the database for them.
+     */
+    public static class BloomFilterStats {
+        private final long added;
+        private final long removed;
+        private final double fill;
+        private final long positives;
+        private final long negatives;
+        private final long falsePositives;
+        private final boolean fromSnapshot;
+
+        BloomFilterStats(long added, long removed, double fill, long positives, long negatives, long falsePositives,
+                boolean fromSnapshot) {
+            this.added = added;
+            this.removed = removed;
+            this.fill = fill;
+            this.positives = positives;
+            this.negatives = negatives;
+            this.falsePositives = falsePositives;
+            this.fromSnapshot = fromSnapshot;
+        }
+
+        /** Returns the number of transaction hashes added to the filter. */
+        public long getAdded() {
+            return added;
+        }
+
+        /** Returns the number of spent outputs whose transaction hashes are still in the filter. */
+        public long getRemoved() {
+            return removed;
+        }
+
+        /** Returns the share of the bits of the filter that are set. */
+        public double getFill() {
+            return fill;
+        }
+
+        /** Returns how often the filter said a transaction may have unspent outputs. */
+        public long getPositives() {
+            return positives;
+        }
+
+        /** Returns how often the filter said a transaction has no unspent outputs, saving a database lookup. */
+        public long getNegatives() {
+            return negatives;
+        }
+
+        /** Returns how often the filter said a transaction may have unspent outputs, but it had none. */
+        public long getFalsePositives() {
+            return falsePositives;
+        }
+
+        /** Returns the share of lookups the filter answered without going to the database. */
+        public double getHitRate() {
+            long lookups = positives + negatives;
+            return lookups == 0 ? 0 : (double) negatives / lookups;
+        }
+
+        /** Returns the share of positives that turned out to be wrong. */
+        public double getFalsePositiveRate() {
+            return positives == 0 ? 0 : (double) falsePositives / positives;
+        }
+
+        /** Returns whether the filter was loaded from a snapshot rather than rebuilt from the database. */
+        public boolean isFromSnapshot() {
+            return fromSnapshot;
+        }
+
+        @Override
+        public String toString() {
+            return "added:" + added + " removed:" + removed + " fill:" + String.format("%.2f", fill)
+                    + " positive:" + positives + " negative:" + negatives + " false positive:"
+                    + falsePositives + " hit rate:" + String.format("%.2f", getHitRate())
+                    + (fromSnapshot ? " (from snapshot)" : "");
+        }
+    }
+
     private void initFromDb() throws BlockStoreException {
         Sha256Hash hash = Sha256Hash.wrap(batchGet(getKey(KeyType.CHAIN_HEAD_SETTING)));
         this.chainHeadBlock = get(hash);
@@ -376,7 +617,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         double hitrate = (hit + 0.0) / (hit + miss + 0.0);
         log.info("Cache size:" + utxoCache.size() + " hit:" + hit + " miss:" + miss + " rate:"
                 + String.format("%.2f", hitrate));
-        bloom.printStat();
+        log.info("Bloom " + getBloomFilterStats());
         log.info("hasTxOut call:" + hasCall + " True:" + hasTrue + " False:" + hasFalse);
         log.info("Wall:" + totalStopwatch + " percent:" + String.format("%.2f", dbproportion));
         String stats = db.getProperty("leveldb.stats");
@@ -408,6 +649,8 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
 
     @Override
     public void close() throws BlockStoreException {
+        if (autoCommit)
+            writeBloomFilterSnapshot();
         try {
             db.close();
         } catch (IOException e) {
@@ -422,56 +665,58 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
 
     @Override
     public List<UTXO> getOpenTransactionOutputs(List<ECKey> keys) throws UTXOProviderException {
+        return getOpenTransactionOutputsForScripts(ScriptIndex.scriptsOfKeys(keys));
+    }
+
+    @Override
+    public List<UTXO> getOpenTransactionOutputsForScripts(Set<Script> scripts) throws UTXOProviderException {
         // Run this on a snapshot of database so internally consistent result
         // This is critical or if one address paid another could get incorrect
         // results
-
         List<UTXO> results = new LinkedList<>();
-        for (ECKey key : keys) {
-            ByteBuffer bb = ByteBuffer.allocate(21);
-            bb.put((byte) KeyType.ADDRESS_HASHINDEX.ordinal());
-            bb.put(key.getPubKeyHash());
-
-            ReadOptions ro = new ReadOptions();
-            Snapshot sn = db.getSnapshot();
-            ro.snapshot(sn);
-
-            // Scanning over iterator very fast
-
-            DBIterator iterator = db.iterator(ro);
-            for (iterator.seek(bb.array()); iterator.hasNext(); iterator.next()) {
-                ByteBuffer bbKey = ByteBuffer.wrap(iterator.peekNext().getKey());
-                bbKey.get(); // remove the address_hashindex byte.
-                byte[] addressKey = new byte[20];
-                bbKey.get(addressKey);
-                if (!Arrays.equals(addressKey, key.getPubKeyHash())) {
-                    break;
-                }
-                byte[] hashBytes = new byte[32];
-                bbKey.get(hashBytes);
-                int index = bbKey.getInt();
-                Sha256Hash hash = Sha256Hash.wrap(hashBytes);
-                UTXO txout;
-                try {
-                    // TODO this should be on the SNAPSHOT too......
-                    // this is really a BUG.
-                    txout = getTransactionOutput(hash, index);
-                } catch (BlockStoreException e) {
-                    throw new UTXOProviderException("block store execption", e);
-                }
-                if (txout != null) {
-                    Script sc = txout.getScript();
-                    Address address = sc.getToAddress(params, true);
-                    UTXO output = new UTXO(txout.getHash(), txout.getIndex(), txout.getValue(), txout.getHeight(),
-                            txout.isCoinbase(), txout.getScript(), address.toString());
-                    results.add(output);
+        ReadOptions ro = new ReadOptions();
+        Snapshot sn = db.getSnapshot();
+        ro.snapshot(sn);
+        DBIterator iterator = db.iterator(ro);
+        try {
+            for (Map.Entry<ByteBuffer, Set<Script>> group : ScriptIndex.groupByIndexHash(scripts).entrySet()) {
+                byte[] indexHash = group.getKey().array();
+                ByteBuffer bb = ByteBuffer.allocate(1 + ScriptIndex.HASH_LENGTH);
+                bb.put((byte) KeyType.ADDRESS_HASHINDEX.ordinal());
+                bb.put(indexHash);
+
+                // Scanning over iterator very fast
+                for (iterator.seek(bb.array()); iterator.hasNext(); iterator.next()) {
+                    ByteBuffer bbKey = ByteBuffer.wrap(iterator.peekNext().getKey());
+                    bbKey.get(); // remove the address_hashindex byte.
+                    byte[] addressKey = new byte[ScriptIndex.HASH_LENGTH];
+                    bbKey.get(addressKey);
+                    if (!Arrays.equals(addressKey, indexHash)) {
+                        break;
+                    }
+                    byte[] hashBytes = new byte[32];
+                    bbKey.get(hashBytes);
+                    int index = bbKey.getInt();
+                    // Read the output from the same snapshot as the index.
+                    byte[] outBytes = db.get(getTxKey(KeyType.OPENOUT_ALL, Sha256Hash.wrap(hashBytes), index), ro);
+                    if (outBytes == null)
+                        continue;
+                    UTXO txout = new UTXO(new ByteArrayInputStream(outBytes));
+                    // Outputs with different scripts can pay to the same hash, like P2PKH and P2PK.
+                    Script script = txout.getScript();
+                    if (group.getValue().contains(script))
+                        results.add(new UTXO(txout.getHash(), txout.getIndex(), txout.getValue(), txout.getHeight(),
+                                txout.isCoinbase(), script, FullPrunedBlockChain.getScriptAddress(params, script)));
                 }
             }
+        } catch (DBException e) {
+            throw new UTXOProviderException("block store exception", e);
+        } catch (IOException e) {
+            throw new UTXOProviderException("block store exception", e);
+        } finally {
             try {
                 iterator.close();
-                ro = null;
                 sn.close();
-                sn = null;
             } catch (IOException e) {
                 log.error("Error closing snapshot/iterator?", e);
             }
@@ -479,6 +724,35 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         return results;
     }
 
+    @Override
+    public void visitUnspentOutputs(UTXOVisitor visitor) throws BlockStoreException {
+        // Like above, read a snapshot so that the outputs are those of one chain head.
+        ReadOptions ro = new ReadOptions();
+        Snapshot sn = db.getSnapshot();
+        ro.snapshot(sn);
+        DBIterator iterator = db.iterator(ro);
+        try {
+            byte[] key = getKey(KeyType.OPENOUT_ALL);
+            for (iterator.seek(key); iterator.hasNext(); iterator.next()) {
+                Map.Entry<byte[], byte[]> entry = iterator.peekNext();
+                if (entry.getKey()[0] != key[0])
+                    break;
+                visitor.visit(new UTXO(new ByteArrayInputStream(entry.getValue())));
+            }
+        } catch (DBException e) {
+            throw new BlockStoreException(e);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            try {
+                iterator.close();
+                sn.close();
+            } catch (IOException e) {
+                log.error("Error closing snapshot/iterator?", e);
+            }
+        }
+    }
+
     @Override
     public int getChainHeadHeight() throws UTXOProviderException {
         try {
@@ -511,7 +785,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         try {
             ByteArrayOutputStream bos = new ByteArrayOutputStream();
             if (undoableBlock.getTxOutChanges() != null) {
-                undoableBlock.getTxOutChanges().serializeToStream(bos);
+                undoableBlock.getTxOutChanges().serializeCompactToStream(bos);
                 txOutChanges = bos.toByteArray();
             } else {
                 int numTxn = undoableBlock.getTransactions().size();
@@ -682,8 +956,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             } else {
                 byte[] txOutChanges = new byte[txOutSize];
                 bb.get(txOutChanges);
-                TransactionOutputChanges outChangesObject = new TransactionOutputChanges(
-                        new ByteArrayInputStream(txOutChanges));
+                TransactionOutputChanges outChangesObject = TransactionOutputChanges.parse(params, txOutChanges);
                 block = new StoredUndoableBlock(hash, outChangesObject);
             }
             if (instrument)
@@ -787,23 +1060,15 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
 
         // Could run this in parallel with above too.
         // Should update instrumentation to see if worth while.
-        Address a;
-        if (out.getAddress() == null || out.getAddress().equals("")) {
+        byte[] indexHash = ScriptIndex.indexHash(out.getScript().getProgram());
+        if (indexHash == null) {
             if (instrument)
                 endMethod("addUnspentTransactionOutput");
             return;
-        } else {
-            try {
-                a = LegacyAddress.fromBase58(params, out.getAddress());
-            } catch (AddressFormatException e) {
-                if (instrument)
-                    endMethod("addUnspentTransactionOutput");
-                return;
-            }
         }
         ByteBuffer bb = ByteBuffer.allocate(57);
         bb.put((byte) KeyType.ADDRESS_HASHINDEX.ordinal());
-        bb.put(a.getHash());
+        bb.put(indexHash);
         bb.put(out.getHash().getBytes());
         bb.putInt((int) out.getIndex());
         byte[] value = new byte[0];
@@ -875,33 +1140,17 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         }
 
         batchDelete(key);
+        bloom.removed++;
         // could run this and the above in parallel
         // Need to update instrumentation to check if worth the effort
 
-        // TODO storing as byte[] hash to save space. But think should just
-        // store as String of address. Might be faster. Need to test.
-        ByteBuffer bb = ByteBuffer.allocate(57);
-        Address a;
-        byte[] hashBytes = null;
-        try {
-            String address = out.getAddress();
-            if (address == null || address.equals("")) {
-                Script sc = out.getScript();
-                a = sc.getToAddress(params);
-                hashBytes = a.getHash();
-            } else {
-                a = LegacyAddress.fromBase58(params, out.getAddress());
-                hashBytes = a.getHash();
-            }
-        } catch (AddressFormatException e) {
-            if (instrument)
-                endMethod("removeUnspentTransactionOutput");
-            return;
-        } catch (ScriptException e) {
+        byte[] hashBytes = ScriptIndex.indexHash(out.getScript().getProgram());
+        if (hashBytes == null) {
             if (instrument)
                 endMethod("removeUnspentTransactionOutput");
             return;
         }
+        ByteBuffer bb = ByteBuffer.allocate(57);
         bb.put((byte) KeyType.ADDRESS_HASHINDEX.ordinal());
         bb.put(hashBytes);
         bb.put(out.getHash().getBytes());
@@ -950,6 +1199,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
                 return true;
             } else {
                 hasFalse++;
+                bloom.falsePositives++;
                 try {
                     iterator.close();
                 } catch (IOException e) {
@@ -966,6 +1216,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             log.error("Error closing iterator", e);
         }
         hasFalse++;
+        bloom.falsePositives++;
         if (instrument)
             endMethod("hasUnspentOutputs");
         return false;
@@ -1080,6 +1331,14 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         if (instrument)
             endMethod("commitDatabaseBatchWrite");
 
+        // A new store is written to while opening it, before the filter is loaded.
+        if (bloom != null && bloomRebuildThreshold > 0 && bloom.needsRebuild(bloomRebuildThreshold))
+            rebuildBloomFilter();
+
+        if (bloomSnapshotInterval > 0
+                && verifiedChainHeadBlock.getHeight() - bloomSnapshotHeight >= bloomSnapshotInterval)
+            writeBloomFilterSnapshot();
+
         if (instrument && verifiedChainHeadBlock.getHeight() % 1000 == 0) {
             log.info("Height: " + verifiedChainHeadBlock.getHeight());
             dumpStats();
@@ -1115,7 +1374,6 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             uncommited = null;
             uncommitedDeletes = null;
             autoCommit = true;
-            bloom = new BloomFilter();
             utxoCache = new LRUCache(openOutCache, 0.75f);
         } catch (IOException e) {
             log.error("Exception in resetStore.", e);
@@ -1127,5 +1385,6 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
                 c.delete();
         }
         openDB();
+        loadBloomFilter();
     }
 }
@@ -0,0 +1,505 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.UTXO;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.script.Script;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A map of {@link UTXO}s by outpoint that is DB transaction-aware like {@link TransactionalHashMap}, but keeps each
+ * output packed into a single byte array, in an open-addressed table that is looked up by the raw outpoint. An output
+ * takes about a hundred bytes this way, a fraction of a HashMap entry with its UTXO, script and key objects, and
+ * looking up outputs doesn't allocate anything other than the returned UTXO.</p>
+ *
+ * <p>Outputs with a script that {@link ScriptIndex} knows are also indexed by the hash they pay to, so that a wallet
+ * can find its outputs without a scan. The outputs paying to a hash are linked into a list by the ids of their
+ * records, which are kept in the records themselves, and another open-addressed table holds the first record of each
+ * list. This costs eight bytes per output and two ints per slot of that table.</p>
+ *
+ * <p>Changes made by a thread in a transaction are kept in a table of its own until they are committed. This class is
+ * not thread-safe.</p>
+ */
+class PackedUTXOMap {
+    // Layout of a packed output: the outpoint, then flags, value, height, the ids of the records before and after it
+    // in the list of its script index hash, address and script.
+    private static final int INDEX_OFFSET = Sha256Hash.LENGTH;
+    private static final int KEY_LENGTH = INDEX_OFFSET + 4;
+    private static final int FLAGS_OFFSET = KEY_LENGTH;
+    private static final int VALUE_OFFSET = FLAGS_OFFSET + 1;
+    private static final int HEIGHT_OFFSET = VALUE_OFFSET + 8;
+    private static final int PREVIOUS_OFFSET = HEIGHT_OFFSET + 4;
+    private static final int NEXT_OFFSET = PREVIOUS_OFFSET + 4;
+    private static final int ADDRESS_LENGTH_OFFSET = NEXT_OFFSET + 4;
+    private static final int ADDRESS_OFFSET = ADDRESS_LENGTH_OFFSET + 1;
+
+    private static final int FLAG_COINBASE = 1;
+    // Marks an output that was removed in a transaction. Such records consist of the outpoint and flags only.
+    private static final int FLAG_REMOVED = 2;
+
+    // Stands for no record in links between records.
+    private static final int NONE = -1;
+
+    private final Table map = new Table();
+    // The first of the committed outputs paying to each hash of ScriptIndex.
+    private final ScriptTable scriptIndex = new ScriptTable(map);
+    private final ThreadLocal<Table> tempTable = new ThreadLocal<>();
+    private final ThreadLocal<Boolean> inTransaction = new ThreadLocal<>();
+
+    public void beginDatabaseBatchWrite() {
+        inTransaction.set(true);
+    }
+
+    public void commitDatabaseBatchWrite() {
+        Table temp = tempTable.get();
+        if (temp != null) {
+            for (byte[] record : temp.records) {
+                if (record == null)
+                    continue;
+                if ((record[FLAGS_OFFSET] & FLAG_REMOVED) != 0)
+                    removeCommitted(record, Utils.readUint32(record, INDEX_OFFSET));
+                else
+                    putCommitted(record);
+            }
+        }
+        abortDatabaseBatchWrite();
+    }
+
+    public void abortDatabaseBatchWrite() {
+        inTransaction.set(false);
+        tempTable.remove();
+    }
+
+    /** Returns the record of the given output, or null if there is none. */
+    @Nullable
+    private byte[] getRecord(byte[] hash, long index) {
+        if (Boolean.TRUE.equals(inTransaction.get())) {
+            Table temp = tempTable.get();
+            if (temp != null) {
+                byte[] record = temp.get(hash, index);
+                if (record != null)
+                    return (record[FLAGS_OFFSET] & FLAG_REMOVED) != 0 ? null : record;
+            }
+        }
+        return map.get(hash, index);
+    }
+
+    @Nullable
+    public UTXO get(Sha256Hash hash, long index) {
+        byte[] record = getRecord(hash.getBytes(), index);
+        return record != null ? decode(record) : null;
+    }
+
+    public boolean contains(Sha256Hash hash, long index) {
+        return getRecord(hash.getBytes(), index) != null;
+    }
+
+    public void put(UTXO out) {
+        byte[] record = encode(out);
+        if (Boolean.TRUE.equals(inTransaction.get()))
+            getTempTable().put(record);
+        else
+            putCommitted(record);
+    }
+
+    /** Removes the given output, returning false if there was none. */
+    public boolean remove(Sha256Hash hash, long index) {
+        byte[] hashBytes = hash.getBytes();
+        if (Boolean.TRUE.equals(inTransaction.get())) {
+            if (getRecord(hashBytes, index) == null)
+                return false;
+            byte[] marker = Arrays.copyOf(hashBytes, FLAGS_OFFSET + 1);
+            Utils.uint32ToByteArrayLE(index, marker, INDEX_OFFSET);
+            marker[FLAGS_OFFSET] = FLAG_REMOVED;
+            getTempTable().put(marker);
+            return true;
+        }
+        return removeCommitted(hashBytes, index);
+    }
+
+    private void putCommitted(byte[] record) {
+        // Records are unlinked while they are still in the table, as the script table looks up the first of a list.
+        byte[] replaced = map.get(record, Utils.readUint32(record, INDEX_OFFSET));
+        if (replaced != null)
+            unindex(replaced);
+        int id = map.put(record);
+        byte[] hash = indexHashOf(record);
+        if (hash != null)
+            scriptIndex.add(id, hash);
+    }
+
+    private boolean removeCommitted(byte[] hash, long index) {
+        byte[] record = map.get(hash, index);
+        if (record == null)
+            return false;
+        unindex(record);
+        map.remove(hash, index);
+        return true;
+    }
+
+    private void unindex(byte[] record) {
+        byte[] hash = indexHashOf(record);
+        if (hash != null)
+            scriptIndex.remove(record, hash);
+    }
+
+    @Nullable
+    private static byte[] indexHashOf(byte[] record) {
+        int scriptOffset = ADDRESS_OFFSET + (record[ADDRESS_LENGTH_OFFSET] & 0xFF);
+        return ScriptIndex.indexHash(record, scriptOffset, record.length - scriptOffset);
+    }
+
+    private static int readLink(byte[] record, int offset) {
+        return (int) Utils.readUint32(record, offset);
+    }
+
+    private static void writeLink(byte[] record, int offset, int id) {
+        Utils.uint32ToByteArrayLE(id & 0xFFFFFFFFL, record, offset);
+    }
+
+    private Table getTempTable() {
+        Table temp = tempTable.get();
+        if (temp == null) {
+            temp = new Table();
+            tempTable.set(temp);
+        }
+        return temp;
+    }
+
+    /** Returns the number of outputs, not counting changes of an open transaction. */
+    public int size() {
+        return map.size;
+    }
+
+    /** Returns all outputs with any of the given scripts, not counting changes of an open transaction. */
+    public List<UTXO> getByScripts(Collection<Script> scripts) {
+        List<UTXO> found = new ArrayList<>();
+        for (Map.Entry<ByteBuffer, Set<Script>> group : ScriptIndex.groupByIndexHash(scripts).entrySet()) {
+            for (int id = scriptIndex.first(group.getKey().array()); id != NONE;
+                    id = readLink(map.records[id], NEXT_OFFSET)) {
+                UTXO out = decode(map.records[id]);
+                // Outputs with different scripts can pay to the same hash, like P2PKH and P2PK.
+                if (group.getValue().contains(out.getScript()))
+                    found.add(out);
+            }
+        }
+        return found;
+    }
+
+    /** Passes all outputs to the given visitor, not counting changes of an open transaction. */
+    public void visit(FullPrunedBlockStore.UTXOVisitor visitor) throws BlockStoreException {
+        for (byte[] record : map.records)
+            if (record != null)
+                visitor.visit(decode(record));
+    }
+
+    static byte[] encode(UTXO out) {
+        byte[] address = out.getAddress() != null ? out.getAddress().getBytes(StandardCharsets.US_ASCII) : new byte[0];
+        checkArgument(address.length <= 0xFF, "Address too long");
+        byte[] script = out.getScript().getProgram();
+        int scriptOffset = ADDRESS_OFFSET + address.length;
+        byte[] record = new byte[scriptOffset + script.length];
+        System.arraycopy(out.getHash().getBytes(), 0, record, 0, Sha256Hash.LENGTH);
+        Utils.uint32ToByteArrayLE(out.getIndex(), record, INDEX_OFFSET);
+        record[FLAGS_OFFSET] = (byte) (out.isCoinbase() ? FLAG_COINBASE : 0);
+        Utils.int64ToByteArrayLE(out.getValue().value, record, VALUE_OFFSET);
+        Utils.uint32ToByteArrayLE(out.getHeight(), record, HEIGHT_OFFSET);
+        writeLink(record, PREVIOUS_OFFSET, NONE);
+        writeLink(record, NEXT_OFFSET, NONE);
+        record[ADDRESS_LENGTH_OFFSET] = (byte) address.length;
+        System.arraycopy(address, 0, record, ADDRESS_OFFSET, address.length);
+        System.arraycopy(script, 0, record, scriptOffset, script.length);
+        return record;
+    }
+
+    static UTXO decode(byte[] record) {
+        int addressLength = record[ADDRESS_LENGTH_OFFSET] & 0xFF;
+        int scriptOffset = ADDRESS_OFFSET + addressLength;
+        return new UTXO(Sha256Hash.wrap(Arrays.copyOf(record, Sha256Hash.LENGTH)),
+                Utils.readUint32(record, INDEX_OFFSET),
+                Coin.valueOf(Utils.readInt64(record, VALUE_OFFSET)),
+                (int) Utils.readUint32(record, HEIGHT_OFFSET),
+                (record[FLAGS_OFFSET] & FLAG_COINBASE) != 0,
+                new Script(Arrays.copyOfRange(record, scriptOffset, record.length)),
+                new String(record, ADDRESS_OFFSET, addressLength, StandardCharsets.US_ASCII));
+    }
+
+    private static boolean regionEquals(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+        for (int i = 0; i < length; i++)
+            if (a[aOffset + i] != b[bOffset + i])
+                return false;
+        return true;
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Records by id, and an open-addressed hash table of their ids keyed by the first {@link #KEY_LENGTH} bytes of
+     * the records, with linear probing. The ids of records stay the same until they are removed, after which they are
+     * reused. The table is kept at most half full, and removals shift later entries back instead of leaving
+     * tombstones.
+     */
+    static class Table {
+        private static final int INITIAL_CAPACITY = 16;
+        private static final SecureRandom random = new SecureRandom();
+
+        // Mixed into the hash of each key, as transaction hashes are cheap to grind into the same slot.
+        private final long seed = random.nextLong();
+        byte[][] records = new byte[INITIAL_CAPACITY][];
+        private int nextId;
+        private int[] freeIds = new int[INITIAL_CAPACITY];
+        private int freeCount;
+        // The id plus one of the record in each slot, 0 for empty slots.
+        private int[] slots = new int[INITIAL_CAPACITY];
+        int size;
+
+        /** Returns the id of the record of the given outpoint, or {@link #NONE} if there is none. */
+        int find(byte[] hash, long index) {
+            int mask = slots.length - 1;
+            for (int i = slotOf(hash, index); ; i = (i + 1) & mask) {
+                int id = slots[i] - 1;
+                if (id == NONE || keyEquals(records[id], hash, index))
+                    return id;
+            }
+        }
+
+        @Nullable
+        byte[] get(byte[] hash, long index) {
+            int id = find(hash, index);
+            return id != NONE ? records[id] : null;
+        }
+
+        /** Adds the given record, or replaces the one with the same key, returning its id. */
+        int put(byte[] record) {
+            int id = find(record, Utils.readUint32(record, INDEX_OFFSET));
+            if (id != NONE) {
+                records[id] = record;
+                return id;
+            }
+            if (2 * (size + 1) > slots.length)
+                resize(2 * slots.length);
+            if (freeCount > 0) {
+                id = freeIds[--freeCount];
+            } else {
+                if (nextId == records.length)
+                    records = Arrays.copyOf(records, 2 * records.length);
+                id = nextId++;
+            }
+            records[id] = record;
+            insert(id);
+            size++;
+            return id;
+        }
+
+        /**
+         * Removes the record of the given outpoint, returning it or null if there was none. Like for the other
+         * methods, the hash may be any array that starts with the transaction hash, such as a record.
+         */
+        @Nullable
+        byte[] remove(byte[] hash, long index) {
+            int mask = slots.length - 1;
+            int i = slotOf(hash, index);
+            while (true) {
+                int id = slots[i] - 1;
+                if (id == NONE)
+                    return null;
+                if (keyEquals(records[id], hash, index))
+                    break;
+                i = (i + 1) & mask;
+            }
+            int id = slots[i] - 1;
+            // Move back the records after it that would no longer be found, as they probed past this slot.
+            int j = i;
+            while (true) {
+                j = (j + 1) & mask;
+                if (slots[j] == 0)
+                    break;
+                byte[] record = records[slots[j] - 1];
+                int home = slotOf(record, Utils.readUint32(record, INDEX_OFFSET));
+                boolean homeBetween = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+                if (!homeBetween) {
+                    slots[i] = slots[j];
+                    i = j;
+                }
+            }
+            slots[i] = 0;
+            size--;
+            byte[] removed = records[id];
+            records[id] = null;
+            if (freeCount == freeIds.length)
+                freeIds = Arrays.copyOf(freeIds, 2 * freeIds.length);
+            freeIds[freeCount++] = id;
+            return removed;
+        }
+
+        private void insert(int id) {
+            byte[] record = records[id];
+            int mask = slots.length - 1;
+            int i = slotOf(record, Utils.readUint32(record, INDEX_OFFSET));
+            while (slots[i] != 0)
+                i = (i + 1) & mask;
+            slots[i] = id + 1;
+        }
+
+        private void resize(int capacity) {
+            slots = new int[capacity];
+            for (int id = 0; id < nextId; id++)
+                if (records[id] != null)
+                    insert(id);
+        }
+
+        private int slotOf(byte[] hash, long index) {
+            return (int) mix(Utils.readInt64(hash, 0) ^ seed ^ (index * 0x9E3779B97F4A7C15L)) & (slots.length - 1);
+        }
+
+        private static boolean keyEquals(byte[] record, byte[] hash, long index) {
+            return Utils.readUint32(record, INDEX_OFFSET) == index && regionEquals(record, 0, hash, 0, Sha256Hash.LENGTH);
+        }
+    }
+
+    /**
+     * Open-addressed hash table of the id of the first record of each list of records paying to the same hash of
+     * {@link ScriptIndex}, keyed by that hash, with linear probing. The hashes themselves aren't kept but looked up in
+     * the first record, so a slot is two ints: the id and the hash code of the hash.
+     */
+    static class ScriptTable {
+        private static final int INITIAL_CAPACITY = 16;
+
+        private final Table table;
+        private final long seed = Table.random.nextLong();
+        // The id plus one of the first record in each slot, 0 for empty slots.
+        private int[] firsts = new int[INITIAL_CAPACITY];
+        private int[] codes = new int[INITIAL_CAPACITY];
+        private int size;
+
+        ScriptTable(Table table) {
+            this.table = table;
+        }
+
+        /** Returns the id of the first record paying to the given hash, or {@link #NONE} if there is none. */
+        int first(byte[] hash) {
+            int slot = find(hash, codeOf(hash));
+            return slot >= 0 ? firsts[slot] - 1 : NONE;
+        }
+
+        /** Makes the record of the given id, which pays to the given hash, the first of its list. */
+        void add(int id, byte[] hash) {
+            byte[] record = table.records[id];
+            writeLink(record, PREVIOUS_OFFSET, NONE);
+            int code = codeOf(hash);
+            int slot = find(hash, code);
+            if (slot >= 0) {
+                int next = firsts[slot] - 1;
+                writeLink(record, NEXT_OFFSET, next);
+                writeLink(table.records[next], PREVIOUS_OFFSET, id);
+                firsts[slot] = id + 1;
+                return;
+            }
+            writeLink(record, NEXT_OFFSET, NONE);
+            if (2 * (size + 1) > firsts.length) {
+                resize(2 * firsts.length);
+                slot = find(hash, code);
+            }
+            slot = -slot - 1;
+            firsts[slot] = id + 1;
+            codes[slot] = code;
+            size++;
+        }
+
+        /** Unlinks the given record, which pays to the given hash and must still be in the table. */
+        void remove(byte[] record, byte[] hash) {
+            int previous = readLink(record, PREVIOUS_OFFSET), next = readLink(record, NEXT_OFFSET);
+            if (next != NONE)
+                writeLink(table.records[next], PREVIOUS_OFFSET, previous);
+            if (previous != NONE) {
+                writeLink(table.records[previous], NEXT_OFFSET, next);
+                return;
+            }
+            int slot = find(hash, codeOf(hash));
+            if (next != NONE) {
+                firsts[slot] = next + 1;
+                return;
+            }
+            // Move back the entries after it that would no longer be found, as they probed past this slot.
+            int mask = firsts.length - 1;
+            int i = slot, j = slot;
+            while (true) {
+                j = (j + 1) & mask;
+                if (firsts[j] == 0)
+                    break;
+                int home = codes[j] & mask;
+                boolean homeBetween = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+                if (!homeBetween) {
+                    firsts[i] = firsts[j];
+                    codes[i] = codes[j];
+                    i = j;
+                }
+            }
+            firsts[i] = 0;
+            size--;
+        }
+
+        // Returns the slot of the given hash, or minus one minus the slot to put it in if it isn't in the table.
+        private int find(byte[] hash, int code) {
+            int mask = firsts.length - 1;
+            for (int i = code & mask; ; i = (i + 1) & mask) {
+                if (firsts[i] == 0)
+                    return -i - 1;
+                if (codes[i] == code && Arrays.equals(indexHashOf(table.records[firsts[i] - 1]), hash))
+                    return i;
+            }
+        }
+
+        private void resize(int capacity) {
+            int[] oldFirsts = firsts, oldCodes = codes;
+            firsts = new int[capacity];
+            codes = new int[capacity];
+            int mask = capacity - 1;
+            for (int k = 0; k < oldFirsts.length; k++) {
+                if (oldFirsts[k] == 0)
+                    continue;
+                int i = oldCodes[k] & mask;
+                while (firsts[i] != 0)
+                    i = (i + 1) & mask;
+                firsts[i] = oldFirsts[k];
+                codes[i] = oldCodes[k];
+            }
+        }
+
+        private int codeOf(byte[] hash) {
+            return (int) mix(Utils.readInt64(hash, 0) ^ seed);
+        }
+    }
+}
@@ -19,16 +19,15 @@
 package org.bitcoinj.store;
 
 import org.bitcoinj.core.*;
+import org.bitcoinj.script.Script;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Types;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -88,6 +87,8 @@ public class PostgresFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
     private static final String CREATE_UNDOABLE_TABLE_INDEX             = "CREATE INDEX undoableblocks_height_idx ON undoableBlocks USING btree (height)";
 
     private static final String SELECT_UNDOABLEBLOCKS_EXISTS_SQL        = "select 1 from undoableblocks where hash = ?";
+    private static final String INSERT_OPENOUTPUTS_UNNEST_SQL           = "INSERT INTO openoutputs (hash, index, height, value, scriptbytes, toaddress, addresstargetable, coinbase) "
+            + "SELECT * FROM unnest(?::bytea[], ?::integer[], ?::integer[], ?::bigint[], ?::bytea[], ?::varchar[], ?::smallint[], ?::boolean[])";
 
     /**
      * Creates a new PostgresFullPrunedBlockStore.
@@ -165,33 +166,55 @@ public class PostgresFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
         return DATABASE_DRIVER_CLASS;
     }
 
+    /**
+     * Inserts the outputs with a single statement that unnests one array parameter per column, which is about as
+     * fast as COPY for the size of a block, but doesn't need the API of the driver.
+     */
     @Override
-    public void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
-        maybeConnect();
-        // We skip the first 4 bytes because (on mainnet) the minimum target has 4 0-bytes
-        byte[] hashBytes = new byte[28];
-        System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 4, hashBytes, 0, 28);
-        int height = storedBlock.getHeight();
-        byte[] transactions = null;
-        byte[] txOutChanges = null;
+    protected void insertOpenOutputs(List<UTXO> outputs) throws SQLException {
+        int size = outputs.size();
+        byte[][] hashes = new byte[size][];
+        Integer[] indexes = new Integer[size];
+        Integer[] heights = new Integer[size];
+        Long[] values = new Long[size];
+        byte[][] scripts = new byte[size][];
+        String[] addresses = new String[size];
+        Integer[] scriptTypes = new Integer[size];
+        Boolean[] coinbases = new Boolean[size];
+        for (int i = 0; i < size; i++) {
+            UTXO out = outputs.get(i);
+            hashes[i] = out.getHash().getBytes();
+            // index is actually an unsigned int
+            indexes[i] = (int) out.getIndex();
+            heights[i] = out.getHeight();
+            values[i] = out.getValue().value;
+            scripts[i] = out.getScript().getProgram();
+            addresses[i] = out.getAddress();
+            Script.ScriptType scriptType = out.getScript().getScriptType();
+            scriptTypes[i] = scriptType != null ? scriptType.id : 0;
+            coinbases[i] = out.isCoinbase();
+        }
+        Connection connection = conn.get();
+        PreparedStatement s = connection.prepareStatement(INSERT_OPENOUTPUTS_UNNEST_SQL);
         try {
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            if (undoableBlock.getTxOutChanges() != null) {
-                undoableBlock.getTxOutChanges().serializeToStream(bos);
-                txOutChanges = bos.toByteArray();
-            } else {
-                int numTxn = undoableBlock.getTransactions().size();
-                Utils.uint32ToByteStreamLE(numTxn, bos);
-                for (Transaction tx : undoableBlock.getTransactions())
-                    tx.bitcoinSerialize(bos);
-                transactions = bos.toByteArray();
-            }
-            bos.close();
-        } catch (IOException e) {
-            throw new BlockStoreException(e);
+            s.setArray(1, connection.createArrayOf("bytea", hashes));
+            s.setArray(2, connection.createArrayOf("int4", indexes));
+            s.setArray(3, connection.createArrayOf("int4", heights));
+            s.setArray(4, connection.createArrayOf("int8", values));
+            s.setArray(5, connection.createArrayOf("bytea", scripts));
+            s.setArray(6, connection.createArrayOf("varchar", addresses));
+            s.setArray(7, connection.createArrayOf("int4", scriptTypes));
+            s.setArray(8, connection.createArrayOf("bool", coinbases));
+            s.executeUpdate();
+        } finally {
+            s.close();
         }
+    }
 
-
+    @Override
+    protected void putUndoableBlock(StoredBlock storedBlock, byte[] hashBytes, @Nullable byte[] txOutChanges,
+                                    @Nullable byte[] transactions) throws SQLException, BlockStoreException {
+        int height = storedBlock.getHeight();
         try {
             if (log.isDebugEnabled())
                 log.debug("Looking for undoable block with hash: " + Utils.HEX.encode(hashBytes));
@@ -209,50 +232,31 @@ public class PostgresFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
                 // seems to work for bitcoinj
                 PreparedStatement s =
                         conn.get().prepareStatement(getUpdateUndoableBlocksSQL());
-                s.setBytes(3, hashBytes);
 
                 if (log.isDebugEnabled())
                     log.debug("Updating undoable block with hash: " + Utils.HEX.encode(hashBytes));
 
-                if (transactions == null) {
-                    s.setBytes(1, txOutChanges);
-                    s.setNull(2, Types.BINARY);
-                } else {
-                    s.setNull(1, Types.BINARY);
-                    s.setBytes(2, transactions);
-                }
+                setUndoableBlockUpdateParameters(s, hashBytes, txOutChanges, transactions);
                 s.executeUpdate();
                 s.close();
 
                 return;
             }
+            findS.close();
 
             PreparedStatement s =
                     conn.get().prepareStatement(getInsertUndoableBlocksSQL());
-            s.setBytes(1, hashBytes);
-            s.setInt(2, height);
 
             if (log.isDebugEnabled())
                 log.debug("Inserting undoable block with hash: " + Utils.HEX.encode(hashBytes)  + " at height " + height);
 
-            if (transactions == null) {
-                s.setBytes(3, txOutChanges);
-                s.setNull(4, Types.BINARY);
-            } else {
-                s.setNull(3, Types.BINARY);
-                s.setBytes(4, transactions);
-            }
+            setUndoableBlockInsertParameters(s, hashBytes, height, txOutChanges, transactions);
             s.executeUpdate();
             s.close();
-            try {
-                putUpdateStoredBlock(storedBlock, true);
-            } catch (SQLException e) {
-                throw new BlockStoreException(e);
-            }
+            putUpdateStoredBlock(storedBlock, true);
         } catch (SQLException e) {
             if (!e.getSQLState().equals(POSTGRES_DUPLICATE_KEY_ERROR_CODE))
-                throw new BlockStoreException(e);
+                throw e;
         }
-
     }
 }
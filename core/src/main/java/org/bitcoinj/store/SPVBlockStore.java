@@ -21,11 +21,15 @@ import org.bitcoinj.utils.*;
 import org.slf4j.*;
 
 import javax.annotation.*;
+import javax.annotation.concurrent.GuardedBy;
 import java.io.*;
 import java.nio.*;
 import java.nio.channels.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.atomic.*;
 import java.util.concurrent.locks.*;
 
 import static com.google.common.base.Preconditions.*;
@@ -36,6 +40,12 @@ import static com.google.common.base.Preconditions.*;
  * An SPVBlockStore holds a limited number of block headers in a memory mapped ring buffer. With such a store, you
  * may not be able to process very deep re-orgs and could be disconnected from the chain (requiring a replay),
  * but as they are virtually unheard of this is not a significant risk.
+ *
+ * <p>Headers are stored as variable length records, so they only take the space their signature needs. Files in the
+ * older format with fixed length records (magic {@link #LEGACY_HEADER_MAGIC}) are migrated when they are opened.</p>
+ *
+ * <p>Lookups by hash go through an in-memory hash index, and usually don't take the lock, so many threads can read
+ * headers while the chain is being downloaded.</p>
  */
 public class SPVBlockStore implements BlockStore {
     private static final Logger log = LoggerFactory.getLogger(SPVBlockStore.class);
@@ -43,7 +53,9 @@ public class SPVBlockStore implements BlockStore {
 
     /** The default number of headers that will be stored in the ring buffer. */
     public static final int DEFAULT_CAPACITY = 10000;
-    public static final String HEADER_MAGIC = "SPVB";
+    public static final String HEADER_MAGIC = "SPV2";
+    /** Magic of the older file format with fixed length records, which is migrated on open. */
+    public static final String LEGACY_HEADER_MAGIC = "SPVB";
 
     protected volatile MappedByteBuffer buffer;
     protected final NetworkParameters params;
@@ -53,31 +65,27 @@ public class SPVBlockStore implements BlockStore {
     //
     // MMapping a file in Java does not give us a byte[] as you may expect but rather a ByteBuffer, and whilst on
     // the OpenJDK/Oracle JVM calls into the get() methods are compiled down to inlined native code on Android each
-    // get() call is actually a full-blown JNI method under the hood, meaning it's unbelievably slow. The caches
-    // below let us stay in the JIT-compiled Java world without expensive JNI transitions and make a 10x difference!
-    protected LinkedHashMap<Sha256Hash, StoredBlock> blockCache = new LinkedHashMap<Sha256Hash, StoredBlock>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> entry) {
-            return size() > 2050;  // Slightly more than the difficulty transition period.
-        }
-    };
-    // Use a separate cache to track get() misses. This is to efficiently handle the case of an unconnected block
-    // during chain download. Each new block will do a get() on the unconnected block so if we haven't seen it yet we
-    // must efficiently respond.
-    //
-    // We don't care about the value in this cache. It is always notFoundMarker. Unfortunately LinkedHashSet does not
-    // provide the removeEldestEntry control.
-    private static final Object NOT_FOUND_MARKER = new Object();
-    protected LinkedHashMap<Sha256Hash, Object> notFoundCache = new LinkedHashMap<Sha256Hash, Object>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Object> entry) {
-            return size() > 100;  // This was chosen arbitrarily.
-        }
-    };
+    // get() call is actually a full-blown JNI method under the hood, meaning it's unbelievably slow. The cache
+    // below lets us stay in the JIT-compiled Java world without expensive JNI transitions and makes a 10x difference!
+    // It is direct mapped by block hash, so readers can use it without taking the lock.
+    private static final int BLOCK_CACHE_SIZE = 2048;  // About the difficulty transition period.
+    private final AtomicReferenceArray<StoredBlock> blockCache = new AtomicReferenceArray<>(BLOCK_CACHE_SIZE);
+
+    // Open addressed hash table from block hash to index slot, so that get() doesn't have to scan the ring. Each entry
+    // holds the first four bytes of the hash in the upper half and the slot plus one in the lower half, or is zero if
+    // empty. Collisions are resolved by linear probing. It has at least twice as many entries as the index has slots.
+    private final AtomicLongArray slotsByHash;
+    // For each index slot, the first four bytes of the hash of its block, needed to remove the entry again.
+    @GuardedBy("lock") private final int[] slotKeys;
+    // Incremented before and after each modification by put() or clear(), so it is odd during a modification. Readers
+    // that don't take the lock use it to detect concurrent modifications, in which case they retry with the lock.
+    private volatile int version;
+
     // Used to stop other applications/processes from opening the store.
     protected FileLock fileLock = null;
     protected RandomAccessFile randomAccessFile = null;
     private int fileLength;
+    private final int capacity;
 
     /**
      * Creates and initializes an SPV block store that can hold {@link #DEFAULT_CAPACITY} block headers. Will create the
@@ -101,29 +109,22 @@ public class SPVBlockStore implements BlockStore {
         checkNotNull(file);
         this.params = checkNotNull(params);
         checkArgument(capacity > 0);
+        this.capacity = capacity;
+        this.slotsByHash = new AtomicLongArray(Integer.highestOneBit(capacity * 2 - 1) << 1);
+        this.slotKeys = new int[capacity];
         try {
             boolean exists = file.exists();
+            if (exists)
+                migrateIfNeeded(params, file, capacity, grow);
             // Set up the backing file.
             randomAccessFile = new RandomAccessFile(file, "rw");
             fileLength = getFileSize(capacity);
             if (!exists) {
                 log.info("Creating new SPV block chain file " + file);
                 randomAccessFile.setLength(fileLength);
-            } else {
-                final long currentLength = randomAccessFile.length();
-                if (currentLength != fileLength) {
-                    if ((currentLength - FILE_PROLOGUE_BYTES) % RECORD_SIZE != 0)
-                        throw new BlockStoreException(
-                                "File size on disk indicates this is not a block store: " + currentLength);
-                    else if (!grow)
-                        throw new BlockStoreException("File size on disk does not match expected size: " + currentLength
-                                + " vs " + fileLength);
-                    else if (fileLength < randomAccessFile.length())
-                        throw new BlockStoreException(
-                                "Shrinking is unsupported: " + currentLength + " vs " + fileLength);
-                    else
-                        randomAccessFile.setLength(fileLength);
-                }
+            } else if (randomAccessFile.length() != fileLength) {
+                throw new BlockStoreException("File size on disk does not match expected size: "
+                        + randomAccessFile.length() + " vs " + fileLength);
             }
 
             FileChannel channel = randomAccessFile.getChannel();
@@ -144,6 +145,7 @@ public class SPVBlockStore implements BlockStore {
                 buffer.get(header);
                 if (!new String(header, StandardCharsets.US_ASCII).equals(HEADER_MAGIC))
                     throw new BlockStoreException("Header bytes do not equal " + HEADER_MAGIC);
+                rebuildHashIndex();
             } else {
                 initNewStore(params);
             }
@@ -164,7 +166,9 @@ public class SPVBlockStore implements BlockStore {
         // Insert the genesis block.
         lock.lock();
         try {
-            setRingCursor(buffer, FILE_PROLOGUE_BYTES);
+            buffer.putInt(CAPACITY_OFFSET, capacity);
+            setIndexCursor(buffer, 0);
+            setDataCursor(buffer, getDataStart());
         } finally {
             lock.unlock();
         }
@@ -176,7 +180,8 @@ public class SPVBlockStore implements BlockStore {
 
     /** Returns the size in bytes of the file that is used to store the chain with the current parameters. */
     public static final int getFileSize(int capacity) {
-        return RECORD_SIZE * capacity + FILE_PROLOGUE_BYTES /* extra kilobyte for stuff */;
+        return INDEX_ENTRY_SIZE * capacity + RECORD_SIZE * (capacity + 1)
+                + FILE_PROLOGUE_BYTES /* extra kilobyte for stuff */;
     }
 
     @Override
@@ -184,21 +189,36 @@ public class SPVBlockStore implements BlockStore {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
+        int headerSize = block.getHeader().getHeaderSize();
+        if (headerSize > MAX_HEADER_SIZE)
+            throw new BlockStoreException("Block header too large for store: " + headerSize + " bytes");
+        int recordSize = 32 + block.getCompactSerializedSize();
         lock.lock();
+        version++;
         try {
-            int cursor = getRingCursor(buffer);
-            if (cursor == fileLength) {
-                // Wrapped around.
-                cursor = FILE_PROLOGUE_BYTES;
+            int cursor = getDataCursor(buffer);
+            if (cursor + recordSize > fileLength) {
+                // Wrapped around. The few bytes left at the end stay unused.
+                cursor = getDataStart();
             }
             buffer.position(cursor);
             Sha256Hash hash = block.getHeader().getHash();
-            notFoundCache.remove(hash);
             buffer.put(hash.getBytes());
-            block.serializeCompact(buffer, true);
-            setRingCursor(buffer, buffer.position());
-            blockCache.put(hash, block);
-        } finally { lock.unlock(); }
+            block.serializeCompact(buffer, false);
+            setDataCursor(buffer, buffer.position());
+            // Point the next index slot at the new record, which drops the oldest one once the index is full.
+            int slot = getIndexCursor(buffer);
+            int indexPosition = FILE_PROLOGUE_BYTES + slot * INDEX_ENTRY_SIZE;
+            if (buffer.getInt(indexPosition) != 0)
+                removeFromHashIndex(slotKeys[slot], slot);
+            buffer.putInt(indexPosition, cursor);
+            addToHashIndex(hash.getBytes(), slot);
+            setIndexCursor(buffer, (slot + 1) % capacity);
+            blockCache.set(getBlockCacheIndex(hash), block);
+        } finally {
+            version++;
+            lock.unlock();
+        }
     }
 
     @Override
@@ -211,44 +231,74 @@ public class SPVBlockStore implements BlockStore {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
-        lock.lock();
-        try {
-            StoredBlock cacheHit = blockCache.get(hash);
-            if (cacheHit != null)
-                return cacheHit;
-            if (notFoundCache.get(hash) != null)
-                return null;
+        int cacheIndex = getBlockCacheIndex(hash);
+        StoredBlock cacheHit = blockCache.get(cacheIndex);
+        if (cacheHit != null && cacheHit.getHeader().getHash().equals(hash))
+            return cacheHit;
 
-            // Starting from the current tip of the ring work backwards until we have either found the block or
-            // wrapped around.
-            int cursor = getRingCursor(buffer);
-            final int startingPoint = cursor;
-            final byte[] targetHashBytes = hash.getBytes();
-            byte[] scratch = new byte[32];
-            do {
-                cursor -= RECORD_SIZE;
-                if (cursor < FILE_PROLOGUE_BYTES) {
-                    // We hit the start, so wrap around.
-                    cursor = fileLength - RECORD_SIZE;
-                }
-                // Cursor is now at the start of the next record to check, so read the hash and compare it.
-                buffer.position(cursor);
-                buffer.get(scratch);
-                if (Arrays.equals(scratch, targetHashBytes)) {
-                    // Found the target.
-                    StoredBlock storedBlock = StoredBlock.deserializeCompact(params, buffer);
-                    blockCache.put(hash, storedBlock);
+        // Try without the lock first. The result is only valid if nothing was modified in the meantime, and a record
+        // that was overwritten while we read it can't hash to what we looked for.
+        int version = this.version;
+        if ((version & 1) == 0) {
+            try {
+                StoredBlock storedBlock = find(buffer, hash);
+                if (version == this.version && (storedBlock == null || storedBlock.getHeader().getHash().equals(hash))) {
+                    if (storedBlock != null)
+                        blockCache.set(cacheIndex, storedBlock);
                     return storedBlock;
                 }
-            } while (cursor != startingPoint);
-            // Not found.
-            notFoundCache.put(hash, NOT_FOUND_MARKER);
-            return null;
+            } catch (RuntimeException e) {
+                // Read garbage because of a concurrent modification, try again with the lock held.
+            }
+        }
+
+        lock.lock();
+        try {
+            StoredBlock storedBlock = find(buffer, hash);
+            if (storedBlock != null)
+                blockCache.set(cacheIndex, storedBlock);
+            return storedBlock;
         } catch (ProtocolException e) {
-            throw new RuntimeException(e);  // Cannot happen.
+            // put() only writes records that find() can read, so with the lock held this means the file is damaged.
+            throw new BlockStoreException("Corrupted block store: unreadable record for " + hash, e);
         } finally { lock.unlock(); }
     }
 
+    /** Looks up the record of the given block via the hash index, or returns null if it is not in the store. */
+    @Nullable
+    private StoredBlock find(ByteBuffer buffer, Sha256Hash hash) throws ProtocolException {
+        // Our own view, so that concurrent readers don't move each other's position.
+        ByteBuffer view = buffer.duplicate();
+        final byte[] targetHashBytes = hash.getBytes();
+        final int key = getHashIndexKey(targetHashBytes);
+        final int mask = slotsByHash.length() - 1;
+        byte[] scratch = new byte[32];
+        for (int i = key & mask, probes = 0; probes <= mask; i = (i + 1) & mask, probes++) {
+            long entry = slotsByHash.get(i);
+            if (entry == 0)
+                return null;
+            if ((int) (entry >>> 32) != key)
+                continue;
+            int slot = (int) entry - 1;
+            int offset = view.getInt(FILE_PROLOGUE_BYTES + slot * INDEX_ENTRY_SIZE);
+            if (offset < getDataStart() || offset > fileLength - 32)
+                continue;
+            // Compare the full hash. A record that was partly overwritten after the data wrapped around can't match,
+            // as its hash is overwritten first.
+            view.position(offset);
+            view.get(scratch);
+            if (!Arrays.equals(scratch, targetHashBytes))
+                continue;
+            // Without the lock the record may be overwritten by now, so don't trust its header size blindly. The bound
+            // is the same put() enforces, so every record it wrote passes.
+            int headerSize = view.getInt(offset + 32 + 12 + 4);
+            if (headerSize < Block.HEADER_SIZE_WITHOUT_SIGNATURE || headerSize > MAX_HEADER_SIZE)
+                throw new ProtocolException("Bad header size " + headerSize + " in record at " + offset);
+            return StoredBlock.deserializeCompact(params, view);
+        }
+        return null;
+    }
+
     protected StoredBlock lastChainHead = null;
 
     @Override
@@ -260,7 +310,7 @@ public class SPVBlockStore implements BlockStore {
         try {
             if (lastChainHead == null) {
                 byte[] headHash = new byte[32];
-                buffer.position(8);
+                buffer.position(CHAIN_HEAD_OFFSET);
                 buffer.get(headHash);
                 Sha256Hash hash = Sha256Hash.wrap(headHash);
                 StoredBlock block = get(hash);
@@ -281,7 +331,7 @@ public class SPVBlockStore implements BlockStore {
         try {
             lastChainHead = chainHead;
             byte[] headHash = chainHead.getHeader().getHash().getBytes();
-            buffer.position(8);
+            buffer.position(CHAIN_HEAD_OFFSET);
             buffer.put(headHash);
         } finally { lock.unlock(); }
     }
@@ -293,7 +343,6 @@ public class SPVBlockStore implements BlockStore {
             buffer = null;  // Allow it to be GCd and the underlying file mapping to go away.
             fileLock.release();
             randomAccessFile.close();
-            blockCache.clear();
         } catch (IOException e) {
             throw new BlockStoreException(e);
         }
@@ -305,50 +354,279 @@ public class SPVBlockStore implements BlockStore {
     }
 
     // File format:
-    //   4 header bytes = "SPVB"
-    //   4 cursor bytes, which indicate the offset from the first kb where the next block header should be written.
+    //   4 header bytes = "SPV2"
+    //   4 cursor bytes, which indicate the index slot the next block header goes into.
     //   32 bytes for the hash of the chain head
+    //   4 cursor bytes, which indicate the offset from the file start where the next record should be written.
+    //   4 bytes of capacity
     //
-    // For each header (512 bytes)
+    // After the first kb, the index: for each slot (4 bytes)
+    //   4 bytes offset of the record from the file start, or 0 if the slot was never written
+    //
+    // After the index, the records (variable length)
     //   32 bytes hash of the header
     //   12 bytes of chain work
     //    4 bytes of height
     //    4 bytes of header size
     //    ? bytes of block header data
-    //    ? bytes of padding
+    //
+    // The legacy "SPVB" format lacks the index and the second cursor. Its first cursor is the offset of the next
+    // record, and each record is padded to 512 bytes.
 
     protected static final int FILE_PROLOGUE_BYTES = 1024;
+    private static final int CHAIN_HEAD_OFFSET = 8;
+    private static final int DATA_CURSOR_OFFSET = 40;
+    private static final int CAPACITY_OFFSET = 44;
+
+    protected static final int INDEX_ENTRY_SIZE = 4;
+
+    // The largest header a record can hold: one whose signature is a DER signature of up to 72 bytes followed by a
+    // proof of delegation, which is more than any block signature Qtum Core accepts. Larger headers are rejected.
+    private static final int MAX_HEADER_SIZE = Block.HEADER_SIZE_WITHOUT_SIGNATURE + 1 + 72
+            + Block.COMPACT_SIGNATURE_SIZE;
+    /*
+     * The space reserved per header in the data area. The data area has room for one more record of this size than
+     * the capacity, so that the latest headers up to the capacity always fit, even with the space left unused at the
+     * end when the data wraps around. Headers with a shorter signature, and proof of work headers without any, leave
+     * room for more of them in the data area, but the index limits the number of headers to the capacity anyway.
+     *
+     * With 374 bytes per header including its index entry, a store of 500k headers takes 187 MB instead of the 256 MB
+     * of the legacy format. It can't shrink much further while the capacity is guaranteed, because a delegated
+     * header alone is 311 bytes.
+     */
+    protected static final int RECORD_SIZE = 32 + 12 + 4 + 4 + MAX_HEADER_SIZE;
 
-    /* the size of a block header is dynamic, just leave more room to make it fixed */
-    protected static final int RECORD_SIZE = 32 + StoredBlock.COMPACT_SERIALIZED_SIZE;
+    private static final int LEGACY_RECORD_SIZE = 32 + StoredBlock.COMPACT_SERIALIZED_SIZE;
 
-    /** Returns the offset from the file start where the latest block should be written (end of prev block). */
-    private int getRingCursor(ByteBuffer buffer) {
+    private int getDataStart() {
+        return FILE_PROLOGUE_BYTES + capacity * INDEX_ENTRY_SIZE;
+    }
+
+    /** Returns the index slot where the latest block should be referenced (after the previous block). */
+    private int getIndexCursor(ByteBuffer buffer) {
         int c = buffer.getInt(4);
-        checkState(c >= FILE_PROLOGUE_BYTES, "Integer overflow");
+        checkState(c >= 0 && c < capacity, "Corrupt index cursor");
         return c;
     }
 
-    private void setRingCursor(ByteBuffer buffer, int newCursor) {
+    private void setIndexCursor(ByteBuffer buffer, int newCursor) {
         checkArgument(newCursor >= 0);
         buffer.putInt(4, newCursor);
     }
 
+    /** Returns the offset from the file start where the latest block should be written (end of prev block). */
+    private int getDataCursor(ByteBuffer buffer) {
+        int c = buffer.getInt(DATA_CURSOR_OFFSET);
+        checkState(c >= getDataStart(), "Integer overflow");
+        return c;
+    }
+
+    private void setDataCursor(ByteBuffer buffer, int newCursor) {
+        checkArgument(newCursor >= 0);
+        buffer.putInt(DATA_CURSOR_OFFSET, newCursor);
+    }
+
+    private static int getHashIndexKey(byte[] hashBytes) {
+        return (int) Utils.readUint32BE(hashBytes, 0);
+    }
+
+    private static int getBlockCacheIndex(Sha256Hash hash) {
+        return getHashIndexKey(hash.getBytes()) & (BLOCK_CACHE_SIZE - 1);
+    }
+
+    @GuardedBy("lock")
+    private void addToHashIndex(byte[] hashBytes, int slot) {
+        int key = getHashIndexKey(hashBytes);
+        int mask = slotsByHash.length() - 1;
+        int i = key & mask;
+        while (slotsByHash.get(i) != 0)
+            i = (i + 1) & mask;
+        slotsByHash.set(i, ((long) key << 32) | (slot + 1));
+        slotKeys[slot] = key;
+    }
+
+    @GuardedBy("lock")
+    private void removeFromHashIndex(int key, int slot) {
+        int mask = slotsByHash.length() - 1;
+        int i = key & mask;
+        while (true) {
+            long entry = slotsByHash.get(i);
+            if (entry == 0)
+                return;
+            if ((int) entry == slot + 1)
+                break;
+            i = (i + 1) & mask;
+        }
+        // Move later entries of the same probe sequence up into the gap, so lookups don't stop there too early.
+        for (int j = (i + 1) & mask; ; j = (j + 1) & mask) {
+            long entry = slotsByHash.get(j);
+            if (entry == 0)
+                break;
+            int home = (int) (entry >>> 32) & mask;
+            boolean stays = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+            if (!stays) {
+                slotsByHash.set(i, entry);
+                i = j;
+            }
+        }
+        slotsByHash.set(i, 0);
+    }
+
+    /** Fills the hash index from the index slots on disk. */
+    @GuardedBy("lock")
+    private void rebuildHashIndex() {
+        for (int i = 0; i < slotsByHash.length(); i++)
+            slotsByHash.set(i, 0);
+        byte[] hashBytes = new byte[32];
+        for (int slot = 0; slot < capacity; slot++) {
+            int offset = buffer.getInt(FILE_PROLOGUE_BYTES + slot * INDEX_ENTRY_SIZE);
+            if (offset == 0)
+                continue;
+            buffer.position(offset);
+            buffer.get(hashBytes);
+            addToHashIndex(hashBytes, slot);
+        }
+    }
+
     public void clear() throws Exception {
         lock.lock();
+        version++;
         try {
             // Clear caches
-            blockCache.clear();
-            notFoundCache.clear();
+            for (int i = 0; i < BLOCK_CACHE_SIZE; i++)
+                blockCache.set(i, null);
+            lastChainHead = null;
             // Clear file content
             buffer.position(0);
             long fileLength = randomAccessFile.length();
             for (int i = 0; i < fileLength; i++) {
                 buffer.put((byte)0);
             }
+            rebuildHashIndex();
             // Initialize store again
             buffer.position(0);
             initNewStore(params);
-        } finally { lock.unlock(); }
+        } finally {
+            version++;
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Rewrites the given existing file into the current format with the given capacity, if it is in the legacy format
+     * or has a different capacity. The headers are copied oldest first into a temporary file, which then replaces the
+     * original one.
+     */
+    private static void migrateIfNeeded(NetworkParameters params, File file, int capacity, boolean grow)
+            throws BlockStoreException, IOException {
+        File tempFile = new File(file.getPath() + ".migrating");
+        try (RandomAccessFile source = new RandomAccessFile(file, "rw")) {
+            if (source.getChannel().tryLock() == null)
+                throw new ChainFileLockedException("Store file is already locked by another process");
+            long length = source.length();
+            if (length < FILE_PROLOGUE_BYTES)
+                throw new BlockStoreException("File size on disk indicates this is not a block store: " + length);
+            byte[] prologue = new byte[CAPACITY_OFFSET + 4];
+            source.readFully(prologue);
+            String magic = new String(prologue, 0, 4, StandardCharsets.US_ASCII);
+            boolean legacy = magic.equals(LEGACY_HEADER_MAGIC);
+            int sourceCapacity;
+            if (legacy) {
+                if ((length - FILE_PROLOGUE_BYTES) % LEGACY_RECORD_SIZE != 0)
+                    throw new BlockStoreException("File size on disk indicates this is not a block store: " + length);
+                sourceCapacity = (int) ((length - FILE_PROLOGUE_BYTES) / LEGACY_RECORD_SIZE);
+            } else if (magic.equals(HEADER_MAGIC)) {
+                sourceCapacity = ByteBuffer.wrap(prologue).getInt(CAPACITY_OFFSET);
+                // A file of the expected size is up to date. Otherwise its records were laid out for a different
+                // record size, so rewrite it even if the capacity is unchanged.
+                if (sourceCapacity == capacity && length == getFileSize(capacity))
+                    return;
+            } else {
+                throw new BlockStoreException("Header bytes do not equal " + HEADER_MAGIC);
+            }
+            if (sourceCapacity != capacity && !grow)
+                throw new BlockStoreException("Capacity of store on disk does not match: " + sourceCapacity + " vs "
+                        + capacity);
+            if (sourceCapacity > capacity)
+                throw new BlockStoreException("Shrinking is unsupported: " + sourceCapacity + " vs " + capacity);
+            log.info("Migrating SPV block chain file {} from {} capacity {} to {} capacity {}", file, magic,
+                    sourceCapacity, HEADER_MAGIC, capacity);
+
+            Sha256Hash chainHeadHash = Sha256Hash.wrap(Arrays.copyOfRange(prologue, CHAIN_HEAD_OFFSET,
+                    CHAIN_HEAD_OFFSET + 32));
+            StoredBlock chainHead = null;
+            if (tempFile.exists() && !tempFile.delete())
+                throw new BlockStoreException("Could not delete " + tempFile);
+            SPVBlockStore target = new SPVBlockStore(params, tempFile, capacity, false);
+            try {
+                Sha256Hash genesisHash = params.getGenesisBlock().getHash();
+                for (StoredBlock block : readRecords(params, source, legacy, sourceCapacity,
+                        ByteBuffer.wrap(prologue).getInt(4))) {
+                    Sha256Hash hash = block.getHeader().getHash();
+                    // The new store already starts with the genesis block.
+                    if (!hash.equals(genesisHash))
+                        target.put(block);
+                    if (hash.equals(chainHeadHash))
+                        chainHead = block;
+                }
+                if (chainHead == null)
+                    throw new BlockStoreException("Corrupted block store: could not find chain head: " + chainHeadHash);
+                target.setChainHead(chainHead);
+            } finally {
+                target.close();
+            }
+        } catch (BlockStoreException | IOException e) {
+            tempFile.delete();
+            throw e;
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Reads all valid records of the given store file, oldest first. Records that were partly overwritten are
+     * skipped.
+     */
+    private static List<StoredBlock> readRecords(NetworkParameters params, RandomAccessFile source, boolean legacy,
+                                                 int capacity, int cursor) throws IOException {
+        List<StoredBlock> blocks = new ArrayList<>();
+        long length = source.length();
+        int headerStart = legacy ? FILE_PROLOGUE_BYTES : FILE_PROLOGUE_BYTES + capacity * INDEX_ENTRY_SIZE;
+        // The slot at the cursor is the oldest one, or was never written.
+        int firstSlot = legacy ? (cursor - FILE_PROLOGUE_BYTES) / LEGACY_RECORD_SIZE : cursor;
+        byte[] indexEntry = new byte[INDEX_ENTRY_SIZE];
+        byte[] recordStart = new byte[32 + 12 + 4 + 4];
+        for (int i = 0; i < capacity; i++) {
+            int slot = (firstSlot + i) % capacity;
+            long offset;
+            if (legacy) {
+                offset = FILE_PROLOGUE_BYTES + (long) slot * LEGACY_RECORD_SIZE;
+            } else {
+                source.seek(FILE_PROLOGUE_BYTES + (long) slot * INDEX_ENTRY_SIZE);
+                source.readFully(indexEntry);
+                offset = ByteBuffer.wrap(indexEntry).getInt();
+                if (offset < headerStart)
+                    continue;
+            }
+            if (offset + recordStart.length > length)
+                continue;
+            source.seek(offset);
+            source.readFully(recordStart);
+            int headerSize = ByteBuffer.wrap(recordStart).getInt(32 + 12 + 4);
+            if (headerSize < Block.HEADER_SIZE_WITHOUT_SIGNATURE || offset + recordStart.length + headerSize > length)
+                continue;
+            byte[] record = Arrays.copyOf(recordStart, recordStart.length + headerSize);
+            source.readFully(record, recordStart.length, headerSize);
+            try {
+                ByteBuffer recordBuffer = ByteBuffer.wrap(record);
+                recordBuffer.position(32);
+                StoredBlock block = StoredBlock.deserializeCompact(params, recordBuffer);
+                // Unwritten slots and partly overwritten records don't hash to the stored hash.
+                if (Arrays.equals(block.getHeader().getHash().getBytes(), Arrays.copyOf(record, 32)))
+                    blocks.add(block);
+            } catch (ProtocolException e) {
+                log.warn("Skipping unreadable record at offset {}", offset);
+            }
+        }
+        return blocks;
     }
 }
@@ -0,0 +1,111 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.script.ScriptPattern;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>The hashes that full pruned block stores index unspent outputs by, for
+ * {@link FullPrunedBlockStore#getOpenTransactionOutputsForScripts(Set)}: the hash160 an output script pays to. P2PKH
+ * and P2WPKH outputs are indexed by the hash of their public key, as are P2PK outputs, and P2SH outputs by the hash of
+ * their script. Other outputs aren't indexed.</p>
+ *
+ * <p>The scripts are matched byte by byte with {@link ScriptPattern.Template}, without parsing them, as this is done
+ * for every output that is stored.</p>
+ */
+final class ScriptIndex {
+    /** The length of the hashes outputs are indexed by. */
+    static final int HASH_LENGTH = 20;
+
+    private ScriptIndex() {
+    }
+
+    /** Returns the hash an output with the given script is indexed by, or null if it isn't indexed. */
+    @Nullable
+    static byte[] indexHash(byte[] program) {
+        return indexHash(program, 0, program.length);
+    }
+
+    /**
+     * Returns the hash an output with the given script is indexed by, or null if it isn't indexed.
+     * @param bytes array holding the script
+     * @param offset start of the script
+     * @param length length of the script
+     */
+    @Nullable
+    static byte[] indexHash(byte[] bytes, int offset, int length) {
+        ScriptPattern.Template template = ScriptPattern.Template.match(bytes, offset, length);
+        if (template == null)
+            return null;
+        int dataOffset = offset + template.getDataOffset();
+        byte[] data = Arrays.copyOfRange(bytes, dataOffset, dataOffset + template.getDataLength());
+        switch (template) {
+            case P2PK_COMPRESSED:
+            case P2PK_UNCOMPRESSED:
+                return Utils.sha256hash160(data);
+            default:
+                return data;
+        }
+    }
+
+    /**
+     * Groups the given scripts by the hash outputs with them are indexed by, leaving out the ones that aren't indexed.
+     * The hashes are wrapped into buffers, so that they can be used as keys.
+     */
+    static Map<ByteBuffer, Set<Script>> groupByIndexHash(Collection<Script> scripts) {
+        Map<ByteBuffer, Set<Script>> groups = new HashMap<>();
+        for (Script script : scripts) {
+            byte[] hash = indexHash(script.getProgram());
+            if (hash == null)
+                continue;
+            ByteBuffer key = ByteBuffer.wrap(hash);
+            Set<Script> group = groups.get(key);
+            if (group == null) {
+                group = new HashSet<>();
+                groups.put(key, group);
+            }
+            group.add(script);
+        }
+        return groups;
+    }
+
+    /**
+     * Returns the scripts {@link FullPrunedBlockStore#getOpenTransactionOutputs(java.util.List)} looks for: P2PKH
+     * and P2PK of each key, and P2WPKH of the compressed ones.
+     */
+    static Set<Script> scriptsOfKeys(Collection<ECKey> keys) {
+        Set<Script> scripts = new HashSet<>();
+        for (ECKey key : keys) {
+            scripts.add(ScriptBuilder.createP2PKHOutputScript(key));
+            scripts.add(ScriptBuilder.createP2PKOutputScript(key));
+            if (key.isCompressed())
+                scripts.add(ScriptBuilder.createP2WPKHOutputScript(key));
+        }
+        return scripts;
+    }
+}
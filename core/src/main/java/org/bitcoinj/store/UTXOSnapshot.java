@@ -0,0 +1,376 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.FullPrunedBlockChain;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.PosKernelValidator;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.UTXO;
+import org.bitcoinj.core.VarInt;
+import org.bitcoinj.core.VerificationException;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.utils.DaemonThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Writes the unspent outputs of a {@link FullPrunedBlockStore} to a stream, and loads them into a new store, so
+ * that a fully verifying node can start at the verified chain head of another one instead of connecting every block
+ * since the genesis block.</p>
+ *
+ * <p>A snapshot starts with a header holding the network and the headers of the verified chain head and the blocks
+ * before it, which the checks of the next blocks look back at. Next is the history of a {@link PosKernelValidator}:
+ * the block times and stake modifiers that the proof of stake of the next blocks is checked against, which can't be
+ * worked out from the headers. The outputs follow in chunks with a checksum each, so that chunks are checked and
+ * decoded on several threads while the ones before them are written to the store. The address of an output isn't
+ * written, it is derived from the script again.</p>
+ *
+ * <p>The outputs of a snapshot are only checked against its checksums, not against the chain, so only load snapshots
+ * from a source you trust. A store loaded from a snapshot has no undo blocks, so the chain can't be reorganized below
+ * the chain head of the snapshot.</p>
+ */
+public class UTXOSnapshot {
+    private static final Logger log = LoggerFactory.getLogger(UTXOSnapshot.class);
+
+    private static final int MAGIC = 0x5554584F; // "UTXO"
+    // Version 1 had no stake kernel history.
+    private static final int VERSION = 2;
+
+    /** The default number of block headers written, counting the chain head. */
+    public static final int DEFAULT_HEADERS = 100;
+    /** The default number of outputs in a chunk. */
+    public static final int DEFAULT_OUTPUTS_PER_CHUNK = 10000;
+
+    private UTXOSnapshot() {
+    }
+
+    /**
+     * Writes the unspent outputs of the given store at its verified chain head, with the default number of headers
+     * and chunk size. The stream isn't closed.
+     * @see #write(FullPrunedBlockStore, PosKernelValidator, OutputStream, int, int)
+     * @return the number of outputs written
+     */
+    public static long write(FullPrunedBlockStore store, PosKernelValidator validator, OutputStream out)
+            throws IOException, BlockStoreException {
+        return write(store, validator, out, DEFAULT_HEADERS, DEFAULT_OUTPUTS_PER_CHUNK);
+    }
+
+    /**
+     * Writes the unspent outputs of the given store at its verified chain head. The store must not be changed until
+     * this returns. The stream isn't closed.
+     * @param validator the kernel validator for the store, to take the stake kernel history of the headers from
+     * @param headers the number of block headers to write, counting the chain head
+     * @param outputsPerChunk the number of outputs in a chunk
+     * @return the number of outputs written
+     */
+    public static long write(FullPrunedBlockStore store, PosKernelValidator validator, OutputStream out, int headers,
+                             int outputsPerChunk) throws IOException, BlockStoreException {
+        checkArgument(headers > 0, "headers must be positive");
+        checkArgument(outputsPerChunk > 0, "outputsPerChunk must be positive");
+        StoredBlock chainHead = store.getVerifiedChainHead();
+        List<StoredBlock> blocks = new ArrayList<>();
+        for (StoredBlock block = chainHead; block != null && blocks.size() < headers; block = block.getPrev(store))
+            blocks.add(block);
+        Collections.reverse(blocks);
+
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        writeChecksummed(data, encodeHeader(store.getParams(), blocks));
+        writeChecksummed(data, validator.exportHistory(chainHead, blocks.size()));
+        ChunkWriter writer = new ChunkWriter(data, outputsPerChunk);
+        try {
+            store.visitUnspentOutputs(writer);
+        } catch (BlockStoreException e) {
+            // The visitor wraps the errors of the stream.
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw e;
+        }
+        writer.writeChunk();
+        data.writeInt(0);
+        data.writeLong(writer.outputs);
+        data.flush();
+        log.info("Wrote {} outputs at {}", writer.outputs, chainHead);
+        return writer.outputs;
+    }
+
+    /**
+     * Loads a snapshot into the given store, decoding it on as many threads as there are processors.
+     * @see #load(FullPrunedBlockStore, PosKernelValidator, InputStream, int)
+     */
+    public static StoredBlock load(FullPrunedBlockStore store, PosKernelValidator validator, InputStream in)
+            throws IOException, BlockStoreException {
+        return load(store, validator, in, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Loads a snapshot into the given store, which must be new, and sets its chain head and verified chain head to
+     * the chain head of the snapshot. Each chunk of outputs is added in a batch of its own, the chain heads are set
+     * last, so if loading fails the store must be thrown away. The stream isn't closed.
+     * @param validator the kernel validator for the store, which gets the stake kernel history of the snapshot
+     * @param threads the number of threads to check and decode chunks on
+     * @return the new chain head
+     * @throws IOException if the snapshot couldn't be read, or is corrupt or of version 1, which had no stake kernel
+     * history
+     */
+    public static StoredBlock load(FullPrunedBlockStore store, PosKernelValidator validator, InputStream in,
+                                   int threads) throws IOException, BlockStoreException {
+        checkArgument(threads > 0, "threads must be positive");
+        if (store.getVerifiedChainHead().getHeight() != 0)
+            throw new BlockStoreException("Snapshots can only be loaded into a new store");
+        final NetworkParameters params = store.getParams();
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        if (data.readInt() != MAGIC)
+            throw new IOException("Not a UTXO snapshot");
+        int version = data.readInt();
+        if (version != VERSION)
+            throw new IOException("Unsupported snapshot version " + version);
+        List<StoredBlock> blocks = decodeHeader(params, readChecksummed(data));
+        StoredBlock chainHead = blocks.get(blocks.size() - 1);
+        byte[] history = readChecksummed(data);
+        if (history.length < 4 || ByteBuffer.wrap(history).getInt() != chainHead.getHeight())
+            throw new IOException("Corrupt snapshot: stake kernel history is not for the chain head");
+        validator.importHistory(history);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("UTXO snapshot"));
+        // The chunks being decoded, in order. At most a few per thread, so that a slow store doesn't make us hold
+        // much of the snapshot in memory.
+        ArrayDeque<Future<List<UTXO>>> chunks = new ArrayDeque<>();
+        long outputs = 0;
+        try {
+            int count;
+            while ((count = data.readInt()) != 0) {
+                if (count < 0)
+                    throw new IOException("Corrupt snapshot: chunk of " + count + " outputs");
+                final int chunkOutputs = count;
+                final byte[] chunk = readChecksummed(data);
+                chunks.add(executor.submit(new Callable<List<UTXO>>() {
+                    @Override
+                    public List<UTXO> call() throws IOException {
+                        return decodeChunk(params, chunk, chunkOutputs);
+                    }
+                }));
+                if (chunks.size() > 2 * threads)
+                    outputs += addOutputs(store, chunks.remove());
+            }
+            while (!chunks.isEmpty())
+                outputs += addOutputs(store, chunks.remove());
+        } finally {
+            executor.shutdownNow();
+        }
+        long expectedOutputs = data.readLong();
+        if (outputs != expectedOutputs)
+            throw new IOException("Corrupt snapshot: " + outputs + " outputs instead of " + expectedOutputs);
+
+        store.beginDatabaseBatchWrite();
+        try {
+            for (StoredBlock block : blocks)
+                store.put(block);
+            store.setChainHead(chainHead);
+            store.setVerifiedChainHead(chainHead);
+            store.commitDatabaseBatchWrite();
+        } catch (BlockStoreException e) {
+            store.abortDatabaseBatchWrite();
+            throw e;
+        }
+        log.info("Loaded {} outputs at {}", outputs, chainHead);
+        return chainHead;
+    }
+
+    /** Waits for the given chunk to be decoded, and adds its outputs to the store in one batch. */
+    private static int addOutputs(FullPrunedBlockStore store, Future<List<UTXO>> chunk)
+            throws IOException, BlockStoreException {
+        List<UTXO> outputs;
+        try {
+            outputs = Uninterruptibles.getUninterruptibly(chunk);
+        } catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause(), IOException.class);
+            throw new RuntimeException(e.getCause());
+        }
+        store.beginDatabaseBatchWrite();
+        try {
+            for (UTXO out : outputs)
+                store.addUnspentTransactionOutput(out);
+            store.commitDatabaseBatchWrite();
+        } catch (BlockStoreException e) {
+            store.abortDatabaseBatchWrite();
+            throw e;
+        }
+        return outputs.size();
+    }
+
+    /** Collects the outputs of a store into chunks, and writes each chunk once it is full. */
+    private static class ChunkWriter implements FullPrunedBlockStore.UTXOVisitor {
+        private final DataOutputStream out;
+        private final int outputsPerChunk;
+        private final ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+        private int chunkOutputs;
+        long outputs;
+
+        ChunkWriter(DataOutputStream out, int outputsPerChunk) {
+            this.out = out;
+            this.outputsPerChunk = outputsPerChunk;
+        }
+
+        @Override
+        public void visit(UTXO utxo) throws BlockStoreException {
+            try {
+                encodeOutput(chunk, utxo);
+                chunkOutputs++;
+                outputs++;
+                if (chunkOutputs == outputsPerChunk)
+                    writeChunk();
+            } catch (IOException e) {
+                throw new BlockStoreException(e);
+            }
+        }
+
+        void writeChunk() throws IOException {
+            if (chunkOutputs == 0)
+                return;
+            out.writeInt(chunkOutputs);
+            writeChecksummed(out, chunk.toByteArray());
+            chunk.reset();
+            chunkOutputs = 0;
+        }
+    }
+
+    private static void writeChecksummed(DataOutputStream out, byte[] payload) throws IOException {
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.write(Sha256Hash.hash(payload));
+    }
+
+    private static byte[] readChecksummed(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0)
+            throw new IOException("Corrupt snapshot: negative length");
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        byte[] checksum = new byte[Sha256Hash.LENGTH];
+        in.readFully(checksum);
+        if (!Arrays.equals(checksum, Sha256Hash.hash(payload)))
+            throw new IOException("Corrupt snapshot: checksum mismatch");
+        return payload;
+    }
+
+    private static byte[] encodeHeader(NetworkParameters params, List<StoredBlock> blocks) {
+        byte[] id = params.getId().getBytes(StandardCharsets.UTF_8);
+        int size = 4 + id.length + 4;
+        for (StoredBlock block : blocks)
+            size += block.getCompactSerializedSize();
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(id.length);
+        buffer.put(id);
+        buffer.putInt(blocks.size());
+        for (StoredBlock block : blocks)
+            block.serializeCompact(buffer);
+        return buffer.array();
+    }
+
+    private static List<StoredBlock> decodeHeader(NetworkParameters params, byte[] header) throws IOException {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(header);
+            byte[] id = new byte[buffer.getInt()];
+            buffer.get(id);
+            if (!params.getId().equals(new String(id, StandardCharsets.UTF_8)))
+                throw new IOException("Snapshot is for another network: " + new String(id, StandardCharsets.UTF_8));
+            int count = buffer.getInt();
+            if (count <= 0)
+                throw new IOException("Corrupt snapshot: no chain head");
+            List<StoredBlock> blocks = new ArrayList<>(count);
+            for (int i = 0; i < count; i++)
+                blocks.add(StoredBlock.deserializeCompact(params, buffer));
+            return blocks;
+        } catch (RuntimeException e) {
+            // Buffer underflows, negative sizes and unparseable headers, which the checksum should have caught.
+            throw new IOException("Corrupt snapshot header", e);
+        }
+    }
+
+    /**
+     * Writes an output as its transaction hash, then its index, its height and coinbase flag, its value and the
+     * length of its script as varints, and then its script.
+     */
+    static void encodeOutput(ByteArrayOutputStream out, UTXO utxo) throws IOException {
+        out.write(utxo.getHash().getBytes());
+        out.write(new VarInt(utxo.getIndex()).encode());
+        out.write(new VarInt(((long) utxo.getHeight() << 1) | (utxo.isCoinbase() ? 1 : 0)).encode());
+        out.write(new VarInt(utxo.getValue().value).encode());
+        byte[] script = utxo.getScript().getProgram();
+        out.write(new VarInt(script.length).encode());
+        out.write(script);
+    }
+
+    static List<UTXO> decodeChunk(NetworkParameters params, byte[] chunk, int count) throws IOException {
+        List<UTXO> outputs = new ArrayList<>(count);
+        try {
+            int offset = 0;
+            for (int i = 0; i < count; i++) {
+                Sha256Hash hash = Sha256Hash.wrap(Arrays.copyOfRange(chunk, offset, offset + Sha256Hash.LENGTH));
+                offset += Sha256Hash.LENGTH;
+                VarInt index = new VarInt(chunk, offset);
+                offset += index.getOriginalSizeInBytes();
+                VarInt heightAndCoinbase = new VarInt(chunk, offset);
+                offset += heightAndCoinbase.getOriginalSizeInBytes();
+                VarInt value = new VarInt(chunk, offset);
+                offset += value.getOriginalSizeInBytes();
+                VarInt scriptLength = new VarInt(chunk, offset);
+                offset += scriptLength.getOriginalSizeInBytes();
+                if (scriptLength.value > chunk.length - offset)
+                    throw new IOException("Corrupt snapshot: script runs past the end of its chunk");
+                Script script = new Script(Arrays.copyOfRange(chunk, offset, offset + (int) scriptLength.value));
+                offset += (int) scriptLength.value;
+                outputs.add(new UTXO(hash, index.value, Coin.valueOf(value.value),
+                        (int) (heightAndCoinbase.value >>> 1), (heightAndCoinbase.value & 1) != 0, script,
+                        FullPrunedBlockChain.getScriptAddress(params, script)));
+            }
+            if (offset != chunk.length)
+                throw new IOException("Corrupt snapshot: " + (chunk.length - offset) + " bytes left in chunk");
+        } catch (VerificationException | ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IOException("Corrupt snapshot chunk", e);
+        }
+        return outputs;
+    }
+}
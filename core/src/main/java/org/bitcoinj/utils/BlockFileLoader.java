@@ -18,25 +18,39 @@ package org.bitcoinj.utils;
 
 import static com.google.common.base.Preconditions.checkArgument;
 
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.bitcoinj.core.Block;
 import org.bitcoinj.core.NetworkParameters;
 import org.bitcoinj.core.ProtocolException;
-import org.bitcoinj.core.Utils;
 
+import javax.annotation.Nullable;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * <p>This class reads block files stored in the Bitcoin Core format. This is simply a way to concatenate
  * blocks together. Importing block data with this tool can be a lot faster than syncing over the network, if you
  * have the files available.</p>
+ *
+ * <p>Files are memory-mapped and scanned for the start of each block on the calling thread, while the blocks are
+ * parsed on a pool of threads, a few blocks ahead of the caller. They are still returned in the order of the
+ * files.</p>
  * 
  * <p>In order to comply with {@link Iterator}, this class swallows a lot of {@link IOException}s, which may result in a few
  * blocks being missed followed by a huge set of orphan blocks.</p>
@@ -77,19 +91,48 @@ public class BlockFileLoader implements Iterable<Block>, Iterator<Block> {
         return defaultBlocksDir;
     }
 
+    // The number of blocks parsed ahead of the caller, per thread.
+    private static final int BLOCKS_AHEAD_PER_THREAD = 4;
+    // How long parsing threads are kept around without blocks to parse.
+    private static final long THREAD_KEEP_ALIVE_SECONDS = 10;
+
     private Iterator<File> fileIt;
     private File file = null;
-    private FileInputStream currentFileStream = null;
+    private ByteBuffer currentFileBuffer = null;
     private Block nextBlock = null;
     private NetworkParameters params;
+    private final int threads;
+    // Null if blocks are parsed on the calling thread.
+    @Nullable private final ThreadPoolExecutor executor;
+    // The blocks found in the files that weren't returned yet, in order, each being parsed.
+    private final ArrayDeque<FutureTask<Block>> parsing = new ArrayDeque<>();
 
     public BlockFileLoader(NetworkParameters params, File blocksDir) {
         this(params, getReferenceClientBlockFileList(blocksDir));
     }
 
+    /**
+     * Creates a loader that parses blocks on as many threads as there are processors.
+     */
     public BlockFileLoader(NetworkParameters params, List<File> files) {
+        this(params, files, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a loader that parses blocks on the given number of threads, or on the calling thread if it is 1.
+     */
+    public BlockFileLoader(NetworkParameters params, List<File> files, int threads) {
+        checkArgument(threads > 0, "threads must be positive");
         fileIt = files.iterator();
         this.params = params;
+        this.threads = threads;
+        if (threads > 1) {
+            executor = new ThreadPoolExecutor(threads, threads, THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory("Block file loader"));
+            executor.allowCoreThreadTimeOut(true);
+        } else {
+            executor = null;
+        }
     }
     
     @Override
@@ -107,74 +150,116 @@ public class BlockFileLoader implements Iterable<Block>, Iterator<Block> {
         nextBlock = null;
         return next;
     }
-    
+
     private void loadNextBlock() {
-        while (true) {
-            try {
-                if (!fileIt.hasNext() && (currentFileStream == null || currentFileStream.available() < 1))
-                    break;
-            } catch (IOException e) {
-                currentFileStream = null;
-                if (!fileIt.hasNext())
+        while (nextBlock == null) {
+            int ahead = executor != null ? threads * BLOCKS_AHEAD_PER_THREAD : 1;
+            while (parsing.size() < ahead) {
+                FutureTask<Block> task = findNextBlock();
+                if (task == null)
                     break;
+                parsing.add(task);
+                if (executor != null)
+                    executor.execute(task);
             }
-            while (true) {
-                try {
-                    if (currentFileStream != null && currentFileStream.available() > 0)
-                        break;
-                } catch (IOException e1) {
-                    currentFileStream = null;
-                }
-                if (!fileIt.hasNext()) {
-                    nextBlock = null;
-                    currentFileStream = null;
-                    return;
-                }
-                file = fileIt.next();
-                try {
-                    currentFileStream = new FileInputStream(file);
-                } catch (FileNotFoundException e) {
-                    currentFileStream = null;
-                }
+            if (parsing.isEmpty()) {
+                if (executor != null)
+                    executor.shutdown();
+                return;
             }
+            FutureTask<Block> task = parsing.remove();
+            if (executor == null)
+                task.run();
             try {
-                int nextChar = currentFileStream.read();
-                while (nextChar != -1) {
-                    if (nextChar != ((params.getPacketMagic() >>> 24) & 0xff)) {
-                        nextChar = currentFileStream.read();
-                        continue;
-                    }
-                    nextChar = currentFileStream.read();
-                    if (nextChar != ((params.getPacketMagic() >>> 16) & 0xff))
-                        continue;
-                    nextChar = currentFileStream.read();
-                    if (nextChar != ((params.getPacketMagic() >>> 8) & 0xff))
-                        continue;
-                    nextChar = currentFileStream.read();
-                    if (nextChar == (params.getPacketMagic() & 0xff))
-                        break;
-                }
-                byte[] bytes = new byte[4];
-                currentFileStream.read(bytes, 0, 4);
-                long size = Utils.readUint32BE(Utils.reverseBytes(bytes), 0);
-                // We allow larger than MAX_BLOCK_SIZE because test code uses this as well.
-                if (size > Block.MAX_BLOCK_SIZE*2 || size <= 0)
-                    continue;
-                bytes = new byte[(int) size];
-                currentFileStream.read(bytes, 0, (int) size);
-                try {
-                    nextBlock = params.getDefaultSerializer().makeBlock(bytes);
-                } catch (ProtocolException e) {
-                    nextBlock = null;
+                nextBlock = Uninterruptibles.getUninterruptibly(task);
+            } catch (ExecutionException e) {
+                // Blocks that don't parse are skipped.
+                if (e.getCause() instanceof ProtocolException)
                     continue;
-                } catch (Exception e) {
-                    throw new RuntimeException("unexpected problem with block in " + file, e);
+                Throwables.throwIfUnchecked(e.getCause());
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Finds the next block in the files, and returns a task that parses it, or null if there are no more blocks.
+     * Like Bitcoin Core, this looks for the packet magic followed by the size of the block, so that garbage between
+     * blocks, such as the zeros a crash can leave behind, is skipped.
+     */
+    @Nullable
+    private FutureTask<Block> findNextBlock() {
+        int magic = (int) params.getPacketMagic();
+        while (true) {
+            if (currentFileBuffer == null || !currentFileBuffer.hasRemaining()) {
+                if (!fileIt.hasNext()) {
+                    currentFileBuffer = null;
+                    return null;
                 }
-                break;
-            } catch (IOException e) {
-                currentFileStream = null;
+                file = fileIt.next();
+                currentFileBuffer = map(file);
+                continue;
+            }
+            ByteBuffer buffer = currentFileBuffer;
+            int position = buffer.position();
+            while (buffer.limit() - position >= 8 && buffer.getInt(position) != magic)
+                position++;
+            if (buffer.limit() - position < 8) {
+                buffer.position(buffer.limit());
+                continue;
+            }
+            buffer.position(position + 4);
+            long size = Integer.reverseBytes(buffer.getInt()) & 0xFFFFFFFFL;
+            // We allow larger than MAX_BLOCK_SIZE because test code uses this as well.
+            if (size > Block.MAX_BLOCK_SIZE*2 || size <= 0)
+                continue;
+            if (size > buffer.remaining()) {
+                // The file ends in the middle of the block.
+                buffer.position(buffer.limit());
                 continue;
             }
+            ByteBuffer block = buffer.slice();
+            block.limit((int) size);
+            buffer.position(buffer.position() + (int) size);
+            return new FutureTask<>(new BlockParser(params, block, file));
+        }
+    }
+
+    /** Maps the given file into memory, returning null if it can't be read. */
+    @Nullable
+    private static ByteBuffer map(File file) {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            // The mapping stays valid after the channel is closed.
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /** Parses a block out of a file. The bytes are copied out of the mapped file here, on the parsing thread. */
+    private static class BlockParser implements Callable<Block> {
+        private final NetworkParameters params;
+        private final ByteBuffer buffer;
+        private final File file;
+
+        BlockParser(NetworkParameters params, ByteBuffer buffer, File file) {
+            this.params = params;
+            this.buffer = buffer;
+            this.file = file;
+        }
+
+        @Override
+        public Block call() {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            try {
+                return params.getDefaultSerializer().makeBlock(bytes);
+            } catch (ProtocolException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RuntimeException("unexpected problem with block in " + file, e);
+            }
         }
     }
 
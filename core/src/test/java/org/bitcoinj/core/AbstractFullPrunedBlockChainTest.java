@@ -20,7 +20,9 @@ package org.bitcoinj.core;
 import com.google.common.collect.Lists;
 import org.bitcoinj.params.MainNetParams;
 import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.crypto.TransactionSignature;
 import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
 import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.store.FullPrunedBlockStore;
 import org.bitcoinj.utils.BlockFileLoader;
@@ -37,6 +39,8 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.lang.ref.WeakReference;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 
 import static org.bitcoinj.core.Coin.FIFTY_COINS;
@@ -163,6 +167,77 @@ public abstract class AbstractFullPrunedBlockChainTest {
         } catch (Exception e) {}
     }
 
+    @Test
+    public void parallelScriptVerification() throws Exception {
+        final int INPUTS = 300;
+        store = createStore(PARAMS, 10);
+        chain = new FullPrunedBlockChain(PARAMS, store);
+        ECKey outKey = new ECKey();
+        int height = 1;
+
+        // Build some blocks on genesis block to create a spendable output.
+        Block rollingBlock = PARAMS.getGenesisBlock().createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, outKey.getPubKey(), height++);
+        chain.add(rollingBlock);
+        TransactionOutput spendableOutput = rollingBlock.getTransactions().get(0).getOutput(0);
+        for (int i = 1; i < PARAMS.getSpendableCoinbaseDepth(height); i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, outKey.getPubKey(), height++);
+            chain.add(rollingBlock);
+        }
+
+        // Split the output into many small ones.
+        rollingBlock = rollingBlock.createNextBlock(null);
+        Transaction split = new Transaction(PARAMS);
+        Coin amount = spendableOutput.getValue().divide(INPUTS);
+        for (int i = 0; i < INPUTS; i++)
+            split.addOutput(new TransactionOutput(PARAMS, split, amount, outKey));
+        split.addSignedInput(spendableOutput, outKey);
+        rollingBlock.addTransaction(split);
+        rollingBlock.solve();
+        chain.add(rollingBlock);
+        Block parent = rollingBlock;
+
+        // A block spending all of them at once, with one input signed for another input.
+        Transaction spend = spendAll(split, outKey);
+        spend.getInput(INPUTS / 2).setScriptSig(spend.getInput(INPUTS / 2 - 1).getScriptSig());
+        Block badBlock = parent.createNextBlock(null);
+        badBlock.addTransaction(spend);
+        badBlock.solve();
+        try {
+            chain.add(badBlock);
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertEquals(parent.getHash(), chain.getChainHead().getHeader().getHash());
+
+        Block goodBlock = parent.createNextBlock(null);
+        goodBlock.addTransaction(spendAll(split, outKey));
+        goodBlock.solve();
+        assertTrue(chain.add(goodBlock));
+        assertEquals(goodBlock.getHash(), chain.getChainHead().getHeader().getHash());
+        FullPrunedBlockChain.ScriptVerificationStats stats = chain.getLastScriptVerificationStats();
+        log.info(stats.toString());
+        assertEquals(goodBlock.getHash(), stats.blockHash);
+        assertEquals(1, stats.transactions);
+        assertEquals(INPUTS, stats.inputs);
+        try {
+            store.close();
+        } catch (Exception e) {}
+    }
+
+    private static Transaction spendAll(Transaction tx, ECKey key) {
+        Transaction spend = new Transaction(PARAMS);
+        spend.addOutput(new TransactionOutput(PARAMS, spend, tx.getOutputSum().divide(2), new byte[] {}));
+        for (TransactionOutput output : tx.getOutputs())
+            spend.addInput(output);
+        for (int i = 0; i < spend.getInputs().size(); i++) {
+            TransactionSignature signature = spend.calculateSignature(i, key, tx.getOutput(i).getScriptPubKey(),
+                    Transaction.SigHash.ALL, false);
+            spend.getInput(i).setScriptSig(ScriptBuilder.createInputScript(signature));
+        }
+        return spend;
+    }
+
     @Test
     public void testFinalizedBlocks() throws Exception {
         final int UNDOABLE_BLOCKS_STORED = 10;
@@ -288,6 +363,53 @@ public abstract class AbstractFullPrunedBlockChainTest {
         } catch (Exception e) {}
     }
 
+    @Test
+    public void testGetOpenTransactionOutputsForScripts() throws Exception {
+        store = createStore(PARAMS, 10);
+        chain = new FullPrunedBlockChain(PARAMS, store);
+
+        ECKey outKey = new ECKey();
+        int height = 1;
+        Block rollingBlock = PARAMS.getGenesisBlock().createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, outKey.getPubKey(), height++);
+        chain.add(rollingBlock);
+        Transaction transaction = rollingBlock.getTransactions().get(0);
+        TransactionOutPoint spendableOutput = new TransactionOutPoint(PARAMS, 0, transaction.getTxId());
+        byte[] spendableOutputScriptPubKey = transaction.getOutputs().get(0).getScriptBytes();
+        for (int i = 1; i < PARAMS.getSpendableCoinbaseDepth(height); i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, outKey.getPubKey(), height++);
+            chain.add(rollingBlock);
+        }
+        rollingBlock = rollingBlock.createNextBlock(null);
+
+        // One key receives to P2PKH and P2WPKH, the other to P2PK, which pays to the same hash as its P2PKH.
+        ECKey key1 = new ECKey(), key2 = new ECKey();
+        Script p2pkh1 = ScriptBuilder.createP2PKHOutputScript(key1);
+        Script p2wpkh1 = ScriptBuilder.createP2WPKHOutputScript(key1);
+        Script p2sh = ScriptBuilder.createP2SHOutputScript(ScriptBuilder.createMultiSigOutputScript(2,
+                Arrays.asList(key1, key2)));
+        Script p2pk2 = ScriptBuilder.createP2PKOutputScript(key2);
+        Transaction t = new Transaction(PARAMS);
+        for (Script script : Arrays.asList(p2pkh1, p2wpkh1, p2sh, p2pk2, ScriptBuilder.createOpReturnScript(new byte[1])))
+            t.addOutput(Coin.CENT, script);
+        t.addSignedInput(spendableOutput, new Script(spendableOutputScriptPubKey), outKey);
+        rollingBlock.addTransaction(t);
+        rollingBlock.solve();
+        chain.add(rollingBlock);
+
+        assertEquals(2, store.getOpenTransactionOutputsForScripts(new HashSet<>(Arrays.asList(p2pkh1, p2sh))).size());
+        List<UTXO> outputs = store.getOpenTransactionOutputsForScripts(Collections.singleton(p2wpkh1));
+        assertEquals(1, outputs.size());
+        assertEquals(1, outputs.get(0).getIndex());
+        assertEquals(Coin.CENT, outputs.get(0).getValue());
+        assertTrue(store.getOpenTransactionOutputsForScripts(
+                Collections.singleton(ScriptBuilder.createP2PKHOutputScript(key2))).isEmpty());
+        assertEquals(2, store.getOpenTransactionOutputs(Lists.newArrayList(key1)).size());
+        assertEquals(1, store.getOpenTransactionOutputs(Lists.newArrayList(key2)).size());
+        try {
+            store.close();
+        } catch (Exception e) {}
+    }
+
     @Test
     public void testUTXOProviderWithWallet() throws Exception {
         final int UNDOABLE_BLOCKS_STORED = 10;
@@ -0,0 +1,126 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ArithUint256Test {
+    private static final BigInteger TWO_TO_256 = BigInteger.ONE.shiftLeft(256);
+
+    private final Random random = new Random(1);
+
+    @Test
+    public void compactMatchesUtils() {
+        long[] interesting = { 0, 0x00800000L, 0x01003456L, 0x01123456L, 0x02123456L, 0x03123456L, 0x04123456L,
+                0x04923456L, 0x05009234L, 0x20123456L, 0x21000001L, 0x21010000L, 0x22000001L, 0xff123456L,
+                0x1d00ffffL, 0x1f00ffffL, 0x207fffffL, 0x1a1fffffL };
+        for (long compact : interesting)
+            checkCompact(compact);
+        for (int i = 0; i < 100000; i++)
+            checkCompact(random.nextLong() & 0xFFFFFFFFL);
+    }
+
+    private void checkCompact(long compact) {
+        BigInteger expected = Utils.decodeCompactBits(compact);
+        ArithUint256 value = new ArithUint256();
+        boolean valid = value.setCompact(compact);
+        assertEquals(Long.toHexString(compact), expected.signum() >= 0 && expected.compareTo(TWO_TO_256) < 0, valid);
+        if (valid) {
+            assertEquals(Long.toHexString(compact), expected, value.toBigInteger());
+            assertEquals(Long.toHexString(compact), Utils.encodeCompactBits(expected), value.getCompact());
+        }
+    }
+
+    @Test
+    public void getCompactMatchesUtils() {
+        for (int bits = 0; bits <= 256; bits++) {
+            BigInteger n = randomBits(bits);
+            assertEquals(n.toString(16), Utils.encodeCompactBits(n), arith(n).getCompact());
+        }
+    }
+
+    @Test
+    public void mulDiv() {
+        for (int i = 0; i < 10000; i++) {
+            BigInteger a = randomBits(random.nextInt(257));
+            long multiplier = random.nextLong() >>> (32 + random.nextInt(32));
+            long divisor = Math.max(1, random.nextLong() >>> (32 + random.nextInt(32)));
+            BigInteger expected = a.multiply(BigInteger.valueOf(multiplier)).divide(BigInteger.valueOf(divisor));
+            ArithUint256 value = arith(a);
+            boolean fits = value.mulDiv(multiplier, divisor);
+            assertEquals(expected.compareTo(TWO_TO_256) < 0, fits);
+            if (fits)
+                assertEquals(expected, value.toBigInteger());
+        }
+    }
+
+    @Test
+    public void addAndSubtract() {
+        for (int i = 0; i < 10000; i++) {
+            BigInteger a = randomBits(random.nextInt(257));
+            BigInteger b = randomBits(random.nextInt(257));
+            ArithUint256 sum = arith(a);
+            assertEquals(a.add(b).compareTo(TWO_TO_256) >= 0, sum.add(arith(b)));
+            assertEquals(a.add(b).mod(TWO_TO_256), sum.toBigInteger());
+            ArithUint256 difference = arith(a);
+            assertEquals(a.compareTo(b) < 0, difference.subtract(arith(b)));
+            assertEquals(a.subtract(b).mod(TWO_TO_256), difference.toBigInteger());
+            assertEquals(a.compareTo(b), arith(a).compareTo(arith(b)));
+        }
+        assertEquals(TWO_TO_256.subtract(BigInteger.TEN), arith(BigInteger.TEN).negate().toBigInteger());
+        assertTrue(new ArithUint256().negate().isZero());
+    }
+
+    @Test
+    public void retainBitsMatchesMask() {
+        for (int accuracyBytes = -5; accuracyBytes < 40; accuracyBytes++) {
+            BigInteger n = randomBits(256);
+            BigInteger mask = BigInteger.valueOf(0xFFFFFFL).shiftLeft(accuracyBytes * 8);
+            assertEquals(n.and(mask), arith(n).retainBits(accuracyBytes * 8, accuracyBytes * 8 + 24).toBigInteger());
+        }
+    }
+
+    @Test
+    public void setBytes() {
+        Sha256Hash hash = Sha256Hash.of(new byte[] { 1, 2, 3 });
+        assertEquals(hash.toBigInteger(), new ArithUint256().setBytes(hash.getBytes()).toBigInteger());
+    }
+
+    @Test
+    public void setBigInteger() {
+        ArithUint256 value = new ArithUint256();
+        assertTrue(value.set(TWO_TO_256.subtract(BigInteger.ONE)));
+        assertEquals(256, value.bitLength());
+        assertFalse(value.set(TWO_TO_256));
+        assertTrue(value.isZero());
+        assertFalse(value.set(BigInteger.ONE.negate()));
+    }
+
+    private BigInteger randomBits(int bits) {
+        BigInteger n = new BigInteger(bits, random);
+        return bits > 0 ? n.setBit(bits - 1) : n;
+    }
+
+    private static ArithUint256 arith(BigInteger value) {
+        ArithUint256 result = new ArithUint256();
+        assertTrue(result.set(value));
+        return result;
+    }
+}
@@ -127,6 +127,34 @@ public class BitcoinSerializerTest {
         assertArrayEquals(TRANSACTION_MESSAGE_BYTES, bos.toByteArray());
     }
 
+    @Test
+    public void testDeserializePayloadFromArray() throws Exception {
+        MessageSerializer serializer = MAINNET.getSerializer(true);
+        ByteBuffer in = ByteBuffer.wrap(TRANSACTION_MESSAGE_BYTES);
+        serializer.seekPastMagicBytes(in);
+        BitcoinSerializer.BitcoinPacketHeader header = serializer.deserializeHeader(in);
+        byte[] payload = new byte[header.size];
+        in.get(payload);
+
+        Transaction transaction = (Transaction) serializer.deserializePayload(header, payload,
+                Sha256Hash.hashTwice(payload));
+        assertEquals(serializer.deserialize(ByteBuffer.wrap(TRANSACTION_MESSAGE_BYTES)), transaction);
+        // In parse-retain mode the message serializes straight from the array it was given.
+        assertTrue(transaction.isCached());
+        assertSame(payload, transaction.unsafeBitcoinSerialize());
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void testDeserializePayloadWrongHash() throws Exception {
+        MessageSerializer serializer = MAINNET.getDefaultSerializer();
+        ByteBuffer in = ByteBuffer.wrap(TRANSACTION_MESSAGE_BYTES);
+        serializer.seekPastMagicBytes(in);
+        BitcoinSerializer.BitcoinPacketHeader header = serializer.deserializeHeader(in);
+        byte[] payload = new byte[header.size];
+        in.get(payload);
+        serializer.deserializePayload(header, payload, new byte[32]);
+    }
+
     /**
      * Get 1 header of the block number 1 (the first one is 0) in the chain
      */
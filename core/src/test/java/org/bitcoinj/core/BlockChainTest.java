@@ -154,6 +154,46 @@ public class BlockChainTest {
         assertEquals(chain.getChainHead().getHeader(), b3.cloneAsHeader());
     }
 
+    @Test
+    public void orphanChainConnectsAtOnce() throws Exception {
+        Block b1 = UNITTEST.getGenesisBlock().createNextBlock(coinbaseTo);
+        Block b2 = b1.createNextBlock(coinbaseTo);
+        Block b3 = b2.createNextBlock(coinbaseTo);
+        Block b4 = b3.createNextBlock(coinbaseTo);
+        Block fork = b2.createNextBlock(coinbaseTo);
+        // Delivered backwards, with a fork in between.
+        assertFalse(chain.add(b4));
+        assertFalse(chain.add(b3));
+        assertFalse(chain.add(fork));
+        assertFalse(chain.add(b2));
+        assertEquals(b2, chain.getOrphanRoot(b4.getHash()));
+        assertTrue(chain.add(b1));
+        assertEquals(b4.cloneAsHeader(), chain.getChainHead().getHeader());
+        for (Block block : new Block[] { b2, b3, b4, fork })
+            assertFalse(chain.isOrphan(block.getHash()));
+        assertNotNull(blockStore.get(fork.getHash()));
+    }
+
+    @Test
+    public void oldestOrphansAreEvicted() throws Exception {
+        chain.setMaxOrphanBlocks(2, Long.MAX_VALUE);
+        Block b1 = UNITTEST.getGenesisBlock().createNextBlock(coinbaseTo);
+        Block b2 = b1.createNextBlock(coinbaseTo);
+        Block b3 = b2.createNextBlock(coinbaseTo);
+        Block b4 = b3.createNextBlock(coinbaseTo);
+        assertFalse(chain.add(b2));
+        assertFalse(chain.add(b3));
+        assertFalse(chain.add(b4));
+        assertFalse(chain.isOrphan(b2.getHash()));
+        assertTrue(chain.isOrphan(b3.getHash()));
+        assertTrue(chain.isOrphan(b4.getHash()));
+        // Without b2, the others can't connect yet.
+        assertTrue(chain.add(b1));
+        assertEquals(b1.cloneAsHeader(), chain.getChainHead().getHeader());
+        assertTrue(chain.add(b2));
+        assertEquals(b4.cloneAsHeader(), chain.getChainHead().getHeader());
+    }
+
     @Ignore("not applicable")
     @Test
     public void difficultyTransitions() throws Exception {
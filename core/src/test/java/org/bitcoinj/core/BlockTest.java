@@ -140,6 +140,16 @@ public class BlockTest {
         assertArrayEquals(block57172Bytes, block57172.bitcoinSerialize());
     }
 
+    @Test
+    public void testParsedTransactionIds() throws Exception {
+        // Ids hashed straight from the block's bytes have to match the ones a transaction computes for itself.
+        for (Transaction tx : block57172.getTransactions()) {
+            Transaction reparsed = new Transaction(TESTNET, tx.bitcoinSerialize());
+            assertEquals(reparsed.getTxId(), tx.getTxId());
+            assertEquals(reparsed.getWTxId(), tx.getWTxId());
+        }
+    }
+
     @Test
     public void testUpdateLength() {
         Block block = UNITTEST.getGenesisBlock().createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, new ECKey().getPubKey(), Block.BLOCK_HEIGHT_GENESIS);
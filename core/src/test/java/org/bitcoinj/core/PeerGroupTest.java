@@ -30,6 +30,7 @@ import org.junit.*;
 import org.junit.runner.*;
 import org.junit.runners.*;
 
+import javax.annotation.*;
 import java.io.*;
 import java.net.*;
 import java.util.*;
@@ -863,6 +864,53 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertEquals(blocks.get(blocks.size() - 1).getHash(), blockChain.getChainHead().getHeader().getHash());
     }
 
+    @Test
+    public void parallelFilteredBlockDownload() throws Exception {
+        peerGroup.setMaxFilteredBlocksInFlight(4);
+        peerGroup.start();
+        InboundMessageQueuer p1 = connectPeer(1);
+        InboundMessageQueuer p2 = connectPeer(2);
+        peerGroup.startBlockChainDownload(null);
+        assertNextMessageIs(p1, GetBlocksMessage.class);
+
+        List<Block> blocks = new ArrayList<>();
+        Coin expectedBalance = Coin.ZERO;
+        Block prev = blockStore.getChainHead().getHeader();
+        InventoryMessage inv = new InventoryMessage(UNITTEST);
+        for (int i = 0; i < 4; i++) {
+            Block next = FakeTxBuilder.makeSolvedTestBlock(prev, FakeTxBuilder.createFakeTx(UNITTEST, COIN, address));
+            expectedBalance = expectedBalance.add(next.getTransactions().get(2).getOutput(0).getValue());
+            blocks.add(next);
+            inv.addBlock(next);
+            prev = next;
+        }
+        inbound(p1, inv);
+
+        // The blocks are requested in two batches, one from each peer.
+        GetDataMessage getdata1 = assertNextMessageIs(p1, GetDataMessage.class);
+        assertNextMessageIs(p1, Ping.class);
+        GetDataMessage getdata2 = assertNextMessageIs(p2, GetDataMessage.class);
+        assertNextMessageIs(p2, Ping.class);
+        assertEquals(2, getdata1.getItems().size());
+        assertEquals(2, getdata2.getItems().size());
+        assertEquals(InventoryItem.Type.FILTERED_BLOCK, getdata1.getItems().get(0).type);
+        InboundMessageQueuer first = getdata1.getHashOf(0).equals(blocks.get(0).getHash()) ? p1 : p2;
+        InboundMessageQueuer second = first == p1 ? p2 : p1;
+
+        // The later blocks arrive first, and are held back until the earlier ones are in.
+        BloomFilter filter = new BloomFilter(UNITTEST, p1.lastReceivedFilter.bitcoinSerialize());
+        filterAndSend(second, blocks.subList(2, 4), filter);
+        inbound(second, new Ping());
+        pingAndWait(second);
+        assertEquals(0, blockChain.getBestChainHeight());
+        filterAndSend(first, blocks.subList(0, 2), filter);
+        inbound(first, new Ping());
+        pingAndWait(first);
+
+        assertEquals(expectedBalance, wallet.getBalance());
+        assertEquals(blocks.get(3).getHash(), blockChain.getChainHead().getHeader().getHash());
+    }
+
     private void filterAndSend(InboundMessageQueuer p1, List<Block> blocks, BloomFilter filter) {
         for (Block block : blocks) {
             FilteredBlock fb = filter.applyAndUpdate(block);
@@ -872,6 +920,160 @@ public class PeerGroupTest extends TestWithPeerGroup {
         }
     }
 
+    @Test
+    public void parallelHeaderDownload() throws Exception {
+        // A chain of 30 blocks, anchored every 10 blocks.
+        List<Block> headers = new ArrayList<>();
+        Map<Integer, Sha256Hash> anchors = new HashMap<>();
+        Block block = UNITTEST.getGenesisBlock();
+        for (int height = 1; height <= 30; height++) {
+            block = FakeTxBuilder.makeSolvedTestBlock(block);
+            headers.add(block.cloneAsHeader());
+            if (height % 10 == 0)
+                anchors.put(height, block.getHash());
+        }
+        peerGroup.setHeaderDownloadAnchors(anchors);
+        peerGroup.setHeaderDownloadPeers(3);
+        peerGroup.start();
+        VersionMessage ver = new VersionMessage(UNITTEST, 30);
+        ver.localServices = VersionMessage.NODE_NETWORK;
+        ver.clientVersion = NotFoundMessage.MIN_PROTOCOL_VERSION;
+        InboundMessageQueuer p1 = connectPeer(1, ver);
+        InboundMessageQueuer p2 = connectPeer(2, ver);
+        InboundMessageQueuer p3 = connectPeer(3, ver);
+        peerGroup.setFastCatchupTimeSecs(headers.get(29).getTimeSeconds() + 1);
+
+        // Each peer is asked for a different range.
+        peerGroup.startBlockChainDownload(new PeerDataEventListener() {
+            @Override
+            public void onBlocksDownloaded(Peer peer, Block block, @Nullable FilteredBlock filteredBlock,
+                                           int blocksLeft) {
+            }
+
+            @Override
+            public void onChainDownloadStarted(Peer peer, int blocksLeft) {
+            }
+
+            @Override
+            public Message onPreMessageReceived(Peer peer, Message m) {
+                return m;
+            }
+
+            @Override
+            public List<Message> getData(Peer peer, GetDataMessage m) {
+                return null;
+            }
+        });
+        GetHeadersMessage getheaders = (GetHeadersMessage) waitForOutbound(p1);
+        assertEquals(UNITTEST.getGenesisBlock().getHash(), getheaders.getLocator().get(0));
+        assertEquals(anchors.get(10), getheaders.getStopHash());
+        getheaders = (GetHeadersMessage) waitForOutbound(p2);
+        assertEquals(anchors.get(10), getheaders.getLocator().get(0));
+        assertEquals(anchors.get(20), getheaders.getStopHash());
+        getheaders = (GetHeadersMessage) waitForOutbound(p3);
+        assertEquals(anchors.get(20), getheaders.getLocator().get(0));
+        assertEquals(anchors.get(30), getheaders.getStopHash());
+
+        // Peer 2 is on another chain, its range goes to the first peer that is done.
+        List<Block> fork = new ArrayList<>();
+        block = headers.get(9);
+        for (int height = 11; height <= 20; height++) {
+            block = FakeTxBuilder.makeSolvedTestBlock(block);
+            fork.add(block.cloneAsHeader());
+        }
+        inbound(p2, new HeadersMessage(UNITTEST, fork));
+        pingAndWait(p2);
+        inbound(p3, new HeadersMessage(UNITTEST, headers.subList(20, 30)));
+        getheaders = (GetHeadersMessage) waitForOutbound(p3);
+        assertEquals(anchors.get(10), getheaders.getLocator().get(0));
+        assertEquals(anchors.get(20), getheaders.getStopHash());
+        assertEquals(0, blockChain.getBestChainHeight());
+
+        // The ranges are connected in order once they are complete.
+        inbound(p1, new HeadersMessage(UNITTEST, headers.subList(0, 10)));
+        pingAndWait(p1);
+        assertEquals(10, blockChain.getBestChainHeight());
+        inbound(p3, new HeadersMessage(UNITTEST, headers.subList(10, 20)));
+        pingAndWait(p3);
+        assertEquals(30, blockChain.getBestChainHeight());
+        assertEquals(anchors.get(30), blockChain.getChainHead().getHeader().getHash());
+
+        // The download peer takes over from the last anchor.
+        getheaders = (GetHeadersMessage) waitForOutbound(p1);
+        assertEquals(anchors.get(30), getheaders.getLocator().get(0));
+        assertNull(outbound(p2));
+    }
+
+    @Test
+    public void parallelHeaderDownloadThroughput() throws Exception {
+        // A chain of 300 blocks, anchored every 100 blocks, served by fake peers that take 2ms per header. A single
+        // peer would need at least 600ms for all of them.
+        final int delayPerHeader = 2;
+        final List<Block> headers = new ArrayList<>();
+        Map<Integer, Sha256Hash> anchors = new HashMap<>();
+        Block block = UNITTEST.getGenesisBlock();
+        headers.add(block.cloneAsHeader());
+        for (int height = 1; height <= 300; height++) {
+            block = FakeTxBuilder.makeSolvedTestBlock(block);
+            headers.add(block.cloneAsHeader());
+            if (height % 100 == 0)
+                anchors.put(height, block.getHash());
+        }
+        final SettableFuture<Void> downloaded = SettableFuture.create();
+        blockChain.addNewBestBlockListener(Threading.SAME_THREAD, new NewBestBlockListener() {
+            @Override
+            public void notifyNewBestBlock(StoredBlock block) {
+                if (block.getHeight() == 300)
+                    downloaded.set(null);
+            }
+        });
+        peerGroup.setHeaderDownloadAnchors(anchors);
+        peerGroup.setHeaderDownloadPeers(3);
+        peerGroup.start();
+        VersionMessage ver = new VersionMessage(UNITTEST, 300);
+        ver.localServices = VersionMessage.NODE_NETWORK;
+        ver.clientVersion = NotFoundMessage.MIN_PROTOCOL_VERSION;
+        ExecutorService fakePeers = Executors.newCachedThreadPool();
+        try {
+            for (int id = 1; id <= 3; id++) {
+                final InboundMessageQueuer p = connectPeer(id, ver);
+                fakePeers.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        while (true) {
+                            Message m = waitForOutbound(p);
+                            if (!(m instanceof GetHeadersMessage))
+                                continue;
+                            GetHeadersMessage getheaders = (GetHeadersMessage) m;
+                            List<Block> reply = new ArrayList<>();
+                            boolean found = false;
+                            for (Block header : headers) {
+                                if (found)
+                                    reply.add(header);
+                                if (header.getHash().equals(getheaders.getStopHash()))
+                                    break;
+                                if (header.getHash().equals(getheaders.getLocator().get(0)))
+                                    found = true;
+                            }
+                            Thread.sleep(delayPerHeader * reply.size());
+                            inbound(p, new HeadersMessage(UNITTEST, reply));
+                        }
+                    }
+                });
+            }
+            peerGroup.setFastCatchupTimeSecs(headers.get(300).getTimeSeconds() + 1);
+
+            Stopwatch watch = Stopwatch.createStarted();
+            peerGroup.startBlockChainDownload(null);
+            downloaded.get(10, TimeUnit.SECONDS);
+            watch.stop();
+            assertEquals(anchors.get(300), blockChain.getChainHead().getHeader().getHash());
+            assertTrue("took " + watch, watch.elapsed(TimeUnit.MILLISECONDS) < 300 * delayPerHeader);
+        } finally {
+            fakePeers.shutdownNow();
+        }
+    }
+
     @Test
     public void testMaxOfMostFreq() throws Exception {
         assertEquals(0, PeerGroup.maxOfMostFreq(Collections.<Integer>emptyList()));
@@ -0,0 +1,252 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.store.MemoryFullPrunedBlockStore;
+import org.bouncycastle.util.encoders.Base64;
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.common.primitives.Bytes;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PosHeaderValidatorTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+
+    private final ECKey stakerKey = new ECKey();
+    private PosHeaderValidator validator;
+
+    @After
+    public void tearDown() {
+        if (validator != null)
+            validator.shutdown();
+    }
+
+    @Test
+    public void hashWithoutSignatureIgnoresSignature() {
+        Block block = createPosHeader(1);
+        Sha256Hash unsigned = block.getHashWithoutSignature();
+        block.setSignature(new byte[] { 1, 2, 3 });
+        assertEquals(unsigned, block.getHashWithoutSignature());
+        // Same result when hashing the retained bytes of a parsed header.
+        Block parsed = UNITTEST.getDefaultSerializer().makeBlock(block.bitcoinSerialize());
+        assertEquals(unsigned, parsed.getHashWithoutSignature());
+        assertNotEquals(unsigned, parsed.getHash());
+    }
+
+    @Test
+    public void derSignatureByStakedKey() {
+        validator = new PosHeaderValidator(provider(ScriptBuilder.createP2PKOutputScript(stakerKey)));
+        Block block = createPosHeader(1);
+        signDer(block, stakerKey);
+        validator.verify(block);
+    }
+
+    @Test(expected = VerificationException.class)
+    public void derSignatureByOtherKey() {
+        validator = new PosHeaderValidator(provider(ScriptBuilder.createP2PKOutputScript(stakerKey)));
+        Block block = createPosHeader(1);
+        signDer(block, new ECKey());
+        validator.verify(block);
+    }
+
+    @Test(expected = VerificationException.class)
+    public void headerModifiedAfterSigning() {
+        validator = new PosHeaderValidator(provider(ScriptBuilder.createP2PKOutputScript(stakerKey)));
+        Block block = createPosHeader(1);
+        signDer(block, stakerKey);
+        block.setTime(block.getTimeSeconds() + 1);
+        validator.verify(block);
+    }
+
+    @Test
+    public void compactSignatureForKeyHash() {
+        validator = new PosHeaderValidator(provider(ScriptBuilder.createP2PKHOutputScript(stakerKey)));
+        Block block = createPosHeader(1);
+        signCompact(block, stakerKey);
+        validator.verify(block);
+    }
+
+    @Test(expected = VerificationException.class)
+    public void compactSignatureByOtherKey() {
+        validator = new PosHeaderValidator(provider(ScriptBuilder.createP2PKHOutputScript(stakerKey)));
+        Block block = createPosHeader(1);
+        signCompact(block, new ECKey());
+        validator.verify(block);
+    }
+
+    @Test
+    public void unknownKeyOnlyChecksFormat() {
+        validator = new PosHeaderValidator(null);
+        Block block = createPosHeader(1);
+        signDer(block, new ECKey());
+        validator.verify(block);
+        signCompact(block, new ECKey());
+        validator.verify(block);
+        block.setSignature(new byte[] { 0x30, 0x01, 0x02 });
+        try {
+            validator.verify(block);
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void delegatedSignature() throws Exception {
+        validator = new PosHeaderValidator(provider(ScriptBuilder.createP2PKHOutputScript(stakerKey)));
+        ECKey delegateKey = new ECKey();
+        Block block = createPosHeader(1);
+        signDelegated(block, delegateKey, stakerKey);
+        assertEquals(2 * Block.COMPACT_SIGNATURE_SIZE, block.getSignature().length);
+        assertTrue(block.hasProofOfDelegation());
+        validator.verify(block);
+
+        // Survives a round trip through the wire format, and is checked the same way with the staker looked up in the
+        // unspent outputs.
+        Block parsed = UNITTEST.getDefaultSerializer().makeBlock(block.bitcoinSerialize());
+        assertArrayEquals(block.getProofOfDelegation(), parsed.getProofOfDelegation());
+        validator.verify(parsed);
+        MemoryFullPrunedBlockStore store = new MemoryFullPrunedBlockStore(UNITTEST, 10);
+        store.addUnspentTransactionOutput(new UTXO(block.getStakePrevTxid(), block.getStakeOutputIndex(), Coin.COIN, 1,
+                false, ScriptBuilder.createP2PKHOutputScript(stakerKey)));
+        PosHeaderValidator headerOnly = new PosHeaderValidator(new PosHeaderValidator.StoreOutputProvider(store));
+        try {
+            headerOnly.verify(parsed);
+        } finally {
+            headerOnly.shutdown();
+        }
+    }
+
+    @Test(expected = VerificationException.class)
+    public void delegatedByOtherStaker() {
+        validator = new PosHeaderValidator(provider(ScriptBuilder.createP2PKHOutputScript(stakerKey)));
+        Block block = createPosHeader(1);
+        signDelegated(block, new ECKey(), new ECKey());
+        validator.verify(block);
+    }
+
+    @Test(expected = VerificationException.class)
+    public void delegatedByUnknownStaker() {
+        // Any proof of delegation recovers to some key, so there is nothing to check it against.
+        validator = new PosHeaderValidator(null);
+        Block block = createPosHeader(1);
+        signDelegated(block, new ECKey(), stakerKey);
+        validator.verify(block);
+    }
+
+    @Test(expected = VerificationException.class)
+    public void proofOfDelegationForOtherDelegate() {
+        validator = new PosHeaderValidator(provider(ScriptBuilder.createP2PKHOutputScript(stakerKey)));
+        ECKey delegateKey = new ECKey();
+        Block block = createPosHeader(1);
+        signDelegated(block, delegateKey, stakerKey);
+        // The proof of delegation no longer names the key that signed the block.
+        byte[] signature = block.getSignature();
+        System.arraycopy(compactSignature(block, new ECKey()), 0, signature, 0, Block.COMPACT_SIGNATURE_SIZE);
+        block.setSignature(signature);
+        validator.verify(block);
+    }
+
+    @Test(expected = VerificationException.class)
+    public void unsigned() {
+        validator = new PosHeaderValidator(null);
+        validator.verify(createPosHeader(1));
+    }
+
+    @Test
+    public void proofOfWorkBlockIsNotChecked() {
+        validator = new PosHeaderValidator(null);
+        Block block = createPosHeader(1);
+        block.setStakePrevTxid(Sha256Hash.ZERO_HASH);
+        block.setStakeOutputIndex(0xffffffffL);
+        validator.verify(block);
+    }
+
+    @Test
+    public void verifyAll() {
+        validator = new PosHeaderValidator(provider(ScriptBuilder.createP2PKOutputScript(stakerKey)));
+        List<Block> blocks = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            Block block = createPosHeader(i);
+            signDer(block, stakerKey);
+            blocks.add(block);
+        }
+        validator.verifyAll(blocks);
+        signDer(blocks.get(57), new ECKey());
+        try {
+            validator.verifyAll(blocks);
+            fail();
+        } catch (VerificationException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(blocks.get(57).getHashAsString()));
+        }
+    }
+
+    private static Block createPosHeader(int nonce) {
+        Block block = new Block(UNITTEST, Block.BLOCK_VERSION_QTUM, Sha256Hash.ZERO_HASH, Sha256Hash.ZERO_HASH,
+                Utils.currentTimeSeconds(), Block.EASIEST_DIFFICULTY_TARGET, nonce,
+                Collections.<Transaction> emptyList());
+        block.setStakePrevTxid(Sha256Hash.of(new byte[] { (byte) nonce }));
+        block.setStakeOutputIndex(0);
+        return block.cloneAsHeader();
+    }
+
+    private static Sha256Hash signedHash(Block block) {
+        return Sha256Hash.wrap(block.getHashWithoutSignature().getReversedBytes());
+    }
+
+    private static void signDer(Block block, ECKey key) {
+        block.setSignature(key.sign(signedHash(block)).encodeToDER());
+    }
+
+    private static void signCompact(Block block, ECKey key) {
+        block.setSignature(compactSignature(block, key));
+    }
+
+    // Signs the block by the delegate and appends the staker's proof of delegation, as offline stakers do.
+    private static void signDelegated(Block block, ECKey delegateKey, ECKey stakerKey) {
+        byte[] proofOfDelegation = Base64.decode(stakerKey.signMessage(Utils.HEX.encode(delegateKey.getPubKeyHash())));
+        block.setSignature(Bytes.concat(compactSignature(block, delegateKey), proofOfDelegation));
+    }
+
+    private static byte[] compactSignature(Block block, ECKey key) {
+        Sha256Hash hash = signedHash(block);
+        ECKey.ECDSASignature sig = key.sign(hash);
+        byte[] signature = new byte[65];
+        signature[0] = (byte) (27 + key.findRecoveryId(hash, sig) + (key.isCompressed() ? 4 : 0));
+        System.arraycopy(Utils.bigIntegerToBytes(sig.r, 32), 0, signature, 1, 32);
+        System.arraycopy(Utils.bigIntegerToBytes(sig.s, 32), 0, signature, 33, 32);
+        return signature;
+    }
+
+    private static PosHeaderValidator.StakedOutputProvider provider(final Script script) {
+        return new PosHeaderValidator.StakedOutputProvider() {
+            @Nullable
+            @Override
+            public Script getStakedOutputScript(Sha256Hash txId, long index) {
+                return script;
+            }
+        };
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PosKernelValidatorTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+    // About 2^224, so that one in a few dozen timestamps gives a kernel hash below the target weighted by one coin.
+    private static final long KERNEL_DIFFICULTY = 0x1d00ffffL;
+    private static final long START_TIME = 1600000000L;
+
+    private final ECKey stakerKey = new ECKey();
+    private CountingBlockStore blockStore;
+    private PosKernelValidator validator;
+    private List<StoredBlock> chain;
+    private TransactionOutPoint stake;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(UNITTEST));
+        blockStore = new CountingBlockStore();
+        validator = new PosKernelValidator(UNITTEST, blockStore);
+        chain = extend(blockStore.getChainHead(), 20, 0);
+        stake = new TransactionOutPoint(UNITTEST, 1, Sha256Hash.of(new byte[] { 1, 2, 3 }));
+    }
+
+    @Test
+    public void validKernel() throws Exception {
+        StoredBlock prev = chain.get(20);
+        UTXO stakedOutput = stakedOutput(5, Coin.COIN);
+        Block block = createPosBlock(prev, findTime(prev, stakedOutput, true), KERNEL_DIFFICULTY);
+        validator.verify(prev, block, block.getTransactions(), stakedOutput);
+    }
+
+    @Test
+    public void kernelAboveTarget() throws Exception {
+        StoredBlock prev = chain.get(20);
+        UTXO stakedOutput = stakedOutput(5, Coin.COIN);
+        Block block = createPosBlock(prev, findTime(prev, stakedOutput, false), KERNEL_DIFFICULTY);
+        try {
+            validator.verify(prev, block, block.getTransactions(), stakedOutput);
+            fail();
+        } catch (VerificationException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("doesn't meet the target"));
+        }
+    }
+
+    @Test
+    public void stakeWeightedByValue() throws Exception {
+        StoredBlock prev = chain.get(20);
+        UTXO smallOutput = stakedOutput(5, Coin.SATOSHI);
+        UTXO largeOutput = stakedOutput(5, Coin.COIN);
+        long time = findTime(prev, largeOutput, true);
+        while (kernelMeetsTarget(prev, smallOutput, time))
+            time = findTime(prev, largeOutput, true, time + 16);
+        Block block = createPosBlock(prev, time, KERNEL_DIFFICULTY);
+        validator.verify(prev, block, block.getTransactions(), largeOutput);
+        try {
+            validator.verify(prev, block, block.getTransactions(), smallOutput);
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+    }
+
+    @Test(expected = VerificationException.class)
+    public void immatureStake() throws Exception {
+        StoredBlock prev = chain.get(20);
+        UTXO stakedOutput = stakedOutput(18, Coin.COIN);
+        Block block = createPosBlock(prev, findTime(prev, stakedOutput, true), KERNEL_DIFFICULTY);
+        validator.verify(prev, block, block.getTransactions(), stakedOutput);
+    }
+
+    @Test(expected = VerificationException.class)
+    public void missingStake() throws Exception {
+        StoredBlock prev = chain.get(20);
+        Block block = createPosBlock(prev, START_TIME + 1024, KERNEL_DIFFICULTY);
+        validator.verify(prev, block, block.getTransactions(), null);
+    }
+
+    @Test(expected = VerificationException.class)
+    public void timestampNotMasked() throws Exception {
+        StoredBlock prev = chain.get(20);
+        UTXO stakedOutput = stakedOutput(5, Coin.COIN);
+        Block block = createPosBlock(prev, findTime(prev, stakedOutput, true) + 1, KERNEL_DIFFICULTY);
+        validator.verify(prev, block, block.getTransactions(), stakedOutput);
+    }
+
+    @Test(expected = VerificationException.class)
+    public void coinStakeSpendsOtherOutput() throws Exception {
+        StoredBlock prev = chain.get(20);
+        UTXO stakedOutput = stakedOutput(5, Coin.COIN);
+        Block block = createPosBlock(prev, findTime(prev, stakedOutput, true), KERNEL_DIFFICULTY);
+        block.setStakeOutputIndex(2);
+        validator.verify(prev, block, block.getTransactions(), stakedOutput);
+    }
+
+    @Test
+    public void reorg() throws Exception {
+        StoredBlock mainPrev = chain.get(20);
+        UTXO stakedOutput = stakedOutput(5, Coin.COIN);
+        Block mainBlock = createPosBlock(mainPrev, findTime(mainPrev, stakedOutput, true), KERNEL_DIFFICULTY);
+        validator.verify(mainPrev, mainBlock, mainBlock.getTransactions(), stakedOutput);
+
+        // A fork from height 10 has other stake modifiers from there on, and other block times.
+        List<StoredBlock> fork = extend(chain.get(10), 10, 7);
+        StoredBlock forkPrev = fork.get(fork.size() - 1);
+        assertEquals(20, forkPrev.getHeight());
+        UTXO forkStakedOutput = stakedOutput(15, Coin.COIN);
+        Block forkBlock = createPosBlock(forkPrev, findTime(forkPrev, forkStakedOutput, true), KERNEL_DIFFICULTY);
+        validator.verify(forkPrev, forkBlock, forkBlock.getTransactions(), forkStakedOutput);
+
+        // And back.
+        validator.verify(mainPrev, mainBlock, mainBlock.getTransactions(), stakedOutput);
+    }
+
+    @Test
+    public void recordsKeptInFile() throws Exception {
+        File file = File.createTempFile("kernels", null);
+        file.delete();
+        file.deleteOnExit();
+        StoredBlock prev = chain.get(20);
+        UTXO stakedOutput = stakedOutput(5, Coin.COIN);
+        Block block = createPosBlock(prev, findTime(prev, stakedOutput, true), KERNEL_DIFFICULTY);
+        PosKernelValidator validator = new PosKernelValidator(UNITTEST, blockStore, file);
+        validator.verify(prev, block, block.getTransactions(), stakedOutput);
+        validator.close();
+
+        // After a restart, nothing has to be read from the block store again.
+        validator = new PosKernelValidator(UNITTEST, blockStore, file);
+        blockStore.reads = 0;
+        validator.verify(prev, block, block.getTransactions(), stakedOutput);
+        assertEquals(0, blockStore.reads);
+        // Only the blocks on top are.
+        List<StoredBlock> longer = extend(prev, 3, 0);
+        StoredBlock tip = longer.get(longer.size() - 1);
+        Block next = createPosBlock(tip, findTime(tip, stakedOutput, true), KERNEL_DIFFICULTY);
+        blockStore.reads = 0;
+        validator.verify(tip, next, next.getTransactions(), stakedOutput);
+        assertEquals(3, blockStore.reads);
+        validator.close();
+    }
+
+    @Test
+    public void missingHistory() throws Exception {
+        // A store that starts at height 20, like one that was loaded from a snapshot.
+        CountingBlockStore partialStore = new CountingBlockStore();
+        for (StoredBlock block : chain.subList(16, 21))
+            partialStore.put(block);
+        PosKernelValidator validator = new PosKernelValidator(UNITTEST, partialStore);
+        StoredBlock prev = chain.get(20);
+        UTXO stakedOutput = stakedOutput(5, Coin.COIN);
+        Block block = createPosBlock(prev, findTime(prev, stakedOutput, true), KERNEL_DIFFICULTY);
+        try {
+            validator.verify(prev, block, block.getTransactions(), stakedOutput);
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+
+        // Works once the history is imported.
+        validator.importHistory(this.validator.exportHistory(prev, 5));
+        validator.verify(prev, block, block.getTransactions(), stakedOutput);
+        // Also on top of the other blocks the history has stake modifiers for, but not below them.
+        StoredBlock forkPrev = extend(chain.get(17), 3, 7).get(20);
+        partialStore.put(forkPrev.getPrev(blockStore).getPrev(blockStore));
+        partialStore.put(forkPrev.getPrev(blockStore));
+        partialStore.put(forkPrev);
+        Block forkBlock = createPosBlock(forkPrev, findTime(forkPrev, stakedOutput, true), KERNEL_DIFFICULTY);
+        validator.verify(forkPrev, forkBlock, forkBlock.getTransactions(), stakedOutput);
+        StoredBlock deepForkPrev = extend(chain.get(14), 6, 7).get(20);
+        Block deepForkBlock = createPosBlock(deepForkPrev, findTime(deepForkPrev, stakedOutput, true),
+                KERNEL_DIFFICULTY);
+        try {
+            validator.verify(deepForkPrev, deepForkBlock, deepForkBlock.getTransactions(), stakedOutput);
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void historyRoundTrip() throws Exception {
+        StoredBlock tip = chain.get(20);
+        byte[] history = validator.exportHistory(tip, 5);
+        CountingBlockStore partialStore = new CountingBlockStore();
+        for (StoredBlock block : chain.subList(16, 21))
+            partialStore.put(block);
+        PosKernelValidator imported = new PosKernelValidator(UNITTEST, partialStore);
+        imported.importHistory(history);
+        // The imported records are taken as they are, without going back to the missing blocks.
+        assertArrayEquals(history, imported.exportHistory(tip, 5));
+        assertArrayEquals(validator.exportHistory(tip, 2), imported.exportHistory(tip, 2));
+    }
+
+    @Test
+    public void proofOfWorkBlockIsNotChecked() throws Exception {
+        StoredBlock prev = chain.get(20);
+        Block block = createPosBlock(prev, START_TIME + 1, KERNEL_DIFFICULTY);
+        block.setStakePrevTxid(Sha256Hash.ZERO_HASH);
+        block.setStakeOutputIndex(0xffffffffL);
+        validator.verify(prev, block, block.getTransactions(), null);
+    }
+
+    /** Adds proof-of-work blocks on top of the given one, returning the chain from the genesis block. */
+    private List<StoredBlock> extend(StoredBlock from, int count, int timeOffset) throws BlockStoreException {
+        List<StoredBlock> blocks = new ArrayList<>();
+        for (StoredBlock cursor = from; cursor != null; cursor = cursor.getPrev(blockStore))
+            blocks.add(0, cursor);
+        StoredBlock prev = from;
+        for (int i = 0; i < count; i++) {
+            long time = START_TIME + 64 * (prev.getHeight() + 1) + timeOffset;
+            Block header = new Block(UNITTEST, Block.BLOCK_VERSION_QTUM, prev.getHeader().getHash(),
+                    Sha256Hash.ZERO_HASH, time, Block.EASIEST_DIFFICULTY_TARGET, i,
+                    Collections.<Transaction> emptyList());
+            header.setStakeOutputIndex(0xffffffffL);
+            StoredBlock stored = prev.build(header.cloneAsHeader());
+            blockStore.put(stored);
+            blocks.add(stored);
+            prev = stored;
+        }
+        return blocks;
+    }
+
+    private UTXO stakedOutput(int height, Coin value) {
+        return new UTXO(stake.getHash(), stake.getIndex(), value, height, false,
+                ScriptBuilder.createP2PKOutputScript(stakerKey));
+    }
+
+    private Block createPosBlock(StoredBlock prev, long time, long difficultyTarget) {
+        Transaction coinbase = new Transaction(UNITTEST);
+        coinbase.addInput(new TransactionInput(UNITTEST, coinbase, new byte[] { 1, 2 }));
+        coinbase.addOutput(Coin.ZERO, new ScriptBuilder().build());
+        Transaction coinStake = new Transaction(UNITTEST);
+        coinStake.addInput(new TransactionInput(UNITTEST, coinStake, new byte[0], stake));
+        coinStake.addOutput(Coin.ZERO, new ScriptBuilder().build());
+        coinStake.addOutput(Coin.COIN, ScriptBuilder.createP2PKOutputScript(stakerKey));
+        Block block = new Block(UNITTEST, Block.BLOCK_VERSION_QTUM, prev.getHeader().getHash(), Sha256Hash.ZERO_HASH,
+                time, difficultyTarget, 0, Arrays.asList(coinbase, coinStake));
+        block.setStakePrevTxid(stake.getHash());
+        block.setStakeOutputIndex(stake.getIndex());
+        return block;
+    }
+
+    private long findTime(StoredBlock prev, UTXO stakedOutput, boolean meetsTarget) throws BlockStoreException {
+        return findTime(prev, stakedOutput, meetsTarget, prev.getHeader().getTimeSeconds() & ~15L);
+    }
+
+    /** Returns the first masked timestamp from the given one on for which the kernel does or doesn't meet the target. */
+    private long findTime(StoredBlock prev, UTXO stakedOutput, boolean meetsTarget, long from)
+            throws BlockStoreException {
+        for (long time = from; ; time += 16) {
+            if (kernelMeetsTarget(prev, stakedOutput, time) == meetsTarget)
+                return time;
+        }
+    }
+
+    /** Calculates the kernel independently from the validator, from the genesis block on. */
+    private boolean kernelMeetsTarget(StoredBlock prev, UTXO stakedOutput, long time) throws BlockStoreException {
+        List<StoredBlock> blocks = new ArrayList<>();
+        for (StoredBlock cursor = prev; cursor != null; cursor = cursor.getPrev(blockStore))
+            blocks.add(0, cursor);
+        Sha256Hash modifier = Sha256Hash.ZERO_HASH;
+        for (StoredBlock block : blocks.subList(1, blocks.size()))
+            modifier = PosKernelValidator.computeStakeModifier(modifier, block.getHeader().getHash());
+        long blockFromTime = blocks.get(stakedOutput.getHeight()).getHeader().getTimeSeconds();
+        Sha256Hash kernelHash = PosKernelValidator.computeKernelHash(modifier, blockFromTime, stake, time);
+        BigInteger target = Utils.decodeCompactBits(KERNEL_DIFFICULTY)
+                .multiply(BigInteger.valueOf(stakedOutput.getValue().value));
+        return kernelHash.toBigInteger().compareTo(target) <= 0;
+    }
+
+    // Counts the blocks looked up.
+    private static class CountingBlockStore extends MemoryBlockStore {
+        int reads;
+
+        CountingBlockStore() {
+            super(UNITTEST);
+        }
+
+        @Override
+        public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+            reads++;
+            return super.get(hash);
+        }
+    }
+}
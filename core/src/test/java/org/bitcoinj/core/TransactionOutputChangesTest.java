@@ -0,0 +1,129 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TransactionOutputChangesTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+
+    private final ECKey key = new ECKey();
+    private final ECKey uncompressedKey = ECKey.fromPrivate(key.getPrivKey(), false);
+
+    @Test
+    public void compactRoundTrip() throws Exception {
+        Sha256Hash tx1 = Sha256Hash.of(new byte[] { 1 }), tx2 = Sha256Hash.of(new byte[] { 2 });
+        Script p2sh = ScriptBuilder.createP2SHOutputScript(new byte[20]);
+        List<UTXO> created = new LinkedList<>();
+        created.add(output(tx1, 0, Coin.valueOf(21000000, 0), 0, true, ScriptBuilder.createP2PKHOutputScript(key)));
+        created.add(output(tx1, 1, Coin.valueOf(123456789), 0, true, ScriptBuilder.createP2PKOutputScript(key)));
+        created.add(output(tx1, 2, Coin.ZERO, 0, true, ScriptBuilder.createOpReturnScript(new byte[] { 42 })));
+        created.add(output(tx2, 0xFFFFFFFEL, Coin.SATOSHI, 500000, false, p2sh));
+        created.add(output(tx2, 1, Coin.CENT, 500000, false, ScriptBuilder.createP2WPKHOutputScript(key)));
+        created.add(output(tx2, 2, Coin.COIN, 500000, false,
+                ScriptBuilder.createP2PKOutputScript(uncompressedKey)));
+        List<UTXO> spent = new LinkedList<>();
+        spent.add(output(tx2, 3, Coin.valueOf(Long.MAX_VALUE / 10), Integer.MAX_VALUE, false,
+                ScriptBuilder.createP2PKOutputScript(keyWithPrefix(key.getPubKey()[0] == 0x02 ? 0x03 : 0x02))));
+
+        TransactionOutputChanges changes = new TransactionOutputChanges(created, spent);
+        ByteArrayOutputStream compact = new ByteArrayOutputStream();
+        changes.serializeCompactToStream(compact);
+        TransactionOutputChanges parsed = TransactionOutputChanges.parse(UNITTEST, compact.toByteArray());
+        assertOutputsEqual(created, parsed.txOutsCreated);
+        assertOutputsEqual(spent, parsed.txOutsSpent);
+
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        changes.serializeToStream(plain);
+        assertTrue(compact.size() < plain.size());
+    }
+
+    @Test
+    public void plainFormatIsStillRead() throws Exception {
+        List<UTXO> created = new LinkedList<>();
+        created.add(output(Sha256Hash.of(new byte[] { 1 }), 0, Coin.COIN, 10, false,
+                ScriptBuilder.createP2PKHOutputScript(key)));
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        new TransactionOutputChanges(created, new LinkedList<UTXO>()).serializeToStream(plain);
+        TransactionOutputChanges parsed = TransactionOutputChanges.parse(UNITTEST, plain.toByteArray());
+        assertOutputsEqual(created, parsed.txOutsCreated);
+        assertTrue(parsed.txOutsSpent.isEmpty());
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedCompactFormatIsRejected() throws Exception {
+        List<UTXO> created = new LinkedList<>();
+        created.add(output(Sha256Hash.of(new byte[] { 1 }), 0, Coin.COIN, 10, false,
+                ScriptBuilder.createP2PKHOutputScript(key)));
+        ByteArrayOutputStream compact = new ByteArrayOutputStream();
+        new TransactionOutputChanges(created, new LinkedList<UTXO>()).serializeCompactToStream(compact);
+        byte[] bytes = compact.toByteArray();
+        TransactionOutputChanges.parse(UNITTEST, Arrays.copyOf(bytes, bytes.length - 2));
+    }
+
+    @Test
+    public void compressAmount() {
+        long[] amounts = { 0, 1, 9, 10, 100, 12345, 50 * Coin.COIN.value, 21000000 * Coin.COIN.value,
+                Coin.COIN.value - 1, 1000000000, Long.MAX_VALUE / 10 };
+        for (long amount : amounts)
+            assertEquals(amount, TransactionOutputChanges.decompressAmount(TransactionOutputChanges.compressAmount(amount)));
+        // Round amounts fit into a byte or two.
+        assertTrue(TransactionOutputChanges.compressAmount(Coin.COIN.value) < 0xFD);
+        assertTrue(TransactionOutputChanges.compressAmount(Coin.CENT.value) < 0xFD);
+    }
+
+    private static ECKey keyWithPrefix(int prefix) {
+        ECKey key;
+        do {
+            key = new ECKey();
+        } while (key.getPubKey()[0] != prefix);
+        return key;
+    }
+
+    private UTXO output(Sha256Hash hash, long index, Coin value, int height, boolean coinbase, Script script) {
+        String address;
+        try {
+            address = script.getToAddress(UNITTEST, true).toString();
+        } catch (Exception e) {
+            address = "";
+        }
+        return new UTXO(hash, index, value, height, coinbase, script, address);
+    }
+
+    private static void assertOutputsEqual(List<UTXO> expected, List<UTXO> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            UTXO e = expected.get(i), a = actual.get(i);
+            assertEquals(e.getHash(), a.getHash());
+            assertEquals(e.getIndex(), a.getIndex());
+            assertEquals(e.getValue(), a.getValue());
+            assertEquals(e.getHeight(), a.getHeight());
+            assertEquals(e.isCoinbase(), a.isCoinbase());
+            assertEquals(e.getScript(), a.getScript());
+            assertEquals(e.getAddress(), a.getAddress());
+        }
+    }
+}
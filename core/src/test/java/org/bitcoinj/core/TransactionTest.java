@@ -640,4 +640,121 @@ public class TransactionTest {
         assertEquals(542, tx.getWeight());
         assertEquals(136, tx.getVsize());
     }
+
+    @Test
+    public void witnessSignatureHashAfterModification() {
+        ECKey key = new ECKey();
+        Transaction tx = new Transaction(UNITTEST);
+        for (int i = 0; i < 3; i++)
+            tx.addInput(new TransactionInput(UNITTEST, tx, new byte[] {},
+                    new TransactionOutPoint(UNITTEST, i, Sha256Hash.of(new byte[] { (byte) i }))));
+        tx.addOutput(Coin.COIN, key);
+        tx.addOutput(Coin.CENT, ADDRESS);
+        byte[] scriptCode = ScriptBuilder.createP2PKHOutputScript(key).getProgram();
+
+        assertWitnessSignatureHashesMatchFreshCopy(tx, scriptCode);
+        tx.addInput(new TransactionInput(UNITTEST, tx, new byte[] {},
+                new TransactionOutPoint(UNITTEST, 7, Sha256Hash.of(new byte[] { 7 }))));
+        assertWitnessSignatureHashesMatchFreshCopy(tx, scriptCode);
+        tx.getInput(1).setSequenceNumber(42);
+        assertWitnessSignatureHashesMatchFreshCopy(tx, scriptCode);
+        tx.getInput(2).getOutpoint().setIndex(5);
+        assertWitnessSignatureHashesMatchFreshCopy(tx, scriptCode);
+        tx.getOutput(0).setValue(Coin.FIFTY_COINS);
+        assertWitnessSignatureHashesMatchFreshCopy(tx, scriptCode);
+        tx.addOutput(Coin.SATOSHI, key);
+        assertWitnessSignatureHashesMatchFreshCopy(tx, scriptCode);
+        Sha256Hash before = tx.hashForWitnessSignature(0, scriptCode, Coin.COIN, Transaction.SigHash.ALL, false);
+        // Input scripts aren't part of the signature hash.
+        tx.getInput(2).setScriptSig(new ScriptBuilder().data(new byte[] { 1, 2, 3 }).build());
+        assertEquals(before, tx.hashForWitnessSignature(0, scriptCode, Coin.COIN, Transaction.SigHash.ALL, false));
+        assertWitnessSignatureHashesMatchFreshCopy(tx, scriptCode);
+        tx.clearOutputs();
+        tx.addOutput(Coin.COIN, ADDRESS);
+        assertWitnessSignatureHashesMatchFreshCopy(tx, scriptCode);
+    }
+
+    private static void assertWitnessSignatureHashesMatchFreshCopy(Transaction tx, byte[] scriptCode) {
+        Transaction copy = new Transaction(UNITTEST, tx.bitcoinSerialize());
+        for (int i = 0; i < tx.getInputs().size(); i++) {
+            for (Transaction.SigHash sigHash : new Transaction.SigHash[] { Transaction.SigHash.ALL,
+                    Transaction.SigHash.NONE, Transaction.SigHash.SINGLE }) {
+                for (boolean anyoneCanPay : new boolean[] { false, true }) {
+                    assertEquals(copy.hashForWitnessSignature(i, scriptCode, Coin.COIN, sigHash, anyoneCanPay),
+                            tx.hashForWitnessSignature(i, scriptCode, Coin.COIN, sigHash, anyoneCanPay));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void hashForSignatureMatchesModifiedCopy() {
+        Random random = new Random(3);
+        for (int n = 0; n < 50; n++) {
+            Transaction tx = new Transaction(UNITTEST);
+            tx.setVersion(1 + random.nextInt(2));
+            tx.setLockTime(random.nextInt(1000));
+            int numInputs = 1 + random.nextInt(5);
+            for (int i = 0; i < numInputs; i++) {
+                TransactionInput input = tx.addInput(new TransactionInput(UNITTEST, tx, randomBytes(random, 40),
+                        new TransactionOutPoint(UNITTEST, random.nextInt(10), Sha256Hash.wrap(randomBytes(random, 32)))));
+                input.setSequenceNumber(random.nextBoolean() ? TransactionInput.NO_SEQUENCE : random.nextInt());
+            }
+            int numOutputs = random.nextInt(5);
+            for (int i = 0; i < numOutputs; i++)
+                tx.addOutput(new TransactionOutput(UNITTEST, tx, Coin.valueOf(random.nextInt(100000)),
+                        randomBytes(random, 30)));
+            byte[] connectedScript = new ScriptBuilder().data(randomBytes(random, 20)).op(ScriptOpCodes.OP_CODESEPARATOR)
+                    .op(ScriptOpCodes.OP_CHECKSIG).build().getProgram();
+            for (int i = 0; i < numInputs; i++) {
+                for (int sigHashType = 0; sigHashType < 256; sigHashType++) {
+                    assertEquals(hashForSignatureOfModifiedCopy(tx, i, connectedScript, (byte) sigHashType),
+                            tx.hashForSignature(i, connectedScript, (byte) sigHashType));
+                }
+            }
+        }
+    }
+
+    private static byte[] randomBytes(Random random, int maxLength) {
+        byte[] bytes = new byte[maxLength == 32 ? 32 : random.nextInt(maxLength + 1)];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    // Builds the simplified transaction the legacy signature hash is defined on, as a reference.
+    private static Sha256Hash hashForSignatureOfModifiedCopy(Transaction tx, int inputIndex, byte[] connectedScript,
+                                                             byte sigHashType) {
+        int basicSigHashType = sigHashType & 0x1f;
+        boolean anyoneCanPay = (sigHashType & 0x80) != 0;
+        if (basicSigHashType == Transaction.SigHash.SINGLE.value && inputIndex >= tx.getOutputs().size())
+            return Sha256Hash.wrap("0100000000000000000000000000000000000000000000000000000000000000");
+        connectedScript = Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR);
+        Transaction copy = new Transaction(UNITTEST);
+        copy.setVersion((int) tx.getVersion());
+        copy.setLockTime(tx.getLockTime());
+        for (int i = 0; i < tx.getInputs().size(); i++) {
+            if (anyoneCanPay && i != inputIndex)
+                continue;
+            TransactionInput input = tx.getInput(i);
+            TransactionInput inputCopy = copy.addInput(new TransactionInput(UNITTEST, copy,
+                    i == inputIndex ? connectedScript : new byte[0],
+                    new TransactionOutPoint(UNITTEST, input.getOutpoint().getIndex(), input.getOutpoint().getHash())));
+            boolean zeroSequence = i != inputIndex && (basicSigHashType == Transaction.SigHash.NONE.value
+                    || basicSigHashType == Transaction.SigHash.SINGLE.value);
+            inputCopy.setSequenceNumber(zeroSequence ? 0 : input.getSequenceNumber());
+        }
+        if (basicSigHashType == Transaction.SigHash.SINGLE.value) {
+            for (int i = 0; i < inputIndex; i++)
+                copy.addOutput(new TransactionOutput(UNITTEST, copy, Coin.NEGATIVE_SATOSHI, new byte[0]));
+            copy.addOutput(new TransactionOutput(UNITTEST, copy, tx.getOutput(inputIndex).getValue(),
+                    tx.getOutput(inputIndex).getScriptBytes()));
+        } else if (basicSigHashType != Transaction.SigHash.NONE.value) {
+            for (TransactionOutput output : tx.getOutputs())
+                copy.addOutput(new TransactionOutput(UNITTEST, copy, output.getValue(), output.getScriptBytes()));
+        }
+        byte[] serialized = copy.bitcoinSerialize();
+        byte[] preimage = Arrays.copyOf(serialized, serialized.length + 4);
+        Utils.uint32ToByteArrayLE(sigHashType & 0xff, preimage, serialized.length);
+        return Sha256Hash.twiceOf(preimage);
+    }
 }
@@ -0,0 +1,64 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DirectBufferPoolTest {
+    @Test
+    public void buffersAreCarvedFromSlabs() {
+        DirectBufferPool pool = new DirectBufferPool(16, 4);
+        List<ByteBuffer> buffers = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            ByteBuffer buffer = pool.take();
+            assertTrue(buffer.isDirect());
+            assertEquals(16, buffer.capacity());
+            assertEquals(16, buffer.remaining());
+            buffers.add(buffer);
+        }
+        assertEquals(8, pool.getAllocatedCount());
+
+        // Buffers of the same slab don't overlap.
+        for (int i = 0; i < buffers.size(); i++) {
+            byte[] bytes = new byte[16];
+            Arrays.fill(bytes, (byte) i);
+            buffers.get(i).put(bytes);
+        }
+        for (int i = 0; i < buffers.size(); i++)
+            for (int j = 0; j < 16; j++)
+                assertEquals(i, buffers.get(i).get(j));
+    }
+
+    @Test
+    public void buffersAreReused() {
+        DirectBufferPool pool = new DirectBufferPool(16, 2);
+        ByteBuffer buffer = pool.take();
+        buffer.put(new byte[5]);
+        pool.give(buffer);
+        for (int i = 0; i < 10; i++)
+            pool.give(pool.take());
+        assertEquals(2, pool.getAllocatedCount());
+        ByteBuffer again = pool.take();
+        assertEquals(0, again.position());
+        assertEquals(16, again.limit());
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+import org.bitcoinj.core.Context;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class NioClientManagerTest {
+    private static final Logger log = LoggerFactory.getLogger(NioClientManagerTest.class);
+
+    private static final int CONNECTIONS = 16;
+    private static final int MESSAGES = 200;
+    private static final int MESSAGE_SIZE = 1000;
+
+    private NioServer server;
+    private NioClientManager manager;
+
+    @Before
+    public void setUp() {
+        // The threads of the client manager take the Context along.
+        Context.propagate(new Context(UnitTestParams.get()));
+    }
+
+    @After
+    public void tearDown() {
+        if (manager != null)
+            manager.stopAsync().awaitTerminated();
+        if (server != null)
+            server.stopAsync().awaitTerminated();
+    }
+
+    @Test
+    public void singleSelector() throws Exception {
+        echo(1);
+    }
+
+    @Test
+    public void severalSelectors() throws Exception {
+        echo(4);
+    }
+
+    @Test
+    public void mixedMessageSizes() throws Exception {
+        // Small messages get coalesced into pooled buffers, large ones are written from their own arrays, and all of
+        // them have to come out in order.
+        int port = start(2);
+        CountDownLatch opened = new CountDownLatch(1);
+        CountDownLatch echoed = new CountDownLatch(1);
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        for (int i = 0; i < 300; i++) {
+            byte[] header = new byte[24];
+            Arrays.fill(header, (byte) i);
+            byte[] payload = new byte[i % 10 == 0 ? 20000 + i : i % 37];
+            Arrays.fill(payload, (byte) (i * 7));
+            sent.write(header);
+            sent.write(payload);
+        }
+        CountingConnection client = new CountingConnection(opened, echoed, sent.size());
+        manager.openConnection(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), client);
+        assertTrue(opened.await(10, TimeUnit.SECONDS));
+        byte[] bytes = sent.toByteArray();
+        for (int i = 0, offset = 0; i < 300; i++) {
+            int payloadLength = i % 10 == 0 ? 20000 + i : i % 37;
+            client.writeTarget.writeBytes(Arrays.copyOfRange(bytes, offset, offset + 24),
+                    Arrays.copyOfRange(bytes, offset + 24, offset + 24 + payloadLength));
+            offset += 24 + payloadLength;
+        }
+        assertTrue(echoed.await(10, TimeUnit.SECONDS));
+        assertArrayEquals(bytes, client.received.toByteArray());
+
+        // Once everything has been written and read, the connections hand their buffers back.
+        int allocated = ConnectionHandler.bufferPool.getAllocatedCount();
+        for (int i = 0; i < 10; i++) {
+            client.writeTarget.writeBytes(new byte[100]);
+            Thread.sleep(10);
+        }
+        assertEquals(allocated, ConnectionHandler.bufferPool.getAllocatedCount());
+    }
+
+    private int start(int selectorThreads) throws Exception {
+        server = new NioServer(new StreamConnectionFactory() {
+            @Override
+            public StreamConnection getNewConnection(InetAddress inetAddress, int port) {
+                return new EchoConnection();
+            }
+        }, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), selectorThreads);
+        int port = ((ServerSocketChannel) server.selector.keys().iterator().next().channel()).socket().getLocalPort();
+        server.startAsync().awaitRunning();
+        manager = new NioClientManager(selectorThreads);
+        manager.startAsync().awaitRunning();
+        return port;
+    }
+
+    // Bounces messages off an in-process loopback server, reporting how long it took as a rough benchmark.
+    private void echo(int selectorThreads) throws Exception {
+        int port = start(selectorThreads);
+        assertEquals(selectorThreads, manager.getSelectorThreadCount());
+
+        CountDownLatch opened = new CountDownLatch(CONNECTIONS);
+        CountDownLatch echoed = new CountDownLatch(CONNECTIONS);
+        CountingConnection[] clients = new CountingConnection[CONNECTIONS];
+        for (int i = 0; i < CONNECTIONS; i++) {
+            clients[i] = new CountingConnection(opened, echoed, (long) MESSAGES * MESSAGE_SIZE);
+            manager.openConnection(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), clients[i]);
+        }
+        assertTrue(opened.await(10, TimeUnit.SECONDS));
+        assertEquals(CONNECTIONS, manager.getConnectedClientCount());
+
+        long start = System.nanoTime();
+        byte[] message = new byte[MESSAGE_SIZE];
+        for (int i = 0; i < MESSAGES; i++)
+            for (CountingConnection client : clients)
+                client.writeTarget.writeBytes(message);
+        assertTrue(echoed.await(30, TimeUnit.SECONDS));
+        log.info("{} selector threads: echoed {} bytes in {} ms, loop latency avg {} us, max {} us", selectorThreads,
+                (long) CONNECTIONS * MESSAGES * MESSAGE_SIZE, (System.nanoTime() - start) / 1000000,
+                manager.getAverageLoopLatencyNanos() / 1000, manager.getMaxLoopLatencyNanos() / 1000);
+        assertTrue(manager.getMaxLoopLatencyNanos() > 0);
+        assertTrue(server.getMaxLoopLatencyNanos() > 0);
+
+        manager.closeConnections(CONNECTIONS);
+        assertEquals(0, manager.getConnectedClientCount());
+    }
+
+    private static class EchoConnection implements StreamConnection {
+        private MessageWriteTarget writeTarget;
+
+        @Override
+        public void connectionClosed() {
+        }
+
+        @Override
+        public void connectionOpened() {
+        }
+
+        @Override
+        public int receiveBytes(ByteBuffer buff) throws Exception {
+            byte[] bytes = new byte[buff.remaining()];
+            buff.get(bytes);
+            writeTarget.writeBytes(bytes);
+            return bytes.length;
+        }
+
+        @Override
+        public void setWriteTarget(MessageWriteTarget writeTarget) {
+            this.writeTarget = writeTarget;
+        }
+
+        @Override
+        public int getMaxMessageSize() {
+            return MESSAGE_SIZE;
+        }
+    }
+
+    private static class CountingConnection implements StreamConnection {
+        private final CountDownLatch opened, echoed;
+        private final long expected;
+        private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        volatile MessageWriteTarget writeTarget;
+
+        CountingConnection(CountDownLatch opened, CountDownLatch echoed, long expected) {
+            this.opened = opened;
+            this.echoed = echoed;
+            this.expected = expected;
+        }
+
+        @Override
+        public void connectionClosed() {
+        }
+
+        @Override
+        public void connectionOpened() {
+            opened.countDown();
+        }
+
+        @Override
+        public int receiveBytes(ByteBuffer buff) {
+            byte[] bytes = new byte[buff.remaining()];
+            buff.get(bytes);
+            received.write(bytes, 0, bytes.length);
+            if (received.size() == expected)
+                echoed.countDown();
+            return bytes.length;
+        }
+
+        @Override
+        public void setWriteTarget(MessageWriteTarget writeTarget) {
+            this.writeTarget = writeTarget;
+        }
+
+        @Override
+        public int getMaxMessageSize() {
+            return MESSAGE_SIZE;
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.params;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.bitcoinj.core.ArithUint256;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.bitcoinj.store.SPVBlockStore;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AbstractQtumNetParamsTest {
+    private static final int LONG_RUN = 100000;
+
+    // A fresh instance per test, so that no lookups are memoized from other tests.
+    private UnitTestParams params;
+    private CountingBlockStore store;
+    private List<StoredBlock> chain;
+
+    @Before
+    public void setUp() throws Exception {
+        params = new UnitTestParams();
+        store = new CountingBlockStore(new MemoryBlockStore(params));
+        chain = new ArrayList<>();
+        chain.add(store.getChainHead());
+    }
+
+    @Test
+    public void lastSameTypeBlockMatchesStoreWalk() throws Exception {
+        Random random = new Random(42);
+        // Runs of random length, including runs longer than the memo cache.
+        while (chain.size() < 4000) {
+            boolean pos = random.nextBoolean();
+            int run = random.nextInt(10) == 0 ? random.nextInt(1000) : random.nextInt(5);
+            for (int i = 0; i < run; i++)
+                extend(pos);
+        }
+        for (StoredBlock block : chain) {
+            assertEquals(walkToSameType(block, store, true), params.getLastSameTypeBlock(block, store, true));
+            assertEquals(walkToSameType(block, store, false), params.getLastSameTypeBlock(block, store, false));
+        }
+    }
+
+    @Test
+    public void lastSameTypeBlockWithoutAncestorOfThatType() throws Exception {
+        for (int i = 0; i < 10; i++)
+            extend(false);
+        StoredBlock tip = chain.get(chain.size() - 1);
+        // No PoS block at all, so we end up at the start of the store.
+        assertEquals(chain.get(0), params.getLastSameTypeBlock(tip, store, true));
+        assertEquals(tip, params.getLastSameTypeBlock(tip, store, false));
+    }
+
+    @Test
+    public void lastSameTypeBlockReadsOnLongRunMemoryStore() throws Exception {
+        lastSameTypeBlockReadsOnLongRun();
+    }
+
+    @Test
+    public void lastSameTypeBlockReadsOnLongRunSPVStore() throws Exception {
+        File file = File.createTempFile("spvblockstore", null);
+        file.delete();
+        file.deleteOnExit();
+        SPVBlockStore spvStore = new SPVBlockStore(params, file, LONG_RUN + 10, false);
+        try {
+            store = new CountingBlockStore(spvStore);
+            chain.clear();
+            chain.add(store.getChainHead());
+            lastSameTypeBlockReadsOnLongRun();
+        } finally {
+            spvStore.close();
+        }
+    }
+
+    // A long run of PoS blocks on top of a single PoW block, as on the real network. Looking up the last PoW block
+    // from each new tip would walk all the way back down without memoization, so count the block store reads.
+    private void lastSameTypeBlockReadsOnLongRun() throws Exception {
+        extend(false);
+        StoredBlock pow = chain.get(chain.size() - 1);
+        for (int i = 0; i < LONG_RUN; i++) {
+            extend(true);
+            assertEquals(pow, params.getLastSameTypeBlock(chain.get(chain.size() - 1), store, false));
+        }
+        // Every lookup only reads the parent of the new tip, which already has its answer memoized.
+        assertTrue("read " + store.reads + " blocks", store.reads <= LONG_RUN);
+
+        // Asking again about any of the recent blocks doesn't touch the store at all.
+        long reads = store.reads;
+        for (int i = 0; i < 1000; i++)
+            assertEquals(pow, params.getLastSameTypeBlock(chain.get(chain.size() - 1 - i), store, false));
+        assertEquals(reads, store.reads);
+    }
+
+    @Test
+    public void mulExpMatchesBigInteger() {
+        Random random = new Random(7);
+        BigInteger maxTarget = params.getMaxTarget();
+        for (int i = 0; i < 10000; i++) {
+            BigInteger a = new BigInteger(random.nextInt(maxTarget.bitLength()) + 1, random);
+            // Roughly the ranges seen when retargeting, where the actual spacing is clamped to [0, 20 * spacing].
+            long q = 16 + random.nextInt(1000);
+            long p = random.nextInt((int) q * 5 / 4) - q / 8;
+            BigInteger expected = mulExpBigInteger(a, p, q);
+            ArithUint256 result = new ArithUint256();
+            result.set(a);
+            boolean valid = AbstractQtumNetParams.mulExp(result, p, q);
+            assertEquals(expected.signum() >= 0 && expected.bitLength() <= 256, valid);
+            if (valid)
+                assertEquals(expected, result.toBigInteger());
+        }
+    }
+
+    // The original BigInteger implementation, as a reference.
+    private static BigInteger mulExpBigInteger(BigInteger a, long p, long q) {
+        BigInteger result = a;
+        long n = 0;
+        while (a.compareTo(BigInteger.ZERO) != 0) {
+            n++;
+            a = a.multiply(BigInteger.valueOf(p)).divide(BigInteger.valueOf(q * n));
+            result = result.add(a);
+        }
+        return result;
+    }
+
+    private void extend(boolean pos) throws BlockStoreException {
+        StoredBlock prev = chain.get(chain.size() - 1);
+        Block block = new Block(params, Block.BLOCK_VERSION_QTUM, prev.getHeader().getHash(), Sha256Hash.ZERO_HASH,
+                prev.getHeader().getTimeSeconds() + 1, Block.EASIEST_DIFFICULTY_TARGET, chain.size(),
+                Collections.<Transaction> emptyList());
+        if (pos) {
+            block.setStakePrevTxid(Sha256Hash.of(new byte[] { (byte) chain.size(), (byte) (chain.size() >> 8) }));
+            block.setStakeOutputIndex(0);
+        } else {
+            block.setStakeOutputIndex(0xffffffffL);
+        }
+        StoredBlock stored = new StoredBlock(block.cloneAsHeader(), BigInteger.ONE, prev.getHeight() + 1);
+        store.put(stored);
+        chain.add(stored);
+    }
+
+    private static StoredBlock walkToSameType(StoredBlock last, BlockStore store, boolean isProofOfStake)
+            throws BlockStoreException {
+        StoredBlock prev = last;
+        do {
+            if (prev.getHeader().isPOS() == isProofOfStake)
+                return prev;
+            last = prev;
+            prev = last.getPrev(store);
+        } while (prev != null);
+        return last;
+    }
+
+    // Counts the blocks looked up in the wrapped store.
+    private static class CountingBlockStore implements BlockStore {
+        private final BlockStore store;
+        long reads;
+
+        CountingBlockStore(BlockStore store) {
+            this.store = store;
+        }
+
+        @Override
+        public void put(StoredBlock block) throws BlockStoreException {
+            store.put(block);
+        }
+
+        @Override
+        public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+            reads++;
+            return store.get(hash);
+        }
+
+        @Override
+        public StoredBlock getChainHead() throws BlockStoreException {
+            return store.getChainHead();
+        }
+
+        @Override
+        public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+            store.setChainHead(chainHead);
+        }
+
+        @Override
+        public void close() throws BlockStoreException {
+            store.close();
+        }
+
+        @Override
+        public NetworkParameters getParams() {
+            return store.getParams();
+        }
+    }
+}
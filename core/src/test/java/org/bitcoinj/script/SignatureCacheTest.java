@@ -0,0 +1,115 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.script;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.testing.FakeTxBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SignatureCacheTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+
+    private final ECKey key = new ECKey();
+    private final Sha256Hash hash = Sha256Hash.of(new byte[] { 1, 2, 3 });
+    private SignatureCache previous;
+
+    @Before
+    public void setUp() {
+        previous = SignatureCache.get();
+    }
+
+    @After
+    public void tearDown() {
+        SignatureCache.set(previous);
+    }
+
+    @Test
+    public void remembersValidSignatures() {
+        SignatureCache cache = new SignatureCache(10);
+        ECKey.ECDSASignature signature = key.sign(hash);
+        assertTrue(cache.verify(hash, signature, key.getPubKey()));
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertTrue(cache.verify(hash, signature, key.getPubKey()));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void doesNotRememberInvalidSignatures() {
+        SignatureCache cache = new SignatureCache(10);
+        ECKey.ECDSASignature signature = new ECKey().sign(hash);
+        assertFalse(cache.verify(hash, signature, key.getPubKey()));
+        assertFalse(cache.verify(hash, signature, key.getPubKey()));
+        assertEquals(0, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void validSignatureForOtherHashOrKey() {
+        SignatureCache cache = new SignatureCache(10);
+        ECKey.ECDSASignature signature = key.sign(hash);
+        assertTrue(cache.verify(hash, signature, key.getPubKey()));
+        assertFalse(cache.verify(Sha256Hash.of(new byte[] { 4 }), signature, key.getPubKey()));
+        assertFalse(cache.verify(hash, signature, new ECKey().getPubKey()));
+        assertEquals(0, cache.getHits());
+    }
+
+    @Test
+    public void bounded() {
+        SignatureCache cache = new SignatureCache(5);
+        for (int i = 0; i < 20; i++) {
+            Sha256Hash hash = Sha256Hash.of(new byte[] { (byte) i });
+            assertTrue(cache.verify(hash, key.sign(hash), key.getPubKey()));
+        }
+        assertTrue(cache.size() <= 5);
+    }
+
+    @Test
+    public void disabled() {
+        SignatureCache cache = new SignatureCache(0);
+        ECKey.ECDSASignature signature = key.sign(hash);
+        assertTrue(cache.verify(hash, signature, key.getPubKey()));
+        assertTrue(cache.verify(hash, signature, key.getPubKey()));
+        assertEquals(0, cache.getHits());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void consultedByScript() throws Exception {
+        SignatureCache cache = new SignatureCache(10);
+        SignatureCache.set(cache);
+        Transaction tx = FakeTxBuilder.createFakeTx(UNITTEST);
+        Transaction spend = new Transaction(UNITTEST);
+        spend.addOutput(tx.getOutput(0).getValue(), new ECKey());
+        Script scriptPubKey = ScriptBuilder.createP2PKHOutputScript(key);
+        TransactionInput input = spend.addSignedInput(tx.getOutput(0).getOutPointFor(), scriptPubKey, key);
+        input.getScriptSig().correctlySpends(spend, 0, scriptPubKey, Script.ALL_VERIFY_FLAGS);
+        assertEquals(1, cache.getMisses());
+        input.getScriptSig().correctlySpends(spend, 0, scriptPubKey, Script.ALL_VERIFY_FLAGS);
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+    }
+}
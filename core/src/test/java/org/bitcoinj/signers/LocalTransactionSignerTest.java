@@ -0,0 +1,139 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.signers;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ContractAddress;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.core.VarInt;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.script.ScriptChunk;
+import org.bitcoinj.script.ScriptPattern;
+import org.bitcoinj.testing.FakeTxBuilder;
+import org.bitcoinj.wallet.KeyBag;
+import org.bitcoinj.wallet.RedeemData;
+import org.junit.Test;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class LocalTransactionSignerTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+
+    private final Map<Sha256Hash, ECKey> keys = new HashMap<>();
+
+    @Test
+    public void signOpSenderOutputs() {
+        ECKey inputKey = addKey(new ECKey());
+        Transaction tx = new Transaction(UNITTEST);
+        TransactionInput input = tx.addInput(FakeTxBuilder.createFakeTx(UNITTEST, Coin.COIN, inputKey).getOutput(0));
+        // The signer expects input scripts with a placeholder for the signature, like the wallet creates them.
+        input.setScriptSig(input.getConnectedOutput().getScriptPubKey().createEmptyInputScript(inputKey, null));
+        ContractAddress contract = ContractAddress.fromBytes(new byte[20]);
+        List<ECKey> senders = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            ECKey sender = addKey(new ECKey());
+            senders.add(sender);
+            tx.addOutput(Coin.ZERO, ScriptBuilder.createOpCallScript(transferData(i), sender, contract, 250000, 40));
+        }
+        // One sender we don't have the key for, and a plain payment.
+        Script foreign = ScriptBuilder.createOpCallScript(transferData(99), new ECKey(), contract, 250000, 40);
+        tx.addOutput(Coin.ZERO, foreign);
+        tx.addOutput(Coin.CENT, inputKey);
+
+        assertTrue(new LocalTransactionSigner().signInputs(new TransactionSigner.ProposedTransaction(tx),
+                keyBag()));
+
+        assertEquals(22, tx.getOutputs().size());
+        for (int i = 0; i < senders.size(); i++) {
+            TransactionOutput output = tx.getOutput(i);
+            assertSame(tx, output.getParentTransaction());
+            assertTrue(ScriptPattern.isOpSenderSigned(output.getScriptPubKey()));
+            assertOpSenderSignature(tx, i, senders.get(i));
+        }
+        assertEquals(foreign, tx.getOutput(20).getScriptPubKey());
+        assertTrue(ScriptPattern.isP2PK(tx.getOutput(21).getScriptPubKey()));
+        // The input signature covers the signed outputs.
+        input.verify(input.getConnectedOutput());
+        assertArrayEquals(tx.bitcoinSerialize(), new Transaction(UNITTEST, tx.bitcoinSerialize()).bitcoinSerialize());
+        assertEquals(tx.getMessageSize(), tx.bitcoinSerialize().length);
+    }
+
+    // A call of the QRC20 transfer function, with a made up argument.
+    private static byte[] transferData(int i) {
+        return new byte[] { (byte) 0xa9, 0x05, (byte) 0x9c, (byte) 0xbb, (byte) i };
+    }
+
+    private static void assertOpSenderSignature(Transaction tx, int index, ECKey sender) {
+        ScriptChunk signatureChunk = tx.getOutput(index).getScriptPubKey().getChunks().get(2);
+        VarInt length = new VarInt(signatureChunk.data, 0);
+        Script scriptSig = new Script(Arrays.copyOfRange(signatureChunk.data, length.getOriginalSizeInBytes(),
+                signatureChunk.data.length));
+        byte[] signature = scriptSig.getChunks().get(0).data;
+        assertArrayEquals(sender.getPubKey(), scriptSig.getChunks().get(1).data);
+        Sha256Hash hash = tx.hashForOpSenderSignature(index, ScriptBuilder.createP2PKHOutputScript(sender),
+                tx.getOutput(index).getValue(), Transaction.SigHash.ALL, false);
+        assertTrue(sender.verify(hash, signatureWithoutSigHash(signature)));
+    }
+
+    private static ECKey.ECDSASignature signatureWithoutSigHash(byte[] signature) {
+        try {
+            return ECKey.ECDSASignature.decodeFromDER(Arrays.copyOf(signature, signature.length - 1));
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private ECKey addKey(ECKey key) {
+        keys.put(Sha256Hash.wrap(Arrays.copyOf(Utils.sha256hash160(key.getPubKey()), 32)), key);
+        return key;
+    }
+
+    private KeyBag keyBag() {
+        return new KeyBag() {
+            @Nullable
+            @Override
+            public ECKey findKeyFromPubKeyHash(byte[] pubKeyHash, @Nullable Script.ScriptType scriptType) {
+                return keys.get(Sha256Hash.wrap(Arrays.copyOf(pubKeyHash, 32)));
+            }
+
+            @Nullable
+            @Override
+            public ECKey findKeyFromPubKey(byte[] pubKey) {
+                return findKeyFromPubKeyHash(Utils.sha256hash160(pubKey), null);
+            }
+
+            @Nullable
+            @Override
+            public RedeemData findRedeemDataFromScriptHash(byte[] scriptHash) {
+                return null;
+            }
+        };
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.ScriptBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CachingFullPrunedBlockStoreTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+
+    private final ECKey key = new ECKey();
+    private MemoryFullPrunedBlockStore underlying;
+    private CachingFullPrunedBlockStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        Utils.setMockClock();
+        Context.propagate(new Context(UNITTEST));
+        underlying = new MemoryFullPrunedBlockStore(UNITTEST, 10);
+        store = new CachingFullPrunedBlockStore(underlying, Long.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    @Test
+    public void createdAndSpentOutputIsNeverWritten() throws Exception {
+        UTXO out = createOutput(1);
+        connect(Collections.singletonList(out), Collections.<UTXO> emptyList());
+        assertEquals(out, store.getTransactionOutput(out.getHash(), out.getIndex()));
+        assertTrue(store.hasUnspentOutputs(out.getHash(), 1));
+        connect(Collections.<UTXO> emptyList(), Collections.singletonList(out));
+        assertNull(store.getTransactionOutput(out.getHash(), out.getIndex()));
+        assertFalse(store.hasUnspentOutputs(out.getHash(), 1));
+
+        store.flush();
+        assertNull(underlying.getTransactionOutput(out.getHash(), out.getIndex()));
+        assertEquals(1, store.getOutputsAbsorbed());
+        assertEquals(0, store.getOutputsWritten());
+    }
+
+    @Test
+    public void changesAreWrittenBackOnFlush() throws Exception {
+        StoredBlock genesis = store.getVerifiedChainHead();
+        UTXO out = createOutput(1);
+        StoredBlock block = connect(Collections.singletonList(out), Collections.<UTXO> emptyList());
+        assertEquals(block, store.getVerifiedChainHead());
+        assertEquals(block, store.get(block.getHeader().getHash()));
+        assertNotNull(store.getUndoBlock(block.getHeader().getHash()));
+        // Nothing reached the underlying store yet.
+        assertNull(underlying.getTransactionOutput(out.getHash(), out.getIndex()));
+        assertNull(underlying.get(block.getHeader().getHash()));
+        assertEquals(genesis, underlying.getVerifiedChainHead());
+
+        store.flush();
+        assertEquals(out, underlying.getTransactionOutput(out.getHash(), out.getIndex()));
+        assertEquals(block, underlying.getOnceUndoableStoredBlock(block.getHeader().getHash()));
+        assertEquals(block, underlying.getVerifiedChainHead());
+        assertEquals(block, underlying.getChainHead());
+        assertEquals(1, store.getOutputsWritten());
+        assertEquals(0, store.getCachedBytes());
+    }
+
+    @Test
+    public void spendingStoredOutput() throws Exception {
+        UTXO out1 = createOutput(1), out2 = new UTXO(out1.getHash(), 1, Coin.COIN, 1, false,
+                out1.getScript(), out1.getAddress());
+        connect(Arrays.asList(out1, out2), Collections.<UTXO> emptyList());
+        store.flush();
+
+        connect(Collections.<UTXO> emptyList(), Collections.singletonList(out1));
+        assertNull(store.getTransactionOutput(out1.getHash(), out1.getIndex()));
+        assertEquals(out1, underlying.getTransactionOutput(out1.getHash(), out1.getIndex()));
+        // The underlying store still has both outputs, but only one of them is unspent.
+        assertTrue(store.hasUnspentOutputs(out1.getHash(), 2));
+        connect(Collections.<UTXO> emptyList(), Collections.singletonList(out2));
+        assertFalse(store.hasUnspentOutputs(out1.getHash(), 2));
+        assertTrue(underlying.hasUnspentOutputs(out1.getHash(), 2));
+        try {
+            store.removeUnspentTransactionOutput(out1);
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+
+        store.flush();
+        assertFalse(underlying.hasUnspentOutputs(out1.getHash(), 2));
+    }
+
+    @Test
+    public void respendingStoredOutput() throws Exception {
+        // Like the SQL stores, ignore inserting an output that is already there.
+        underlying = new MemoryFullPrunedBlockStore(UNITTEST, 10) {
+            @Override
+            public synchronized void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+                if (getTransactionOutput(out.getHash(), out.getIndex()) == null)
+                    super.addUnspentTransactionOutput(out);
+            }
+        };
+        store = new CachingFullPrunedBlockStore(underlying, Long.MAX_VALUE, Long.MAX_VALUE);
+        UTXO out = createOutput(1);
+        connect(Collections.singletonList(out), Collections.<UTXO> emptyList());
+        store.flush();
+        long written = store.getOutputsWritten();
+
+        // Spending the output and adding it back unchanged, as when a block is disconnected, writes nothing.
+        store.removeUnspentTransactionOutput(out);
+        store.addUnspentTransactionOutput(out);
+        assertEquals(out, store.getTransactionOutput(out.getHash(), out.getIndex()));
+        store.flush();
+        assertEquals(written, store.getOutputsWritten());
+        assertEquals(out, underlying.getTransactionOutput(out.getHash(), out.getIndex()));
+
+        // Adding it back at another height, as after a reorg, replaces the stored one.
+        UTXO moved = new UTXO(out.getHash(), out.getIndex(), out.getValue(), 5, false, out.getScript(),
+                out.getAddress());
+        store.removeUnspentTransactionOutput(out);
+        store.addUnspentTransactionOutput(moved);
+        store.flush();
+        assertEquals(5, underlying.getTransactionOutput(out.getHash(), out.getIndex()).getHeight());
+    }
+
+    @Test
+    public void abortDiscardsBatch() throws Exception {
+        UTXO out1 = createOutput(1);
+        StoredBlock block = connect(Collections.singletonList(out1), Collections.<UTXO> emptyList());
+        long cachedBytes = store.getCachedBytes();
+
+        UTXO out2 = createOutput(2);
+        store.beginDatabaseBatchWrite();
+        StoredBlock next = block.build(block.getHeader().createNextBlock(null).cloneAsHeader());
+        store.put(next, new StoredUndoableBlock(next.getHeader().getHash(),
+                new TransactionOutputChanges(new LinkedList<UTXO>(), new LinkedList<UTXO>())));
+        store.addUnspentTransactionOutput(out2);
+        store.removeUnspentTransactionOutput(out1);
+        store.setVerifiedChainHead(next);
+        store.abortDatabaseBatchWrite();
+
+        assertEquals(out1, store.getTransactionOutput(out1.getHash(), out1.getIndex()));
+        assertNull(store.getTransactionOutput(out2.getHash(), out2.getIndex()));
+        assertNull(store.get(next.getHeader().getHash()));
+        assertEquals(block, store.getVerifiedChainHead());
+        assertEquals(block, store.getChainHead());
+        assertEquals(cachedBytes, store.getCachedBytes());
+
+        store.flush();
+        assertEquals(out1, underlying.getTransactionOutput(out1.getHash(), out1.getIndex()));
+        assertNull(underlying.getTransactionOutput(out2.getHash(), out2.getIndex()));
+        assertEquals(block, underlying.getVerifiedChainHead());
+    }
+
+    @Test
+    public void writesBackWhenOverBudget() throws Exception {
+        store = new CachingFullPrunedBlockStore(underlying, 10000, Long.MAX_VALUE);
+        int height = 1;
+        while (store.getFlushes() == 0) {
+            store.beginDatabaseBatchWrite();
+            List<UTXO> outs = new LinkedList<>();
+            for (int i = 0; i < 5; i++) {
+                UTXO out = createOutput(height * 100 + i);
+                store.addUnspentTransactionOutput(out);
+                outs.add(out);
+                // Never in the middle of a batch.
+                assertEquals(0, store.getFlushes());
+            }
+            StoredBlock head = store.getVerifiedChainHead();
+            StoredBlock next = head.build(head.getHeader().createNextBlock(null).cloneAsHeader());
+            store.put(next, new StoredUndoableBlock(next.getHeader().getHash(),
+                    new TransactionOutputChanges(outs, new LinkedList<UTXO>())));
+            store.setVerifiedChainHead(next);
+            store.commitDatabaseBatchWrite();
+            height++;
+        }
+        assertEquals(0, store.getCachedBytes());
+        assertEquals(store.getVerifiedChainHead(), underlying.getVerifiedChainHead());
+        assertEquals(5 * (height - 1), store.getOutputsWritten());
+    }
+
+    @Test
+    public void openOutputsIncludeCachedChanges() throws Exception {
+        UTXO stored = createOutput(1), spent = createOutput(2), cached = createOutput(3);
+        connect(Arrays.asList(stored, spent), Collections.<UTXO> emptyList());
+        store.flush();
+        connect(Collections.singletonList(cached), Collections.singletonList(spent));
+
+        List<UTXO> found = store.getOpenTransactionOutputs(Collections.singletonList(key));
+        assertEquals(2, found.size());
+        assertTrue(found.contains(stored));
+        assertTrue(found.contains(cached));
+    }
+
+    /** Connects a block with the given changes on top of the verified chain head, like FullPrunedBlockChain. */
+    private StoredBlock connect(List<UTXO> created, List<UTXO> spent) throws BlockStoreException {
+        StoredBlock head = store.getVerifiedChainHead();
+        StoredBlock next = head.build(head.getHeader().createNextBlock(null).cloneAsHeader());
+        store.beginDatabaseBatchWrite();
+        for (UTXO out : spent)
+            store.removeUnspentTransactionOutput(out);
+        for (UTXO out : created)
+            store.addUnspentTransactionOutput(out);
+        store.put(next, new StoredUndoableBlock(next.getHeader().getHash(),
+                new TransactionOutputChanges(new LinkedList<>(created), new LinkedList<>(spent))));
+        store.setVerifiedChainHead(next);
+        store.commitDatabaseBatchWrite();
+        return next;
+    }
+
+    private UTXO createOutput(int n) {
+        return new UTXO(Sha256Hash.of(new byte[] { (byte) n, (byte) (n >> 8) }), 0, Coin.COIN, 1, false,
+                ScriptBuilder.createP2PKHOutputScript(key), LegacyAddress.fromKey(UNITTEST, key).toString());
+    }
+}
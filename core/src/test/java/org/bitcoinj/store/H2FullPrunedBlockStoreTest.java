@@ -0,0 +1,158 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.ScriptBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class H2FullPrunedBlockStoreTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+
+    private final ECKey key = new ECKey();
+    private H2FullPrunedBlockStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        Utils.setMockClock();
+        Context.propagate(new Context(UNITTEST));
+        deleteFiles();
+        store = new H2FullPrunedBlockStore(UNITTEST, "test-batch", "sa", "sa", 10);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+        deleteFiles();
+    }
+
+    private void deleteFiles() {
+        new File("test-batch.h2.db").delete();
+        new File("test-batch.trace.db").delete();
+        new File("test-batch.lock.db").delete();
+    }
+
+    @Test
+    public void batchedOutputsAreVisibleBeforeCommit() throws Exception {
+        // More outputs than fit into one multi-row INSERT.
+        List<UTXO> outs = new ArrayList<>();
+        for (int i = 0; i < 250; i++)
+            outs.add(createOutput(i));
+        store.beginDatabaseBatchWrite();
+        for (UTXO out : outs)
+            store.addUnspentTransactionOutput(out);
+        assertEquals(outs.get(7), store.getTransactionOutput(outs.get(7).getHash(), 0));
+        assertTrue(store.hasUnspentOutputs(outs.get(7).getHash(), 1));
+        store.removeUnspentTransactionOutput(outs.get(7));
+        assertNull(store.getTransactionOutput(outs.get(7).getHash(), 0));
+        assertFalse(store.hasUnspentOutputs(outs.get(7).getHash(), 1));
+        store.commitDatabaseBatchWrite();
+
+        for (int i = 0; i < outs.size(); i++)
+            assertEquals(i == 7 ? null : outs.get(i), store.getTransactionOutput(outs.get(i).getHash(), 0));
+        assertEquals(outs.size() - 1, store.getOpenTransactionOutputs(Collections.singletonList(key)).size());
+    }
+
+    @Test
+    public void spendAndRecreateStoredOutput() throws Exception {
+        UTXO out = createOutput(1);
+        store.addUnspentTransactionOutput(out);
+
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(out);
+        assertFalse(store.hasUnspentOutputs(out.getHash(), 1));
+        UTXO recreated = new UTXO(out.getHash(), 0, Coin.CENT, 2, false, out.getScript(), out.getAddress());
+        store.addUnspentTransactionOutput(recreated);
+        store.commitDatabaseBatchWrite();
+
+        assertEquals(Coin.CENT, store.getTransactionOutput(out.getHash(), 0).getValue());
+        assertEquals(2, store.getTransactionOutput(out.getHash(), 0).getHeight());
+    }
+
+    @Test
+    public void duplicateOutputInBatch() throws Exception {
+        UTXO out = createOutput(1);
+        store.addUnspentTransactionOutput(out);
+
+        // The duplicate makes the bulk insert fail, after which the other outputs still have to be written.
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(createOutput(2));
+        store.addUnspentTransactionOutput(new UTXO(out.getHash(), 0, Coin.CENT, 2, false, out.getScript(),
+                out.getAddress()));
+        store.addUnspentTransactionOutput(createOutput(3));
+        store.commitDatabaseBatchWrite();
+
+        assertEquals(out, store.getTransactionOutput(out.getHash(), 0));
+        assertNotNull(store.getTransactionOutput(createOutput(2).getHash(), 0));
+        assertNotNull(store.getTransactionOutput(createOutput(3).getHash(), 0));
+    }
+
+    @Test
+    public void abortDiscardsBatch() throws Exception {
+        UTXO stored = createOutput(1), added = createOutput(2);
+        store.addUnspentTransactionOutput(stored);
+        StoredBlock head = store.getVerifiedChainHead();
+        StoredBlock next = head.build(head.getHeader().createNextBlock(null).cloneAsHeader());
+
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(stored);
+        store.addUnspentTransactionOutput(added);
+        store.put(next, undoBlock(next, added));
+        assertNotNull(store.getUndoBlock(next.getHeader().getHash()));
+        store.abortDatabaseBatchWrite();
+
+        assertEquals(stored, store.getTransactionOutput(stored.getHash(), 0));
+        assertNull(store.getTransactionOutput(added.getHash(), 0));
+        assertNull(store.getUndoBlock(next.getHeader().getHash()));
+    }
+
+    @Test
+    public void undoBlockIsReplaced() throws Exception {
+        StoredBlock head = store.getVerifiedChainHead();
+        StoredBlock next = head.build(head.getHeader().createNextBlock(null).cloneAsHeader());
+        store.put(next, undoBlock(next, createOutput(1)));
+
+        store.beginDatabaseBatchWrite();
+        store.put(next, undoBlock(next, createOutput(2)));
+        store.commitDatabaseBatchWrite();
+
+        StoredUndoableBlock undoBlock = store.getUndoBlock(next.getHeader().getHash());
+        assertEquals(createOutput(2), undoBlock.getTxOutChanges().txOutsCreated.get(0));
+        assertEquals(next, store.getOnceUndoableStoredBlock(next.getHeader().getHash()));
+    }
+
+    private StoredUndoableBlock undoBlock(StoredBlock block, UTXO created) {
+        LinkedList<UTXO> outs = new LinkedList<>();
+        outs.add(created);
+        return new StoredUndoableBlock(block.getHeader().getHash(),
+                new TransactionOutputChanges(outs, new LinkedList<UTXO>()));
+    }
+
+    private UTXO createOutput(int n) {
+        return new UTXO(Sha256Hash.of(new byte[] { (byte) n, (byte) (n >> 8) }), 0, Coin.COIN, 1, false,
+                ScriptBuilder.createP2PKHOutputScript(key), LegacyAddress.fromKey(UNITTEST, key).toString());
+    }
+}
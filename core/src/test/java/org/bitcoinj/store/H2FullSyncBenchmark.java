@@ -0,0 +1,130 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.utils.BriefLogFormatter;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Measures how many blocks per second {@link FullPrunedBlockChain} connects with an {@link H2FullPrunedBlockStore},
+ * on a generated chain in which every block spends and creates the given number of outputs. Scripts aren't run, so
+ * that most of the time goes to the block store.
+ */
+public class H2FullSyncBenchmark {
+    private static final NetworkParameters PARAMS = new UnitTestParams() {
+        @Override public int getInterval() {
+            return Integer.MAX_VALUE;
+        }
+    };
+    private static final String DB_NAME = "H2FullSyncBenchmark";
+
+    public static void main(String[] args) throws Exception {
+        BriefLogFormatter.initWithSilentBitcoinJ();
+        System.out.println("USAGE: H2FullSyncBenchmark [blocks=1000] [transactionsPerBlock=200] [cached=false]");
+        int blockCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int transactionsPerBlock = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        boolean cached = args.length > 2 && Boolean.parseBoolean(args[2]);
+        Context.propagate(new Context(PARAMS));
+
+        System.out.println("Generating " + blockCount + " blocks of " + transactionsPerBlock + " transactions");
+        List<Block> blocks = generateChain(blockCount, transactionsPerBlock);
+
+        deleteFiles();
+        FullPrunedBlockStore store = new H2FullPrunedBlockStore(PARAMS, DB_NAME, 100);
+        if (cached)
+            store = new CachingFullPrunedBlockStore(store);
+        FullPrunedBlockChain chain = new FullPrunedBlockChain(PARAMS, store);
+        chain.setRunScripts(false);
+        try {
+            long start = System.nanoTime(), intervalStart = start;
+            for (int i = 0; i < blocks.size(); i++) {
+                if (!chain.add(blocks.get(i)))
+                    throw new IllegalStateException("Block " + i + " did not connect");
+                if ((i + 1) % 100 == 0) {
+                    long now = System.nanoTime();
+                    System.out.printf(Locale.US, "%6d blocks: %8.1f blocks/s%n", i + 1, 100 * 1e9 / (now - intervalStart));
+                    intervalStart = now;
+                }
+            }
+            store.close();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf(Locale.US, "Connected %d blocks in %.1f s: %.1f blocks/s, %.0f outputs/s%n",
+                    blocks.size(), seconds, blocks.size() / seconds,
+                    (double) blocks.size() * transactionsPerBlock / seconds);
+        } finally {
+            deleteFiles();
+        }
+    }
+
+    /**
+     * Generates a chain that matures a coinbase, splits it into the given number of outputs, and then spends each of
+     * them in every block, creating the output the next block spends.
+     */
+    private static List<Block> generateChain(int blockCount, int transactionsPerBlock) {
+        ECKey key = new ECKey();
+        List<Block> blocks = new ArrayList<>();
+        int height = 1;
+        Block block = PARAMS.getGenesisBlock().createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS,
+                key.getPubKey(), Coin.FIFTY_COINS, height++);
+        blocks.add(block);
+        TransactionOutput coinbaseOutput = block.getTransactions().get(0).getOutput(0);
+        while (blocks.size() < PARAMS.getSpendableCoinbaseDepth(height)) {
+            block = block.createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, key.getPubKey(), Coin.FIFTY_COINS,
+                    height++);
+            blocks.add(block);
+        }
+
+        Transaction split = new Transaction(PARAMS);
+        split.addInput(coinbaseOutput);
+        Coin value = coinbaseOutput.getValue().divide(transactionsPerBlock);
+        for (int i = 0; i < transactionsPerBlock; i++)
+            split.addOutput(new TransactionOutput(PARAMS, split, value, key));
+        // The block reward goes down quickly on the unit test network, so the coinbases of the other blocks are empty.
+        block = block.createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, key.getPubKey(), Coin.ZERO, height++);
+        block.addTransaction(split);
+        block.solve();
+        blocks.add(block);
+
+        List<TransactionOutput> spendable = new ArrayList<>(split.getOutputs());
+        while (blocks.size() < blockCount) {
+            block = block.createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, key.getPubKey(), Coin.ZERO,
+                    height++);
+            List<TransactionOutput> created = new ArrayList<>(transactionsPerBlock);
+            for (TransactionOutput output : spendable) {
+                Transaction tx = new Transaction(PARAMS);
+                tx.addInput(output);
+                created.add(tx.addOutput(new TransactionOutput(PARAMS, tx, output.getValue().subtract(Coin.SATOSHI),
+                        key)));
+                block.addTransaction(tx);
+            }
+            block.solve();
+            blocks.add(block);
+            spendable = created;
+        }
+        return blocks;
+    }
+
+    private static void deleteFiles() {
+        new File(DB_NAME + ".h2.db").delete();
+        new File(DB_NAME + ".trace.db").delete();
+        new File(DB_NAME + ".lock.db").delete();
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.ScriptBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.LinkedList;
+
+import static org.junit.Assert.*;
+
+public class LevelDBFullPrunedBlockStoreTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+
+    private final ECKey key = new ECKey();
+    private File folder;
+    private LevelDBFullPrunedBlockStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        Utils.setMockClock();
+        Context.propagate(new Context(UNITTEST));
+        folder = File.createTempFile("leveldbfullprunedblockstore", null);
+        folder.delete();
+        store = new LevelDBFullPrunedBlockStore(UNITTEST, folder.getPath(), 10);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+        for (File f : folder.listFiles())
+            f.delete();
+        folder.delete();
+    }
+
+    @Test
+    public void bloomFilterIsLoadedFromSnapshot() throws Exception {
+        UTXO out = createOutput(1);
+        connect(out);
+        assertFalse(store.getBloomFilterStats().isFromSnapshot());
+        store.close();
+        assertTrue(new File(folder, LevelDBFullPrunedBlockStore.BLOOM_SNAPSHOT_FILENAME).exists());
+
+        store = new LevelDBFullPrunedBlockStore(UNITTEST, folder.getPath(), 10);
+        LevelDBFullPrunedBlockStore.BloomFilterStats stats = store.getBloomFilterStats();
+        assertTrue(stats.isFromSnapshot());
+        assertEquals(1, stats.getAdded());
+        assertTrue(store.hasUnspentOutputs(out.getHash(), 1));
+        assertFalse(store.hasUnspentOutputs(createOutput(2).getHash(), 1));
+    }
+
+    @Test
+    public void staleSnapshotIsIgnored() throws Exception {
+        UTXO out1 = createOutput(1);
+        connect(out1);
+        File snapshot = new File(folder, LevelDBFullPrunedBlockStore.BLOOM_SNAPSHOT_FILENAME);
+        File saved = new File(folder.getPath() + ".saved");
+        store.close();
+        assertTrue(snapshot.renameTo(saved));
+
+        // The store moves on, but then the process dies with the old snapshot still in place.
+        store = new LevelDBFullPrunedBlockStore(UNITTEST, folder.getPath(), 10);
+        UTXO out2 = createOutput(2);
+        connect(out2);
+        // No snapshot is written while a batch is open.
+        store.beginDatabaseBatchWrite();
+        store.close();
+        assertTrue(saved.renameTo(snapshot));
+
+        store = new LevelDBFullPrunedBlockStore(UNITTEST, folder.getPath(), 10);
+        assertFalse(store.getBloomFilterStats().isFromSnapshot());
+        assertEquals(2, store.getBloomFilterStats().getAdded());
+        assertTrue(store.hasUnspentOutputs(out1.getHash(), 1));
+        assertTrue(store.hasUnspentOutputs(out2.getHash(), 1));
+    }
+
+    @Test
+    public void snapshotWrittenAtInterval() throws Exception {
+        File snapshot = new File(folder, LevelDBFullPrunedBlockStore.BLOOM_SNAPSHOT_FILENAME);
+        store.setBloomFilterSnapshotInterval(2);
+        connect(createOutput(1));
+        assertFalse(snapshot.exists());
+        connect(createOutput(2));
+        assertTrue(snapshot.exists());
+    }
+
+    @Test
+    public void stats() throws Exception {
+        UTXO out = createOutput(1);
+        connect(out);
+        assertTrue(store.hasUnspentOutputs(out.getHash(), 1));
+        assertFalse(store.hasUnspentOutputs(createOutput(2).getHash(), 1));
+        // Spent outputs stay in the filter.
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(out);
+        store.commitDatabaseBatchWrite();
+        assertFalse(store.hasUnspentOutputs(out.getHash(), 1));
+
+        LevelDBFullPrunedBlockStore.BloomFilterStats stats = store.getBloomFilterStats();
+        assertEquals(1, stats.getAdded());
+        assertEquals(2, stats.getPositives());
+        assertEquals(1, stats.getNegatives());
+        assertEquals(1, stats.getFalsePositives());
+        assertEquals(1.0 / 3, stats.getHitRate(), 1e-9);
+        assertEquals(0.5, stats.getFalsePositiveRate(), 1e-9);
+    }
+
+    @Test
+    public void rebuiltOnceSpentOutputsLetTooManyLookupsThrough() throws Exception {
+        store.setBloomFilterRebuildThreshold(0.5);
+        UTXO spent = createOutput(1), unspent = createOutput(2);
+        connect(spent);
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(spent);
+        store.commitDatabaseBatchWrite();
+        for (int i = 0; i < LevelDBFullPrunedBlockStore.BLOOM_REBUILD_MIN_POSITIVES; i++)
+            assertFalse(store.hasUnspentOutputs(spent.getHash(), 1));
+        LevelDBFullPrunedBlockStore.BloomFilterStats stats = store.getBloomFilterStats();
+        assertEquals(1, stats.getRemoved());
+        assertEquals(1.0, stats.getFalsePositiveRate(), 1e-9);
+
+        // The next commit starts over from the unspent outputs.
+        connect(unspent);
+        stats = store.getBloomFilterStats();
+        assertEquals(1, stats.getAdded());
+        assertEquals(0, stats.getRemoved());
+        assertFalse(store.hasUnspentOutputs(spent.getHash(), 1));
+        assertTrue(store.hasUnspentOutputs(unspent.getHash(), 1));
+        assertEquals(0, store.getBloomFilterStats().getFalsePositives());
+    }
+
+    /** Connects a block creating the given output on top of the verified chain head. */
+    private void connect(UTXO out) throws BlockStoreException {
+        StoredBlock head = store.getVerifiedChainHead();
+        StoredBlock next = head.build(head.getHeader().createNextBlock(null).cloneAsHeader());
+        LinkedList<UTXO> created = new LinkedList<>();
+        created.add(out);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(out);
+        store.put(next, new StoredUndoableBlock(next.getHeader().getHash(),
+                new TransactionOutputChanges(created, new LinkedList<UTXO>())));
+        store.setVerifiedChainHead(next);
+        store.commitDatabaseBatchWrite();
+    }
+
+    private UTXO createOutput(int n) {
+        return new UTXO(Sha256Hash.of(new byte[] { (byte) n, (byte) (n >> 8) }), 0, Coin.COIN, 1, false,
+                ScriptBuilder.createP2PKHOutputScript(key), LegacyAddress.fromKey(UNITTEST, key).toString());
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class PackedUTXOMapTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+
+    private final PackedUTXOMap map = new PackedUTXOMap();
+
+    @Test
+    public void roundTrip() {
+        ECKey key = new ECKey();
+        UTXO out = new UTXO(Sha256Hash.of(new byte[] { 1 }), 0xFFFFFFFEL, Coin.valueOf(21000000, 0), 123456, true,
+                ScriptBuilder.createP2PKHOutputScript(key), LegacyAddress.fromKey(UNITTEST, key).toString());
+        UTXO decoded = PackedUTXOMap.decode(PackedUTXOMap.encode(out));
+        assertEquals(out.getHash(), decoded.getHash());
+        assertEquals(out.getIndex(), decoded.getIndex());
+        assertEquals(out.getValue(), decoded.getValue());
+        assertEquals(out.getHeight(), decoded.getHeight());
+        assertEquals(out.isCoinbase(), decoded.isCoinbase());
+        assertEquals(out.getScript(), decoded.getScript());
+        assertEquals(out.getAddress(), decoded.getAddress());
+    }
+
+    @Test
+    public void randomOperationsMatchHashMap() {
+        Random random = new Random(1);
+        Map<String, UTXO> expected = new HashMap<>();
+        List<UTXO> all = new ArrayList<>();
+        // Few distinct hashes with several indexes each, so that probe sequences overlap and removals shift entries.
+        for (int n = 0; n < 2000; n++)
+            all.add(createOutput(n / 4, n % 4, n));
+        for (int i = 0; i < 50000; i++) {
+            UTXO out = all.get(random.nextInt(all.size()));
+            String key = out.getHash() + ":" + out.getIndex();
+            if (random.nextBoolean()) {
+                map.put(out);
+                expected.put(key, out);
+            } else {
+                assertEquals(expected.remove(key) != null, map.remove(out.getHash(), out.getIndex()));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (UTXO out : all) {
+            UTXO found = map.get(out.getHash(), out.getIndex());
+            boolean present = expected.containsKey(out.getHash() + ":" + out.getIndex());
+            assertEquals(present, found != null);
+            assertEquals(present, map.contains(out.getHash(), out.getIndex()));
+            if (found != null)
+                assertEquals(out.getValue(), found.getValue());
+        }
+    }
+
+    @Test
+    public void transaction() throws Exception {
+        UTXO kept = createOutput(1, 0, 1), removed = createOutput(2, 0, 2), added = createOutput(3, 0, 3);
+        map.put(kept);
+        map.put(removed);
+
+        map.beginDatabaseBatchWrite();
+        map.put(added);
+        assertTrue(map.remove(removed.getHash(), 0));
+        assertFalse(map.remove(removed.getHash(), 0));
+        assertNull(map.get(removed.getHash(), 0));
+        assertNotNull(map.get(added.getHash(), 0));
+        assertNotNull(map.get(kept.getHash(), 0));
+        // Not visible to other threads until committed.
+        final AtomicReference<UTXO> seenAdded = new AtomicReference<>(), seenRemoved = new AtomicReference<>();
+        final UTXO a = added, r = removed;
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                seenAdded.set(map.get(a.getHash(), 0));
+                seenRemoved.set(map.get(r.getHash(), 0));
+            }
+        };
+        thread.start();
+        thread.join();
+        assertNull(seenAdded.get());
+        assertNotNull(seenRemoved.get());
+        map.abortDatabaseBatchWrite();
+        assertNull(map.get(added.getHash(), 0));
+        assertNotNull(map.get(removed.getHash(), 0));
+
+        map.beginDatabaseBatchWrite();
+        map.put(added);
+        map.remove(removed.getHash(), 0);
+        map.commitDatabaseBatchWrite();
+        assertNotNull(map.get(added.getHash(), 0));
+        assertNull(map.get(removed.getHash(), 0));
+        assertEquals(2, map.size());
+    }
+
+    @Test
+    public void getByScripts() {
+        ECKey key1 = new ECKey(), key2 = new ECKey();
+        Script script1 = ScriptBuilder.createP2PKHOutputScript(key1);
+        Script script2 = ScriptBuilder.createP2WPKHOutputScript(key2);
+        for (int i = 0; i < 10; i++)
+            map.put(new UTXO(Sha256Hash.of(new byte[] { (byte) i }), 0, Coin.COIN, 1, false,
+                    i % 2 == 0 ? script1 : script2, ""));
+        assertEquals(5, map.getByScripts(Collections.singletonList(script1)).size());
+        assertEquals(10, map.getByScripts(Arrays.asList(script1, script2)).size());
+        // Pays to the same hash as script1.
+        assertEquals(0, map.getByScripts(Collections.singletonList(ScriptBuilder.createP2PKOutputScript(key1))).size());
+
+        // The index follows removals and changes that are committed.
+        map.beginDatabaseBatchWrite();
+        assertTrue(map.remove(Sha256Hash.of(new byte[] { 0 }), 0));
+        map.put(new UTXO(Sha256Hash.of(new byte[] { 1 }), 0, Coin.COIN, 1, false, script1, ""));
+        assertEquals(5, map.getByScripts(Collections.singletonList(script1)).size());
+        map.commitDatabaseBatchWrite();
+        assertEquals(5, map.getByScripts(Collections.singletonList(script1)).size());
+        assertEquals(4, map.getByScripts(Collections.singletonList(script2)).size());
+    }
+
+    @Test
+    public void scriptIndexFollowsRandomOperations() {
+        Random random = new Random(2);
+        ECKey key1 = new ECKey(), key2 = new ECKey();
+        // Several scripts paying to the same hash, so that lists of outputs get long and are unlinked in the middle.
+        List<Script> scripts = Arrays.asList(ScriptBuilder.createP2PKHOutputScript(key1),
+                ScriptBuilder.createP2PKOutputScript(key1), ScriptBuilder.createP2WPKHOutputScript(key1),
+                ScriptBuilder.createP2PKHOutputScript(key2), ScriptBuilder.createOpReturnScript(new byte[] { 1, 2 }));
+        Map<String, UTXO> expected = new HashMap<>();
+        for (int i = 0; i < 20000; i++) {
+            UTXO out = createOutput(random.nextInt(500), random.nextInt(4), i);
+            String key = out.getHash() + ":" + out.getIndex();
+            if (random.nextInt(3) > 0) {
+                out = new UTXO(out.getHash(), out.getIndex(), out.getValue(), 1, false,
+                        scripts.get(random.nextInt(scripts.size())), "");
+                map.put(out);
+                expected.put(key, out);
+            } else {
+                assertEquals(expected.remove(key) != null, map.remove(out.getHash(), out.getIndex()));
+            }
+        }
+        for (Script script : scripts) {
+            Set<String> found = new HashSet<>();
+            for (UTXO out : map.getByScripts(Collections.singletonList(script))) {
+                assertEquals(script, out.getScript());
+                assertTrue(found.add(out.getHash() + ":" + out.getIndex()));
+            }
+            int count = 0;
+            for (UTXO out : expected.values())
+                if (out.getScript().equals(script))
+                    count++;
+            if (ScriptIndex.indexHash(script.getProgram()) != null) {
+                assertTrue(count > 0);
+                assertEquals(count, found.size());
+            } else {
+                assertEquals(0, found.size());
+            }
+        }
+    }
+
+    private static UTXO createOutput(int hash, int index, long value) {
+        return new UTXO(Sha256Hash.of(Utils.bigIntegerToBytes(BigInteger.valueOf(hash + 1), 4)), index,
+                Coin.valueOf(value), 1, false, ScriptBuilder.createOpReturnScript(new byte[] { 1, 2, 3 }), "");
+    }
+}
@@ -20,11 +20,21 @@ package org.bitcoinj.store;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
+import java.util.Random;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.bitcoinj.core.Address;
 import org.bitcoinj.core.Block;
@@ -165,6 +175,246 @@ public class SPVBlockStoreTest {
         store.close();
     }
 
+    @Test
+    public void variableLengthRecords() throws Exception {
+        final int capacity = 10;
+        SPVBlockStore store = new SPVBlockStore(UNITTEST, blockStoreFile, capacity, false);
+        List<StoredBlock> blocks = new ArrayList<>();
+        // Enough headers of both sizes to wrap around the index and the data area several times.
+        StoredBlock prev = store.getChainHead();
+        for (int i = 0; i < 35; i++) {
+            prev = createBlock(prev, i % 3 != 0);
+            blocks.add(prev);
+            store.put(prev);
+            store.setChainHead(prev);
+        }
+        store.close();
+        assertTrue(blockStoreFile.length() < FILE_PROLOGUE_BYTES + LEGACY_RECORD_SIZE * capacity);
+
+        store = new SPVBlockStore(UNITTEST, blockStoreFile, capacity, false);
+        assertEquals(prev, store.getChainHead());
+        for (int i = 0; i < blocks.size(); i++) {
+            StoredBlock block = blocks.get(i);
+            if (i >= blocks.size() - capacity)
+                assertEquals(block, store.get(block.getHeader().getHash()));
+            else
+                assertNull(store.get(block.getHeader().getHash()));
+        }
+        store.close();
+    }
+
+    @Test
+    public void delegatedHeaders() throws Exception {
+        final int capacity = 10;
+        SPVBlockStore store = new SPVBlockStore(UNITTEST, blockStoreFile, capacity, false);
+        List<StoredBlock> blocks = new ArrayList<>();
+        // Delegated headers, with a compact signature and a proof of delegation, and the largest headers the store
+        // takes, mixed with small ones so the data area wraps around at odd places.
+        int[] signatureSizes = { 0, 2 * Block.COMPACT_SIGNATURE_SIZE, 72 + Block.COMPACT_SIGNATURE_SIZE, 70 };
+        StoredBlock prev = store.getChainHead();
+        for (int i = 0; i < 47; i++) {
+            prev = createBlock(prev, signatureSizes[i % signatureSizes.length]);
+            blocks.add(prev);
+            store.put(prev);
+            store.setChainHead(prev);
+        }
+        assertTrue(blocks.get(1).getHeader().hasProofOfDelegation());
+        for (int reopen = 0; reopen < 2; reopen++) {
+            for (int i = blocks.size() - capacity; i < blocks.size(); i++)
+                assertEquals(blocks.get(i), store.get(blocks.get(i).getHeader().getHash()));
+            store.close();
+            store = new SPVBlockStore(UNITTEST, blockStoreFile, capacity, false);
+        }
+        assertEquals(prev, store.getChainHead());
+        store.close();
+    }
+
+    @Test
+    public void headerTooLarge() throws Exception {
+        SPVBlockStore store = new SPVBlockStore(UNITTEST, blockStoreFile, 10, false);
+        StoredBlock genesis = store.getChainHead();
+        StoredBlock block = createBlock(genesis, 200);
+        try {
+            store.put(block);
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+        assertNull(store.get(block.getHeader().getHash()));
+        assertEquals(genesis, store.get(genesis.getHeader().getHash()));
+        store.close();
+    }
+
+    @Test
+    public void hashIndexAfterWrapAround() throws Exception {
+        final int capacity = 3000;
+        SPVBlockStore store = new SPVBlockStore(UNITTEST, blockStoreFile, capacity, false);
+        List<StoredBlock> blocks = new ArrayList<>();
+        StoredBlock prev = store.getChainHead();
+        for (int i = 0; i < capacity * 4; i++) {
+            prev = createBlock(prev, i % 2 == 0);
+            blocks.add(prev);
+            store.put(prev);
+        }
+        for (int i = 0; i < blocks.size(); i++) {
+            StoredBlock block = blocks.get(i);
+            StoredBlock read = store.get(block.getHeader().getHash());
+            if (i >= blocks.size() - capacity)
+                assertEquals(block, read);
+            else if (read != null)
+                assertEquals(block, read); // Evicted, but may still be cached.
+        }
+        assertNull(store.get(Sha256Hash.of(new byte[] { 1 })));
+        store.close();
+    }
+
+    @Test
+    public void concurrentReadsDuringWrites() throws Exception {
+        final int capacity = 1000;
+        final SPVBlockStore store = new SPVBlockStore(UNITTEST, blockStoreFile, capacity, false);
+        final List<StoredBlock> blocks = new ArrayList<>();
+        // Include delegated and the largest possible headers, which readers must get back just like the others.
+        int[] signatureSizes = { 0, 72, 2 * Block.COMPACT_SIGNATURE_SIZE, 72 + Block.COMPACT_SIGNATURE_SIZE };
+        StoredBlock prev = store.getChainHead();
+        for (int i = 0; i < 10000; i++) {
+            prev = createBlock(prev, signatureSizes[i % signatureSizes.length]);
+            blocks.add(prev);
+        }
+        final AtomicInteger written = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> readers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread reader = new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random();
+                    try {
+                        while (written.get() < blocks.size()) {
+                            int end = written.get();
+                            // Stay well clear of the blocks about to be evicted.
+                            int start = Math.max(0, end - capacity / 2);
+                            if (end == start)
+                                continue;
+                            int index = start + random.nextInt(end - start);
+                            StoredBlock block = blocks.get(index);
+                            StoredBlock read = store.get(block.getHeader().getHash());
+                            // Only missing if many more blocks were written in the meantime.
+                            if (read != null || written.get() - index < capacity - 1)
+                                assertEquals(block, read);
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            reader.start();
+            readers.add(reader);
+        }
+        for (StoredBlock block : blocks) {
+            store.put(block);
+            written.incrementAndGet();
+        }
+        for (Thread reader : readers)
+            reader.join();
+        store.close();
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+    }
+
+    @Test
+    public void migrateLegacyFormat() throws Exception {
+        StoredBlock genesis = createGenesis();
+        List<StoredBlock> blocks = new ArrayList<>();
+        blocks.add(genesis);
+        for (int i = 0; i < 5; i++)
+            blocks.add(createBlock(blocks.get(blocks.size() - 1), i % 2 == 0));
+        writeLegacyStore(blockStoreFile, 10, blocks);
+
+        SPVBlockStore store = new SPVBlockStore(UNITTEST, blockStoreFile, 10, false);
+        assertEquals(blocks.get(blocks.size() - 1), store.getChainHead());
+        for (StoredBlock block : blocks)
+            assertEquals(block, store.get(block.getHeader().getHash()));
+        store.close();
+        assertEquals(SPVBlockStore.getFileSize(10), blockStoreFile.length());
+    }
+
+    @Test
+    public void migrateWrappedLegacyFormatAndGrow() throws Exception {
+        List<StoredBlock> blocks = new ArrayList<>();
+        blocks.add(createGenesis());
+        for (int i = 0; i < 25; i++)
+            blocks.add(createBlock(blocks.get(blocks.size() - 1), true));
+        writeLegacyStore(blockStoreFile, 10, blocks);
+
+        SPVBlockStore store = new SPVBlockStore(UNITTEST, blockStoreFile, 20, true);
+        assertEquals(blocks.get(blocks.size() - 1), store.getChainHead());
+        for (int i = 0; i < blocks.size(); i++) {
+            StoredBlock block = blocks.get(i);
+            if (i >= blocks.size() - 10)
+                assertEquals(block, store.get(block.getHeader().getHash()));
+            else if (i > 0)
+                assertNull(store.get(block.getHeader().getHash()));
+        }
+        store.close();
+        assertEquals(SPVBlockStore.getFileSize(20), blockStoreFile.length());
+    }
+
+    @Test(expected = BlockStoreException.class)
+    public void migrateLegacyFormat_butMismatchingCapacity() throws Exception {
+        writeLegacyStore(blockStoreFile, 10, Collections.singletonList(createGenesis()));
+        new SPVBlockStore(UNITTEST, blockStoreFile, 20, false);
+    }
+
+    private static final int FILE_PROLOGUE_BYTES = 1024;
+    private static final int LEGACY_RECORD_SIZE = 32 + StoredBlock.COMPACT_SERIALIZED_SIZE;
+
+    private static StoredBlock createGenesis() {
+        Block genesis = UNITTEST.getGenesisBlock().cloneAsHeader();
+        return new StoredBlock(genesis, genesis.getWork(), 0);
+    }
+
+    private static StoredBlock createBlock(StoredBlock prev, boolean proofOfStake) {
+        return createBlock(prev, proofOfStake ? 72 : 0);
+    }
+
+    /** Creates a proof of stake header with a signature of the given size, or a proof of work header for size 0. */
+    private static StoredBlock createBlock(StoredBlock prev, int signatureSize) {
+        Block block = new Block(UNITTEST, Block.BLOCK_VERSION_QTUM, prev.getHeader().getHash(), Sha256Hash.ZERO_HASH,
+                prev.getHeader().getTimeSeconds() + 1, Block.EASIEST_DIFFICULTY_TARGET, prev.getHeight(),
+                Collections.<Transaction> emptyList());
+        if (signatureSize > 0) {
+            block.setStakePrevTxid(Sha256Hash.of(prev.getHeader().getHash().getBytes()));
+            block.setStakeOutputIndex(1);
+            byte[] signature = new byte[signatureSize];
+            Arrays.fill(signature, (byte) prev.getHeight());
+            block.setSignature(signature);
+        } else {
+            block.setStakeOutputIndex(0xffffffffL);
+        }
+        return new StoredBlock(block.cloneAsHeader(), prev.getChainWork().add(BigInteger.ONE), prev.getHeight() + 1);
+    }
+
+    /** Writes the given blocks in the fixed record "SPVB" format, with the last one as chain head. */
+    private static void writeLegacyStore(File file, int capacity, List<StoredBlock> blocks) throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(FILE_PROLOGUE_BYTES + LEGACY_RECORD_SIZE * capacity);
+        buffer.put(SPVBlockStore.LEGACY_HEADER_MAGIC.getBytes(StandardCharsets.US_ASCII));
+        int cursor = FILE_PROLOGUE_BYTES;
+        for (StoredBlock block : blocks) {
+            if (cursor == buffer.capacity())
+                cursor = FILE_PROLOGUE_BYTES;
+            buffer.position(cursor);
+            buffer.put(block.getHeader().getHash().getBytes());
+            block.serializeCompact(buffer, true);
+            cursor = buffer.position();
+        }
+        buffer.putInt(4, cursor);
+        buffer.position(8);
+        buffer.put(blocks.get(blocks.size() - 1).getHeader().getHash().getBytes());
+        try (FileOutputStream stream = new FileOutputStream(file)) {
+            stream.write(buffer.array());
+        }
+    }
+
     @Test
     public void oneStoreDelete() throws Exception {
         // Used to fail on windows.
@@ -0,0 +1,159 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.TestNet3Params;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class UTXOSnapshotTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+
+    private final ECKey key = new ECKey();
+    private MemoryFullPrunedBlockStore source;
+    private final List<UTXO> outputs = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        Utils.setMockClock();
+        Context.propagate(new Context(UNITTEST));
+        source = new MemoryFullPrunedBlockStore(UNITTEST, 10);
+        Script p2sh = ScriptBuilder.createP2SHOutputScript(new byte[20]);
+        outputs.add(new UTXO(Sha256Hash.of(new byte[] { 1 }), 0, Coin.COIN, 1, true,
+                ScriptBuilder.createP2PKHOutputScript(key), LegacyAddress.fromKey(UNITTEST, key).toString()));
+        outputs.add(new UTXO(Sha256Hash.of(new byte[] { 1 }), 0xFFFFFFFEL, Coin.valueOf(21000000, 0), 2, false,
+                ScriptBuilder.createP2PKOutputScript(key), LegacyAddress.fromKey(UNITTEST, key).toString()));
+        outputs.add(new UTXO(Sha256Hash.of(new byte[] { 2 }), 5, Coin.ZERO, 3, false,
+                p2sh, p2sh.getToAddress(UNITTEST).toString()));
+        outputs.add(new UTXO(Sha256Hash.of(new byte[] { 3 }), 1, Coin.SATOSHI, 3, false,
+                ScriptBuilder.createOpReturnScript(new byte[] { 42 }), ""));
+        outputs.add(new UTXO(Sha256Hash.of(new byte[] { 4 }), 0, Coin.CENT, 3, false,
+                ScriptBuilder.createP2WPKHOutputScript(key), SegwitAddress.fromKey(UNITTEST, key).toString()));
+        connect(outputs.subList(0, 1));
+        connect(outputs.subList(1, 2));
+        connect(outputs.subList(2, outputs.size()));
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PosKernelValidator sourceValidator = new PosKernelValidator(UNITTEST, source);
+        assertEquals(outputs.size(), UTXOSnapshot.write(source, sourceValidator, out, 2, 2));
+
+        MemoryFullPrunedBlockStore target = new MemoryFullPrunedBlockStore(UNITTEST, 10);
+        PosKernelValidator targetValidator = new PosKernelValidator(UNITTEST, target);
+        StoredBlock chainHead = UTXOSnapshot.load(target, targetValidator, new ByteArrayInputStream(out.toByteArray()),
+                3);
+        assertEquals(source.getVerifiedChainHead(), chainHead);
+        assertEquals(chainHead, target.getVerifiedChainHead());
+        assertEquals(chainHead, target.getChainHead());
+        StoredBlock prev = chainHead.getPrev(target);
+        assertEquals(chainHead.getHeight() - 1, prev.getHeight());
+        assertEquals(chainHead.getChainWork().subtract(chainHead.getHeader().getWork()), prev.getChainWork());
+        // Only two headers were written.
+        assertNull(prev.getPrev(target));
+        // But the validator of the new store can check the kernels of the next blocks without going further back.
+        assertArrayEquals(sourceValidator.exportHistory(chainHead, 2), targetValidator.exportHistory(chainHead, 2));
+
+        for (UTXO expected : outputs) {
+            UTXO loaded = target.getTransactionOutput(expected.getHash(), expected.getIndex());
+            assertNotNull(loaded);
+            assertEquals(expected.getValue(), loaded.getValue());
+            assertEquals(expected.getHeight(), loaded.getHeight());
+            assertEquals(expected.isCoinbase(), loaded.isCoinbase());
+            assertEquals(expected.getScript(), loaded.getScript());
+            assertEquals(expected.getAddress(), loaded.getAddress());
+        }
+        Set<Script> scripts = ScriptIndex.scriptsOfKeys(Collections.singletonList(key));
+        assertEquals(3, target.getOpenTransactionOutputsForScripts(scripts).size());
+    }
+
+    @Test
+    public void corruptChunkIsRejected() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        UTXOSnapshot.write(source, new PosKernelValidator(UNITTEST, source), out);
+        byte[] snapshot = out.toByteArray();
+        // A byte of the script of the last output, before the checksum of its chunk and the end marker.
+        snapshot[snapshot.length - 8 - 4 - 32 - 1] ^= 1;
+        MemoryFullPrunedBlockStore target = new MemoryFullPrunedBlockStore(UNITTEST, 10);
+        try {
+            UTXOSnapshot.load(target, new PosKernelValidator(UNITTEST, target), new ByteArrayInputStream(snapshot));
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+        assertEquals(0, target.getVerifiedChainHead().getHeight());
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedSnapshotIsRejected() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        UTXOSnapshot.write(source, new PosKernelValidator(UNITTEST, source), out);
+        byte[] snapshot = Arrays.copyOf(out.toByteArray(), out.size() - 12);
+        MemoryFullPrunedBlockStore target = new MemoryFullPrunedBlockStore(UNITTEST, 10);
+        UTXOSnapshot.load(target, new PosKernelValidator(UNITTEST, target), new ByteArrayInputStream(snapshot));
+    }
+
+    @Test(expected = IOException.class)
+    public void snapshotWithoutKernelHistoryIsRejected() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        UTXOSnapshot.write(source, new PosKernelValidator(UNITTEST, source), out);
+        byte[] snapshot = out.toByteArray();
+        // Version 1, which had no stake kernel history.
+        snapshot[7] = 1;
+        MemoryFullPrunedBlockStore target = new MemoryFullPrunedBlockStore(UNITTEST, 10);
+        UTXOSnapshot.load(target, new PosKernelValidator(UNITTEST, target), new ByteArrayInputStream(snapshot));
+    }
+
+    @Test(expected = IOException.class)
+    public void snapshotOfOtherNetworkIsRejected() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        UTXOSnapshot.write(source, new PosKernelValidator(UNITTEST, source), out);
+        MemoryFullPrunedBlockStore target = new MemoryFullPrunedBlockStore(TestNet3Params.get(), 10);
+        UTXOSnapshot.load(target, new PosKernelValidator(TestNet3Params.get(), target),
+                new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    @Test(expected = BlockStoreException.class)
+    public void storeMustBeNew() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        UTXOSnapshot.write(source, new PosKernelValidator(UNITTEST, source), out);
+        UTXOSnapshot.load(source, new PosKernelValidator(UNITTEST, source),
+                new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    private void connect(List<UTXO> created) throws BlockStoreException {
+        StoredBlock head = source.getVerifiedChainHead();
+        StoredBlock next = head.build(head.getHeader().createNextBlock(null).cloneAsHeader());
+        source.beginDatabaseBatchWrite();
+        for (UTXO out : created)
+            source.addUnspentTransactionOutput(out);
+        source.put(next, new StoredUndoableBlock(next.getHeader().getHash(),
+                new TransactionOutputChanges(new LinkedList<>(created), new LinkedList<UTXO>())));
+        source.setVerifiedChainHead(next);
+        source.commitDatabaseBatchWrite();
+    }
+}
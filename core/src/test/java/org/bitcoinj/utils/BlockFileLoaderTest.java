@@ -0,0 +1,99 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BlockFileLoaderTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+
+    private final List<Block> blocks = new ArrayList<>();
+    private final List<File> files = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        Utils.setMockClock();
+        Context.propagate(new Context(UNITTEST));
+        Block block = UNITTEST.getGenesisBlock();
+        for (int i = 0; i < 50; i++) {
+            block = block.createNextBlock(null);
+            blocks.add(block);
+        }
+        // Spread the blocks over a few files, with garbage between them and a truncated block at the end.
+        files.add(writeFile(blocks.subList(0, 20), new byte[] { 0, 0, 0 }, false));
+        files.add(writeFile(blocks.subList(20, 21), new byte[0], true));
+        files.add(writeFile(blocks.subList(21, 50), new byte[] { 1, 2 }, false));
+    }
+
+    @Test
+    public void loadsBlocksInOrder() {
+        assertEquals(blocks, load(new BlockFileLoader(UNITTEST, files, 1)));
+        assertEquals(blocks, load(new BlockFileLoader(UNITTEST, files, 4)));
+    }
+
+    @Test
+    public void missingFileIsSkipped() {
+        List<File> withMissing = new ArrayList<>(files);
+        withMissing.add(1, new File(files.get(0).getParentFile(), "does-not-exist.dat"));
+        assertEquals(blocks, load(new BlockFileLoader(UNITTEST, withMissing, 4)));
+    }
+
+    private static List<Block> load(BlockFileLoader loader) {
+        List<Block> loaded = new ArrayList<>();
+        for (Block block : loader)
+            loaded.add(block);
+        return loaded;
+    }
+
+    private static File writeFile(List<Block> blocks, byte[] garbage, boolean truncated) throws IOException {
+        File file = File.createTempFile("blk", ".dat");
+        file.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            for (Block block : blocks) {
+                out.write(garbage);
+                byte[] bytes = block.bitcoinSerialize();
+                byte[] header = new byte[8];
+                Utils.uint32ToByteArrayBE(UNITTEST.getPacketMagic(), header, 0);
+                Utils.uint32ToByteArrayLE(bytes.length, header, 4);
+                out.write(header);
+                out.write(bytes);
+            }
+            if (truncated) {
+                byte[] bytes = blocks.get(blocks.size() - 1).createNextBlock(null).bitcoinSerialize();
+                byte[] header = new byte[8];
+                Utils.uint32ToByteArrayBE(UNITTEST.getPacketMagic(), header, 0);
+                Utils.uint32ToByteArrayLE(bytes.length, header, 4);
+                out.write(header);
+                out.write(Arrays.copyOf(bytes, bytes.length / 2));
+            }
+        }
+        return file;
+    }
+}
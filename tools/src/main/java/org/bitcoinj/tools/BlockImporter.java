@@ -22,11 +22,17 @@ import org.bitcoinj.params.TestNet3Params;
 import org.bitcoinj.store.*;
 import org.bitcoinj.utils.BlockFileLoader;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
 
 import java.io.File;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 
 /** Very thin wrapper around {@link BlockFileLoader} */
 public class BlockImporter {
+    // How often progress is printed.
+    private static final long REPORT_INTERVAL_SECONDS = 10;
+
     public static void main(String[] args) throws BlockStoreException, VerificationException, PrunedException {
         System.out.println("USAGE: BlockImporter (prod|test) (H2|Disk|MemFull|Mem|SPV) [blockStore]");
         System.out.println("       blockStore is required unless type is Mem or MemFull");
@@ -67,7 +73,24 @@ public class BlockImporter {
         
         BlockFileLoader loader = new BlockFileLoader(params, BlockFileLoader.getReferenceClientBlockFileList());
         
-        for (Block block : loader)
+        Stopwatch watch = Stopwatch.createStarted();
+        long blocks = 0, bytes = 0, lastReport = 0;
+        for (Block block : loader) {
             chain.add(block);
+            blocks++;
+            bytes += block.getMessageSize();
+            long seconds = watch.elapsed(TimeUnit.SECONDS);
+            if (seconds - lastReport >= REPORT_INTERVAL_SECONDS) {
+                report(chain, watch, blocks, bytes);
+                lastReport = seconds;
+            }
+        }
+        report(chain, watch, blocks, bytes);
+    }
+
+    private static void report(AbstractBlockChain chain, Stopwatch watch, long blocks, long bytes) {
+        double seconds = Math.max(watch.elapsed(TimeUnit.MILLISECONDS), 1) / 1000.0;
+        System.out.println(String.format(Locale.US, "%d blocks, %.1f MB in %.0f s: %.1f blocks/s, %.2f MB/s, height %d",
+                blocks, bytes / 1e6, seconds, blocks / seconds, bytes / 1e6 / seconds, chain.getBestChainHeight()));
     }
 }